@@ -5,13 +5,24 @@ public class AuthenticationMode {
 	public final static AuthenticationMode UNDEFINED = new AuthenticationMode(null, 0 );
 	public final static AuthenticationMode HS80 = new AuthenticationMode(new byte[] { 'H', 'S', '8', '0' }, 80 );
 	public final static AuthenticationMode HS32 = new AuthenticationMode(new byte[] { 'H', 'S', '3', '2' }, 32 );
+	/** AEAD_AES_128_GCM / AEAD_AES_256_GCM (rfc7714), the key size follows the cipher type */
+	public final static AuthenticationMode GCM = new AuthenticationMode(new byte[] { 'G', 'C', 'M', ' ' }, 128, true );
+	
+	/** rfc7714, 12 - AEAD modes use a 96 bit master salt */
+	public final static int AEAD_SALT_BITS = 96;
 	
     private byte[] symbol;
 	private int tagBits;
+	private boolean aead;
 
 	AuthenticationMode(byte[] symbol, int tagBits) {
+	    this(symbol, tagBits, false);
+	}
+
+	AuthenticationMode(byte[] symbol, int tagBits, boolean aead) {
 	    this.symbol = symbol;
 	    this.tagBits = tagBits;
+	    this.aead = aead;
 	}
 	
 	public byte[] getSymbol() {
@@ -25,6 +36,21 @@ public class AuthenticationMode {
 	public int getTagBytes() {
 		return getTagBits() / 8;
 	}
+
+	/**
+	 * True if SRTP encryption and authentication are done together by an
+	 * AEAD transform instead of AES-CM and HMAC-SHA1
+	 */
+	public boolean isAEAD() {
+		return aead;
+	}
+
+	/**
+	 * Size of the SRTP master salt to derive when using this mode with cipher
+	 */
+	public int getSaltBits(CipherType cipher) {
+		return aead ? AEAD_SALT_BITS : cipher.getSaltBits();
+	}
 	
 	public String name() {
 		return new String(getSymbol());
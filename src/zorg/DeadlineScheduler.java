@@ -0,0 +1,64 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+/**
+ * Scheduler of a session driven by the host application: it only records
+ * the deadline of the session task, the host calls ZRTP.onTimer() when it
+ * is reached.
+ */
+final class DeadlineScheduler implements RetransmissionScheduler {
+
+	private RetransmissionTask task;
+	private long deadline = -1; // System.currentTimeMillis() time, or -1
+
+	public synchronized void schedule(RetransmissionTask task, long delayMillis) {
+		this.task = task;
+		deadline = System.currentTimeMillis() + Math.max(delayMillis, 0);
+	}
+
+	public synchronized void cancel(RetransmissionTask task) {
+		if (task == this.task) {
+			deadline = -1;
+		}
+	}
+
+	public synchronized boolean isScheduled(RetransmissionTask task) {
+		return task == this.task && deadline >= 0;
+	}
+
+	synchronized long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Returns the task if its deadline is reached, it is then no longer
+	 * scheduled, or null
+	 */
+	synchronized RetransmissionTask expire(long now) {
+		if (deadline < 0 || now < deadline) {
+			return null;
+		}
+		deadline = -1;
+		return task;
+	}
+}
@@ -0,0 +1,289 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+import java.util.concurrent.Executor;
+
+import zorg.platform.ZrtpLogger;
+
+/**
+ * Hashed timing wheel (Varghese and Lauck) running the tasks of any number
+ * of ZRTP sessions on one thread. Time is divided in ticks, a task expiring
+ * at tick t is kept in the bucket t modulo the wheel size, in a doubly
+ * linked list threaded through the task itself: scheduling, rescheduling and
+ * cancelling a task are O(1) and do not allocate.
+ * 
+ * Tasks run at the end of the tick they expire in, on the timer thread where
+ * they must not block, or on the executor given to the timer. A task which
+ * sends or waits should hand its work to another thread, as the ZRTP
+ * sessions do with their session thread. The thread is started by the first
+ * schedule() and waits without ticking while no task is scheduled.
+ */
+public class HashedWheelTimer implements RetransmissionScheduler, Runnable {
+
+	public static final long DEFAULT_TICK_MILLIS = 10;
+	public static final int DEFAULT_WHEEL_SIZE = 512; // Power of two
+
+	private final long tickMillis;
+	private final int mask;
+	private final RetransmissionTask[] buckets; // Heads of the bucket lists
+	private final String name;
+	private final Executor executor;
+	private final Object lock = new Object();
+
+	private long startTime; // Start of tick 0
+	private long tick; // Next tick to be processed
+	private int pending; // Number of scheduled tasks
+	private Thread worker;
+	private boolean stopped;
+	private volatile ZrtpLogger logger; // Exceptions thrown by the tasks
+
+	public HashedWheelTimer() {
+		this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, "ZRTP-timer");
+	}
+
+	public HashedWheelTimer(long tickMillis, int wheelSize, String name) {
+		this(tickMillis, wheelSize, name, null);
+	}
+
+	/**
+	 * @param tickMillis
+	 *            timer resolution in milliseconds
+	 * @param wheelSize
+	 *            number of buckets, rounded up to a power of two. Tasks
+	 *            scheduled more than wheelSize ticks ahead stay in their
+	 *            bucket for more than one turn of the wheel
+	 * @param name
+	 *            name of the timer thread
+	 * @param executor
+	 *            runs the expired tasks, e.g. on virtual threads. Null to run
+	 *            them on the timer thread
+	 */
+	public HashedWheelTimer(long tickMillis, int wheelSize, String name,
+			Executor executor) {
+		if (tickMillis <= 0 || wheelSize <= 0 || wheelSize > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid timer settings "
+					+ tickMillis + ", " + wheelSize);
+		}
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		this.tickMillis = tickMillis;
+		this.name = name;
+		this.executor = executor;
+		mask = size - 1;
+		buckets = new RetransmissionTask[size];
+	}
+
+	public void schedule(RetransmissionTask task, long delayMillis) {
+		synchronized (lock) {
+			if (stopped) {
+				throw new IllegalStateException("Timer stopped");
+			}
+			if (worker == null) {
+				startTime = System.currentTimeMillis();
+				tick = 0;
+				worker = new Thread(this, name);
+				worker.setDaemon(true);
+				worker.start();
+			}
+			unlink(task);
+			task.generation++;
+			long elapsed = System.currentTimeMillis() - startTime;
+			if (pending == 0 && tick < elapsed / tickMillis) {
+				// idle ticks are skipped here, where the buckets between are
+				// known to be empty, not by the timer thread once it wakes up
+				// and might pass the bucket of this task
+				tick = elapsed / tickMillis;
+			}
+			// the task runs at the end of the tick containing its deadline
+			long deadline = (elapsed + Math.max(delayMillis, 0)) / tickMillis;
+			task.deadline = Math.max(deadline, tick);
+			link(task);
+			if (pending++ == 0) {
+				lock.notify();
+			}
+		}
+	}
+
+	public void cancel(RetransmissionTask task) {
+		synchronized (lock) {
+			unlink(task);
+			task.generation++;
+		}
+	}
+
+	public boolean isScheduled(RetransmissionTask task) {
+		synchronized (lock) {
+			return task.bucket >= 0;
+		}
+	}
+
+	/**
+	 * Sets the logger of the exceptions thrown by the tasks, null to print
+	 * them on the standard error
+	 */
+	public void setLogger(ZrtpLogger logger) {
+		this.logger = logger;
+	}
+
+	public ZrtpLogger getLogger() {
+		return logger;
+	}
+
+	/**
+	 * Returns the number of scheduled tasks
+	 */
+	public int size() {
+		synchronized (lock) {
+			return pending;
+		}
+	}
+
+	/**
+	 * Stops the timer thread, scheduled tasks are dropped
+	 */
+	public void stop() {
+		synchronized (lock) {
+			stopped = true;
+			for (int i = 0; i < buckets.length; i++) {
+				while (buckets[i] != null) {
+					unlink(buckets[i]);
+				}
+			}
+			lock.notify();
+		}
+	}
+
+	/**
+	 * Timer thread
+	 */
+	public void run() {
+		while (true) {
+			RetransmissionTask expired;
+			synchronized (lock) {
+				try {
+					while (!stopped && pending == 0) {
+						lock.wait();
+					}
+					// schedule() may move the tick forward while waiting
+					long now = System.currentTimeMillis();
+					long end;
+					while (!stopped
+							&& now < (end = startTime + (tick + 1) * tickMillis)) {
+						lock.wait(end - now);
+						now = System.currentTimeMillis();
+					}
+				} catch (InterruptedException e) {
+					// keep ticking, stop() ends the thread
+				}
+				if (stopped) {
+					return;
+				}
+				expired = expire(tick);
+				tick++;
+			}
+			while (expired != null) {
+				RetransmissionTask task = expired;
+				expired = task.nextExpired;
+				task.nextExpired = null;
+				boolean valid;
+				synchronized (lock) {
+					// rescheduled or cancelled since it expired
+					valid = task.generation == task.expiredGeneration;
+				}
+				if (valid) {
+					try {
+						if (executor != null) {
+							executor.execute(task);
+						} else {
+							task.run();
+						}
+					} catch (Throwable e) {
+						ZrtpLogger log = logger;
+						if (log != null) {
+							log.logException(name + ": exception in task - "
+									+ e.toString());
+						} else {
+							e.printStackTrace();
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Unlinks the tasks of the bucket of tick t which expire, returns them
+	 * chained through nextExpired
+	 */
+	private RetransmissionTask expire(long t) {
+		RetransmissionTask expired = null;
+		RetransmissionTask last = null;
+		RetransmissionTask task = buckets[(int) (t & mask)];
+		while (task != null) {
+			RetransmissionTask next = task.next;
+			if (task.deadline <= t) {
+				unlink(task);
+				task.expiredGeneration = task.generation;
+				if (last == null) {
+					expired = task;
+				} else {
+					last.nextExpired = task;
+				}
+				last = task;
+			}
+			task = next;
+		}
+		return expired;
+	}
+
+	private void link(RetransmissionTask task) {
+		int index = (int) (task.deadline & mask);
+		RetransmissionTask head = buckets[index];
+		task.prev = null;
+		task.next = head;
+		if (head != null) {
+			head.prev = task;
+		}
+		buckets[index] = task;
+		task.bucket = index;
+	}
+
+	private void unlink(RetransmissionTask task) {
+		if (task.bucket < 0) {
+			return;
+		}
+		if (task.prev != null) {
+			task.prev.next = task.next;
+		} else {
+			buckets[task.bucket] = task.next;
+		}
+		if (task.next != null) {
+			task.next.prev = task.prev;
+		}
+		task.prev = task.next = null;
+		task.bucket = -1;
+		pending--;
+	}
+}
@@ -0,0 +1,209 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded queue of the ZRTP messages received by a session, written by any
+ * number of receiving threads and read by the session thread. Messages are
+ * copied into slots allocated with the queue, so a peer flooding the session
+ * can neither grow the heap nor block the receiving threads: once the queue
+ * is full, the overflow policy drops the oldest message, drops the new one or
+ * rejects it back to the caller.
+ * 
+ * Lock-free array queue after D. Vyukov: each slot has a sequence number
+ * telling whether it is free for the producer at a given tail position or
+ * published for the consumer at a given head position; producers and
+ * consumers only race on the head and tail counters.
+ */
+public final class IncomingMessageQueue {
+
+	// Overflow policies
+	public static final int OVERFLOW_DROP_OLDEST = 0;
+	public static final int OVERFLOW_DROP_NEWEST = 1;
+	public static final int OVERFLOW_REJECT = 2;
+
+	public static final int DEFAULT_CAPACITY = 32; // Power of two
+	// Longer than any ZRTP message (a DH3K DHPart is 468 bytes)
+	public static final int MAX_MESSAGE_LENGTH = 1024;
+
+	private final int mask;
+	private final int overflowPolicy;
+	private final byte[][] slots;
+	private final int[] lengths;
+	private final AtomicLongArray sequences;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	public IncomingMessageQueue() {
+		this(DEFAULT_CAPACITY, OVERFLOW_DROP_OLDEST);
+	}
+
+	/**
+	 * @param capacity
+	 *            number of message slots, rounded up to a power of two
+	 * @param overflowPolicy
+	 *            one of the OVERFLOW_ constants
+	 */
+	public IncomingMessageQueue(int capacity, int overflowPolicy) {
+		if (capacity <= 0 || capacity > (1 << 16)) {
+			throw new IllegalArgumentException("Invalid queue capacity "
+					+ capacity);
+		}
+		if (overflowPolicy < OVERFLOW_DROP_OLDEST
+				|| overflowPolicy > OVERFLOW_REJECT) {
+			throw new IllegalArgumentException("Invalid overflow policy "
+					+ overflowPolicy);
+		}
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		mask = size - 1;
+		this.overflowPolicy = overflowPolicy;
+		slots = new byte[size][MAX_MESSAGE_LENGTH];
+		lengths = new int[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	public int getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Returns the number of messages dropped by the DROP_OLDEST and
+	 * DROP_NEWEST policies
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of messages rejected by the REJECT policy or because
+	 * they were longer than MAX_MESSAGE_LENGTH
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Queues a copy of the message, never blocks
+	 * 
+	 * @return false if the message was rejected, true if it was queued or
+	 *         dropped by the overflow policy
+	 */
+	public boolean offer(byte[] data, int offset, int len) {
+		if (len > MAX_MESSAGE_LENGTH) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		while (!tryOffer(data, offset, len)) {
+			switch (overflowPolicy) {
+			case OVERFLOW_DROP_OLDEST:
+				if (poll(null) >= 0) {
+					dropped.incrementAndGet();
+				}
+				break;
+			case OVERFLOW_DROP_NEWEST:
+				dropped.incrementAndGet();
+				return true;
+			default:
+				rejected.incrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Takes the oldest message
+	 * 
+	 * @param buffer
+	 *            receives the message, at least MAX_MESSAGE_LENGTH bytes long.
+	 *            Null to discard the message
+	 * @return length of the message, -1 if the queue is empty
+	 */
+	public int poll(byte[] buffer) {
+		long pos = head.get();
+		while (true) {
+			int index = (int) (pos & mask);
+			long dif = sequences.get(index) - (pos + 1);
+			if (dif == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					int len = lengths[index];
+					if (buffer != null) {
+						System.arraycopy(slots[index], 0, buffer, 0, len);
+					}
+					// free the slot for the producer one turn later
+					sequences.set(index, pos + mask + 1);
+					return len;
+				}
+				pos = head.get();
+			} else if (dif < 0) {
+				return -1;
+			} else {
+				pos = head.get();
+			}
+		}
+	}
+
+	public boolean isEmpty() {
+		long pos = head.get();
+		return sequences.get((int) (pos & mask)) != pos + 1;
+	}
+
+	/*
+	 * Copies the message in the slot at the tail, false if the queue is full
+	 */
+	private boolean tryOffer(byte[] data, int offset, int len) {
+		long pos = tail.get();
+		while (true) {
+			int index = (int) (pos & mask);
+			long dif = sequences.get(index) - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					System.arraycopy(data, offset, slots[index], 0, len);
+					lengths[index] = len;
+					// publish the slot to the consumer
+					sequences.set(index, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			} else if (dif < 0) {
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+	}
+}
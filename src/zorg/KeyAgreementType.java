@@ -28,10 +28,16 @@ public class KeyAgreementType {
 	public final static int DH_MODE_DH3K = 1;
 	public final static int DH_MODE_EC38 = 2;
 	public final static int DH_MODE_EC25 = 3;
+	public final static int DH_MODE_X255 = 4;
+	public final static int DH_MODE_MULT = 5;
+	public final static int DH_MODE_PRSH = 6;
 
 	private static final byte[] KEY_TYPE_EC25 = { 'E', 'C', '2', '5' };
 	private static final byte[] KEY_TYPE_EC38 = { 'E', 'C', '3', '8' };
 	private static final byte[] KEY_TYPE_DH3K = { 'D', 'H', '3', 'k' };
+	private static final byte[] KEY_TYPE_X255 = { 'X', '2', '5', '5' };
+	private static final byte[] KEY_TYPE_MULT = { 'M', 'u', 'l', 't' };
+	private static final byte[] KEY_TYPE_PRSH = { 'P', 'r', 's', 'h' };
 
 	public static final KeyAgreementType DH3K = new KeyAgreementType(
 			DH_MODE_DH3K);
@@ -39,6 +45,14 @@ public class KeyAgreementType {
 			DH_MODE_EC25);
 	public static final KeyAgreementType ECDH384 = new KeyAgreementType(
 			DH_MODE_EC38);
+	public static final KeyAgreementType X25519 = new KeyAgreementType(
+			DH_MODE_X255);
+	// Multistream mode, keyed from the session key of another stream
+	public static final KeyAgreementType MULTISTREAM = new KeyAgreementType(
+			DH_MODE_MULT);
+	// Preshared mode, keyed from the retained secret of the last call
+	public static final KeyAgreementType PRESHARED = new KeyAgreementType(
+			DH_MODE_PRSH);
 
 	public final int keyType;
 
@@ -57,6 +71,21 @@ public class KeyAgreementType {
 			hash = HashType.SHA384;
 			pvLengthInWords = 24;
 			break;
+		case DH_MODE_X255:
+			// RFC 7748 u-coordinate, 32 bytes little endian
+			hash = HashType.SHA256;
+			pvLengthInWords = 8;
+			break;
+		case DH_MODE_MULT:
+			// no public value, the hash is the one of the keying stream
+			hash = HashType.SHA256;
+			pvLengthInWords = 0;
+			break;
+		case DH_MODE_PRSH:
+			// no public value, the hash is the negotiated one
+			hash = HashType.SHA256;
+			pvLengthInWords = 0;
+			break;
 		case DH_MODE_DH3K:
 		default:
 			hash = HashType.SHA256;
@@ -71,6 +100,12 @@ public class KeyAgreementType {
 			return KEY_TYPE_EC25;
 		case DH_MODE_EC38:
 			return KEY_TYPE_EC38;
+		case DH_MODE_X255:
+			return KEY_TYPE_X255;
+		case DH_MODE_MULT:
+			return KEY_TYPE_MULT;
+		case DH_MODE_PRSH:
+			return KEY_TYPE_PRSH;
 		case DH_MODE_DH3K:
 		default:
 			return KEY_TYPE_DH3K;
@@ -0,0 +1,119 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Session key generations of one direction of an SRTP session. A stream
+ * getting close to the key derivation rate boundary asks for the next
+ * generation, which is derived by a task run on an Executor; the packet
+ * crossing the boundary then only switches keys. Generations which were not
+ * derived ahead of time are derived when they are needed.
+ */
+final class KeyGenerations implements Runnable {
+
+	private final SrtpContext context;
+	private final Executor executor; // Null to derive on the packet path
+
+	private SessionKeys current; // Latest generation in use
+	private SessionKeys next; // Derived ahead of time
+	private long pendingR = -1; // Generation being derived by the task
+
+	KeyGenerations(SrtpContext context, Executor executor) {
+		this.context = context;
+		this.executor = executor;
+	}
+
+	/**
+	 * Returns the keys of generation r, or null if their derivation failed
+	 */
+	SessionKeys get(long r) {
+		synchronized (this) {
+			if (current != null && current.r == r) {
+				return current;
+			}
+			if (next != null && next.r == r) {
+				current = next;
+				next = null;
+				return current;
+			}
+		}
+		SessionKeys keys = context.deriveSessionKeys(r);
+		if (keys != null) {
+			synchronized (this) {
+				if (current == null || r > current.r) {
+					current = keys;
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Derives generation r ahead of time, if an Executor is set
+	 */
+	void prepare(long r) {
+		if (executor == null) {
+			return;
+		}
+		synchronized (this) {
+			if (pendingR >= 0 || (current != null && current.r >= r)
+					|| (next != null && next.r == r)) {
+				return;
+			}
+			pendingR = r;
+		}
+		try {
+			executor.execute(this);
+		} catch (RuntimeException e) {
+			// executor shut down or saturated, derive when needed
+			synchronized (this) {
+				pendingR = -1;
+			}
+		}
+	}
+
+	/**
+	 * Key derivation task
+	 */
+	public void run() {
+		long r;
+		synchronized (this) {
+			r = pendingR;
+		}
+		SessionKeys keys = context.deriveSessionKeys(r);
+		if (keys != null) {
+			try {
+				keys.warmUp();
+			} catch (CryptoException e) {
+				keys = null;
+			}
+		}
+		synchronized (this) {
+			if (keys != null && (current == null || r > current.r)) {
+				next = keys;
+			}
+			pendingR = -1;
+		}
+	}
+}
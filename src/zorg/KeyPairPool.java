@@ -0,0 +1,287 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+import java.util.Hashtable;
+import java.util.concurrent.Executor;
+
+import zorg.platform.DiffieHellmanSuite;
+import zorg.platform.Platform;
+
+/**
+ * Pool of Diffie-Hellman suites with their ephemeral key pair already
+ * generated, one stack per key agreement type. A session takes a suite in
+ * O(1) once the key agreement type is negotiated and uses its key pair only
+ * once; the pool refills in the background, one key pair per task on the
+ * executor.
+ * 
+ * The depth kept for each type is adapted to the sessions started: enough
+ * key pairs to cover the arrivals expected while one key pair is generated,
+ * twice over, never less than the target depth set for the type nor more
+ * than the maximum depth.
+ * 
+ * A failed generation is retried by the first refill after a delay, doubled
+ * for each failure in a row, or at once when the target depth is set again.
+ */
+public class KeyPairPool {
+
+	public static final int DEFAULT_TARGET_DEPTH = 2;
+	public static final int DEFAULT_MAX_DEPTH = 64;
+	public static final long RETRY_DELAY = 1000; // ms
+	public static final long MAX_RETRY_DELAY = 60000; // ms
+
+	/*
+	 * Key pairs of one key agreement type
+	 */
+	private static class Stack {
+		final KeyAgreementType type;
+		final DiffieHellmanSuite[] suites;
+		int count;
+		int targetDepth = DEFAULT_TARGET_DEPTH;
+		boolean refilling;
+		// generations failed in a row, and when to retry
+		int failures;
+		long retryTime;
+		// moving averages of the time between takes and of the generation
+		// time, in milliseconds
+		long lastTake;
+		double interval;
+		double generationTime;
+
+		Stack(KeyAgreementType type, int maxDepth) {
+			this.type = type;
+			suites = new DiffieHellmanSuite[maxDepth];
+		}
+	}
+
+	private static final double SMOOTHING = 0.2;
+
+	private final Platform platform;
+	private final Executor executor;
+	private final int maxDepth;
+	private final Hashtable stacks = new Hashtable();
+	private long hits;
+	private long misses;
+
+	public KeyPairPool(Platform platform, Executor executor) {
+		this(platform, executor, DEFAULT_MAX_DEPTH);
+	}
+
+	/**
+	 * @param platform
+	 *            creates the suites
+	 * @param executor
+	 *            runs the key pair generations, null for a new thread per
+	 *            refill
+	 * @param maxDepth
+	 *            maximum number of key pairs kept for each type
+	 */
+	public KeyPairPool(Platform platform, Executor executor, int maxDepth) {
+		if (maxDepth <= 0) {
+			throw new IllegalArgumentException("Invalid pool depth "
+					+ maxDepth);
+		}
+		this.platform = platform;
+		this.executor = executor;
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * Sets the number of key pairs of the type kept ready at least, and
+	 * starts generating them. Zero generates key pairs of the type only when
+	 * sessions take them.
+	 */
+	public void setTargetDepth(KeyAgreementType type, int depth) {
+		if (depth < 0 || depth > maxDepth) {
+			throw new IllegalArgumentException("Invalid pool depth " + depth);
+		}
+		synchronized (this) {
+			Stack stack = getStack(type);
+			stack.targetDepth = depth;
+			stack.retryTime = 0;
+		}
+		refill(type);
+	}
+
+	/**
+	 * Starts generating the key pairs of the type up to its depth
+	 */
+	public void refill(KeyAgreementType type) {
+		Stack stack;
+		synchronized (this) {
+			stack = getStack(type);
+			if (stack.refilling
+					|| (stack.failures > 0
+							&& System.currentTimeMillis() < stack.retryTime)
+					|| stack.count >= getDepth(stack)) {
+				return;
+			}
+			stack.refilling = true;
+		}
+		startRefill(stack);
+	}
+
+	/**
+	 * Takes a suite with a key pair of the type, which must be used for one
+	 * session only
+	 * 
+	 * @return the suite, null if none is ready
+	 */
+	public DiffieHellmanSuite take(KeyAgreementType type) {
+		DiffieHellmanSuite suite = null;
+		synchronized (this) {
+			Stack stack = getStack(type);
+			long now = System.currentTimeMillis();
+			if (stack.lastTake != 0) {
+				stack.interval += SMOOTHING
+						* ((now - stack.lastTake) - stack.interval);
+			}
+			stack.lastTake = now;
+			if (stack.count > 0) {
+				suite = stack.suites[--stack.count];
+				stack.suites[stack.count] = null;
+				hits++;
+			} else {
+				misses++;
+			}
+		}
+		refill(type);
+		return suite;
+	}
+
+	/**
+	 * Returns the number of key pairs of the type ready
+	 */
+	public synchronized int size(KeyAgreementType type) {
+		return getStack(type).count;
+	}
+
+	/**
+	 * Returns the number of key pairs of the type the pool currently keeps
+	 * ready
+	 */
+	public synchronized int getDepth(KeyAgreementType type) {
+		return getDepth(getStack(type));
+	}
+
+	/**
+	 * Returns the number of takes served from the pool
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of takes which found the pool empty
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	private Stack getStack(KeyAgreementType type) {
+		Integer key = Integer.valueOf(type.keyType);
+		Stack stack = (Stack) stacks.get(key);
+		if (stack == null) {
+			stack = new Stack(type, maxDepth);
+			stacks.put(key, stack);
+		}
+		return stack;
+	}
+
+	/*
+	 * Target depth raised to twice the takes expected during one generation;
+	 * the interval includes the time since the last take so that the depth
+	 * decays when sessions stop arriving
+	 */
+	private int getDepth(Stack stack) {
+		int depth = stack.targetDepth;
+		if (stack.lastTake != 0 && stack.generationTime > 0) {
+			double interval = Math.max(stack.interval,
+					System.currentTimeMillis() - stack.lastTake);
+			double expected = 2 * stack.generationTime / Math.max(interval, 1);
+			depth = Math.max(depth, (int) Math.ceil(expected));
+		}
+		return Math.min(depth, maxDepth);
+	}
+
+	private void startRefill(final Stack stack) {
+		Runnable task = new Runnable() {
+			public void run() {
+				generate(stack);
+			}
+		};
+		if (executor != null) {
+			try {
+				executor.execute(task);
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					stack.refilling = false;
+				}
+			}
+		} else {
+			Thread t = new Thread(task, "ZRTP-keypairs");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/*
+	 * Generates one key pair, and schedules the next one if the stack is
+	 * still below its depth
+	 */
+	private void generate(Stack stack) {
+		DiffieHellmanSuite suite = null;
+		long start = System.currentTimeMillis();
+		try {
+			suite = platform.getCrypto().createDHSuite();
+			suite.setAlgorithm(stack.type);
+		} catch (Throwable e) {
+			platform.getLogger().logException(
+					"ZRTP: Key pair generation failed for " + stack.type
+							+ ": " + e.toString());
+			suite = null;
+		}
+		long time = System.currentTimeMillis() - start;
+		synchronized (this) {
+			if (suite == null) {
+				long delay = RETRY_DELAY << Math.min(stack.failures, 6);
+				stack.failures++;
+				stack.retryTime = System.currentTimeMillis()
+						+ Math.min(delay, MAX_RETRY_DELAY);
+				stack.refilling = false;
+				return;
+			}
+			stack.failures = 0;
+			stack.generationTime = stack.generationTime == 0 ? time
+					: stack.generationTime + SMOOTHING
+							* (time - stack.generationTime);
+			if (stack.count < maxDepth) {
+				stack.suites[stack.count++] = suite;
+			}
+			if (stack.count >= getDepth(stack)) {
+				stack.refilling = false;
+				return;
+			}
+		}
+		startRefill(stack);
+	}
+}
@@ -0,0 +1,299 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+import zorg.platform.CryptoUtils;
+import zorg.platform.EncryptorSuite;
+
+/**
+ * Computes the AES-CM keystream (rfc3711, 4.1.1) of the next packets of an
+ * in-order SRTP stream ahead of time, on tasks run by an Executor. The
+ * keystream only depends on the session salt, the SSRC and the packet index,
+ * so a packet arriving in sequence is transformed with a plain XOR. The
+ * keystream is not prefetched past the key derivation rate boundary of the
+ * stream keys.
+ * 
+ * apply() is called from the packet path, the prefetch task only holds the
+ * lock to claim and publish a slot.
+ */
+final class KeystreamPrefetcher implements Runnable {
+
+	private final CryptoUtils crypto;
+	private final byte[] initVector;
+	private final Executor executor;
+	private final int depth;
+	private final int maxLength;
+
+	private final long[] slotIndex; // Packet index of each slot
+	private final boolean[] ready; // True when the slot keystream is usable
+	private final byte[][] keystream;
+	private final byte[] iv = new byte[16]; // Used by the prefetch task only
+	private EncryptorSuite encryptor; // Used by the prefetch task only
+	private SessionKeys encryptorKeys; // Keys of encryptor
+
+	private SessionKeys keys; // Current keys of the stream
+
+	private boolean anchored; // True once the stream SSRC is known
+	private int ssrc;
+	private long nextIndex; // Next packet index expected in the stream
+	private long fillIndex; // Next packet index to be prefetched
+	private int generation; // Changes when prefetched slots become invalid
+	private boolean scheduled;
+	private boolean stopped;
+
+	/**
+	 * @param crypto
+	 *            creates the encryptors of the prefetch task
+	 * @param initVector
+	 *            encryptor initialisation vector
+	 * @param executor
+	 *            runs the prefetch task
+	 * @param depth
+	 *            number of packets prefetched ahead of the stream
+	 * @param maxLength
+	 *            longest payload covered by the prefetched keystream
+	 */
+	KeystreamPrefetcher(CryptoUtils crypto, byte[] initVector,
+			Executor executor, int depth, int maxLength) {
+		this.crypto = crypto;
+		this.initVector = initVector;
+		this.executor = executor;
+		this.depth = depth;
+		this.maxLength = maxLength;
+		slotIndex = new long[depth];
+		ready = new boolean[depth];
+		keystream = new byte[depth][maxLength];
+	}
+
+	/**
+	 * XORs length bytes of data at pos with the prefetched keystream of the
+	 * packet.
+	 * 
+	 * @return false if the keystream was not prefetched, the caller must
+	 *         transform the payload itself
+	 */
+	synchronized boolean apply(int ssrc, long index, byte[] data, int pos,
+			int length) {
+		byte[] key = claim(ssrc, index, length);
+		if (key == null) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			data[pos + i] ^= key[i];
+		}
+		release(index);
+		return true;
+	}
+
+	/**
+	 * XORs length bytes of data at the absolute index pos with the
+	 * prefetched keystream of the packet, for packets held in direct buffers
+	 * 
+	 * @return false if the keystream was not prefetched, the caller must
+	 *         transform the payload itself
+	 */
+	synchronized boolean apply(int ssrc, long index, ByteBuffer data,
+			int pos, int length) {
+		byte[] key = claim(ssrc, index, length);
+		if (key == null) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			data.put(pos + i, (byte) (data.get(pos + i) ^ key[i]));
+		}
+		release(index);
+		return true;
+	}
+
+	/**
+	 * Sets the session keys of the stream, the keystream prefetched with the
+	 * previous keys is dropped
+	 */
+	synchronized void setKeys(SessionKeys keys) {
+		this.keys = keys;
+		generation++;
+		for (int i = 0; i < depth; i++) {
+			ready[i] = false;
+		}
+		if (anchored) {
+			fillIndex = nextIndex;
+			schedule();
+		}
+	}
+
+	/**
+	 * Stops prefetching and clears the keystream
+	 */
+	void stop() {
+		synchronized (this) {
+			stopped = true;
+			generation++;
+			for (int i = 0; i < depth; i++) {
+				ready[i] = false;
+			}
+			if (scheduled) {
+				// the running task clears the slots when it returns
+				return;
+			}
+		}
+		clear();
+	}
+
+	/**
+	 * Prefetch task, fills the slots up to depth packets ahead of the stream
+	 */
+	public void run() {
+		while (true) {
+			long index;
+			int slot;
+			int gen;
+			int streamSsrc;
+			SessionKeys fillKeys;
+			synchronized (this) {
+				if (stopped || keys == null || fillIndex >= nextIndex + depth
+						|| fillIndex >= keys.endIndex) {
+					scheduled = false;
+					break;
+				}
+				index = fillIndex++;
+				slot = (int) (index % depth);
+				ready[slot] = false;
+				gen = generation;
+				streamSsrc = ssrc;
+				fillKeys = keys;
+			}
+			byte[] key = keystream[slot];
+			for (int i = 0; i < maxLength; i++) {
+				key[i] = 0;
+			}
+			SrtpContext.initialiseIV(iv, streamSsrc, (int) (index & 0xFFFF), index
+					& 0xFFFFFFFFFFFF0000L, fillKeys.saltKey);
+			try {
+				if (encryptorKeys != fillKeys) {
+					encryptor = crypto.createEncryptorSuite(fillKeys.encKey,
+							initVector);
+					encryptorKeys = fillKeys;
+				}
+				encryptor.encryptCounterMode(iv, key, 0, maxLength);
+			} catch (Throwable e) {
+				synchronized (this) {
+					scheduled = false;
+				}
+				return;
+			}
+			synchronized (this) {
+				if (gen == generation && index >= nextIndex) {
+					slotIndex[slot] = index;
+					ready[slot] = true;
+				}
+			}
+		}
+		synchronized (this) {
+			if (!stopped) {
+				return;
+			}
+		}
+		clear();
+	}
+
+	/*
+	 * Returns the prefetched keystream of the packet, or null if it is not
+	 * ready, moving the stream on
+	 */
+	private byte[] claim(int ssrc, long index, int length) {
+		if (stopped || keys == null || index < 0) {
+			return null;
+		}
+		if (!anchored || ssrc != this.ssrc) {
+			// new stream, restart prefetch after this packet
+			anchored = true;
+			this.ssrc = ssrc;
+			invalidate(index + 1);
+			return null;
+		}
+		int slot = (int) (index % depth);
+		if (length > maxLength || !ready[slot] || slotIndex[slot] != index) {
+			// late packets do not move the stream back
+			if (index >= nextIndex) {
+				advance(index + 1);
+			}
+			return null;
+		}
+		return keystream[slot];
+	}
+
+	/*
+	 * Frees the slot of a packet whose keystream was applied
+	 */
+	private void release(long index) {
+		ready[(int) (index % depth)] = false;
+		if (index >= nextIndex) {
+			advance(index + 1);
+		}
+	}
+
+	private void advance(long index) {
+		nextIndex = index;
+		if (fillIndex < nextIndex) {
+			fillIndex = nextIndex;
+		}
+		// refill in batches, to submit a task every depth / 2 packets
+		if (fillIndex - nextIndex <= depth / 2) {
+			schedule();
+		}
+	}
+
+	private void invalidate(long index) {
+		generation++;
+		for (int i = 0; i < depth; i++) {
+			ready[i] = false;
+		}
+		nextIndex = index;
+		fillIndex = index;
+		schedule();
+	}
+
+	private void schedule() {
+		if (scheduled) {
+			return;
+		}
+		scheduled = true;
+		try {
+			executor.execute(this);
+		} catch (RuntimeException e) {
+			// executor shut down or saturated, packets use the normal path
+			scheduled = false;
+		}
+	}
+
+	private void clear() {
+		for (int i = 0; i < depth; i++) {
+			byte[] key = keystream[i];
+			for (int j = 0; j < maxLength; j++) {
+				key[j] = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+/**
+ * Sliding replay window for SRTP (rfc3711, 3.3.2), kept as a bitmap: bit n
+ * is set when the packet with index (highest - n) has been received. A window
+ * of size W checks the indexes from highest - W to highest, so that a packet
+ * lagging the highest by exactly W is still accepted, as the SRTP replay
+ * check always did. Checking and updating the window never allocates.
+ */
+public final class ReplayWindow {
+
+	public static final int DEFAULT_SIZE = 64;
+	public static final int MAX_SIZE = 8192;
+
+	private final int size;
+	private final int length; // size + 1, with the highest index
+	private final long[] bitmap;
+	private long highest; // Highest packet index recorded so far
+	private boolean empty;
+
+	public ReplayWindow() {
+		this(DEFAULT_SIZE);
+	}
+
+	/**
+	 * @param size
+	 *            number of packet indexes covered by the window below the
+	 *            highest, 1 to MAX_SIZE
+	 */
+	public ReplayWindow(int size) {
+		if (size <= 0 || size > MAX_SIZE) {
+			throw new IllegalArgumentException("Invalid replay window size "
+					+ size);
+		}
+		this.size = size;
+		length = size + 1;
+		bitmap = new long[(length + 63) >>> 6];
+		reset();
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns true if the packet index has already been recorded or is too
+	 * old to be checked against the window
+	 */
+	public boolean isReplayed(long index) {
+		if (empty || index > highest) {
+			return false;
+		}
+		long delta = highest - index;
+		if (delta > size) {
+			return true;
+		}
+		int bit = (int) delta;
+		return (bitmap[bit >>> 6] & (1L << (bit & 63))) != 0;
+	}
+
+	/**
+	 * Remove all recorded packet indexes
+	 */
+	public void reset() {
+		for (int i = 0; i < bitmap.length; i++) {
+			bitmap[i] = 0;
+		}
+		highest = 0;
+		empty = true;
+	}
+
+	/**
+	 * Records the packet index as received, sliding the window forward if it
+	 * is the highest seen so far. Indexes older than the window are ignored.
+	 */
+	public void update(long index) {
+		if (empty) {
+			empty = false;
+			highest = index;
+			bitmap[0] = 1L;
+			return;
+		}
+		if (index > highest) {
+			long shift = index - highest;
+			if (shift > size) {
+				for (int i = 0; i < bitmap.length; i++) {
+					bitmap[i] = 0;
+				}
+			} else {
+				shiftLeft((int) shift);
+			}
+			highest = index;
+			bitmap[0] |= 1L;
+		} else {
+			long delta = highest - index;
+			if (delta <= size) {
+				int bit = (int) delta;
+				bitmap[bit >>> 6] |= 1L << (bit & 63);
+			}
+		}
+	}
+
+	private void shiftLeft(int shift) {
+		int words = shift >>> 6;
+		int bits = shift & 63;
+		for (int i = bitmap.length - 1; i >= 0; i--) {
+			int src = i - words;
+			long value = 0;
+			if (src >= 0) {
+				value = bitmap[src] << bits;
+				if (bits != 0 && src > 0) {
+					value |= bitmap[src - 1] >>> (64 - bits);
+				}
+			}
+			bitmap[i] = value;
+		}
+		// drop indexes which fell out of the window
+		int tail = length & 63;
+		if (tail != 0) {
+			bitmap[bitmap.length - 1] &= (1L << tail) - 1;
+		}
+	}
+}
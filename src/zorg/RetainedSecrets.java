@@ -0,0 +1,137 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+/**
+ * Decoded entry of the shared secret cache for a remote ZID. Entries are
+ * immutable, shared by the sessions through the cache store; changes are
+ * made on copies.
+ * 
+ * Encoded, an entry contains the expiration timestamp (8 bytes, little
+ * endian, in ms as system time), trust (1 byte, 0 or 1), rs1 (32 bytes) and
+ * optionally rs2 (32 bytes), followed by the time of the last DH exchange (8
+ * bytes, little endian, in ms as system time) and the number of Preshared
+ * mode calls since (4 bytes, little endian). Entries written before have no
+ * such trailer, and the oldest no trust flag.
+ */
+public final class RetainedSecrets {
+
+	public final long expiryTime;
+	public final boolean trust;
+	public final byte[] rs1;
+	public final byte[] rs2; // null if none
+	public final long dhTime; // 0 if unknown
+	public final int presharedCount;
+	public final String number; // Phone number of other party
+
+	public RetainedSecrets(long expiryTime, boolean trust, byte[] rs1,
+			byte[] rs2, long dhTime, int presharedCount, String number) {
+		this.expiryTime = expiryTime;
+		this.trust = trust;
+		this.rs1 = rs1;
+		this.rs2 = rs2;
+		this.dhTime = dhTime;
+		this.presharedCount = presharedCount;
+		this.number = number;
+	}
+
+	/**
+	 * Decodes an entry
+	 * 
+	 * @return The entry, null if the data has not the length of an entry
+	 */
+	public static RetainedSecrets decode(byte[] data, String number) {
+		int trustLength = 1;
+		if (data.length == 40 || data.length == 72) {
+			// backward compatibility: trust flag = false
+			trustLength = 0;
+		} else if (data.length != 41 && data.length != 73
+				&& data.length != 53 && data.length != 85) {
+			return null;
+		}
+		long expiry = 0;
+		for (int i = 8; i != 0;) {
+			expiry = (expiry << 8) + (data[--i] & 0xffL);
+		}
+		boolean trust = trustLength != 0 && data[8] != 0;
+		int pos = 8 + trustLength;
+		byte[] rs1 = new byte[32];
+		System.arraycopy(data, pos, rs1, 0, 32);
+		pos += 32;
+		byte[] rs2 = null;
+		if (data.length - pos >= 32) {
+			rs2 = new byte[32];
+			System.arraycopy(data, pos, rs2, 0, 32);
+		}
+		long dhTime = 0;
+		int presharedCount = 0;
+		if (data.length == 53 || data.length == 85) {
+			pos = data.length - 12;
+			for (int i = 8; i != 0;) {
+				dhTime = (dhTime << 8) + (data[pos + --i] & 0xffL);
+			}
+			pos += 8;
+			for (int i = 4; i != 0;) {
+				presharedCount = (presharedCount << 8)
+						+ (data[pos + --i] & 0xff);
+			}
+		}
+		return new RetainedSecrets(expiry, trust, rs1, rs2, dhTime,
+				presharedCount, number);
+	}
+
+	public byte[] encode() {
+		byte[] data = new byte[(rs2 == null) ? 53 : 85];
+		long expiry = expiryTime;
+		for (int i = 0; i != 8; ++i) {
+			data[i] = (byte) (expiry & 0xff);
+			expiry >>>= 8;
+		}
+		data[8] = (byte) (trust ? 1 : 0);
+		System.arraycopy(rs1, 0, data, 9, 32);
+		if (rs2 != null) {
+			System.arraycopy(rs2, 0, data, 41, 32);
+		}
+		int pos = data.length - 12;
+		long time = dhTime;
+		for (int i = 0; i != 8; ++i) {
+			data[pos++] = (byte) (time & 0xff);
+			time >>>= 8;
+		}
+		int count = presharedCount;
+		for (int i = 0; i != 4; ++i) {
+			data[pos++] = (byte) (count & 0xff);
+			count >>>= 8;
+		}
+		return data;
+	}
+
+	public RetainedSecrets withNumber(String number) {
+		return new RetainedSecrets(expiryTime, trust, rs1, rs2, dhTime,
+				presharedCount, number);
+	}
+
+	public RetainedSecrets withTrust(boolean trust) {
+		return new RetainedSecrets(expiryTime, trust, rs1, rs2, dhTime,
+				presharedCount, number);
+	}
+}
@@ -0,0 +1,48 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+/**
+ * Schedules the retransmission and timeout tasks of ZRTP sessions (rfc6189,
+ * 6), T1, T2 and the responder timeout. One scheduler is shared by all the
+ * sessions of the process, see ZRTP.setDefaultRetransmissionScheduler().
+ * 
+ * Each session reuses one task object, scheduling a task which is already
+ * scheduled replaces its previous schedule.
+ */
+public interface RetransmissionScheduler {
+
+	/**
+	 * Runs task once, no earlier than delayMillis from now
+	 */
+	void schedule(RetransmissionTask task, long delayMillis);
+
+	/**
+	 * Cancels the pending schedule of task, if any
+	 */
+	void cancel(RetransmissionTask task);
+
+	/**
+	 * Returns true if task is scheduled and has not been taken to run yet
+	 */
+	boolean isScheduled(RetransmissionTask task);
+}
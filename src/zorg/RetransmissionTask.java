@@ -0,0 +1,38 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+/**
+ * Task run by a RetransmissionScheduler. The fields are the bookkeeping of
+ * HashedWheelTimer, guarded by its lock, so that rescheduling a task does
+ * not allocate.
+ */
+public abstract class RetransmissionTask implements Runnable {
+
+	RetransmissionTask prev; // Links in the bucket of the wheel
+	RetransmissionTask next;
+	RetransmissionTask nextExpired; // Links of the tasks taken to run
+	int bucket = -1; // Index of the bucket, -1 when not scheduled
+	long deadline; // Tick at which the task expires
+	int generation; // Changes on each schedule or cancel
+	int expiredGeneration; // Generation of the task when taken to run
+}
@@ -22,9 +22,10 @@
 package zorg;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
 import zorg.platform.EncryptorSuite;
-import zorg.platform.HMAC;
 import zorg.platform.LongSortedVector;
 import zorg.platform.Platform;
 import zorg.platform.RtpPacket;
@@ -32,6 +33,11 @@ import zorg.platform.RtpPacket;
 /**
  * Implementation of SRTP for PrivateGSM Note this is not a full implementation
  * and provides no support for SRTCP
+ * 
+ * A started session is split in a send and a receive context which share no
+ * mutable state; the protect and unprotect methods of this class delegate to
+ * them. Applications sending and receiving on different threads use
+ * getSendContext() and getReceiveContext() directly.
  */
 public class SRTP {
 
@@ -49,51 +55,25 @@ public class SRTP {
 	public static final int UNPROTECT_NULL_PACKET = -4;
 	public static final int UNPROTECT_REPLAYED_PACKET = -5;
 
-	private long rollOverCounter = 0; // RollOver Counter (for send packets)
-	private long rxRoc = 0; // RollOver Counter for receive packets
 	private int kdr = 48; // Key Derivation Rate (2^iKDR packets before using
 							// new keys)
 	private int firstRtpSeq; // Sequence number of 1st send packet in session
 								// (used in session key generation)
-	private int rxSeq; // Sequence number of last packet received in session
-						// (needed by decrypt key generation)
-	private boolean receivedFirst; // True if 1st packet of a session has been
-									// received (needed by decrypt key
-									// generation)
-	private int previousSSRC;
-
-	private byte[] txSessEncKey; // Session key for encryption, Tx Session
-	private byte[] txSessAuthKey; // Session key for authentication, Tx Session
-	private byte[] txSessSaltKey; // Session salt key, Tx Session
+	private SrtpSendContext sendContext; // Tx state, while a session is active
+	private SrtpReceiveContext receiveContext; // Rx state
+
 	private byte[] txMasterKey; // Master key used to create Tx session keys
 	private byte[] txMasterSalt; // Master salt used to create Tx session keys
-	private byte[] txIV; // IV Array used for TX
-	private byte[] rxSessEncKey; // Session key for encryption, Rx Session
-	private byte[] rxSessAuthKey; // Session key for authentication, Rx Session
-	private byte[] rxSessSaltKey; // Session salt key, Rx Session
 	private byte[] rxMasterKey; // Master key used to create Rx session keys
 	private byte[] rxMasterSalt; // Master salt used to create Rx session keys
-	private byte[] rxIV; // IV Array used for RX
-
-	private EncryptorSuite txEncryptorSuite;
-	private byte[] txEncOut;
-	private HMAC txHMAC;
-	private byte[] txRocAuthArray; // Used during authentication of Tx packets
-	private byte[] txAuthHMACArray; // Used by Tx Authentication for HMAC result
-	private byte[] txAuthResultArray; // Used by Tx Authentication for final
-										// result
-
-	private EncryptorSuite rxEncryptorSuite;
-	private byte[] rxEncOut;
-	private HMAC rxHMAC;
-	private byte[] rxRocAuthArray; // Used during authentication of Rx packets
-	private byte[] rxAuthHMACArray; // Used by Rx Authentication for HMAC result
-	private byte[] rxAuthResultArray; // Used by Rx Authentication for final
-										// result
-	private byte[] initVector; // Initialisation Vector for AES encryption
-
-	private LongSortedVector replayWindow; // Stores received sequence numbers
-											// to allow replay protection checks
+
+	private Executor keyDerivationExecutor; // Derives the next keys, if set
+
+	private int replayWindowSize = SRTP_WINDOW_SIZE; // Of each receive stream
+
+	private Executor prefetchExecutor; // Runs keystream prefetch, if enabled
+	private int prefetchDepth;
+	private int prefetchMaxLength;
 
 	public static final int MASTER_KEY_SIZE_32_BYTES = 32; // PrivateGSM Tech
 															// Spec, 5.4.3 -
@@ -104,122 +84,58 @@ public class SRTP {
 	public static final int MASTER_SALT_SIZE_BYTES = 14; // ZRTP Spec, 4.5.3 -
 															// always use 112
 															// bit salt
+	public static final int AEAD_MASTER_SALT_SIZE_BYTES = 12; // rfc7714, 12
 	public static final int HMAC_AUTH_SIZE_BYTES_SRTP_DEFAULT = 10;
 	
-	private static final int SRTP_WINDOW_SIZE = 64; // rfc3711, window size for
-													// replay protection checks
+	// rfc3711, default window size for replay protection checks
+	private static final int SRTP_WINDOW_SIZE = ReplayWindow.DEFAULT_SIZE;
 
-	// Used to log detailed and extensive traces
-	private boolean VERBOSE = false;
-	private boolean SUPER_VERBOSE = false;
 	private final Platform platform;
 	
 	private int mHmacAuthSizeBytes;
+	private boolean aeadMode; // AES-GCM (rfc7714) instead of AES-CM + HMAC
 	
 	public SRTP(Platform platform) {
 		this(platform, HMAC_AUTH_SIZE_BYTES_SRTP_DEFAULT);
 	}
 
+	/**
+	 * Constructor for the SRTP transform negotiated by ZRTP
+	 * 
+	 * @param authMode
+	 *            authentication mode, AEAD modes use AES-GCM (rfc7714)
+	 *            instead of AES-CM with HMAC-SHA1
+	 */
+	public SRTP(Platform platform, AuthenticationMode authMode) {
+		this(platform, authMode.getTagBytes());
+		aeadMode = authMode.isAEAD();
+	}
+
 	/**
 	 * Constructor
 	 */
 	public SRTP(Platform platform, int hmacAuthSizeBytes) {
 		this.platform = platform;
 		this.mHmacAuthSizeBytes = hmacAuthSizeBytes;
-		VERBOSE = VERBOSE || SUPER_VERBOSE;
 		txMasterKey = txMasterSalt = rxMasterKey = rxMasterSalt = null;
-		txSessEncKey = null;
-		txSessAuthKey = null;
-		txSessSaltKey = null;
-		rxSessEncKey = null;
-		rxSessAuthKey = null;
-		rxSessSaltKey = null;
 		firstRtpSeq = 1;
-		rollOverCounter = 0;
-		initVector = new byte[16];
-		platform.getUtils().zero(initVector);
-		txRocAuthArray = new byte[4]; // ROC Array used in Tx Auth always 4
-										// bytes
-		txAuthHMACArray = new byte[20]; // HMAC result is always 20 bytes
-		txAuthResultArray = new byte[getHmacAuthSizeBytes()];
-		rxRocAuthArray = new byte[4]; // ROC Array used in Tx Auth always 4
-										// bytes
-		rxAuthHMACArray = new byte[20]; // HMAC result is always 20 bytes
-		rxAuthResultArray = new byte[getHmacAuthSizeBytes()];
 	}
 	
 	public void setHmacAuthSizeBytes(int hmacAuthSizeBytes) {
 		mHmacAuthSizeBytes = hmacAuthSizeBytes;
-		txAuthResultArray = new byte[getHmacAuthSizeBytes()];
-		rxAuthResultArray = new byte[getHmacAuthSizeBytes()];
-	}
-
-	private byte[] encryptIV(byte[] iv, boolean isTransmitting)
-			throws CryptoException {
-		if (isTransmitting) {
-			txEncryptorSuite.encrypt(iv, txEncOut);
-			return txEncOut;
-		} else {
-			rxEncryptorSuite.encrypt(iv, rxEncOut);
-			return rxEncOut;
-		}
 	}
 
 	/**
 	 * Ends the currently active session (no effect if no session is started)
 	 */
 	public void endSession() {
-		if (replayWindow != null) {
-			replayWindow.removeAllElements();
+		if (sendContext != null) {
+			sendContext.end();
+			receiveContext.end();
 		}
-		replayWindow = null;
-		txEncryptorSuite = rxEncryptorSuite = null;
-		txIV = rxIV = null;
-		txEncOut = rxEncOut = null;
-		txHMAC = rxHMAC = null;
-		txSessEncKey = null;
-		txSessAuthKey = null;
-		txSessSaltKey = null;
-		rxSessEncKey = null;
-		rxSessAuthKey = null;
-		rxSessSaltKey = null;
+		sendContext = null;
+		receiveContext = null;
 		firstRtpSeq = 1;
-		rollOverCounter = 0;
-	}
-
-	private byte[] getAuthentication(RtpPacket packet, long roc,
-			boolean isTransmitting) throws CryptoException {
-		// returns an authentication array which may be added to an RTP payload
-		// (when sending)
-		// or compared to auth array in a received RTP Payload
-		// Authentication is based on entire RTP Packet with 4 byte ROC appended
-		//
-		long tempRoc = roc >>> 16;
-		if (isTransmitting) {
-			for (int i = 3; i >= 0; --i) {
-				txRocAuthArray[3 - i] = (byte) ((tempRoc >>> (i << 3)) & 0xff);
-			}
-			txHMAC.reset();
-			txHMAC.update(packet.getPacket(), 0, packet.getLength());
-			txHMAC.update(txRocAuthArray);
-			txHMAC.getMAC(txAuthHMACArray, 0);
-			// auth created above will be 20 bytes, but we use fixed 32 bit auth
-			// rfc3711, section 4.2.1 states use of left most n bits
-			System.arraycopy(txAuthHMACArray, 0, txAuthResultArray, 0, getHmacAuthSizeBytes());
-			return (txAuthResultArray);
-		} else {
-			for (int i = 3; i >= 0; --i) {
-				rxRocAuthArray[3 - i] = (byte) ((tempRoc >>> (i << 3)) & 0xff);
-			}
-			rxHMAC.reset();
-			rxHMAC.update(packet.getPacket(), 0, packet.getLength());
-			rxHMAC.update(rxRocAuthArray);
-			rxHMAC.getMAC(rxAuthHMACArray, 0);
-			// auth created above will be 20 bytes, but we use fixed 32 bit auth
-			// rfc3711, section 4.2.1 states use of left most n bits
-			System.arraycopy(rxAuthHMACArray, 0, rxAuthResultArray, 0, getHmacAuthSizeBytes());
-			return (rxAuthResultArray);
-		}
 	}
 
 	public int getFirstRtpSeqNum() {
@@ -254,15 +170,15 @@ public class SRTP {
 	}
 
 	public byte[] getRxSessionAuthenticationKey() {
-		return (platform.getUtils().copy(rxSessAuthKey));
+		return platform.getUtils().copy(receiveContext.getSessionAuthenticationKey());
 	}
 
 	public byte[] getRxSessionEncryptionKey() {
-		return (platform.getUtils().copy(rxSessEncKey));
+		return platform.getUtils().copy(receiveContext.getSessionEncryptionKey());
 	}
 
 	public byte[] getRxSessionSaltKey() {
-		return (platform.getUtils().copy(rxSessSaltKey));
+		return platform.getUtils().copy(receiveContext.getSessionSaltKey());
 	}
 
 	/**
@@ -284,136 +200,39 @@ public class SRTP {
 	}
 
 	public byte[] getTxSessionAuthenticationKey() {
-		return (platform.getUtils().copy(txSessAuthKey));
+		return platform.getUtils().copy(sendContext.getSessionAuthenticationKey());
 	}
 
 	public byte[] getTxSessionEncryptionKey() {
-		return (platform.getUtils().copy(txSessEncKey));
+		return platform.getUtils().copy(sendContext.getSessionEncryptionKey());
 	}
 
 	public byte[] getTxSessionSaltKey() {
-		return (platform.getUtils().copy(txSessSaltKey));
-	}
-
-	private void incrementIV(byte[] iv) {
-		if (iv[15] != 0xFF) {
-			iv[15] += 1;
-		} else if (iv[14] != 0xFF) {
-			iv[15] = 0;
-			iv[14] += 1;
-		} else if (iv[13] != 0xFF) {
-			iv[15] = 0;
-			iv[14] = 0;
-			iv[13] += 1;
-		} else if (iv[12] != 0xFF) {
-			iv[15] = 0;
-			iv[14] = 0;
-			iv[13] = 0;
-			iv[12] += 1;
-		} else {
-			iv[15] = 0;
-			iv[14] = 0;
-			iv[13] = 0;
-			iv[12] = 0;
-		}
+		return platform.getUtils().copy(sendContext.getSessionSaltKey());
 	}
 
-	private void initialiseIV(byte[] iv, long ssrc, int seq, long roc,
-			byte[] aSessSaltKey) {
-		// First calculate initial IV for encryption
-		// from rfc3711:
-		// IV = (k_s * 2^16) XOR (SSRC * 2^64) XOR (i * 2^16)
-		// k_s is session salt key
-		// SSRC from RTP Packet
-		// i is SRTP SEQ num (i.e. iROC+seq)
-		platform.getUtils().zero(iv);
-		System.arraycopy(aSessSaltKey, 0, iv, 0, 14);
-		// IV now contains k_s * 2^16, since k_s is 14 bytes long
-		// Now xor with SSRC*2^64 - aSsrc is a long only to make it unsigned,
-		// only 4 LSB of interest
-		for (int i = 4; i < 8; ++i) {
-			byte b = (byte) ((ssrc >>> ((7 - i) << 3)) & 0xFF);
-			iv[i] = (byte) (b ^ iv[i]);
-		}
-		// initVector now contains (k_s*2^16) XOR (SSRC*2^64)
-		iv[13] = (byte) ((seq & 0xff) ^ iv[13]);
-		iv[12] = (byte) (((seq >>> 8) & 0xff) ^ iv[12]);
-		long tempROC = roc >>> 16; // Only a long to make it unsigned, only 4
-									// bytes of interest
-		for (int i = 11; i >= 8; --i) {
-			iv[i] ^= (byte) (tempROC & 0xFF);
-			tempROC = tempROC >>> 8;
-		}
-		if (VERBOSE) {
-			log("initialiseIV() - " + platform.getUtils().byteToHexString(iv));
-		}
+	/**
+	 * Returns the transmit side of the active session, to be used by the
+	 * thread sending RTP packets, or null if no session is started
+	 */
+	public SrtpSendContext getSendContext() {
+		return sendContext;
 	}
 
-	private boolean isReplayedPacket(long aSeq) {
-		// Replay Protection
-		// If we've seen this packet before, it must be discarded
-		// Packets that lag latest by more than window size are also discarded
-		// see rfc3711, 3.2.3
-		// Returns true if packet should be discarded
-		long curSeq = rxRoc + rxSeq;
-		if (aSeq < (curSeq - SRTP_WINDOW_SIZE)) {
-			platform.getLogger().logWarning(
-					"SRTP replay protection: seq #" + aSeq + ", rxRoc=" + rxRoc
-							+ ", rxSeq=" + rxSeq + ", curSeq=" + curSeq
-							+ ", WINDOW_SZIE=" + SRTP_WINDOW_SIZE);
-			return true;
-		}
-		Long newElement = new Long(aSeq);
-		int numElements = replayWindow.size();
-		int found = replayWindow.find(newElement);
-		if (found < 0) {
-			// Not in the array, add it
-			replayWindow.addElement(newElement);
-			if (aSeq > curSeq) {
-				// New packet is later than any we've seen
-				// Readjust window contents to delete those older than window
-				// size
-				long oldestSeq = aSeq - SRTP_WINDOW_SIZE;
-				int numToRemove = 0;
-				for (int i = 0; i < numElements; i++) {
-					Long l = (replayWindow.getAt(i));
-					long seq = l.longValue();
-					if (seq < oldestSeq) {
-						numToRemove++;
-					} else {
-						// Since its a sorted array, once we've seen a sequence
-						// number inside
-						// the window, we can stop looking
-						i = numElements;
-					}
-				}
-				while (numToRemove > 0) {
-					replayWindow.removeElementAt(0);
-					numToRemove--;
-				}
-			}
-		} else {
-			// Its a replayed packet
-			platform.getLogger().logWarning(
-					"SRTP replay protection: found=" + found);
-			platform.getLogger().logWarning(
-					"SRTP replay protection: seq #" + aSeq + ", rxRoc=" + rxRoc
-							+ ", rxSeq=" + rxSeq + ", curSeq=" + curSeq
-							+ ", WINDOW_SZIE=" + SRTP_WINDOW_SIZE);
-			return true;
-		}
-
-		return false;
+	/**
+	 * Returns the receive side of the active session, to be used by the
+	 * thread receiving SRTP packets, or null if no session is started. It
+	 * shares no mutable state with the send context, the two need no
+	 * synchronization.
+	 */
+	public SrtpReceiveContext getReceiveContext() {
+		return receiveContext;
 	}
 
 	private void log(String aMsg) {
 		platform.getLogger().log("SRTP: " + aMsg);
 	}
 
-	private void logBuffer(String aMsg, byte[] aBuf) {
-		platform.getLogger().log("SRTP: " + aMsg, aBuf);
-	}
-
 	private void logDebug(String msg) {
 		if (platform.isVerboseLogging())
 			log(msg);
@@ -423,61 +242,6 @@ public class SRTP {
 		platform.getLogger().logException("SRTP: " + aMsg);
 	}
 
-	private void logWarning(String aMsg) {
-		platform.getLogger().logWarning("SRTP: " + aMsg);
-	}
-
-	private byte[] prf_128(byte[] key, byte[] x, int outLen) {
-		// Generate key for session by encrypting aX with aKey
-		// using IV = aX*2^16
-		// see rfc3711, 4.3.3
-		//
-		// Assumes here that aX is 14 bytes long, which is safe in this
-		// implementation
-		// because we operate with a fixed 112 bit master salt (as indicated in
-		// zrtp spec)
-		// For a more general srtp impl, would need to check size and pad
-		// accordingly
-		//
-		byte[] IV = new byte[16];
-		platform.getUtils().zero(IV);
-		System.arraycopy(x, 0, IV, 0, x.length);
-		byte[] outArray = null;
-		try {
-			// AESKey aesKey = new AESKey(aKey);
-			// AESEncryptorEngine engine = new AESEncryptorEngine(aesKey);
-
-			EncryptorSuite encSuite = platform.getCrypto()
-					.createEncryptorSuite(key, initVector);
-
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			int maxLoops = 1 + ((outLen - 1) >>> 4);
-			for (int i = 0; i < maxLoops; ++i) {
-				byte[] outBlock = encSuite.encryptIV_for_prf(IV);
-				if (VERBOSE) {
-					log("prf_128 IV = "
-							+ platform.getUtils().byteToHexString(IV));
-					log("prf_128 loop count = " + i);
-					log("prf_128 outBlock = "
-							+ platform.getUtils().byteToHexString(outBlock));
-				}
-				baos.write(outBlock);
-				incrementIV(IV);
-			}
-			outArray = baos.toByteArray();
-			baos.close();
-		} catch (Throwable e) {
-			log("ENCRYPT ERROR 1: " + e.getMessage());
-			e.printStackTrace();
-			return null;
-		}
-		// outArray size will be a multiple of 16 bytes
-		// Need to trim to required size
-		byte[] resultArray = new byte[outLen];
-		System.arraycopy(outArray, 0, resultArray, 0, outLen);
-		return resultArray;
-	}
-
 	/**
 	 * Protects an RTP Packet by encrypting payload and adds any additional SRTP
 	 * trailer information
@@ -489,143 +253,72 @@ public class SRTP {
 	 *         to supplied packet
 	 */
 	public RtpPacket protect(RtpPacket packet) {
-		if (txSessEncKey == null) {
+		if (sendContext == null) {
 			log("protect() called out of session");
 			return null;
 		}
-		if (packet == null) {
-			log("protect() called with null RTP packet");
-			return null;
-		}
-
-		int seqNum = packet.getSequenceNumber();
-		if (seqNum == 0) {
-			// wrapped round
-			rollOverCounter += 0x10000L;
-		}
-
-		RtpPacket retPacket = null;
+		return sendContext.protect(packet);
+	}
 
-		if (!transformPayload(packet, rollOverCounter, seqNum, txSessSaltKey,
-				true)) {
-			log("protect() transformPayload error, encryption failed");
+	/**
+	 * Protects the RTP Packet held in a buffer, between its position and its
+	 * limit. The payload is encrypted in place and the authentication tag is
+	 * written after it, so the buffer needs that many bytes of space beyond
+	 * its limit. On success the limit is moved past the tag and the position
+	 * is left unchanged.
+	 * 
+	 * Heap buffers and direct buffers are both processed in place, read only
+	 * buffers are rejected.
+	 * 
+	 * @param buffer
+	 *            buffer holding the RTP Packet to be protected
+	 * @return the same buffer, or null if an error occurred
+	 */
+	public ByteBuffer protect(ByteBuffer buffer) {
+		if (sendContext == null) {
+			log("protect() called out of session");
 			return null;
 		}
+		return sendContext.protect(buffer);
+	}
 
-		// Add authentication which is over whole rtp packet concatenated with
-		// 48 bit ROC
-		byte[] auth = null;
-		try {
-			auth = getAuthentication(packet, rollOverCounter, true); // iTxSessAuthKey);
-			if (VERBOSE) {
-				log("protect() Adding HMAC:");
-				logBuffer("auth:", auth);
-			}
-		} catch (Throwable e) {
-			logError("protect() Authentication error EX: " + e);
-			e.printStackTrace();
-			return null;
-		}
-		// aPacket should have getHmacAuthSizeBytes() bytes pre-allocated for the
-		// auth-code
-		// assert(aPacket.getPacket().length >= aPacket.getLength() +
-		// getHmacAuthSizeBytes());
-		System.arraycopy(auth, 0, packet.getPacket(), packet.getLength(),
-				getHmacAuthSizeBytes());
-		packet.setPayloadLength(packet.getPayloadLength()
-				+ getHmacAuthSizeBytes());
-		retPacket = packet;
-		if (SUPER_VERBOSE) {
-			logBuffer("protect() After adding HMAC: ", retPacket.getPacket());
+	/**
+	 * Protects count RTP Packets, starting from the first in packets, as
+	 * protect(RtpPacket) would do one at a time. The session is checked once
+	 * for the whole batch, every packet still has its own IV, keystream and
+	 * tag: a batch costs about as much as the loop over protect(), it saves
+	 * the caller the loop.
+	 * 
+	 * @param packets
+	 *            RTP Packets to be protected
+	 * @param count
+	 *            number of packets to protect
+	 * @param results
+	 *            receives the result of each packet: UNPROTECT_OK,
+	 *            UNPROTECT_NULL_PACKET, UNPROTECT_INVALID_PACKET or, if
+	 *            encryption failed, UNPROTECT_ERROR_DECRYPTING
+	 * @return number of packets successfully protected
+	 */
+	public int protectBatch(RtpPacket[] packets, int count, int[] results) {
+		if (sendContext == null) {
+			log("protectBatch() called out of session");
+			return SrtpContext.failBatch(count, results,
+					UNPROTECT_SESSION_NOT_STARTED);
 		}
-		return retPacket;
+		return sendContext.protectBatch(packets, count, results);
 	}
 
-	private boolean rxSessionKeyDerivation() {
-		boolean res = true;
-		// Need to produce 3 keys (session encryption, session authentication
-		// and session salt)
-		// All based on same value of r, above, but with labels of 0x00, 0x01 &
-		// 0x02
-		// See comments in txSessionKeyDerivation
-		if (VERBOSE) {
-			platform.getLogger().log("SRTP RX session key derivation");
-		}
-		byte label = 0x00;
-		while (label <= 0x02) {
-			if (VERBOSE) {
-				logDebug("+++ label = " + label);
-			}
-			// Can cheat here, since only one byte of key_id affects the XOR
-			// (and iRxROC is always initialised to 0 at receipt of 1st packet)
-			byte[] x = platform.getUtils().copy(rxMasterSalt);
-			x[7] ^= label;
-			if (VERBOSE) {
-				logDebug("+++ x = " + platform.getUtils().byteToHexString(x));
-			}
-			if (label == 0) {
-				rxSessEncKey = prf_128(rxMasterKey, x, rxMasterKey.length);
-				if (rxSessEncKey == null) {
-					res = false;
-					break;
-				} else {
-					if (VERBOSE) {
-						logDebug("+++ enc key = "
-								+ platform.getUtils().byteToHexString(
-										rxSessEncKey));
-					}
-				}
-			} else if (label == 1) {
-				rxSessAuthKey = prf_128(rxMasterKey, x, 20);
-				if (rxSessAuthKey == null) {
-					res = false;
-					break;
-				} else {
-					if (VERBOSE) {
-						logDebug("+++ auth key = "
-								+ platform.getUtils().byteToHexString(
-										rxSessAuthKey));
-					}
-				}
-			} else {
-				rxSessSaltKey = prf_128(rxMasterKey, x, 14);
-				if (rxSessSaltKey == null) {
-					res = false;
-					break;
-				} else {
-					if (VERBOSE) {
-						logDebug("+++ salt key = "
-								+ platform.getUtils().byteToHexString(
-										rxSessSaltKey));
-					}
-				}
-			}
-			label++;
-		}
-		if (res) {
-			// Create encryptor engine for rx session
-			try {
-				rxEncryptorSuite = platform.getCrypto().createEncryptorSuite(
-						rxSessEncKey, initVector);
-				rxHMAC = platform.getCrypto().createHMACSHA1(rxSessAuthKey);
-			} catch (Throwable e) {
-				logError("rxSessionKeyDerivation failed to create Tx encryptor EX: "
-						+ e);
-				e.printStackTrace();
-				res = false;
-			}
-		}
-		if (!res) {
-			// tidy up if failed
-			logWarning("rxSessionKeyDerivation FAILED");
-			rxSessEncKey = null;
-			rxSessAuthKey = null;
-			rxSessSaltKey = null;
-		}
-		if (VERBOSE) {
-			logDebug("+++ ----------");
+	/**
+	 * Protects count RTP Packets held in buffers, as protect(ByteBuffer)
+	 * would do one at a time. See protectBatch(RtpPacket[], int, int[])
+	 */
+	public int protectBatch(ByteBuffer[] buffers, int count, int[] results) {
+		if (sendContext == null) {
+			log("protectBatch() called out of session");
+			return SrtpContext.failBatch(count, results,
+					UNPROTECT_SESSION_NOT_STARTED);
 		}
-		return res;
+		return sendContext.protectBatch(buffers, count, results);
 	}
 
 	/**
@@ -638,13 +331,16 @@ public class SRTP {
 	 *            sequence number of 1st rtp packet
 	 */
 	public void setFirstRtpSeqNum(int seq) {
-		if (txSessEncKey == null) {
+		if (sendContext == null) {
 			firstRtpSeq = seq;
 		}
 	}
 
 	/**
-	 * Set KDR (Key Definition Rate)
+	 * Set KDR (Key Definition Rate) of the next session. Session keys are
+	 * derived again every 2^aKDR packets of a stream (rfc3711, 4.3.1), values
+	 * of 48 or more, and 0 as a key_derivation_rate of 0, never derive new
+	 * keys.
 	 * 
 	 * @param keyDefinitionRate
 	 *            New key definition rate is 2^aKDR, and maximum is 64 (2^64)
@@ -652,7 +348,7 @@ public class SRTP {
 	 */
 	public boolean setKDR(int keyDefinitionRate) {
 		boolean res = true;
-		if ((keyDefinitionRate > 64) || (keyDefinitionRate <= 0)) {
+		if ((keyDefinitionRate > 64) || (keyDefinitionRate < 0)) {
 			log("setKDR() - invalid parameter " + keyDefinitionRate);
 			res = false;
 		} else {
@@ -661,9 +357,85 @@ public class SRTP {
 		return res;
 	}
 
+	/**
+	 * Sets the Executor deriving the session keys of the next key derivation
+	 * rate generation ahead of time, so that the packet crossing the
+	 * boundary only switches keys. Without it the keys are derived when that
+	 * packet is protected or unprotected.
+	 * 
+	 * @param executor
+	 *            runs the key derivation tasks, null to derive on the packet
+	 *            path
+	 */
+	public void setKeyDerivationExecutor(Executor executor) {
+		keyDerivationExecutor = executor;
+	}
+
+	/**
+	 * Set the number of packets covered by the replay protection window of
+	 * the next session (rfc3711, 3.3.2). Default is 64.
+	 * 
+	 * @param windowSize
+	 *            window size, up to ReplayWindow.MAX_SIZE packets
+	 * @return true if successfully set, false for invalid sizes
+	 */
+	public boolean setReplayWindowSize(int windowSize) {
+		if ((windowSize <= 0) || (windowSize > ReplayWindow.MAX_SIZE)) {
+			log("setReplayWindowSize() - invalid parameter " + windowSize);
+			return false;
+		}
+		replayWindowSize = windowSize;
+		return true;
+	}
+
+	/**
+	 * Enables keystream prefetch for the next session: the AES-CM keystream
+	 * of the next depth packets of in-order streams is computed ahead of time
+	 * by tasks run on executor, so that protecting or unprotecting a packet
+	 * only XORs its payload. Packets out of sequence, from a new SSRC or with
+	 * payloads longer than maxPayloadLength use the normal transform.
+	 * Prefetch is not used in AEAD modes.
+	 * 
+	 * @param executor
+	 *            runs the prefetch tasks, null disables prefetch
+	 * @param depth
+	 *            number of packets prefetched ahead of each stream
+	 * @param maxPayloadLength
+	 *            longest payload covered by the prefetched keystream
+	 * @return true if successfully set, false for invalid values
+	 */
+	public boolean setKeystreamPrefetch(Executor executor, int depth,
+			int maxPayloadLength) {
+		if (executor != null && (depth <= 0 || maxPayloadLength <= 0)) {
+			log("setKeystreamPrefetch() - invalid parameters " + depth + ", "
+					+ maxPayloadLength);
+			return false;
+		}
+		prefetchExecutor = executor;
+		prefetchDepth = depth;
+		prefetchMaxLength = maxPayloadLength;
+		return true;
+	}
+
+	/**
+	 * Sets the RollOver Counter of the send streams, test only
+	 */
 	public void setROC(long aROC) {
-		if (TestSettings.TEST) {
-			rollOverCounter = aROC & 0xFFFFFFFFFFFF0000L;
+		if (TestSettings.TEST && sendContext != null) {
+			sendContext.setROC(aROC);
+		}
+	}
+
+	/**
+	 * Forgets the send and receive state of an SSRC which left the session,
+	 * e.g. after an RTCP BYE. A later packet of the SSRC starts a new stream.
+	 * When the contexts are used by separate threads, call removeSsrc() of
+	 * each context from its own thread instead.
+	 */
+	public void removeSsrc(int ssrc) {
+		if (sendContext != null) {
+			sendContext.removeSsrc(ssrc);
+			receiveContext.removeSsrc(ssrc);
 		}
 	}
 
@@ -696,7 +468,8 @@ public class SRTP {
 
 	/**
 	 * Sets the Master Salt to be used for generating the receive session keys
-	 * (only supports salt size 112 bits for zrtp - see zrtp spec section 4.5.3)
+	 * (only supports salt size 112 bits for zrtp - see zrtp spec section 4.5.3,
+	 * or 96 bits in AEAD mode - see rfc7714 section 12)
 	 * 
 	 * @param salt
 	 *            Master Salt string
@@ -704,7 +477,7 @@ public class SRTP {
 	 */
 	public boolean setRxMasterSalt(byte[] salt) {
 		boolean res = false;
-		if (salt.length == MASTER_SALT_SIZE_BYTES) {
+		if (salt.length == getMasterSaltSizeBytes()) {
 			rxMasterSalt = null;
 			rxMasterSalt = platform.getUtils().copy(salt);
 			res = true;
@@ -712,7 +485,7 @@ public class SRTP {
 					+ platform.getUtils().byteToHexString(rxMasterSalt));
 		} else {
 			logError("Wrong length for iRxMasterSalt: " + salt.length
-					+ " expected " + MASTER_SALT_SIZE_BYTES + " bytes");
+					+ " expected " + getMasterSaltSizeBytes() + " bytes");
 		}
 		return res;
 	}
@@ -742,7 +515,8 @@ public class SRTP {
 
 	/**
 	 * Sets the Master Salt to be used for generating the transmit session keys
-	 * (only supports salt size 112 bits for zrtp - see zrtp spec section 4.5.3)
+	 * (only supports salt size 112 bits for zrtp - see zrtp spec section 4.5.3,
+	 * or 96 bits in AEAD mode - see rfc7714 section 12)
 	 * 
 	 * @param salt
 	 *            Master Salt string
@@ -750,7 +524,7 @@ public class SRTP {
 	 */
 	public boolean setTxMasterSalt(byte[] salt) {
 		boolean res = false;
-		if (salt.length == MASTER_SALT_SIZE_BYTES) {
+		if (salt.length == getMasterSaltSizeBytes()) {
 			txMasterSalt = null;
 			txMasterSalt = platform.getUtils().copy(salt);
 			res = true;
@@ -758,7 +532,7 @@ public class SRTP {
 					+ platform.getUtils().byteToHexString(txMasterSalt));
 		} else {
 			logError("Wrong length for iTxMasterSalt: " + salt.length
-					+ " expected " + MASTER_SALT_SIZE_BYTES + " bytes");
+					+ " expected " + getMasterSaltSizeBytes() + " bytes");
 		}
 		return res;
 	}
@@ -770,41 +544,27 @@ public class SRTP {
 	 * @return error code
 	 */
 	public int startNewSession() {
-		if (txSessEncKey != null)
+		if (sendContext != null)
 			return SESSION_ERROR_ALREADY_ACTIVE;
 		if ((txMasterSalt == null) || (rxMasterSalt == null))
 			return SESSION_ERROR_MASTER_SALT_UDNEFINED;
 		if ((txMasterKey == null) || (rxMasterKey == null))
 			return SESSION_ERROR_MASTER_SALT_UDNEFINED;
-		if (!txSessionKeyDerivation()) {
-			log("startNewSession txSessionKeyDerivation failed");
+		// Each direction gets its own copy of the keys and settings
+		SrtpSendContext send = new SrtpSendContext(this, txMasterKey,
+				txMasterSalt);
+		if (!send.start(firstRtpSeq)) {
+			log("startNewSession Tx session key derivation failed");
 			return SESSION_ERROR_KEY_DERIVATION_FAILED;
 		}
-		// Create encryptor components for tx session
-		try {
-			// and the HMAC components
-			txEncryptorSuite = platform.getCrypto().createEncryptorSuite(
-					txSessEncKey, initVector);
-			txHMAC = platform.getCrypto().createHMACSHA1(txSessAuthKey);
-		} catch (Throwable e) {
-			log("startNewSession failed to create Tx encryptor");
-			return SESSION_ERROR_RESOURCE_CREATION_PROBLEM;
-		}
-		replayWindow = platform.getUtils().createSortedVector();
-		receivedFirst = false;
-		rollOverCounter = 0;
-		rxRoc = 0;
-		txIV = new byte[16]; // Always uses a 128 bit IV
-		rxIV = new byte[16];
-		txEncOut = new byte[16];
-		rxEncOut = new byte[16];
+		receiveContext = new SrtpReceiveContext(this, rxMasterKey, rxMasterSalt);
+		sendContext = send;
 		return SESSION_OK;
 	}
 
 	public boolean testEncryption() {
 		// Uses test data in rfc3711 to test encryption
 		boolean ret = true;
-		rollOverCounter = 0L;
 		byte[] sessKey = { (byte) 0x2B, (byte) 0x7E, (byte) 0x15, (byte) 0x16,
 				(byte) 0x28, (byte) 0xAE, (byte) 0xD2, (byte) 0xA6,
 				(byte) 0xAB, (byte) 0xF7, (byte) 0x15, (byte) 0x88,
@@ -815,20 +575,20 @@ public class SRTP {
 				(byte) 0xFC, (byte) 0xFD };
 
 		byte[] IV = new byte[16];
-		initialiseIV(IV, 0L, 0, 0L, sessSalt);
+		SrtpContext.initialiseIV(IV, 0L, 0, 0L, sessSalt);
 		byte[] outArray = null;
 		try {
 			// AESKey key = new AESKey(sessKey);
 			// AESEncryptorEngine engine = new AESEncryptorEngine(key);
 			EncryptorSuite encSuite = platform.getCrypto()
-					.createEncryptorSuite(sessKey, initVector);
+					.createEncryptorSuite(sessKey, new byte[16]);
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
 			for (int i = 0; i < 3; ++i) {
 				//logBuffer("testEncryption, IV - ", IV);
 				byte[] encrypted = encSuite.encryptIV_for_prf(IV);
 				//logBuffer("testEncryption, encrypted block - ", encrypted);
 				baos.write(encrypted);
-				incrementIV(IV);
+				SrtpContext.incrementIV(IV);
 			}
 			outArray = baos.toByteArray();
 			baos.close();
@@ -869,222 +629,57 @@ public class SRTP {
 	public boolean testReplayWindow() {
 		boolean ret = true;
 		if (TestSettings.TEST) {
-			replayWindow = platform.getUtils().createSortedVector();
-			rxRoc = 0L;
-			receivedFirst = false;
+			SsrcTable.Stream stream = new SsrcTable.Stream();
+			stream.replayWindow = new ReplayWindow(SRTP_WINDOW_SIZE);
+			ReplayWindow replayWindow = stream.replayWindow;
 			long seq = 1L;
 			while (seq <= SRTP_WINDOW_SIZE) {
-				if (isReplayedPacket(seq)) {
+				if (SrtpReceiveContext.isReplayedPacket(stream, seq)) {
 					ret = false;
 					log("testReplayWindow unexpected replayed packet");
 				}
+				replayWindow.update(seq);
 				seq++;
 			}
-			int size = replayWindow.size();
-			if (size != SRTP_WINDOW_SIZE) {
-				log("testReplayWindow after initial creation, incorrect size of vector "
-						+ size);
-				ret = false;
+			for (seq = 1L; seq <= SRTP_WINDOW_SIZE; seq++) {
+				if (!replayWindow.isReplayed(seq)) {
+					log("testReplayWindow after initial creation, packet id "
+							+ seq + " not recorded");
+					ret = false;
+				}
 			}
 			seq = 27L;
-			if (!isReplayedPacket(seq)) {
+			if (!SrtpReceiveContext.isReplayedPacket(stream, seq)) {
 				ret = false;
 				log("testReplayWindow failed to spot repeated packet id " + seq);
 			}
 			seq = SRTP_WINDOW_SIZE + 5;
-			if (isReplayedPacket(seq)) {
+			if (SrtpReceiveContext.isReplayedPacket(stream, seq)) {
 				log("testReplayWindow incorrectly reported repeated packet id "
 						+ seq);
 				ret = false;
 			}
-			Long l = replayWindow.getAt(0);
-			long first = l.longValue();
-			if (first != 5) {
-				log("testReplayWindow after deleting elements, incorrect first element "
-						+ first);
-				ret = false;
-			}
+			replayWindow.update(seq);
 			seq = SRTP_WINDOW_SIZE + 3;
-			if (isReplayedPacket(seq)) {
+			if (SrtpReceiveContext.isReplayedPacket(stream, seq)) {
 				log("testReplayWindow incorrectly reported repeated packet id "
 						+ seq);
 				ret = false;
 			}
-			l = replayWindow.getAt(0);
-			first = l.longValue();
-			if (first != 5) {
-				log("testReplayWindow after adding in-window element, incorrect first element "
-						+ first);
+			replayWindow.update(seq);
+			// window now covers 5 .. SRTP_WINDOW_SIZE + 5
+			if (!replayWindow.isReplayed(5L)
+					|| !replayWindow.isReplayed(SRTP_WINDOW_SIZE + 3)) {
+				log("testReplayWindow after sliding window, lost recorded elements");
 				ret = false;
 			}
-		}
-		return ret;
-	}
-
-	private boolean transformPayload(RtpPacket rtpPacket, long roc,
-			int aSeqNum, byte[] sessSaltKey, boolean isTransmitting) {
-		// Returns false if error occurs
-		// Uses passed parameters aROC & aSeqNum to calculate packet index
-		// as, when unprotecting, its an index estimate (packets may have been
-		// missed)
-		// Salt Key used by initialiseIV and will differ between send & receive
-		int length = rtpPacket.getPayloadLength();
-		if (length == 0) {
-			return false;
-		}
-		byte[] packet = rtpPacket.getPacket();
-		if (packet == null) {
-			return false;
-		}
-		int pos = rtpPacket.getHeaderLength();
-		byte[] IV = null;
-		if (isTransmitting) {
-			IV = txIV;
-		} else {
-			IV = rxIV;
-		}
-		initialiseIV(IV, rtpPacket.getSscr(), aSeqNum, roc, sessSaltKey);
-		if (VERBOSE) {
-			log("transformPayload, after init, IV = "
-					+ platform.getUtils().byteToHexString(IV));
-		}
-
-		// Calculate how many encryption iterations will be needed
-		int iter = length >>> 4;
-
-		byte[] outBuf = null; // Buffer for encrypted segment
-		if (iter > 0) {
-			for (int i = 0; i < iter; ++i) {
-				try {
-					outBuf = encryptIV(IV, isTransmitting);
-				} catch (Throwable e) {
-					return false;
-				}
-				// IV encrypted, now XOR with payload segment & append to new
-				// payload
-				for (int x = 0; x < 16; ++x, ++pos) {
-					packet[pos] ^= outBuf[x];
-				}
-				// Increment IV ready for next one
-				incrementIV(IV);
-			}
-		}
-		// Now deal with the last segment if any
-		int bytesLeft = length % 16;
-		if (bytesLeft > 0) {
-			try {
-				outBuf = encryptIV(IV, isTransmitting);
-			} catch (Throwable e) {
-				return false;
-			}
-			// IV encrypted, now XOR with payload segment & append to new
-			// payload
-			for (int x = 0; x < bytesLeft; ++x, ++pos) {
-				packet[pos] ^= outBuf[x];
-			}
-		}
-		return true;
-	}
-
-	private boolean txSessionKeyDerivation() {
-		/*
-		 * Derive the session keys as described in RFC3711, section 4.3.1 -
-		 * 
-		 * Let "a DIV t" denote integer division of a by t, rounded down, and
-		 * with the convention that "a DIV 0 = 0" for all a. We also make the
-		 * convention of treating "a DIV t" as a bit string of the same length
-		 * as a, and thus "a DIV t" will in general have leading zeros.
-		 * 
-		 * Key derivation SHALL be defined as follows in terms of <label>, an
-		 * 8-bit constant (see below), master_salt and key_derivation_rate, as
-		 * determined in the cryptographic context, and index, the packet index
-		 * (i.e., the 48-bit ROC || SEQ for SRTP):
-		 * 
-		 * * Let r = index DIV key_derivation_rate (with DIV as defined above).
-		 * 
-		 * * Let key_id = <label> || r.
-		 * 
-		 * * Let x = key_id XOR master_salt, where key_id and master_salt are
-		 * aligned so that their least significant bits agree (right-
-		 * alignment).
-		 * 
-		 * Note that test data provided in rfc3711 suggests that key_id is a 7
-		 * byte value whereas the above suggests a 9 byte value. i.e. for the
-		 * calculation of x, key_id is right aligned with master_salt*16
-		 */
-
-		boolean res = true;
-		/*
-		 * Following calc not needed as for initial key derivation, index is 0
-		 * long index = iROC + iFirstRtpSeq; log("txSessionKeyDerivation()");
-		 * log("+++ iROC = " + iROC); log("+++ iFirstRtpSeq = " + iFirstRtpSeq);
-		 * log("+++ index = " + index); long r = index >>> iKDR; log("+++ r = "
-		 * + r);
-		 * 
-		 * Need to produce 3 keys (session encryption, session authentication
-		 * and session salt) All based on same value of r, above, but with
-		 * labels of 0x00, 0x01 & 0x02
-		 */
-		byte label = 0x00;
-		if (VERBOSE) {
-			platform.getLogger().log("SRTP TX session key derivation");
-		}
-		while (label <= 0x02) {
-			if (VERBOSE) {
-				logDebug("+++ label = " + label);
-			}
-			// Can cheat here, since only one byte of key_id affects the XOR
-			byte[] x = platform.getUtils().copy(txMasterSalt);
-			x[7] ^= label;
-			if (VERBOSE) {
-				logDebug("+++ x = " + platform.getUtils().byteToHexString(x));
-			}
-			if (label == 0) {
-				txSessEncKey = prf_128(txMasterKey, x, txMasterKey.length);
-				if (txSessEncKey == null) {
-					res = false;
-					break;
-				}
-				if (VERBOSE) {
-					logDebug("+++ enc key = "
-							+ platform.getUtils().byteToHexString(txSessEncKey));
-				}
-			} else if (label == 1) {
-				txSessAuthKey = prf_128(txMasterKey, x, 20);
-				if (txSessAuthKey == null) {
-					res = false;
-					break;
-				}
-				if (VERBOSE) {
-					logDebug("+++ auth key = "
-							+ platform.getUtils()
-									.byteToHexString(txSessAuthKey));
-				}
-			} else {
-				txSessSaltKey = prf_128(txMasterKey, x, 14);
-				if (txSessSaltKey == null) {
-					res = false;
-					break;
-				}
-				if (VERBOSE) {
-					logDebug("+++ salt key = "
-							+ platform.getUtils()
-									.byteToHexString(txSessSaltKey));
-				}
+			if (replayWindow.isReplayed(SRTP_WINDOW_SIZE + 4)) {
+				log("testReplayWindow after sliding window, unexpected element "
+						+ (SRTP_WINDOW_SIZE + 4));
+				ret = false;
 			}
-			label++;
 		}
-		if (!res) {
-			// tidy up if failed
-			logWarning("txSessionKeyDerivation FAILED");
-			txSessEncKey = null;
-			txSessAuthKey = null;
-			txSessSaltKey = null;
-		}
-		if (VERBOSE) {
-			logDebug("+++ ----------");
-		}
-		return res;
+		return ret;
 	}
 
 	/**
@@ -1095,130 +690,104 @@ public class SRTP {
 	 * @return error code, 0 = success
 	 */
 	public int unprotect(RtpPacket packet) {
-		if (txSessAuthKey == null) {
-			// Only the tx session key is set at session start, rx is done when
-			// 1st packet received
+		if (receiveContext == null) {
 			log("unprotect() called out of session");
 			return UNPROTECT_SESSION_NOT_STARTED;
 		}
-		if (packet == null) {
-			logWarning("unprotect() called with null RtpPacket");
-			return UNPROTECT_NULL_PACKET;
-		}
-		if (previousSSRC != packet.getSscr()) {
-			previousSSRC = packet.getSscr();
-			// reset indexes & Seq
-			rxRoc = 0;
-			rxSeq = packet.getSequenceNumber();
-			replayWindow.removeAllElements();
-			logWarning("New SSRC detected. Resetting SRTP replay protection");
-		}
-		if (!receivedFirst) {
-			receivedFirst = true;
-			rxSeq = packet.getSequenceNumber();
-			if (VERBOSE) {
-				log("unprotect() iRxSeq = " + rxSeq);
-			}
-			if (!rxSessionKeyDerivation()) {
-				logWarning("unprotect() unable to create session keys");
-				return UNPROTECT_ERROR_DECRYPTING;
-			}
-		}
-		// First need to work out the implicit srtp sequence number,
-		// see rfc3711 appendix A & section 3.3.1
-		// Using same naming convention as in rfc for ROC estimate (v)
-		// Needs to be done before authentication as v is used as part of auth
-		long v;
-		int seq = packet.getSequenceNumber();
-		if (rxSeq < 0x8000) {
-			if ((seq - rxSeq) > 0x8000) {
-				v = rxRoc - 0x10000L;
-			} else {
-				v = rxRoc;
-			}
-		} else {
-			if ((rxSeq - 0x8000) > seq) {
-				v = rxRoc + 0x10000L;
-			} else {
-				v = rxRoc;
-			}
+		return receiveContext.unprotect(packet);
+	}
+
+	/**
+	 * Unprotects the SRTP Packet held in a buffer, between its position and
+	 * its limit, by decrypting the payload in place. On success the limit is
+	 * moved back before the authentication tag and the position is left
+	 * unchanged.
+	 * 
+	 * Heap buffers and direct buffers are both processed in place, read only
+	 * buffers are rejected.
+	 * 
+	 * @param buffer
+	 *            buffer holding the SRTP Packet to be unprotected
+	 * @return error code, 0 = success
+	 */
+	public int unprotect(ByteBuffer buffer) {
+		if (receiveContext == null) {
+			log("unprotect() called out of session");
+			return UNPROTECT_SESSION_NOT_STARTED;
 		}
+		return receiveContext.unprotect(buffer);
+	}
 
-		long index = v + seq;
-		if (SUPER_VERBOSE) {
-			log("unprotect(), seq = " + seq);
-			logBuffer("unprotect(), rcvd pkt = ", packet.getPacket());
+	/**
+	 * Unprotects count SRTP Packets, starting from the first in packets, in
+	 * the order they are given, as unprotect(RtpPacket) would do one at a
+	 * time. The session is checked once for the whole batch, every packet is
+	 * still authenticated and decrypted on its own: a batch costs about as
+	 * much as the loop over unprotect().
+	 * 
+	 * @param packets
+	 *            SRTP Packets to be unprotected
+	 * @param count
+	 *            number of packets to unprotect
+	 * @param results
+	 *            receives the error code of each packet, 0 = success
+	 * @return number of packets successfully unprotected
+	 */
+	public int unprotectBatch(RtpPacket[] packets, int count, int[] results) {
+		if (receiveContext == null) {
+			log("unprotectBatch() called out of session");
+			return SrtpContext.failBatch(count, results,
+					UNPROTECT_SESSION_NOT_STARTED);
 		}
-		if (isReplayedPacket(index)) {
-			logWarning("Replayed packet received, sequence number=#" + seq
-					+ ", index=" + index);
-			return UNPROTECT_REPLAYED_PACKET;
+		return receiveContext.unprotectBatch(packets, count, results);
+	}
+
+	/**
+	 * Unprotects count SRTP Packets held in buffers, as unprotect(ByteBuffer)
+	 * would do one at a time. See unprotectBatch(RtpPacket[], int, int[])
+	 */
+	public int unprotectBatch(ByteBuffer[] buffers, int count, int[] results) {
+		if (receiveContext == null) {
+			log("unprotectBatch() called out of session");
+			return SrtpContext.failBatch(count, results,
+					UNPROTECT_SESSION_NOT_STARTED);
 		}
+		return receiveContext.unprotectBatch(buffers, count, results);
+	}
 
-		// Now need to check authentication & remove auth bytes from payload
-		int originalLen = packet.getPayloadLength();
-		int newLen = originalLen - getHmacAuthSizeBytes();
+	private int getMasterSaltSizeBytes() {
+		return aeadMode ? AEAD_MASTER_SALT_SIZE_BYTES : MASTER_SALT_SIZE_BYTES;
+	}
 
-		// we'll reduce the payload length but the auth-code will still be
-		// present after the payload for comparison
-		int pktAuthCodePos = packet.getHeaderLength() + newLen;
-		packet.setPayloadLength(newLen);
-		byte[] authCode = null;
-		try {
-			authCode = getAuthentication(packet, v, false); // iRxSessAuthKey);
-		} catch (Throwable e) {
-			logError("unprotect() error getting authCode EX: " + e);
-			e.printStackTrace();
-			return UNPROTECT_ERROR_DECRYPTING;
-		}
+	Platform getPlatform() {
+		return platform;
+	}
 
-		if (!platform.getUtils().equals(authCode, 0, packet.getPacket(),
-				pktAuthCodePos, getHmacAuthSizeBytes())) {
-			// Auth failed
-			logWarning("unprotect() Authentication failed");
-			logBuffer("authCode:", authCode);
-			byte[] pktAuthCode = new byte[getHmacAuthSizeBytes()];
-			System.arraycopy(packet.getPacket(), pktAuthCodePos, pktAuthCode,
-					0, getHmacAuthSizeBytes());
-			logBuffer("pktAuthCode:", pktAuthCode);
-			logBuffer("iRxSessAuthKey:", rxSessAuthKey);
-			log("v = " + Integer.toHexString((int) v) + " (" + v + ")");
-			return UNPROTECT_INVALID_PACKET;
-		}
+	boolean isAEAD() {
+		return aeadMode;
+	}
 
-		if (VERBOSE) {
-			log("unprotect() -------- Authenticated OK --------");
-		}
+	int getHmacAuthSizeBytes() {
+		return mHmacAuthSizeBytes;
+	}
 
-		// Authenticated, now unprotect the payload
-		// Note the use of encryptIV() in transformPayload is correct
-		// At 1st sight, might expect to use decrypt but unprotection consists
-		// of XORing payload with an encrypted IV to obtain original payload
-		// data
+	int getReplayWindowSize() {
+		return replayWindowSize;
+	}
 
-		if (!transformPayload(packet, v, seq, rxSessSaltKey, false)) {
-			log("unprotect() transformPayload error, decryption failed");
-			return UNPROTECT_ERROR_DECRYPTING;
-		}
+	Executor getKeyDerivationExecutor() {
+		return keyDerivationExecutor;
+	}
 
-		// Payload now unprotected. Update the latest seq & ROC ready for next
-		// packet
-		if (v == rxRoc) {
-			if (seq > rxSeq) {
-				rxSeq = seq;
-			}
-		} else if (v == rxRoc + 0x10000L) {
-			rxRoc += 0x10000L;
-			rxSeq = seq;
-		}
+	Executor getPrefetchExecutor() {
+		return prefetchExecutor;
+	}
 
-		if (SUPER_VERBOSE) {
-			logBuffer("unprotect(), new packet - ", packet.getPacket());
-		}
-		return UNPROTECT_OK;
+	int getPrefetchDepth() {
+		return prefetchDepth;
 	}
 
-	private int getHmacAuthSizeBytes() {
-		return mHmacAuthSizeBytes;
+	int getPrefetchMaxLength() {
+		return prefetchMaxLength;
 	}
 }
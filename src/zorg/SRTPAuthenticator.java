@@ -0,0 +1,195 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+import java.nio.ByteBuffer;
+
+import zorg.platform.Digest;
+import zorg.platform.Platform;
+
+/**
+ * HMAC-SHA1 for SRTP packet authentication (rfc3711, 4.2.1)
+ * 
+ * The inner and outer padded keys are hashed once per session key with the
+ * platform SHA-1 digest, so hardware accelerated implementations are kept,
+ * and each packet starts from a copy of the keyed digests. Platforms that
+ * cannot copy a digest hash the padded keys again for every packet. The tag
+ * is written to (or compared against) the packet trailer directly. An
+ * instance is not thread safe.
+ */
+public final class SRTPAuthenticator {
+
+	public static final int MAC_SIZE = 20;
+
+	private static final int BLOCK_SIZE = 64;
+
+	private final Digest inner; // keyed with innerPad unless it is kept
+	private final Digest outer; // keyed with outerPad unless it is kept
+	private final byte[] innerPad; // key ^ ipad, null when inner is keyed
+	private final byte[] outerPad; // key ^ opad, null when outer is keyed
+	private final byte[] roc = new byte[4];
+	private final byte[] mac = new byte[MAC_SIZE];
+
+	/**
+	 * @param platform
+	 *            platform providing the SHA-1 digest
+	 * @param key
+	 *            session authentication key
+	 */
+	public SRTPAuthenticator(Platform platform, byte[] key) {
+		this(platform.getCrypto().createDigestSHA1(), platform.getCrypto()
+				.createDigestSHA1(), key);
+		platform.getUtils().zero(mac);
+	}
+
+	/*
+	 * Keys two fresh SHA-1 digests, kept as the starting state of every
+	 * packet if they can be copied
+	 */
+	SRTPAuthenticator(Digest inner, Digest outer, byte[] key) {
+		if (key.length > BLOCK_SIZE) {
+			// rfc2104, longer keys are hashed first
+			inner.update(key, 0, key.length);
+			inner.getDigest(mac, 0, true);
+			key = mac;
+		}
+		byte[] innerPad = new byte[BLOCK_SIZE];
+		byte[] outerPad = new byte[BLOCK_SIZE];
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			byte k = i < key.length ? key[i] : 0;
+			innerPad[i] = (byte) (k ^ 0x36);
+			outerPad[i] = (byte) (k ^ 0x5c);
+		}
+		boolean copyable = inner.copy() != null && outer.copy() != null;
+		if (copyable) {
+			inner.update(innerPad, 0, BLOCK_SIZE);
+			outer.update(outerPad, 0, BLOCK_SIZE);
+			for (int i = 0; i < BLOCK_SIZE; i++) {
+				innerPad[i] = outerPad[i] = 0;
+			}
+		}
+		this.inner = inner;
+		this.outer = outer;
+		this.innerPad = copyable ? null : innerPad;
+		this.outerPad = copyable ? null : outerPad;
+	}
+
+	/**
+	 * Computes the authentication tag of the packet, concatenated with the
+	 * 32 bit ROC, and writes its leftmost tagLength bytes at tagOffset
+	 */
+	public void computeTag(byte[] data, int offset, int length, int roc,
+			byte[] tag, int tagOffset, int tagLength) {
+		computeMac(data, offset, length, roc);
+		System.arraycopy(mac, 0, tag, tagOffset, tagLength);
+	}
+
+	/**
+	 * Checks the tagLength bytes at tagOffset against the authentication tag
+	 * of the packet, concatenated with the 32 bit ROC. The comparison takes
+	 * the same time wherever the tags differ.
+	 */
+	public boolean verifyTag(byte[] data, int offset, int length, int roc,
+			byte[] tag, int tagOffset, int tagLength) {
+		computeMac(data, offset, length, roc);
+		int diff = 0;
+		for (int i = 0; i < tagLength; i++) {
+			diff |= mac[i] ^ tag[tagOffset + i];
+		}
+		return diff == 0;
+	}
+
+	/**
+	 * Computes the authentication tag of the packet held in data, as
+	 * computeTag(byte[], int, int, int, byte[], int, int), and writes it in
+	 * data at tagOffset. Offsets are absolute indexes, the position and limit
+	 * of data are not modified.
+	 */
+	public void computeTag(ByteBuffer data, int offset, int length, int roc,
+			int tagOffset, int tagLength) {
+		computeMac(data, offset, length, roc);
+		for (int i = 0; i < tagLength; i++) {
+			data.put(tagOffset + i, mac[i]);
+		}
+	}
+
+	/**
+	 * Checks the tag held in data at tagOffset against the authentication tag
+	 * of the packet held in data, as verifyTag(byte[], int, int, int, byte[],
+	 * int, int)
+	 */
+	public boolean verifyTag(ByteBuffer data, int offset, int length,
+			int roc, int tagOffset, int tagLength) {
+		computeMac(data, offset, length, roc);
+		int diff = 0;
+		for (int i = 0; i < tagLength; i++) {
+			diff |= mac[i] ^ data.get(tagOffset + i);
+		}
+		return diff == 0;
+	}
+
+	private void computeMac(byte[] data, int offset, int length, int rocValue) {
+		Digest digest = begin(inner, innerPad);
+		digest.update(data, offset, length);
+		finishMac(digest, rocValue);
+	}
+
+	private void computeMac(ByteBuffer data, int offset, int length,
+			int rocValue) {
+		Digest digest = begin(inner, innerPad);
+		// the digest reads the buffer from its position to its limit
+		int position = data.position();
+		int limit = data.limit();
+		data.limit(offset + length);
+		data.position(offset);
+		digest.update(data);
+		data.limit(limit);
+		data.position(position);
+		finishMac(digest, rocValue);
+	}
+
+	private void finishMac(Digest digest, int rocValue) {
+		roc[0] = (byte) (rocValue >>> 24);
+		roc[1] = (byte) (rocValue >>> 16);
+		roc[2] = (byte) (rocValue >>> 8);
+		roc[3] = (byte) rocValue;
+		// inner hash: H((K ^ ipad) || packet || ROC)
+		digest.update(roc, 0, 4);
+		digest.getDigest(mac, 0, true);
+		// outer hash: H((K ^ opad) || inner hash)
+		digest = begin(outer, outerPad);
+		digest.update(mac, 0, MAC_SIZE);
+		digest.getDigest(mac, 0, true);
+	}
+
+	/*
+	 * Returns a digest which has hashed the padded key: a copy of the keyed
+	 * digest, or the digest itself after hashing pad if it cannot be copied
+	 */
+	private static Digest begin(Digest digest, byte[] pad) {
+		if (pad == null) {
+			return digest.copy();
+		}
+		digest.update(pad, 0, BLOCK_SIZE);
+		return digest;
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+import zorg.platform.AEADCipher;
+import zorg.platform.EncryptorSuite;
+
+/**
+ * One generation of SRTP session keys (rfc3711, 4.3.1), used for the packet
+ * indexes from r * 2^kdr up to, but not including, endIndex. Instances are
+ * immutable once published, the encryptor, authenticator and AEAD cipher are
+ * only used from the packet path.
+ */
+final class SessionKeys {
+
+	final long r; // index DIV key_derivation_rate
+	final long endIndex; // First packet index of the next generation
+	final byte[] encKey;
+	final byte[] authKey;
+	final byte[] saltKey;
+	final EncryptorSuite encryptor; // AES-CM, null in AEAD mode
+	final SRTPAuthenticator authenticator; // HMAC-SHA1, null in AEAD mode
+	final AEADCipher aead; // AES-GCM, null unless in AEAD mode
+
+	SessionKeys(long r, long endIndex, byte[] encKey, byte[] authKey,
+			byte[] saltKey, EncryptorSuite encryptor,
+			SRTPAuthenticator authenticator, AEADCipher aead) {
+		this.r = r;
+		this.endIndex = endIndex;
+		this.encKey = encKey;
+		this.authKey = authKey;
+		this.saltKey = saltKey;
+		this.encryptor = encryptor;
+		this.authenticator = authenticator;
+		this.aead = aead;
+	}
+
+	/**
+	 * Runs the cipher objects once on dummy data, so that the platform does
+	 * its lazy initialization before the keys reach the packet path
+	 */
+	void warmUp() throws CryptoException {
+		byte[] iv = new byte[aead != null ? 12 : 16];
+		byte[] data = new byte[64];
+		if (aead != null) {
+			// decrypting does not use up an IV, the dummy tag does not match
+			aead.decrypt(iv, data, 0, 12, data.length - 12);
+		} else {
+			encryptor.encryptCounterMode(iv, data, 0, data.length);
+			authenticator.computeTag(data, 0, data.length - 10, 0, data,
+					data.length - 10, 10);
+		}
+	}
+}
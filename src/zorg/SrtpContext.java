@@ -0,0 +1,522 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+import zorg.platform.AEADCipher;
+import zorg.platform.EncryptorSuite;
+import zorg.platform.Platform;
+
+/**
+ * State of one direction of an SRTP session: the master key and salt, the
+ * session keys of each key derivation rate generation and the per-SSRC
+ * streams. A context is only used by one thread at a time, the send and
+ * receive contexts of a session share no mutable state so the threads
+ * sending and receiving packets of a call never contend.
+ */
+abstract class SrtpContext {
+
+	static final int RTP_HEADER_SIZE = 12; // Fixed part, rfc3550 5.1
+	static final int AEAD_IV_SIZE_BYTES = 12; // rfc7714, 8.1
+	static final int MAX_KDR = 48; // Indexes are 48 bit, rfc3711 3.3.1
+	static final long REKEY_AHEAD_PACKETS = 1024;
+
+	// Used to log detailed and extensive traces
+	protected boolean VERBOSE = false;
+	protected boolean SUPER_VERBOSE = false;
+	protected final Platform platform;
+
+	protected final boolean aeadMode; // AES-GCM instead of AES-CM + HMAC
+	protected final int authSizeBytes; // Authentication tag size
+	protected final SsrcTable streams = new SsrcTable(); // State per SSRC
+	protected final byte[] iv; // IV array of the packet path
+	protected byte[] sessEncKey; // Session keys of the first packet
+	protected byte[] sessAuthKey;
+	protected byte[] sessSaltKey;
+	protected final KeyGenerations generations; // Session keys, per KDR
+												// generation
+
+	private final byte[] masterKey;
+	private final byte[] masterSalt;
+	private final byte[] initVector; // Initialisation Vector for AES encryption
+	private final int kdr; // Key Derivation Rate (2^kdr packets)
+	private final long rekeyAhead; // Packets before the KDR boundary at which
+									// the next keys are derived
+	private final Executor prefetchExecutor; // Keystream prefetch, if set
+	private final int prefetchDepth;
+	private final int prefetchMaxLength;
+	private final String name; // Used in logs
+
+	/**
+	 * Copies the master key and salt and the settings of srtp, later changes
+	 * to srtp do not affect the context
+	 */
+	SrtpContext(SRTP srtp, byte[] masterKey, byte[] masterSalt, String name) {
+		platform = srtp.getPlatform();
+		aeadMode = srtp.isAEAD();
+		authSizeBytes = srtp.getHmacAuthSizeBytes();
+		// 0 for no key derivation after the first, as 48 or more
+		kdr = srtp.getKDR() > 0 ? srtp.getKDR() : MAX_KDR;
+		// at least one packet ahead, half a generation at most
+		rekeyAhead = kdr < MAX_KDR ? Math.max(1L, Math.min(
+				REKEY_AHEAD_PACKETS, 1L << (kdr - 1))) : REKEY_AHEAD_PACKETS;
+		prefetchExecutor = srtp.getPrefetchExecutor();
+		prefetchDepth = srtp.getPrefetchDepth();
+		prefetchMaxLength = srtp.getPrefetchMaxLength();
+		this.masterKey = platform.getUtils().copy(masterKey);
+		this.masterSalt = platform.getUtils().copy(masterSalt);
+		this.name = name;
+		VERBOSE = VERBOSE || SUPER_VERBOSE;
+		initVector = new byte[16];
+		platform.getUtils().zero(initVector);
+		// 128 bit IV for AES-CM, 96 bit for AES-GCM
+		iv = new byte[aeadMode ? AEAD_IV_SIZE_BYTES : 16];
+		generations = new KeyGenerations(this, srtp.getKeyDerivationExecutor());
+	}
+
+	/**
+	 * Forgets the state of an SSRC which left the session, e.g. after an
+	 * RTCP BYE. A later packet of the SSRC starts a new stream. Must be
+	 * called by the thread using the context.
+	 */
+	public void removeSsrc(int ssrc) {
+		stopPrefetch(streams.remove(ssrc));
+	}
+
+	/**
+	 * Drops the streams of the context, called when the session ends
+	 */
+	void end() {
+		SsrcTable.Stream[] all = streams.getStreams();
+		for (int i = 0; i < all.length; i++) {
+			stopPrefetch(all[i]);
+			if (all[i].replayWindow != null) {
+				all[i].replayWindow.reset();
+			}
+		}
+		streams.clear();
+	}
+
+	byte[] getSessionEncryptionKey() {
+		return sessEncKey;
+	}
+
+	byte[] getSessionAuthenticationKey() {
+		return sessAuthKey;
+	}
+
+	byte[] getSessionSaltKey() {
+		return sessSaltKey;
+	}
+
+	int getAuthSizeBytes() {
+		return authSizeBytes;
+	}
+
+	protected void log(String aMsg) {
+		platform.getLogger().log("SRTP: " + aMsg);
+	}
+
+	protected void logBuffer(String aMsg, byte[] aBuf) {
+		platform.getLogger().log("SRTP: " + aMsg, aBuf);
+	}
+
+	protected void logDebug(String msg) {
+		if (platform.isVerboseLogging())
+			log(msg);
+	}
+
+	protected void logError(String aMsg) {
+		platform.getLogger().logException("SRTP: " + aMsg);
+	}
+
+	protected void logWarning(String aMsg) {
+		platform.getLogger().logWarning("SRTP: " + aMsg);
+	}
+
+	/*
+	 * Encrypts or decrypts the payload at pos in packet, or at the absolute
+	 * index pos in buffer when packet is null, for packets held in direct
+	 * buffers
+	 */
+	protected boolean transformPayload(byte[] packet, ByteBuffer buffer,
+			int pos, int length, int ssrc, long roc, int aSeqNum,
+			SessionKeys keys, KeystreamPrefetcher prefetcher) {
+		// Returns false if error occurs
+		// Uses passed parameters aROC & aSeqNum to calculate packet index
+		// as, when unprotecting, its an index estimate (packets may have been
+		// missed)
+		// Salt Key used by initialiseIV and will differ between send & receive
+		if (length == 0) {
+			return false;
+		}
+		if (packet == null && buffer == null) {
+			return false;
+		}
+		if (prefetcher != null) {
+			boolean applied = packet != null ? prefetcher.apply(ssrc, roc
+					+ aSeqNum, packet, pos, length) : prefetcher.apply(ssrc,
+					roc + aSeqNum, buffer, pos, length);
+			if (applied) {
+				return true;
+			}
+		}
+		initialiseIV(iv, ssrc, aSeqNum, roc, keys.saltKey);
+		if (VERBOSE) {
+			log("transformPayload, after init, IV = "
+					+ platform.getUtils().byteToHexString(iv));
+		}
+
+		// Encrypt the whole payload with one counter mode operation
+		try {
+			if (packet != null) {
+				keys.encryptor.encryptCounterMode(iv, packet, pos, length);
+			} else {
+				keys.encryptor.encryptCounterMode(iv, buffer, pos, length);
+			}
+		} catch (Throwable e) {
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * AES-GCM transform of rfc7714: the RTP header is the associated data,
+	 * the payload is encrypted and followed by the tag. length includes the
+	 * tag when unprotecting. The packet is at offset in data, or at the
+	 * absolute index offset in buffer when data is null.
+	 */
+	protected int transformAEAD(byte[] data, ByteBuffer buffer, int offset,
+			int headerLength, int length, int ssrc, long roc, int seq,
+			SessionKeys keys, boolean isTransmitting) {
+		byte[] sessSaltKey = keys.saltKey;
+		AEADCipher aead = keys.aead;
+		// rfc7714, 8.1: IV = (0x0000 || SSRC || ROC || SEQ) XOR salt
+		iv[0] = sessSaltKey[0];
+		iv[1] = sessSaltKey[1];
+		for (int i = 0; i < 4; i++) {
+			iv[2 + i] = (byte) ((ssrc >>> ((3 - i) << 3)) ^ sessSaltKey[2 + i]);
+			iv[6 + i] = (byte) ((roc >>> ((5 - i) << 3)) ^ sessSaltKey[6 + i]);
+		}
+		iv[10] = (byte) ((seq >>> 8) ^ sessSaltKey[10]);
+		iv[11] = (byte) (seq ^ sessSaltKey[11]);
+		if (VERBOSE) {
+			log("transformAEAD, IV = " + platform.getUtils().byteToHexString(iv));
+		}
+		try {
+			boolean authenticated = true;
+			if (isTransmitting && data != null) {
+				aead.encrypt(iv, data, offset, headerLength, length);
+			} else if (isTransmitting) {
+				aead.encrypt(iv, buffer, offset, headerLength, length);
+			} else if (data != null) {
+				authenticated = aead.decrypt(iv, data, offset, headerLength,
+						length);
+			} else {
+				authenticated = aead.decrypt(iv, buffer, offset, headerLength,
+						length);
+			}
+			if (!authenticated) {
+				logWarning("unprotect() Authentication failed");
+				return SRTP.UNPROTECT_INVALID_PACKET;
+			}
+		} catch (Throwable e) {
+			logError("transformAEAD error EX: " + e);
+			return SRTP.UNPROTECT_ERROR_DECRYPTING;
+		}
+		return SRTP.UNPROTECT_OK;
+	}
+
+	/*
+	 * Returns a keystream prefetcher, which gets the stream keys from
+	 * setSessionKeys(), or null if prefetch is disabled
+	 */
+	protected KeystreamPrefetcher createPrefetcher() {
+		if (prefetchExecutor == null || aeadMode) {
+			return null;
+		}
+		return new KeystreamPrefetcher(platform.getCrypto(), initVector,
+				prefetchExecutor, prefetchDepth, prefetchMaxLength);
+	}
+
+	protected static void stopPrefetch(SsrcTable.Stream stream) {
+		if (stream != null && stream.prefetcher != null) {
+			stream.prefetcher.stop();
+		}
+	}
+
+	/*
+	 * Derive the session keys as described in RFC3711, section 4.3.1 -
+	 * 
+	 * Let "a DIV t" denote integer division of a by t, rounded down, and
+	 * with the convention that "a DIV 0 = 0" for all a. We also make the
+	 * convention of treating "a DIV t" as a bit string of the same length
+	 * as a, and thus "a DIV t" will in general have leading zeros.
+	 * 
+	 * Key derivation SHALL be defined as follows in terms of <label>, an
+	 * 8-bit constant (see below), master_salt and key_derivation_rate, as
+	 * determined in the cryptographic context, and index, the packet index
+	 * (i.e., the 48-bit ROC || SEQ for SRTP):
+	 * 
+	 * * Let r = index DIV key_derivation_rate (with DIV as defined above).
+	 * 
+	 * * Let key_id = <label> || r.
+	 * 
+	 * * Let x = key_id XOR master_salt, where key_id and master_salt are
+	 * aligned so that their least significant bits agree (right-
+	 * alignment).
+	 * 
+	 * Note that test data provided in rfc3711 suggests that key_id is a 7
+	 * byte value whereas the above suggests a 9 byte value. i.e. for the
+	 * calculation of x, key_id is right aligned with master_salt*16
+	 * 
+	 * Returns the keys of generation r with their cipher objects, or null if
+	 * derivation fails. Called from the packet path and from key derivation
+	 * tasks, only reads the immutable state of the context.
+	 */
+	SessionKeys deriveSessionKeys(long r) {
+		if (VERBOSE) {
+			logDebug("SRTP " + name + " session key derivation, r = " + r);
+		}
+		try {
+			// One cipher for the 3 keys (session encryption, session
+			// authentication and session salt), labels 0x00, 0x01 & 0x02
+			EncryptorSuite prf = platform.getCrypto().createEncryptorSuite(
+					masterKey, initVector);
+			byte[][] sessKeys = new byte[3][];
+			int[] lengths = { masterKey.length, 20, getMasterSaltSizeBytes() };
+			for (int label = 0; label <= 2; label++) {
+				// key_id is the label followed by the 48 bit r
+				byte[] x = getKeyDerivationX(masterSalt);
+				x[7] ^= label;
+				for (int i = 0; i < 6; i++) {
+					x[8 + i] ^= (byte) (r >>> ((5 - i) << 3));
+				}
+				sessKeys[label] = prf_128(prf, x, lengths[label]);
+			}
+			long endIndex = kdr < MAX_KDR ? (r + 1) << kdr : Long.MAX_VALUE;
+			if (aeadMode) {
+				return new SessionKeys(r, endIndex, sessKeys[0], sessKeys[1],
+						sessKeys[2], null, null, platform.getCrypto()
+								.createAESGCM(sessKeys[0], authSizeBytes));
+			}
+			return new SessionKeys(r, endIndex, sessKeys[0], sessKeys[1],
+					sessKeys[2], platform.getCrypto().createEncryptorSuite(
+							sessKeys[0], initVector), new SRTPAuthenticator(
+							platform, sessKeys[1]), null);
+		} catch (Throwable e) {
+			logError("Session key derivation failed EX: " + e);
+			return null;
+		}
+	}
+
+	/*
+	 * r = index DIV key_derivation_rate
+	 */
+	protected long getKeyGeneration(long index) {
+		return kdr < MAX_KDR && index > 0 ? index >>> kdr : 0;
+	}
+
+	/*
+	 * Returns the session keys of the packet index for the stream: the
+	 * stream keys, those of the previous generation for late packets, or
+	 * the next generation when the index crosses the KDR boundary
+	 */
+	protected SessionKeys getSessionKeys(SsrcTable.Stream stream, long index) {
+		long r = getKeyGeneration(index);
+		SessionKeys streamKeys = stream.keys;
+		if (streamKeys != null && streamKeys.r == r) {
+			return streamKeys;
+		}
+		streamKeys = stream.previousKeys;
+		if (streamKeys != null && streamKeys.r == r) {
+			return streamKeys;
+		}
+		return generations.get(r);
+	}
+
+	/*
+	 * Records the keys used by the packet index of the stream, and asks for
+	 * the next generation when the stream gets close to it
+	 */
+	protected void setSessionKeys(SsrcTable.Stream stream, long index,
+			SessionKeys streamKeys) {
+		if (stream.keys == null || streamKeys.r > stream.keys.r) {
+			stream.previousKeys = stream.keys;
+			stream.keys = streamKeys;
+			if (stream.prefetcher != null) {
+				stream.prefetcher.setKeys(streamKeys);
+			}
+		}
+		if (index >= streamKeys.endIndex - rekeyAhead
+				&& stream.nextKeysRequested <= streamKeys.r) {
+			stream.nextKeysRequested = streamKeys.r + 1;
+			generations.prepare(streamKeys.r + 1);
+		}
+	}
+
+	private byte[] prf_128(EncryptorSuite prf, byte[] x, int outLen)
+			throws CryptoException {
+		// Generate key for session by encrypting aX with the master key
+		// using IV = aX*2^16
+		// see rfc3711, 4.3.3
+		//
+		// Assumes here that aX is 14 bytes long, which is safe in this
+		// implementation
+		// because we operate with a fixed 112 bit master salt (as indicated in
+		// zrtp spec)
+		// For a more general srtp impl, would need to check size and pad
+		// accordingly
+		//
+		byte[] IV = new byte[16];
+		platform.getUtils().zero(IV);
+		System.arraycopy(x, 0, IV, 0, x.length);
+		byte[] resultArray = new byte[outLen];
+		for (int pos = 0; pos < outLen; pos += 16) {
+			byte[] outBlock = prf.encryptIV_for_prf(IV);
+			if (VERBOSE) {
+				log("prf_128 IV = " + platform.getUtils().byteToHexString(IV));
+				log("prf_128 outBlock = "
+						+ platform.getUtils().byteToHexString(outBlock));
+			}
+			// Trim the last block to the required size
+			System.arraycopy(outBlock, 0, resultArray, pos, Math.min(16,
+					outLen - pos));
+			incrementIV(IV);
+		}
+		return resultArray;
+	}
+
+	/*
+	 * Right aligns the master salt in the 112 bits used by the key derivation
+	 * (rfc3711, 4.3.1), AEAD modes use a 96 bit salt (rfc7714, 11)
+	 */
+	private static byte[] getKeyDerivationX(byte[] masterSalt) {
+		byte[] x = new byte[SRTP.MASTER_SALT_SIZE_BYTES];
+		System.arraycopy(masterSalt, 0, x, SRTP.MASTER_SALT_SIZE_BYTES
+				- masterSalt.length, masterSalt.length);
+		return x;
+	}
+
+	private int getMasterSaltSizeBytes() {
+		return aeadMode ? SRTP.AEAD_MASTER_SALT_SIZE_BYTES
+				: SRTP.MASTER_SALT_SIZE_BYTES;
+	}
+
+	static void incrementIV(byte[] iv) {
+		if (iv[15] != 0xFF) {
+			iv[15] += 1;
+		} else if (iv[14] != 0xFF) {
+			iv[15] = 0;
+			iv[14] += 1;
+		} else if (iv[13] != 0xFF) {
+			iv[15] = 0;
+			iv[14] = 0;
+			iv[13] += 1;
+		} else if (iv[12] != 0xFF) {
+			iv[15] = 0;
+			iv[14] = 0;
+			iv[13] = 0;
+			iv[12] += 1;
+		} else {
+			iv[15] = 0;
+			iv[14] = 0;
+			iv[13] = 0;
+			iv[12] = 0;
+		}
+	}
+
+	/*
+	 * Shared with KeystreamPrefetcher, which computes IVs ahead of time
+	 */
+	static void initialiseIV(byte[] iv, long ssrc, int seq, long roc,
+			byte[] aSessSaltKey) {
+		// First calculate initial IV for encryption
+		// from rfc3711:
+		// IV = (k_s * 2^16) XOR (SSRC * 2^64) XOR (i * 2^16)
+		// k_s is session salt key
+		// SSRC from RTP Packet
+		// i is SRTP SEQ num (i.e. iROC+seq)
+		System.arraycopy(aSessSaltKey, 0, iv, 0, 14);
+		iv[14] = 0;
+		iv[15] = 0;
+		// IV now contains k_s * 2^16, since k_s is 14 bytes long
+		// Now xor with SSRC*2^64 - aSsrc is a long only to make it unsigned,
+		// only 4 LSB of interest
+		for (int i = 4; i < 8; ++i) {
+			byte b = (byte) ((ssrc >>> ((7 - i) << 3)) & 0xFF);
+			iv[i] = (byte) (b ^ iv[i]);
+		}
+		// initVector now contains (k_s*2^16) XOR (SSRC*2^64)
+		iv[13] = (byte) ((seq & 0xff) ^ iv[13]);
+		iv[12] = (byte) (((seq >>> 8) & 0xff) ^ iv[12]);
+		long tempROC = roc >>> 16; // Only a long to make it unsigned, only 4
+									// bytes of interest
+		for (int i = 11; i >= 8; --i) {
+			iv[i] ^= (byte) (tempROC & 0xFF);
+			tempROC = tempROC >>> 8;
+		}
+	}
+
+	/*
+	 * Returns the length of the RTP header (rfc3550, 5.1 and 5.3.1) of the
+	 * packet at start in buffer, or -1 if the packet is too short
+	 */
+	static int getHeaderLength(ByteBuffer buffer, int start, int length) {
+		if (length < RTP_HEADER_SIZE) {
+			return -1;
+		}
+		int first = buffer.get(start) & 0xff;
+		int headerLength = RTP_HEADER_SIZE + ((first & 0x0f) << 2);
+		if ((first & 0x10) != 0) {
+			// header extension, 4 bytes followed by length 32 bit words
+			if (length < headerLength + 4) {
+				return -1;
+			}
+			int words = ((buffer.get(start + headerLength + 2) & 0xff) << 8)
+					| (buffer.get(start + headerLength + 3) & 0xff);
+			headerLength += 4 + (words << 2);
+		}
+		return headerLength > length ? -1 : headerLength;
+	}
+
+	static int getSequenceNumber(ByteBuffer buffer, int start) {
+		return ((buffer.get(start + 2) & 0xff) << 8)
+				| (buffer.get(start + 3) & 0xff);
+	}
+
+	static int getSsrc(ByteBuffer buffer, int start) {
+		return ((buffer.get(start + 8) & 0xff) << 24)
+				| ((buffer.get(start + 9) & 0xff) << 16)
+				| ((buffer.get(start + 10) & 0xff) << 8)
+				| (buffer.get(start + 11) & 0xff);
+	}
+
+	static int failBatch(int count, int[] results, int result) {
+		for (int i = 0; i < count; i++) {
+			results[i] = result;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,324 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+import java.nio.ByteBuffer;
+
+import zorg.platform.RtpPacket;
+
+/**
+ * Receive side of an SRTP session, unprotects the SRTP packets received by
+ * one thread. Created by SRTP.startNewSession(), see
+ * SRTP.getReceiveContext()
+ */
+public final class SrtpReceiveContext extends SrtpContext {
+
+	private final int replayWindowSize; // Of each stream
+	private SsrcTable.Stream pendingStream; // State of a new stream, kept
+											// once its first packet is
+											// authenticated
+
+	SrtpReceiveContext(SRTP srtp, byte[] masterKey, byte[] masterSalt) {
+		super(srtp, masterKey, masterSalt, "RX");
+		replayWindowSize = srtp.getReplayWindowSize();
+	}
+
+	/**
+	 * Unprotects an RTP Packet by decrypting the payload.
+	 * 
+	 * @param packet
+	 *            RTP Packet to be unprotected
+	 * @return error code, 0 = success
+	 */
+	public int unprotect(RtpPacket packet) {
+		if (packet == null) {
+			logWarning("unprotect() called with null RtpPacket");
+			return SRTP.UNPROTECT_NULL_PACKET;
+		}
+		return unprotectPacket(packet);
+	}
+
+	/**
+	 * Unprotects the SRTP Packet held in a buffer, see
+	 * SRTP.unprotect(ByteBuffer)
+	 * 
+	 * @param buffer
+	 *            buffer holding the SRTP Packet to be unprotected
+	 * @return error code, 0 = success
+	 */
+	public int unprotect(ByteBuffer buffer) {
+		if (buffer == null) {
+			logWarning("unprotect() called with null buffer");
+			return SRTP.UNPROTECT_NULL_PACKET;
+		}
+		return unprotectBuffer(buffer);
+	}
+
+	/**
+	 * Unprotects count SRTP Packets, see SRTP.unprotectBatch(RtpPacket[],
+	 * int, int[])
+	 * 
+	 * @return number of packets successfully unprotected
+	 */
+	public int unprotectBatch(RtpPacket[] packets, int count, int[] results) {
+		int unprotectedCount = 0;
+		for (int i = 0; i < count; i++) {
+			RtpPacket packet = packets[i];
+			results[i] = packet == null ? SRTP.UNPROTECT_NULL_PACKET
+					: unprotectPacket(packet);
+			if (results[i] == SRTP.UNPROTECT_OK) {
+				unprotectedCount++;
+			}
+		}
+		return unprotectedCount;
+	}
+
+	/**
+	 * Unprotects count SRTP Packets held in buffers, see
+	 * SRTP.unprotectBatch(ByteBuffer[], int, int[])
+	 * 
+	 * @return number of packets successfully unprotected
+	 */
+	public int unprotectBatch(ByteBuffer[] buffers, int count, int[] results) {
+		int unprotectedCount = 0;
+		for (int i = 0; i < count; i++) {
+			ByteBuffer buffer = buffers[i];
+			results[i] = buffer == null ? SRTP.UNPROTECT_NULL_PACKET
+					: unprotectBuffer(buffer);
+			if (results[i] == SRTP.UNPROTECT_OK) {
+				unprotectedCount++;
+			}
+		}
+		return unprotectedCount;
+	}
+
+	void end() {
+		super.end();
+		pendingStream = null;
+	}
+
+	/*
+	 * Replay Protection (rfc3711, 3.3.2): returns true if the packet index
+	 * was seen before or lags the latest by more than the window size, and
+	 * must be discarded. Nothing is recorded, the index is added to the
+	 * window only once the packet is authenticated.
+	 */
+	static boolean isReplayedPacket(SsrcTable.Stream stream, long index) {
+		ReplayWindow replayWindow = stream.replayWindow;
+		long curSeq = stream.roc + stream.seq;
+		return index < (curSeq - replayWindow.getSize())
+				|| replayWindow.isReplayed(index);
+	}
+
+	private int unprotectPacket(RtpPacket packet) {
+		if (SUPER_VERBOSE) {
+			logBuffer("unprotect(), rcvd pkt = ", packet.getPacket());
+		}
+		int ret = unprotect(packet.getPacket(), null, 0, packet.getLength(),
+				packet.getHeaderLength(), packet.getSequenceNumber(),
+				packet.getSscr());
+		if (ret == SRTP.UNPROTECT_OK) {
+			packet.setPayloadLength(packet.getPayloadLength() - authSizeBytes);
+			if (SUPER_VERBOSE) {
+				logBuffer("unprotect(), new packet - ", packet.getPacket());
+			}
+		}
+		return ret;
+	}
+
+	private int unprotectBuffer(ByteBuffer data) {
+		int start = data.position();
+		int length = data.remaining();
+		int headerLength = getHeaderLength(data, start, length);
+		if (headerLength < 0) {
+			logWarning("unprotect() called with invalid RTP packet");
+			return SRTP.UNPROTECT_INVALID_PACKET;
+		}
+		int seqNum = getSequenceNumber(data, start);
+		int ssrc = getSsrc(data, start);
+		int ret;
+		if (data.hasArray()) {
+			ret = unprotect(data.array(), null, data.arrayOffset() + start,
+					length, headerLength, seqNum, ssrc);
+		} else if (data.isReadOnly()) {
+			logWarning("unprotect() called with read only buffer");
+			return SRTP.UNPROTECT_ERROR_DECRYPTING;
+		} else {
+			// direct buffer, transformed in place
+			ret = unprotect(null, data, start, length, headerLength, seqNum,
+					ssrc);
+		}
+		if (ret == SRTP.UNPROTECT_OK) {
+			data.limit(start + length - authSizeBytes);
+		}
+		return ret;
+	}
+
+	/*
+	 * Authenticates and decrypts the packet at offset in data, or at the
+	 * absolute index offset in buffer when data is null. length includes the
+	 * authentication tag.
+	 */
+	private int unprotect(byte[] data, ByteBuffer buffer, int offset,
+			int length, int headerLength, int seq, int ssrc) {
+		if (length - headerLength < authSizeBytes) {
+			logWarning("unprotect() packet too short, length=" + length);
+			return SRTP.UNPROTECT_INVALID_PACKET;
+		}
+		SsrcTable.Stream stream = streams.get(ssrc);
+		if (stream == null) {
+			// New SSRC, its state is only kept once the packet is
+			// authenticated
+			stream = pendingStream;
+			if (stream == null) {
+				stream = new SsrcTable.Stream();
+				stream.replayWindow = new ReplayWindow(replayWindowSize);
+				pendingStream = stream;
+			}
+			stream.ssrc = ssrc;
+			stream.roc = 0;
+			stream.seq = seq;
+			stream.replayWindow.reset();
+			stream.keys = stream.previousKeys = null;
+			stream.nextKeysRequested = -1;
+			if (VERBOSE) {
+				log("unprotect() new SSRC " + Integer.toHexString(ssrc)
+						+ ", iRxSeq = " + seq);
+			}
+		}
+		// First need to work out the implicit srtp sequence number,
+		// see rfc3711 appendix A & section 3.3.1
+		// Using same naming convention as in rfc for ROC estimate (v)
+		// Needs to be done before authentication as v is used as part of auth
+		long rxRoc = stream.roc;
+		int rxSeq = stream.seq;
+		long v;
+		if (rxSeq < 0x8000) {
+			if ((seq - rxSeq) > 0x8000) {
+				v = rxRoc - 0x10000L;
+			} else {
+				v = rxRoc;
+			}
+		} else {
+			if ((rxSeq - 0x8000) > seq) {
+				v = rxRoc + 0x10000L;
+			} else {
+				v = rxRoc;
+			}
+		}
+
+		long index = v + seq;
+		if (SUPER_VERBOSE) {
+			log("unprotect(), seq = " + seq);
+		}
+		SessionKeys keys = getSessionKeys(stream, index);
+		if (keys == null) {
+			logWarning("unprotect() unable to create session keys");
+			return SRTP.UNPROTECT_ERROR_DECRYPTING;
+		}
+		if (sessEncKey == null) {
+			sessEncKey = keys.encKey;
+			sessAuthKey = keys.authKey;
+			sessSaltKey = keys.saltKey;
+		}
+		if (isReplayedPacket(stream, index)) {
+			logWarning("Replayed packet received, sequence number=#" + seq
+					+ ", index=" + index + ", rxRoc=" + rxRoc + ", rxSeq="
+					+ rxSeq + ", WINDOW_SIZE="
+					+ stream.replayWindow.getSize());
+			return SRTP.UNPROTECT_REPLAYED_PACKET;
+		}
+
+		int ret;
+		if (aeadMode) {
+			ret = transformAEAD(data, buffer, offset, headerLength, length
+					- headerLength, ssrc, v, seq, keys, false);
+		} else {
+			ret = unprotectPayload(data, buffer, offset, length, headerLength,
+					seq, ssrc, v, keys, stream.prefetcher);
+		}
+		if (ret != SRTP.UNPROTECT_OK) {
+			return ret;
+		}
+
+		// Payload now unprotected. Record it in the replay window, forged
+		// packets must not take the index of a genuine one
+		stream.replayWindow.update(index);
+		// Update the latest seq & ROC ready for next packet
+		if (v == rxRoc) {
+			if (seq > rxSeq) {
+				stream.seq = seq;
+			}
+		} else if (v == rxRoc + 0x10000L) {
+			stream.roc += 0x10000L;
+			stream.seq = seq;
+		}
+		if (stream == pendingStream) {
+			pendingStream = null;
+			stream.prefetcher = createPrefetcher();
+			streams.put(stream);
+		}
+		// Only authenticated packets move the stream to new keys
+		setSessionKeys(stream, index, keys);
+		return SRTP.UNPROTECT_OK;
+	}
+
+	/*
+	 * Checks the HMAC-SHA1 authentication and decrypts the AES-CM payload of
+	 * the packet at offset in data, or in buffer when data is null
+	 */
+	private int unprotectPayload(byte[] data, ByteBuffer buffer, int offset,
+			int length, int headerLength, int seq, int ssrc, long v,
+			SessionKeys keys, KeystreamPrefetcher prefetcher) {
+		// Now need to check authentication, the auth-code is present after
+		// the payload and is compared in place
+		int newLen = length - authSizeBytes;
+		int roc = (int) (v >>> 16);
+		boolean authenticated = data != null ? keys.authenticator.verifyTag(
+				data, offset, newLen, roc, data, offset + newLen,
+				authSizeBytes) : keys.authenticator.verifyTag(buffer, offset,
+				newLen, roc, offset + newLen, authSizeBytes);
+		if (!authenticated) {
+			// Auth failed
+			logWarning("unprotect() Authentication failed, seq=" + seq
+					+ ", v = " + Integer.toHexString((int) v) + " (" + v + ")");
+			return SRTP.UNPROTECT_INVALID_PACKET;
+		}
+
+		if (VERBOSE) {
+			log("unprotect() -------- Authenticated OK --------");
+		}
+
+		// Authenticated, now unprotect the payload
+		// Note the use of encryptCounterMode() in transformPayload is correct
+		// At 1st sight, might expect to use decrypt but unprotection consists
+		// of XORing payload with an encrypted IV to obtain original payload
+		// data
+
+		if (!transformPayload(data, buffer, offset + headerLength, newLen
+				- headerLength, ssrc, v, seq, keys, prefetcher)) {
+			log("unprotect() transformPayload error, decryption failed");
+			return SRTP.UNPROTECT_ERROR_DECRYPTING;
+		}
+		return SRTP.UNPROTECT_OK;
+	}
+}
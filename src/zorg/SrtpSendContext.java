@@ -0,0 +1,254 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+import java.nio.ByteBuffer;
+
+import zorg.platform.RtpPacket;
+
+/**
+ * Transmit side of an SRTP session, protects the RTP packets sent by one
+ * thread. Created by SRTP.startNewSession(), see SRTP.getSendContext()
+ */
+public final class SrtpSendContext extends SrtpContext {
+
+	private long rollOverCounter = 0; // Initial RollOver Counter of streams
+
+	SrtpSendContext(SRTP srtp, byte[] masterKey, byte[] masterSalt) {
+		super(srtp, masterKey, masterSalt, "TX");
+	}
+
+	/**
+	 * Derives the session keys of the first packet, later generations are
+	 * derived when streams get close to them
+	 * 
+	 * @return false if key derivation failed
+	 */
+	boolean start(int firstRtpSeq) {
+		SessionKeys keys = generations.get(getKeyGeneration(firstRtpSeq));
+		if (keys == null) {
+			return false;
+		}
+		sessEncKey = keys.encKey;
+		sessAuthKey = keys.authKey;
+		sessSaltKey = keys.saltKey;
+		return true;
+	}
+
+	/**
+	 * Protects an RTP Packet by encrypting payload and adds any additional SRTP
+	 * trailer information
+	 * 
+	 * @param packet
+	 *            RTP Packet to be protected
+	 * @return the same RTP Packet with encrypted payload, or null if an error
+	 *         occurred
+	 */
+	public RtpPacket protect(RtpPacket packet) {
+		if (packet == null) {
+			log("protect() called with null RTP packet");
+			return null;
+		}
+		if (protectPacket(packet) != SRTP.UNPROTECT_OK) {
+			return null;
+		}
+		return packet;
+	}
+
+	/**
+	 * Protects the RTP Packet held in a buffer, see SRTP.protect(ByteBuffer)
+	 * 
+	 * @param buffer
+	 *            buffer holding the RTP Packet to be protected
+	 * @return the same buffer, or null if an error occurred
+	 */
+	public ByteBuffer protect(ByteBuffer buffer) {
+		if (buffer == null) {
+			log("protect() called with null buffer");
+			return null;
+		}
+		if (protectBuffer(buffer) != SRTP.UNPROTECT_OK) {
+			return null;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Protects count RTP Packets, see SRTP.protectBatch(RtpPacket[], int,
+	 * int[])
+	 * 
+	 * @return number of packets successfully protected
+	 */
+	public int protectBatch(RtpPacket[] packets, int count, int[] results) {
+		int protectedCount = 0;
+		for (int i = 0; i < count; i++) {
+			RtpPacket packet = packets[i];
+			results[i] = packet == null ? SRTP.UNPROTECT_NULL_PACKET
+					: protectPacket(packet);
+			if (results[i] == SRTP.UNPROTECT_OK) {
+				protectedCount++;
+			}
+		}
+		return protectedCount;
+	}
+
+	/**
+	 * Protects count RTP Packets held in buffers, see
+	 * SRTP.protectBatch(ByteBuffer[], int, int[])
+	 * 
+	 * @return number of packets successfully protected
+	 */
+	public int protectBatch(ByteBuffer[] buffers, int count, int[] results) {
+		int protectedCount = 0;
+		for (int i = 0; i < count; i++) {
+			ByteBuffer buffer = buffers[i];
+			results[i] = buffer == null ? SRTP.UNPROTECT_NULL_PACKET
+					: protectBuffer(buffer);
+			if (results[i] == SRTP.UNPROTECT_OK) {
+				protectedCount++;
+			}
+		}
+		return protectedCount;
+	}
+
+	/**
+	 * Sets the RollOver Counter of the streams, test only
+	 */
+	void setROC(long aROC) {
+		rollOverCounter = aROC & 0xFFFFFFFFFFFF0000L;
+		SsrcTable.Stream[] all = streams.getStreams();
+		for (int i = 0; i < all.length; i++) {
+			all[i].roc = rollOverCounter;
+		}
+	}
+
+	private int protectPacket(RtpPacket packet) {
+		// aPacket should have getHmacAuthSizeBytes() bytes pre-allocated for the
+		// auth-code
+		// assert(aPacket.getPacket().length >= aPacket.getLength() +
+		// getHmacAuthSizeBytes());
+		if (!protect(packet.getPacket(), null, 0, packet.getLength(),
+				packet.getHeaderLength(), packet.getSequenceNumber(),
+				packet.getSscr())) {
+			return SRTP.UNPROTECT_ERROR_DECRYPTING;
+		}
+		packet.setPayloadLength(packet.getPayloadLength() + authSizeBytes);
+		if (SUPER_VERBOSE) {
+			logBuffer("protect() After adding HMAC: ", packet.getPacket());
+		}
+		return SRTP.UNPROTECT_OK;
+	}
+
+	private int protectBuffer(ByteBuffer data) {
+		int start = data.position();
+		int length = data.remaining();
+		int headerLength = getHeaderLength(data, start, length);
+		if (headerLength < 0) {
+			log("protect() called with invalid RTP packet");
+			return SRTP.UNPROTECT_INVALID_PACKET;
+		}
+		if (data.capacity() - data.limit() < authSizeBytes || data.isReadOnly()) {
+			log("protect() no space for authentication in buffer");
+			return SRTP.UNPROTECT_INVALID_PACKET;
+		}
+		int seqNum = getSequenceNumber(data, start);
+		int ssrc = getSsrc(data, start);
+		if (data.hasArray()) {
+			if (!protect(data.array(), null, data.arrayOffset() + start,
+					length, headerLength, seqNum, ssrc)) {
+				return SRTP.UNPROTECT_ERROR_DECRYPTING;
+			}
+		} else {
+			// direct buffer, transformed in place, the tag is written up to
+			// the new limit
+			data.limit(start + length + authSizeBytes);
+			if (!protect(null, data, start, length, headerLength, seqNum,
+					ssrc)) {
+				data.limit(start + length);
+				return SRTP.UNPROTECT_ERROR_DECRYPTING;
+			}
+		}
+		data.limit(start + length + authSizeBytes);
+		return SRTP.UNPROTECT_OK;
+	}
+
+	/*
+	 * Encrypts the payload of the packet at offset in data, or at the
+	 * absolute index offset in buffer when data is null, and appends the
+	 * authentication tag after it
+	 */
+	private boolean protect(byte[] data, ByteBuffer buffer, int offset,
+			int length, int headerLength, int seqNum, int ssrc) {
+		SsrcTable.Stream stream = streams.get(ssrc);
+		if (stream == null) {
+			stream = createStream(ssrc);
+		}
+		if (seqNum == 0) {
+			// wrapped round
+			stream.roc += 0x10000L;
+		}
+		long roc = stream.roc;
+		SessionKeys keys = getSessionKeys(stream, roc + seqNum);
+		if (keys == null) {
+			log("protect() no session keys");
+			return false;
+		}
+		setSessionKeys(stream, roc + seqNum, keys);
+
+		if (aeadMode) {
+			// Encryption and authentication done in one pass, the tag is
+			// written after the payload
+			return transformAEAD(data, buffer, offset, headerLength, length
+					- headerLength, ssrc, roc, seqNum, keys, true) == SRTP.UNPROTECT_OK;
+		}
+
+		if (!transformPayload(data, buffer, offset + headerLength, length
+				- headerLength, ssrc, roc, seqNum, keys, stream.prefetcher)) {
+			log("protect() transformPayload error, encryption failed");
+			return false;
+		}
+
+		// Add authentication which is over whole rtp packet concatenated with
+		// 32 bit ROC, rfc3711 section 4.2.1 states use of left most n bits
+		if (data != null) {
+			keys.authenticator.computeTag(data, offset, length,
+					(int) (roc >>> 16), data, offset + length, authSizeBytes);
+		} else {
+			keys.authenticator.computeTag(buffer, offset, length,
+					(int) (roc >>> 16), offset + length, authSizeBytes);
+		}
+		if (VERBOSE) {
+			log("protect() Added HMAC");
+		}
+		return true;
+	}
+
+	private SsrcTable.Stream createStream(int ssrc) {
+		SsrcTable.Stream stream = new SsrcTable.Stream();
+		stream.ssrc = ssrc;
+		stream.roc = rollOverCounter;
+		stream.nextKeysRequested = -1;
+		stream.prefetcher = createPrefetcher();
+		streams.put(stream);
+		return stream;
+	}
+}
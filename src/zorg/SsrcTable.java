@@ -0,0 +1,158 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+/**
+ * Per-SSRC SRTP stream state (rfc3711, 3.2.3), in an open addressing hash
+ * table keyed by SSRC. Looking up an established stream does not allocate.
+ * Streams share the session keys and cipher objects of their SRTP context.
+ */
+final class SsrcTable {
+
+	/**
+	 * State of one SRTP stream
+	 */
+	static final class Stream {
+		int ssrc;
+		long roc; // RollOver Counter, multiple of 0x10000
+		int seq; // Highest sequence number, receive streams only
+		ReplayWindow replayWindow; // Receive streams only
+		KeystreamPrefetcher prefetcher; // Null if prefetch is disabled
+		SessionKeys keys; // Keys of the latest KDR generation of the stream
+		SessionKeys previousKeys; // Kept for late packets
+		long nextKeysRequested; // KDR generation last derived ahead of time
+	}
+
+	private static final int INITIAL_CAPACITY = 8; // Power of two
+
+	private int[] keys;
+	private Stream[] streams;
+	private int size;
+
+	SsrcTable() {
+		keys = new int[INITIAL_CAPACITY];
+		streams = new Stream[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Returns the stream of ssrc, or null if there is none
+	 */
+	Stream get(int ssrc) {
+		int mask = streams.length - 1;
+		for (int i = hash(ssrc) & mask;; i = (i + 1) & mask) {
+			Stream stream = streams[i];
+			if (stream == null || keys[i] == ssrc) {
+				return stream;
+			}
+		}
+	}
+
+	/**
+	 * Adds a stream, replacing the stream with the same SSRC if any
+	 */
+	void put(Stream stream) {
+		if ((size + 1) << 1 > streams.length) {
+			resize(streams.length << 1);
+		}
+		int mask = streams.length - 1;
+		int i = hash(stream.ssrc) & mask;
+		while (streams[i] != null && keys[i] != stream.ssrc) {
+			i = (i + 1) & mask;
+		}
+		if (streams[i] == null) {
+			size++;
+		}
+		keys[i] = stream.ssrc;
+		streams[i] = stream;
+	}
+
+	/**
+	 * Removes and returns the stream of ssrc, or null if there is none
+	 */
+	Stream remove(int ssrc) {
+		int mask = streams.length - 1;
+		int i = hash(ssrc) & mask;
+		while (streams[i] != null && keys[i] != ssrc) {
+			i = (i + 1) & mask;
+		}
+		Stream removed = streams[i];
+		if (removed == null) {
+			return null;
+		}
+		streams[i] = null;
+		size--;
+		// move back the following entries of the probe sequence
+		for (int j = (i + 1) & mask; streams[j] != null; j = (j + 1) & mask) {
+			int home = hash(keys[j]) & mask;
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				keys[i] = keys[j];
+				streams[i] = streams[j];
+				streams[j] = null;
+				i = j;
+			}
+		}
+		return removed;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the streams in the table, in no particular order
+	 */
+	Stream[] getStreams() {
+		Stream[] result = new Stream[size];
+		int n = 0;
+		for (int i = 0; i < streams.length; i++) {
+			if (streams[i] != null) {
+				result[n++] = streams[i];
+			}
+		}
+		return result;
+	}
+
+	void clear() {
+		for (int i = 0; i < streams.length; i++) {
+			streams[i] = null;
+		}
+		size = 0;
+	}
+
+	private void resize(int capacity) {
+		Stream[] old = streams;
+		keys = new int[capacity];
+		streams = new Stream[capacity];
+		size = 0;
+		for (int i = 0; i < old.length; i++) {
+			if (old[i] != null) {
+				put(old[i]);
+			}
+		}
+	}
+
+	private static int hash(int ssrc) {
+		// SSRCs are random but may be chosen by the peer, spread all bits
+		int h = ssrc * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -46,6 +46,12 @@ public class TestSettings {
 	public static boolean KEY_TYPE_DH3K;
 	public static boolean KEY_TYPE_EC25;
 	public static boolean KEY_TYPE_EC38;
+	// Offer X25519 (X255) in Hello, preferred when both ends support it,
+	// needs a platform with X25519 support (Java 11 on j2se)
+	public static boolean KEY_TYPE_X255;
+
+	// Offer AES-GCM SRTP (rfc7714) in Hello, needs AEADCipher support
+	public static boolean AUTH_MODE_GCM;
 
 	// TODO test case not implemented yet
 	public static boolean TEST_ZRTP_BAD_PUBLIC_KEY;
@@ -78,6 +84,9 @@ public class TestSettings {
 		KEY_TYPE_DH3K = true;
 		KEY_TYPE_EC25 = false;
 		KEY_TYPE_EC38 = false;
+		KEY_TYPE_X255 = false;
+
+		AUTH_MODE_GCM = false;
 
 		ZRTP_VERBOSE_LOGGING = false;
 	}
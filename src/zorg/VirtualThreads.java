@@ -0,0 +1,86 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to the virtual threads of Java 21 and later, looked up by
+ * reflection so that the library still runs on older Java and Android
+ * platforms. Virtual threads are parked without holding a platform thread
+ * while they wait, so that a session thread per ZRTP session stays cheap
+ * with thousands of sessions.
+ */
+public final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Returns true if the platform supports virtual threads
+	 */
+	public static boolean isAvailable() {
+		return newThreadFactory("") != null;
+	}
+
+	/**
+	 * Returns a factory of virtual threads named namePrefix followed by a
+	 * counter, or null if the platform has no virtual threads
+	 */
+	public static ThreadFactory newThreadFactory(String namePrefix) {
+		try {
+			Class builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual", new Class[0])
+					.invoke(null, new Object[0]);
+			Method name = builderClass.getMethod("name", new Class[] {
+					String.class, Long.TYPE });
+			builder = name.invoke(builder, new Object[] { namePrefix,
+					Long.valueOf(0) });
+			return (ThreadFactory) builderClass.getMethod("factory",
+					new Class[0]).invoke(builder, new Object[0]);
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns an executor starting a virtual thread per task, or null if the
+	 * platform has no virtual threads
+	 */
+	public static Executor newExecutor(String namePrefix) {
+		ThreadFactory factory = newThreadFactory(namePrefix);
+		return factory == null ? null : newExecutor(factory);
+	}
+
+	/**
+	 * Returns an executor starting a thread of the factory per task
+	 */
+	public static Executor newExecutor(final ThreadFactory factory) {
+		return new Executor() {
+			public void execute(Runnable task) {
+				factory.newThread(task).start();
+			}
+		};
+	}
+}
@@ -23,9 +23,18 @@ package zorg;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import zorg.platform.DiffieHellmanSuite;
 import zorg.platform.Digest;
@@ -78,9 +87,56 @@ public class ZRTP {
 	/**
 	 * Timer task to be used on expiry of hello timer
 	 */
-	protected class RetranTimerTask extends TimerTask {
+	protected class RetranTimerTask extends RetransmissionTask {
 		public void run() {
-			retranTimerExpired(this);
+			if (sessionThread != null) {
+				// sent from the session thread, the timer thread is shared
+				// by all the sessions and must not block on the network
+				retranDue = true;
+				wakeSessionThread();
+			} else {
+				retranTimerExpired(this);
+			}
+		}
+	}
+
+	/*
+	 * DH result computed on the DH executor, the protocol resumes in
+	 * dhCompleted() once it is done
+	 */
+	private class DhComputation extends FutureTask {
+		DhComputation(final DiffieHellmanSuite suite, final byte[] msg,
+				final boolean legacyClient) {
+			super(new Callable() {
+				public Object call() throws Exception {
+					return suite.getDhResult(msg, 76, legacyClient);
+				}
+			});
+		}
+
+		protected void done() {
+			dhCompleted(this);
+		}
+	}
+
+	/*
+	 * Key pair generated on the DH executor when the pool has none ready,
+	 * the protocol resumes in keyPairGenerated() once it is done
+	 */
+	private class KeyPairGeneration extends FutureTask {
+		KeyPairGeneration(final KeyAgreementType type) {
+			super(new Callable() {
+				public Object call() throws Exception {
+					DiffieHellmanSuite suite = platform.getCrypto()
+							.createDHSuite();
+					suite.setAlgorithm(type);
+					return suite;
+				}
+			});
+		}
+
+		protected void done() {
+			keyPairGenerated(this);
 		}
 	}
 
@@ -174,15 +230,19 @@ public class ZRTP {
 	private volatile int state = ZRTP_STATE_INACTIVE;
 	private boolean started = false;
 	private int seqNum;
-	private boolean completed; // Set to true when zrtp session is completed
+	private volatile boolean completed; // Set to true when zrtp session is completed
 	
 	private byte[] txMasterKey;  // Byte array for generated TX Master Key
 	private byte[] txMasterSalt; // Byte array for generated TX Master Salt
 	private byte[] rxMasterKey;  // Byte array for generated RX Master Key
 	private byte[] rxMasterSalt; // Byte array for generated RX Master Salt
 	
-	private Timer retranTimer;          // Retransmission timer
-	private RetranTimerTask retranTask; // Timer task used by Retran timer
+	private RetransmissionScheduler retranTimer; // Shared retransmission timer
+	private final RetranTimerTask retranTask = new RetranTimerTask();
+	private boolean retranPending;      // True while retranTask is due to run
+	private volatile boolean retranDue; // retranTask expired, for the session thread
+	private ZrtpOutput output;          // Messages to send, threadless mode only
+	private DeadlineScheduler deadlines; // Timer of threadless mode
 	private int timerInterval;          // Current retran timer interval in milliseconds
 	private int retranCount;            // Number of retransmissions so far
 	private long lastPacketArrival;     // last ZRTP packet arrival, for responder
@@ -251,6 +311,28 @@ public class ZRTP {
 	private byte[] dhResult;
 	private byte[] kdfContext; // KDF Context used in key generation, zrtp spec, 4.4.1.4
 	private byte[] totalHash; // Total Hash used in key generation, zrtp spec, 4.4.1.4
+	private byte[] newSessionKey; // ZRTPSess, zrtp spec 4.5.2, published on success
+	                              // and erased otherwise
+	
+	// Multistream mode, zrtp spec 4.4.3
+	private ZRTP multistreamSession; // Session whose key keys this one
+	private boolean multistream;      // True while Multistream mode is possible or in use
+	private byte[] multistreamKey;    // Our copy of ZRTPSess of multistreamSession
+	private HashType multistreamHash; // and the hash it was negotiated with
+	// Preshared mode, zrtp spec 4.4.2
+	private int presharedMaxCalls;    // Preshared calls between two DH exchanges, 0 for none
+	private long presharedMaxAge;     // Time after a DH exchange a new one is forced, 0 for none
+	private boolean preshared;        // True while Preshared mode is possible or in use
+	private boolean presharedRefused; // Fell back to DH mode on the far end's Error
+	private byte[] presharedKey;      // preshared_key from rs1
+	private byte[] commitNonce;       // Nonce of our Multistream or Preshared Commit
+	// Published for the sessions keyed by this one once it succeeds, the key
+	// written last. The key is owned by this session: the sessions keyed by
+	// it take copies, and it is erased by releaseSessionKey()
+	private HashType sessionHash;
+	private byte[] sessionZID;
+	private String sessionSas;
+	private volatile byte[] sessionKey;
 	
 	// Optional: Hash of the Hello message to be received. This hash is sent by
 	// the other
@@ -259,8 +341,17 @@ public class ZRTP {
 	private String sdpHelloHashReceived = null;
 	// Hello hash created and sent
 	private String sdpHelloHashSent;
-	// Synchronization lock
-	private final Object lock = new Object();
+	// Guards the protocol state against the session thread, retransmissions
+	// and the application. A java.util.concurrent lock rather than a monitor
+	// so that virtual threads waiting for it are not pinned
+	private final ReentrantLock protocolLock = new ReentrantLock();
+	// Messages received, waiting for the session thread
+	private IncomingMessageQueue messageQueue = new IncomingMessageQueue();
+	private final byte[] messageBuffer = new byte[IncomingMessageQueue.MAX_MESSAGE_LENGTH];
+	// Session thread, unparked when a message is queued
+	private volatile Thread sessionThread;
+	// Runs the session thread, null for the default
+	private Executor sessionExecutor;
 
 	// error code to be sent
 	private int errorCode;
@@ -303,9 +394,37 @@ public class ZRTP {
     //private static final String DEFAULT_CIPHERS = "AES1AES3";   // 128 and 256 bit keys
 
 	private static int counter = 0;
+	private static final int DH_EXECUTOR_QUEUE_SIZE = 1024;
+	// Delay before a task rejected by the full DH executor is submitted again
+	private static final long DH_EXECUTOR_RETRY_DELAY = 20; // ms
+	// Multistream Commit: nonce instead of hvi, 25 words
+	private static final int MULTISTREAM_COMMIT_LENGTH = 100;
+	// Preshared Commit: nonce and keyID instead of hvi, 27 words
+	private static final int PRESHARED_COMMIT_LENGTH = 108;
+	private static int defaultPresharedMaxCalls;
+	private static long defaultPresharedMaxAge;
+	private static RetransmissionScheduler defaultRetranTimer;
+	private static Executor defaultSessionExecutor;
+	private static Executor defaultDhExecutor;
+	private static boolean defaultDhExecutorSet;
+	private static KeyPairPool defaultKeyPairPool;
 	private final Platform platform;
 
+	// Taken from the key pair pool once the key agreement is negotiated
 	private DiffieHellmanSuite dhSuite;
+	private KeyAgreementType dhSuiteMode;
+	private KeyPairPool keyPairPool;
+	// Runs the DH computations, null to run them on the session thread
+	private Executor dhExecutor;
+	// Key pair being generated on the DH executor
+	private KeyPairGeneration pendingKeyPair;
+	// Commit or DHPart1 waiting for the key pair, sent by keyPairGenerated()
+	private boolean commitDeferred;
+	private boolean dhPart1Deferred;
+	// DH result being computed on the DH executor
+	private DhComputation pendingDh;
+	// Confirm1 received while the DH result was being computed
+	private byte[] deferredConfirm1;
 	
 	private AuthenticationMode authMode = HMAC_AUTH_SIZE_BYTES_ZRTP_DEFAULT;
 
@@ -317,7 +436,17 @@ public class ZRTP {
 		randomGenerator = platform.getCrypto().getRandomGenerator();
 		state = ZRTP_STATE_INACTIVE;
 		errorCode = 0;
-		retranTimer = new Timer();
+		retranTimer = getDefaultRetransmissionScheduler();
+		if (retranTimer instanceof HashedWheelTimer
+				&& ((HashedWheelTimer) retranTimer).getLogger() == null) {
+			((HashedWheelTimer) retranTimer).setLogger(platform.getLogger());
+		}
+		dhExecutor = getDefaultDhExecutor();
+		keyPairPool = getDefaultKeyPairPool();
+		synchronized (ZRTP.class) {
+			presharedMaxCalls = defaultPresharedMaxCalls;
+			presharedMaxAge = defaultPresharedMaxAge;
+		}
 		cache = new ZRTPCache(platform);
 		delayedCacheUpdate = false;
 		remoteTrust = false;
@@ -325,8 +454,6 @@ public class ZRTP {
 		hashChain = new HashChain();
 		sdpHelloHashReceived = null;
 		sdpHelloHashSent = "";
-		dhSuite = platform.getCrypto().createDHSuite();
-		dhSuite.setLogger(platform.getLogger());
 		// ZID is created by ZRTPCache when we call getMyZid for the first time
 		localZID = cache.getMyZid();
 
@@ -515,16 +642,7 @@ public class ZRTP {
 		digest.getDigest(totalHash, 0, true);
 
 		// Also generate the KDF Context here (ZRTP spec 4.4.1.4)
-		kdfContext = new byte[24 + totalHash.length]; // ZIDi and ZIDr are
-														// always 12 bytes each
-		if (initiator) {
-			System.arraycopy(localZID, 0, kdfContext, 0, 12);
-			System.arraycopy(farEndZID, 0, kdfContext, 12, 12);
-		} else {
-			System.arraycopy(farEndZID, 0, kdfContext, 0, 12);
-			System.arraycopy(localZID, 0, kdfContext, 12, 12);
-		}
-		System.arraycopy(totalHash, 0, kdfContext, 24, totalHash.length);
+		createKdfContext();
 		/* if (platform.getLogger().isEnabled()) {
 			logBuffer("iKDFContext: ", kdfContext);
 		} */
@@ -586,25 +704,104 @@ public class ZRTP {
 
 		// Now deriving the rest of the keys from s0 and KDF-Context (Section
 		// 4.5.3)
-		byte[] srtpKeyI = getKeyFromKDF(s0, "Initiator SRTP master key",
-				kdfContext, cipherInUse.getMasterKeyBits());
-		byte[] srtpSaltI = getKeyFromKDF(s0, "Initiator SRTP master salt",
-				kdfContext, cipherInUse.getSaltBits());
-		byte[] srtpKeyR = getKeyFromKDF(s0, "Responder SRTP master key",
-				kdfContext, cipherInUse.getMasterKeyBits());
-		byte[] srtpSaltR = getKeyFromKDF(s0, "Responder SRTP master salt",
-				kdfContext, cipherInUse.getSaltBits());
+		calculateSrtpKeys();
+		calculateSasAndSecrets();
+	}
+
+	/*
+	 * SAS, new retained secret and session key from s0, ZRTP spec 4.5.2 and
+	 * 4.5.3, in DH and Preshared modes
+	 */
+	private void calculateSasAndSecrets() throws IOException {
 		byte[] sasHash = getKeyFromKDF(s0, "SAS", kdfContext, 256);
 		newRS = getKeyFromKDF(s0, "retained secret", kdfContext, 256);
 		/* if (platform.getLogger().isEnabled()) {
 			logBuffer("New retained secret: ", newRS);
 		} */
+		// Keys the Multistream sessions (Section 4.5.2)
+		newSessionKey = getKeyFromKDF(s0, "ZRTP Session Key", kdfContext,
+				hashMode.getLength());
 
 		sasString = sasMode.getShortAuthenticationStrings(sasHash);
 
 		/* if (platform.getLogger().isEnabled()) {
 			logString("calculateSharedKeys(), SAS: " + sasString);
 		} */
+	}
+
+	/*
+	 * Multistream mode shared secret calculation, see ZRTP spec 4.4.3.2: s0
+	 * is derived from the session key of the keying session, there is no
+	 * SAS nor retained secret of its own
+	 */
+	private void calculateMultistreamKeys() throws IOException {
+		createCommitKdfContext();
+		s0 = getKeyFromKDF(multistreamKey, "ZRTP MSK", kdfContext,
+				hashMode.getLength());
+		calculateSrtpKeys();
+		newSessionKey = multistreamKey;
+	}
+
+	/*
+	 * Preshared mode shared secret calculation, see ZRTP spec 4.4.2.2: s0 is
+	 * derived from preshared_key, then SAS and retained secret as in DH mode
+	 */
+	private void calculatePresharedKeys() throws IOException {
+		createCommitKdfContext();
+		s0 = getKeyFromKDF(presharedKey, "ZRTP PSK", kdfContext,
+				hashMode.getLength());
+		presharedKey = null;
+		keepRS2 = cache.getRetainedSecret1();
+		calculateSrtpKeys();
+		calculateSasAndSecrets();
+	}
+
+	/*
+	 * KDF Context of the modes without DH exchange, total_hash ==
+	 * hash(responder Hello || Commit)
+	 */
+	private void createCommitKdfContext() {
+		Digest digest = createDigest(hashMode);
+		if (initiator) {
+			digest.update(rxHelloMsg);
+			digest.update(msgCommitTX);
+		} else {
+			digest.update(txHelloMsg);
+			digest.update(msgCommitRX);
+		}
+		totalHash = new byte[digest.getDigestLength()];
+		digest.getDigest(totalHash, 0, true);
+		createKdfContext();
+	}
+
+	/*
+	 * KDF Context == ZIDi || ZIDr || total_hash, ZRTP spec 4.4.1.4
+	 */
+	private void createKdfContext() {
+		kdfContext = new byte[24 + totalHash.length]; // ZIDi and ZIDr are
+														// always 12 bytes each
+		if (initiator) {
+			System.arraycopy(localZID, 0, kdfContext, 0, 12);
+			System.arraycopy(farEndZID, 0, kdfContext, 12, 12);
+		} else {
+			System.arraycopy(farEndZID, 0, kdfContext, 0, 12);
+			System.arraycopy(localZID, 0, kdfContext, 12, 12);
+		}
+		System.arraycopy(totalHash, 0, kdfContext, 24, totalHash.length);
+	}
+
+	/*
+	 * SRTP master keys and salts from s0, ZRTP spec 4.5.3
+	 */
+	private void calculateSrtpKeys() throws IOException {
+		byte[] srtpKeyI = getKeyFromKDF(s0, "Initiator SRTP master key",
+				kdfContext, cipherInUse.getMasterKeyBits());
+		byte[] srtpSaltI = getKeyFromKDF(s0, "Initiator SRTP master salt",
+				kdfContext, authMode.getSaltBits(cipherInUse));
+		byte[] srtpKeyR = getKeyFromKDF(s0, "Responder SRTP master key",
+				kdfContext, cipherInUse.getMasterKeyBits());
+		byte[] srtpSaltR = getKeyFromKDF(s0, "Responder SRTP master salt",
+				kdfContext, authMode.getSaltBits(cipherInUse));
 
 		if (initiator) {
 			txMasterKey = srtpKeyI;
@@ -681,7 +878,7 @@ public class ZRTP {
 				                           : "Responder ZRTP key", kdfContext, 256);
 		byte[] hmacKey = getKeyFromKDF(s0, initiator 
 		                                   ? "Initiator HMAC key"
-				                           : "Responder HMAC key", kdfContext, dhMode.hash.getLength());
+				                           : "Responder HMAC key", kdfContext, getHmacKeyLength());
 		byte[] plainBytes = baos.toByteArray();
 		/* if (platform.getLogger().isEnabled()) {
 			logBuffer("Confirm plainBytes: ", plainBytes);
@@ -758,19 +955,63 @@ public class ZRTP {
 		writeSharedSecretID(dhPart, 52, msg, cache.getRetainedSecret2());
 		writeSharedSecretID(dhPart, 60, hashChain.H3, null); // no auxsecret
 		writeSharedSecretID(dhPart, 68, msg, null); // no pbxsecret
-		dhSuite.setAlgorithm(dhMode);
+		setDhAlgorithm(dhMode);
 		dhSuite.writePublicKey(dhPart, 76);
 		byte[] shaHmac = createSHA256HMAC(dhPart, 0, len * 4 - 8, hashChain.H0);
 		System.arraycopy(shaHmac, 0, dhPart, len * 4 - 8, 8);
 		return dhPart;
 	}
 
+	/*
+	 * Length of the HMAC keys of the Confirm messages, the hash length of the
+	 * key agreement type, or the negotiated one without DH exchange
+	 */
+	private int getHmacKeyLength() {
+		return isDhMode() ? dhMode.hash.getLength() : hashMode.getLength();
+	}
+
+	/*
+	 * False in Multistream and Preshared modes, which have no DHPart messages
+	 */
+	private boolean isDhMode() {
+		return !multistream && !preshared;
+	}
+
 	private Digest createDigest(HashType hashType) {
 		return HashType.SHA384.equals(hashType) ? (Digest) platform.getCrypto()
 				.createDigestSHA384() : (Digest) platform.getCrypto()
 				.createDigestSHA256();
 	}
 
+	/*
+	 * Authentication tags of the Hello, each mode listed once: HMAC-SHA1 32,
+	 * then HMAC-SHA1 80 and GCM. The negotiated authMode of a previous
+	 * session is not used, it would repeat one of them.
+	 */
+	static String getOfferedAuthTags(String ciphers) {
+		String authTags = HMAC_AUTH_SIZE_BYTES_ZRTP_DEFAULT.name();
+		if (ciphers.length() == 4) {
+			// FIXME - hack for compatibility with older clients expecting
+			// cipher types and auth schemes to be in fixed positions.
+			authTags = addAuthTag(authTags, AuthenticationMode.HS80);
+		}
+		if (TestSettings.AUTH_MODE_GCM) {
+			// Appended last, to keep the positions expected by older clients
+			authTags = addAuthTag(authTags, AuthenticationMode.GCM);
+		}
+		return authTags;
+	}
+
+	private static String addAuthTag(String authTags, AuthenticationMode mode) {
+		String tag = mode.name();
+		for (int i = 0; i < authTags.length(); i += 4) {
+			if (authTags.startsWith(tag, i)) {
+				return authTags;
+			}
+		}
+		return authTags + tag;
+	}
+
 	private byte[] createHelloMsg() throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		int len = 3;
@@ -796,19 +1037,20 @@ public class ZRTP {
 			hashes += "S384";
 			++hc;
 		}
-		if (TestSettings.KEY_TYPE_EC25 || TestSettings.KEY_TYPE_DH3K) {
+		if (TestSettings.KEY_TYPE_EC25 || TestSettings.KEY_TYPE_DH3K
+				|| TestSettings.KEY_TYPE_X255) {
 			hashes += "S256";
 			++hc;
 		}
 		String ciphers = DEFAULT_CIPHERS; // AES-128 & 256
-		String authTags = authMode.name(); // HMAC-SHA1 32
-		if(ciphers.length() == 4) {
-			// FIXME - hack for compatibility with older clients expecting
-			// cipher types and auth schemes to be in fixed positions.
-			authTags = authMode.name() + "HS80";
-		}
+		String authTags = getOfferedAuthTags(ciphers);
 		String keyTypes = "";
 		byte kc = 0;
+		// In order of preference, X255 is the cheapest to compute
+		if (TestSettings.KEY_TYPE_X255) {
+			keyTypes += "X255";
+			++kc;
+		}
 		if (TestSettings.KEY_TYPE_EC38) {
 			keyTypes += "EC38";
 			++kc;
@@ -822,6 +1064,14 @@ public class ZRTP {
 			keyTypes += "DH3k";
 			++kc;
 		}
+		if (presharedMaxCalls > 0) {
+			keyTypes += "Prsh";
+			++kc;
+		}
+		if (multistreamSession != null) {
+			keyTypes += "Mult";
+			++kc;
+		}
 		int cipherCount = ciphers.length() / 4;
 		int authModeCount = authTags.length() / 4;
 		String sasTypes = new String("B256"); // 32 bit & 256 bit sas supported
@@ -959,9 +1209,18 @@ public class ZRTP {
 		 */
 	}
 
-	private synchronized void doCommit(byte[] data, int offset, int len)
-			throws IOException {
-		if (len != 116) {
+	private void doCommit(byte[] data, int offset, int len)
+			throws IOException, CryptoException {
+		boolean multistreamCommit = len >= 72
+				&& platform.getUtils().equals(
+						KeyAgreementType.MULTISTREAM.getType(), 0, data,
+						offset + 68, 4);
+		boolean presharedCommit = len >= 72
+				&& platform.getUtils().equals(
+						KeyAgreementType.PRESHARED.getType(), 0, data,
+						offset + 68, 4);
+		if (len != (multistreamCommit ? MULTISTREAM_COMMIT_LENGTH
+				: presharedCommit ? PRESHARED_COMMIT_LENGTH : 116)) {
 			logWarning("doCommit() received invalid length message");
 			return;
 		}
@@ -997,9 +1256,26 @@ public class ZRTP {
 				raiseDenialOfServiceWarning("Using Commit H2 to hash the accepted Hello gives wrong MAC");
 				return;
 			}
+			// Our DH Commit wins over a Commit without DH, no need to key it
+			boolean dhCommitSent = state == ZRTP_STATE_COMMIT_SENT
+					&& isDhMode();
+			if (multistreamCommit
+					&& !dhCommitSent
+					&& (!multistream || !platform.getUtils().equals(
+							multistreamHash.getType(), 0, data, offset + 56, 4))) {
+				logWarning("Multistream Commit received without a matching session key");
+				sendError(ZRTP_ERROR_UNAVAILABLE_SHARED_SECRET);
+				return;
+			}
+			if (presharedCommit && !dhCommitSent
+					&& !checkPresharedCommit(data, offset)) {
+				logWarning("Preshared Commit received without a matching retained secret");
+				sendError(ZRTP_ERROR_UNAVAILABLE_SHARED_SECRET);
+				return;
+			}
 		}
 		if (state == ZRTP_STATE_SENDING_HELLO) {
-			retranTask = null;
+			cancelRetransmission();
 		}
 		if ((state == ZRTP_STATE_SENDING_HELLO)
 				|| (state == ZRTP_STATE_GOT_HELLO_ACK)) {
@@ -1009,6 +1285,19 @@ public class ZRTP {
 			commitMsg = extractData(data, offset, len);
 			msgCommitRX = commitMsg;
 			initiator = false;
+			// an Error of ours refusing a previous Commit has been acted on
+			errorCode = 0;
+			if (multistreamCommit) {
+				hashMode = multistreamHash;
+				preshared = false;
+			} else if (presharedCommit) {
+				multistream = false;
+				preshared = true;
+			} else if (!isDhMode()) {
+				// A DH Commit, even if Multistream or Preshared was possible
+				multistream = preshared = false;
+				setDhAlgorithm(dhMode);
+			}
 			scheduleTimerResponderTimeout();
 			state = ZRTP_STATE_GOT_COMMIT;
 		} else if ((state == ZRTP_STATE_DHPART1_SENT)
@@ -1031,71 +1320,56 @@ public class ZRTP {
 				// Other end has sent Commit before receiving ours
 				// (or the one we sent has got lost)
 				logString("Received Commit, performing Commit Contention");
-				// Since we only support DH mode, contention is based on
-				// comparison of hvi
-				int theirHviOffset = 76;
-				byte[] ourHvi = createHvi();
-				if (platform.isVerboseLogging()) {
-					logBuffer("Our HVI:", ourHvi);
-					logBuffer("Their HVI:", msgCommitRX, theirHviOffset, 32);
-				}
-
-				// hvi is treated as an unsigned integer for comparison (zrtp
-				// spec 4.2)
-				for (int i = 0; i < 32; i++) {
-					int ourByte = ourHvi[i] & 0xFF;
-					int theirByte = msgCommitRX[theirHviOffset + i] & 0xFF;
-					if (ourByte > theirByte) {
+				boolean dhCommit = !multistreamCommit && !presharedCommit;
+				if (!isDhMode() || !dhCommit) {
+					// A DH Commit takes precedence over a Commit without DH,
+					// two Commits without DH are compared by their nonces
+					// (zrtp spec 4.2)
+					int cmp = dhCommit ? -1 : isDhMode() ? 1
+							: compareUnsigned(commitNonce, 0, msgCommitRX,
+									76, 16);
+					if (cmp > 0) {
+						initiator = true;
+					} else {
+						actAsResponder();
+					}
+				} else if (commitDeferred) {
+					// Our Commit is still waiting for its key pair and was
+					// never sent, the far end's Commit stands
+					commitDeferred = false;
+					actAsResponder();
+				} else {
+					// Both in DH mode, contention is based on comparison of
+					// hvi
+					int theirHviOffset = 76;
+					byte[] ourHvi = createHvi();
+					if (platform.isVerboseLogging()) {
+						logBuffer("Our HVI:", ourHvi);
+						logBuffer("Their HVI:", msgCommitRX, theirHviOffset, 32);
+					}
+					// hvi is treated as an unsigned integer for comparison
+					// (zrtp spec 4.2)
+					int cmp = compareUnsigned(ourHvi, 0, msgCommitRX,
+							theirHviOffset, 32);
+					if (cmp > 0) {
 						// Ours is bigger, so we act as initiator
 						initiator = true;
-						break;
-					} else if (ourByte < theirByte) {
+					} else if (cmp < 0) {
 						// Far end is initiator
-						commitMsg = msgCommitRX;
-						initiator = false;
-						state = ZRTP_STATE_GOT_COMMIT;
-						// farEndH2 = null;
-						// farEndH2 = extractData(msgCommitRX, 12, 32);
-						if (commitMsg[59] == '4') {
-							hashMode = HashType.SHA384;
-						} else {
-							hashMode = HashType.SHA256;
-						}
-						if (commitMsg[63] == '1') {
-							// Already validated, so cipher string in bytes 60 -
-							// 63
-							// can only be "AES1" or "AES3"
-							cipherInUse = CipherType.AES1;
-						} else {
-							cipherInUse = CipherType.AES3;
-						}
-						if (commitMsg[71] == '8') {
-							// Already validated, so key agreement type in bytes
-							// 68 - 71
-							// can only be "EC25" or "DH3k"
-							// iDHMode = DH_MODE_EC25;
-							dhMode = KeyAgreementType.ECDH384;
-							DH_MODE_EC_USE_256 = false;
-						} else if (commitMsg[71] == '5') {
-							dhMode = KeyAgreementType.ECDH256;
-							DH_MODE_EC_USE_256 = true;
-						} else {
-							dhMode = KeyAgreementType.DH3K;
-						}
-						try {
-							dhSuite.setAlgorithm(dhMode);
-						} catch (Throwable t) {
-							// TODO: handle exception
-							logError("Creating keypair: " + t.getMessage());
-						}
-						scheduleTimerResponderTimeout();
-						break;
+						actAsResponder();
 					}
 				}
 				logString("We are initiator: " + initiator);
 			} else {
 				logString("Received Commit, commit contention already performed");
 			}
+		} else if (state == ZRTP_STATE_CONFIRM1_SENT && !isDhMode()) {
+			// Responder without DH exchange, our Confirm1 didn't arrive
+			if (platform.getLogger().isEnabled()) {
+				logString("Received Commit retransmission, iState: "
+						+ getStateText());
+			}
+			sendZrtpPacket(msgConfirm1TX);
 		} else {
 			// Not expecting to receive a Commit here
 			// Probably just a retran that's taken a while to arrive
@@ -1103,10 +1377,25 @@ public class ZRTP {
 			logString("Unexpected Commit received, state = " + state);
 		}
 
-		if (state == ZRTP_STATE_GOT_COMMIT) {
+		if (state == ZRTP_STATE_GOT_COMMIT && !isDhMode()) {
+			// No DH exchange, the keys are derived from the session key or
+			// the retained secret
+			if (multistream) {
+				calculateMultistreamKeys();
+			} else {
+				calculatePresharedKeys();
+			}
+			sendConfirm1();
+		} else if (state == ZRTP_STATE_GOT_COMMIT) {
 			try {
-				sendDHPart1();
-				state = ZRTP_STATE_DHPART1_SENT;
+				if (dhPart1Msg == null && dhSuite == null) {
+					// sent by keyPairGenerated()
+					logString("DHPart1 deferred until the key pair is generated");
+					dhPart1Deferred = true;
+				} else {
+					sendDHPart1();
+					state = ZRTP_STATE_DHPART1_SENT;
+				}
 			} catch (Throwable e) {
 				logString("Exception while sending DHPart1, " + e.toString());
 				sessionCompletedKO(ZrtpStrings.TEXT_ZRTP_ERROR_SENDING_DH);
@@ -1114,14 +1403,92 @@ public class ZRTP {
 		}
 	}
 
+	/*
+	 * The far end is the initiator, with the algorithms of its Commit
+	 */
+	private void actAsResponder() {
+		commitMsg = msgCommitRX;
+		initiator = false;
+		state = ZRTP_STATE_GOT_COMMIT;
+		// farEndH2 = null;
+		// farEndH2 = extractData(msgCommitRX, 12, 32);
+		if (commitMsg[59] == '4') {
+			hashMode = HashType.SHA384;
+		} else {
+			hashMode = HashType.SHA256;
+		}
+		if (commitMsg[63] == '1') {
+			// Already validated, so cipher string in bytes 60 -
+			// 63
+			// can only be "AES1" or "AES3"
+			cipherInUse = CipherType.AES1;
+		} else {
+			cipherInUse = CipherType.AES3;
+		}
+		if (commitMsg[64] == 'G') {
+			// Already validated, so auth type in bytes 64 - 67
+			// can only be "GCM " if GCM is enabled
+			authMode = AuthenticationMode.GCM;
+		}
+		if (commitMsg[68] == 'M') {
+			// Already validated, so "Mult" only with a session key
+			preshared = false;
+		} else if (commitMsg[68] == 'P') {
+			// Already validated, so "Prsh" only with a matching keyID
+			multistream = false;
+			preshared = true;
+		} else {
+			// A DH Commit, even if Multistream or Preshared was possible
+			multistream = preshared = false;
+			if (commitMsg[68] == 'X') {
+				// Already validated, so key agreement type in bytes
+				// 68 - 71 can only be "X255", "EC38", "EC25" or
+				// "DH3k"
+				dhMode = KeyAgreementType.X25519;
+			} else if (commitMsg[71] == '8') {
+				dhMode = KeyAgreementType.ECDH384;
+				DH_MODE_EC_USE_256 = false;
+			} else if (commitMsg[71] == '5') {
+				dhMode = KeyAgreementType.ECDH256;
+				DH_MODE_EC_USE_256 = true;
+			} else {
+				dhMode = KeyAgreementType.DH3K;
+			}
+			try {
+				setDhAlgorithm(dhMode);
+			} catch (Throwable t) {
+				// TODO: handle exception
+				logError("Creating keypair: " + t.getMessage());
+			}
+		}
+		scheduleTimerResponderTimeout();
+	}
+
+	/*
+	 * Compares two unsigned big endian integers of len bytes
+	 */
+	private static int compareUnsigned(byte[] a, int aOffset, byte[] b,
+			int bOffset, int len) {
+		for (int i = 0; i < len; i++) {
+			int diff = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return 0;
+	}
+
 	private void doConf2ACK(byte[] data, int offset, int len) {
 		if (platform.getLogger().isEnabled()) {
 			logString("Received Conf2ACK");
 		}
 		if (state == ZRTP_STATE_CONFIRM2_SENT) {
 			state = ZRTP_STATE_GOT_CONF2ACK;
-			retranTask = null;
-			if (!delayedCacheUpdate) {
+			cancelRetransmission();
+			if (!multistream) {
+				cache.countCall(preshared);
+			}
+			if (!delayedCacheUpdate && !multistream) {
 				cache.updateEntry(cacheExpiryTime(), cache.getTrust(), newRS,
 						keepRS2, phoneNumber);
 			}
@@ -1187,10 +1554,16 @@ public class ZRTP {
 			}
 			return;
 		}
-		if (state != ZRTP_STATE_DHPART2_SENT) {
+		if (state != (isDhMode() ? ZRTP_STATE_DHPART2_SENT
+				: ZRTP_STATE_COMMIT_SENT)) {
 			logString("Received unexpected Confirm1 Message, state = " + state);
 			return;
 		}
+		if (pendingDh != null) {
+			logString("Received Confirm1 before the DH result, deferred");
+			deferredConfirm1 = extractData(data, offset, len);
+			return;
+		}
 		if (len < 56) {
 			logString("Received too short Confirm1, length " + len);
 			return;
@@ -1199,30 +1572,53 @@ public class ZRTP {
 			logString("Received Confirm1");
 		}
 		confirm1Timestamp = System.currentTimeMillis();
+		if (multistream) {
+			calculateMultistreamKeys();
+		} else if (preshared) {
+			calculatePresharedKeys();
+		}
 		doConfirm(data, offset, len);
-		// validate h1 from DHPart1
 		byte[] h1 = createSHA256Diggest(farEndH0, 0, 32);
-		if (!platform.getUtils().equals(h1, 0, msgDhPart1RX, 12, 32)) {
-			raiseDenialOfServiceWarning("Confirm1 H0 is not the preimage of the accepted DHPart1 H1");
-			return;
-		}
-		int dhPart1MacOffset = msgDhPart1RX.length - 8;
-		byte[] dhPart1Mac = createSHA256HMAC(msgDhPart1RX, 0, dhPart1MacOffset,
-				farEndH0);
-		if (!platform.getUtils().equals(dhPart1Mac, 0, msgDhPart1RX,
-				dhPart1MacOffset, 8)) {
-			raiseDenialOfServiceWarning("Using Commit1 H0 to hash the accepted DHPart1 gives wrong MAC");
-			return;
+		if (!isDhMode()) {
+			// no DHPart1, validate h3 and the MAC of the accepted Hello
+			byte[] h2 = createSHA256Diggest(h1, 0, 32);
+			byte[] h3 = createSHA256Diggest(h2, 0, 32);
+			if (!platform.getUtils().equals(h3, 0, rxHelloMsg, 32, 32)) {
+				raiseDenialOfServiceWarning("Confirm1 H0 is not the third preimage of the accepted Hello H3");
+				return;
+			}
+			int helloMacOffset = rxHelloMsg.length - 8;
+			byte[] helloMac = createSHA256HMAC(rxHelloMsg, 0, helloMacOffset,
+					h2);
+			if (!platform.getUtils().equals(helloMac, 0, rxHelloMsg,
+					helloMacOffset, 8)) {
+				raiseDenialOfServiceWarning("Using H2 calculated from Confirm1 H0 to hash the accepted Hello gives wrong MAC");
+				return;
+			}
+		} else {
+			// validate h1 from DHPart1
+			if (!platform.getUtils().equals(h1, 0, msgDhPart1RX, 12, 32)) {
+				raiseDenialOfServiceWarning("Confirm1 H0 is not the preimage of the accepted DHPart1 H1");
+				return;
+			}
+			int dhPart1MacOffset = msgDhPart1RX.length - 8;
+			byte[] dhPart1Mac = createSHA256HMAC(msgDhPart1RX, 0,
+					dhPart1MacOffset, farEndH0);
+			if (!platform.getUtils().equals(dhPart1Mac, 0, msgDhPart1RX,
+					dhPart1MacOffset, 8)) {
+				raiseDenialOfServiceWarning("Using Commit1 H0 to hash the accepted DHPart1 gives wrong MAC");
+				return;
+			}
 		}
 		// check confirm_mac
 		byte[] hmacKey = getKeyFromKDF(s0, "Responder HMAC key", kdfContext,
-				dhMode.hash.getLength());
+				getHmacKeyLength());
 		byte[] confirm_mac = createSHAHMAC(data, offset + 36, len - 36, hmacKey);
 		if (!platform.getUtils().equals(confirm_mac, 0, data, offset + 12, 8)) {
 			raiseDenialOfServiceWarning("Confirm1 has wrong confirm_mac");
 			return;
 		}
-		retranTask = null;
+		cancelRetransmission();
 		msgConfirm1RX = extractData(data, offset, len);
 		sendConfirm2();
 		boolean success = listener.keyExchangeCompleted(txMasterKey,
@@ -1266,23 +1662,40 @@ public class ZRTP {
 			logString("Received Confirm2");
 		}
 		doConfirm(data, offset, len);
-		// validate h1 from DHPart1
 		byte[] h1 = createSHA256Diggest(farEndH0, 0, 32);
-		if (!platform.getUtils().equals(h1, 0, msgDhPart2RX, 12, 32)) {
-			raiseDenialOfServiceWarning("Confirm2 H0 is not the preimage of the accepted DHPart2 H1");
-			return;
-		}
-		int dhPart2MacOffset = msgDhPart2RX.length - 8;
-		byte[] dhPart2Mac = createSHA256HMAC(msgDhPart2RX, 0, dhPart2MacOffset,
-				farEndH0);
-		if (!platform.getUtils().equals(dhPart2Mac, 0, msgDhPart2RX,
-				dhPart2MacOffset, 8)) {
-			raiseDenialOfServiceWarning("Using Commit2 H0 to hash the accepted DHPart2 gives wrong MAC");
-			return;
+		if (!isDhMode()) {
+			// no DHPart2, validate h2 and the MAC of the accepted Commit
+			byte[] h2 = createSHA256Diggest(h1, 0, 32);
+			if (!platform.getUtils().equals(h2, 0, msgCommitRX, 12, 32)) {
+				raiseDenialOfServiceWarning("Confirm2 H0 is not the second preimage of the accepted Commit H2");
+				return;
+			}
+			int commitMacOffset = msgCommitRX.length - 8;
+			byte[] commitMac = createSHA256HMAC(msgCommitRX, 0,
+					commitMacOffset, h1);
+			if (!platform.getUtils().equals(commitMac, 0, msgCommitRX,
+					commitMacOffset, 8)) {
+				raiseDenialOfServiceWarning("Using H1 calculated from Confirm2 H0 to hash the accepted Commit gives wrong MAC");
+				return;
+			}
+		} else {
+			// validate h1 from DHPart2
+			if (!platform.getUtils().equals(h1, 0, msgDhPart2RX, 12, 32)) {
+				raiseDenialOfServiceWarning("Confirm2 H0 is not the preimage of the accepted DHPart2 H1");
+				return;
+			}
+			int dhPart2MacOffset = msgDhPart2RX.length - 8;
+			byte[] dhPart2Mac = createSHA256HMAC(msgDhPart2RX, 0,
+					dhPart2MacOffset, farEndH0);
+			if (!platform.getUtils().equals(dhPart2Mac, 0, msgDhPart2RX,
+					dhPart2MacOffset, 8)) {
+				raiseDenialOfServiceWarning("Using Commit2 H0 to hash the accepted DHPart2 gives wrong MAC");
+				return;
+			}
 		}
 		// check confirm_mac
 		byte[] hmacKey = getKeyFromKDF(s0, "Initiator HMAC key", kdfContext,
-				dhMode.hash.getLength());
+				getHmacKeyLength());
 		byte[] confirm_mac = createSHAHMAC(data, offset + 36, len - 36, hmacKey);
 		if (!platform.getUtils().equals(confirm_mac, 0, data, offset + 12, 8)) {
 			raiseDenialOfServiceWarning("Confirm2 has wrong confirm_mac");
@@ -1290,7 +1703,11 @@ public class ZRTP {
 		}
 		s0 = null; // we're done with s0, clear as required by ZRTP spec,
 					// section 4.6.1
-		if (!delayedCacheUpdate) {
+		// Multistream mode leaves the retained secrets alone
+		if (!multistream) {
+			cache.countCall(preshared);
+		}
+		if (!delayedCacheUpdate && !multistream) {
 			cache.updateEntry(cacheExpiryTime(), cache.getTrust(), newRS,
 					keepRS2, phoneNumber);
 		}
@@ -1302,7 +1719,7 @@ public class ZRTP {
 	private void doDHPart1(byte[] data, int offset, int len)
 			throws IOException, ZrtpException {
 		if (state == ZRTP_STATE_COMMIT_SENT) {
-			retranTask = null;
+			cancelRetransmission();
 		}
 		if (msgDhPart1RX != null) {
 			if (msgDhPart1RX.length != len
@@ -1327,6 +1744,7 @@ public class ZRTP {
 		}
 		// Validate length (will be 148 (EC25 mode) or 468 (DH3K mode))
 		// Validate length (will be 180 (EC38 mode) or 468 (DH3K mode))
+		// Validate length (will be 116 (X255 mode))
 		int expectedLen = (dhMode.pvLengthInWords + 21) * 4;
 		if (len != expectedLen) {
 			logWarning("DHPart1 received with invalid length, " + len
@@ -1353,16 +1771,28 @@ public class ZRTP {
 		}
 		msgDhPart1RX = extractData(data, offset, len);
 		// farEndH1 = extractData(msgDhPart1RX, 12, 32);
-		dhResult = null;
+		// DHPart2 does not depend on the DH result, send it first so that
+		// both ends compute their DH result at the same time
+		sendDHPart2();
+		state = ZRTP_STATE_DHPART2_SENT;
 		getDHResult(msgDhPart1RX);
+	}
+
+	/*
+	 * Initiator: the DH result of DHPart1 is computed
+	 */
+	private void dhPart1Completed() throws IOException, CryptoException {
 		if (dhResult == null) {
-			msgDhPart1RX = null;
 			logWarning("failed to get DH result for msgDhPart1RX");
+			sessionCompletedKO(ZrtpStrings.TEXT_ZRTP_ERROR);
 			return;
 		}
-		sendDHPart2();
 		calculateSharedKeys();
-		state = ZRTP_STATE_DHPART2_SENT;
+		if (deferredConfirm1 != null) {
+			byte[] msg = deferredConfirm1;
+			deferredConfirm1 = null;
+			doConfirm1(msg, 0, msg.length);
+		}
 	}
 
 	private void doDHPart2(byte[] data, int offset, int len)
@@ -1385,7 +1815,9 @@ public class ZRTP {
 			if (platform.getLogger().isEnabled()) {
 				logString("Received DHPart2 retransmission");
 			}
-			sendZrtpPacket(msgConfirm1TX);
+			if (msgConfirm1TX != null) {
+				sendZrtpPacket(msgConfirm1TX);
+			} // else Confirm1 is sent once the DH result is computed
 			return;
 		}
 		if (state != ZRTP_STATE_DHPART1_SENT) {
@@ -1420,8 +1852,13 @@ public class ZRTP {
 			logString("Processing DHPart2.....");
 		}
 		msgDhPart2RX = extractData(data, offset, len);
-		dhResult = null;
 		getDHResult(msgDhPart2RX);
+	}
+
+	/*
+	 * Responder: the DH result of DHPart2 is computed
+	 */
+	private void dhPart2Completed() throws IOException, CryptoException {
 		if (dhResult == null) {
 			msgDhPart2RX = null;
 			return;
@@ -1444,6 +1881,31 @@ public class ZRTP {
 																				// <<
 																				// 8);
 		logError("Received Error Code " + getZrtpErrorName(errCode));
+		if (errCode == ZRTP_ERROR_UNAVAILABLE_SHARED_SECRET
+				&& state == ZRTP_STATE_COMMIT_SENT
+				&& (preshared || presharedRefused)) {
+			// The far end has no matching retained secret or requires a DH
+			// exchange, zrtp spec 4.4.2: start over with a DH Commit
+			sendErrorACK();
+			if (preshared) {
+				logString("Preshared mode refused, falling back to DH mode");
+				preshared = false;
+				presharedKey = null;
+				presharedRefused = true;
+				// our own Error, if any, is superseded by the DH Commit
+				errorCode = 0;
+				cancelRetransmission();
+				commitMsg = null;
+				try {
+					setDhAlgorithm(dhMode);
+					sendCommit();
+				} catch (Throwable e) {
+					logError("Problem occurred sending DH Commit " + e);
+					sessionCompletedKO(ZrtpStrings.TEXT_ZRTP_ERROR);
+				}
+			}
+			return;
+		}
 		try {
 			sendErrorACK();
 		} catch (Throwable e) {
@@ -1461,7 +1923,7 @@ public class ZRTP {
 		}
 		if (errorCode != 0) {
 			errorCode = 0;
-			retranTask = null;
+			cancelRetransmission();
 		}
 	}
 
@@ -1565,21 +2027,50 @@ public class ZRTP {
 				}
 				
 				authMode = AuthenticationMode.HS32;
+				boolean gcmOffered = false;
 				for(int j = 0; j < authCount ; j++) {
 					if(platform.getUtils().equals(AuthenticationMode.HS80.getSymbol(), 0, aMsg, authPos + j*4, 4)) {
 						authMode = AuthenticationMode.HS80;
 					}
+					if(platform.getUtils().equals(AuthenticationMode.GCM.getSymbol(), 0, aMsg, authPos + j*4, 4)) {
+						gcmOffered = true;
+					}
 					if(platform.isVerboseLogging()) {
 						logString("HELLO MSG - AUTH MODE: " + new String(aMsg, authPos + j*4, 4));
 					}
 				}
+				// AES-GCM is preferred when both ends support it
+				if (gcmOffered && TestSettings.AUTH_MODE_GCM) {
+					authMode = AuthenticationMode.GCM;
+				}
 			}
 			
 			isLegacyAttributeList &= LegacyClientUtils.checkCipher(platform ,aMsg, cipherPos, cipherCount);
 			
 			// If keyCount == 0, only supports mandatory DH3K
 			dhMode = KeyAgreementType.DH3K;
+			boolean x255Offered = false;
+			boolean multOffered = false;
+			boolean prshOffered = false;
 			for (int i = 0; i < keyCount; i++) {
+				if (presharedMaxCalls > 0
+						&& platform.getUtils().equals(
+								KeyAgreementType.PRESHARED.getType(), 0,
+								aMsg, keyPos + i * 4, 4)) {
+					prshOffered = true;
+				}
+				if (multistreamSession != null
+						&& platform.getUtils().equals(
+								KeyAgreementType.MULTISTREAM.getType(), 0,
+								aMsg, keyPos + i * 4, 4)) {
+					multOffered = true;
+				}
+				if (TestSettings.KEY_TYPE_X255
+						&& platform.getUtils().equals(
+								KeyAgreementType.X25519.getType(), 0, aMsg,
+								keyPos + i * 4, 4)) {
+					x255Offered = true;
+				}
 				if (DH_MODE_EC_USE_256 && TestSettings.KEY_TYPE_EC25) {
 					if (platform.getUtils().equals(
 							KeyAgreementType.ECDH256.getType(), 0, aMsg,
@@ -1598,7 +2089,22 @@ public class ZRTP {
 							+ new String(aMsg, keyPos + i * 4, 4));
 				}
 			}
-			dhSuite.setAlgorithm(dhMode);
+			// X255 is preferred when both ends support it, and is used with
+			// SHA-256 whatever the hashes offered
+			if (x255Offered) {
+				dhMode = KeyAgreementType.X25519;
+				hashMode = HashType.SHA256;
+			}
+			// Multistream mode when both ends offer it, no key pair needed
+			// unless the far end commits to a DH mode after all
+			multistream = multOffered && selectMultistreamKey();
+			// Otherwise Preshared mode, if there is a retained secret and the
+			// policy doesn't require a DH exchange
+			preshared = !multistream && prshOffered
+					&& selectPresharedKey(hashMode);
+			if (isDhMode()) {
+				setDhAlgorithm(dhMode);
+			}
 			
 			isLegacyAttributeList &= LegacyClientUtils.checkKeyAgreement(platform ,aMsg, keyPos, keyCount);
 			
@@ -1625,7 +2131,8 @@ public class ZRTP {
 
 
 			try {
-				if (dhPart2Msg == null) {
+				// created with the Commit if the key pair is still generated
+				if (dhPart2Msg == null && isDhMode() && dhSuite != null) {
 					dhPart2Msg = createDHPartX(MSG_TYPE_DHPART2);
 				}
 			} catch (Throwable ex) {
@@ -1637,7 +2144,7 @@ public class ZRTP {
 		}
 	}
 
-	private synchronized void doHelloACK(byte[] data, int offset, int len)
+	private void doHelloACK(byte[] data, int offset, int len)
 			throws IOException {
 		if (platform.getLogger().isEnabled()) {
 			logString("Received HelloACK");
@@ -1645,7 +2152,7 @@ public class ZRTP {
 		if (state == ZRTP_STATE_SENDING_HELLO) {
 			// Because of network issues, this could arrive after a Commit
 			// So, ignore it in all other states
-			retranTask = null;
+			cancelRetransmission();
 			state = ZRTP_STATE_GOT_HELLO_ACK;
 			if (rxHelloMsg != null) {
 				// We've received a valid hello & far end has ACKed ours
@@ -1699,8 +2206,7 @@ public class ZRTP {
 		// iDelayedCacheUpdate.
 		// iFarEndZID is not necessary as the cache has the correct ZID already
 		// selected.
-		retranTimer.cancel();
-		retranTask = null;
+		cancelRetransmission();
 		started = false;
 		// iRtpSender = null; // keep RTP sender for responding to Confirm2
 		// retransmissions
@@ -1721,7 +2227,24 @@ public class ZRTP {
 		// farEndH1 = null;
 		// farEndH2 = null;
 		// farEndH3 = null;
+		if (pendingDh != null) {
+			pendingDh.cancel(false);
+			pendingDh = null;
+		}
+		if (pendingKeyPair != null) {
+			pendingKeyPair.cancel(false);
+			pendingKeyPair = null;
+		}
+		commitDeferred = dhPart1Deferred = false;
+		deferredConfirm1 = null;
+		eraseUnpublishedKey(newSessionKey);
+		newSessionKey = null;
+		eraseUnpublishedKey(multistreamKey);
+		multistreamKey = null;
+		presharedKey = null;
+		commitNonce = null;
 		if (dhSuite != null) {
+			// key pairs are used for one session only
 			dhSuite.clear();
 			dhSuite = null;
 		}
@@ -1733,18 +2256,168 @@ public class ZRTP {
 		return ret;
 	}
 
+	/*
+	 * Starts computing the DH result on the DH executor, or on this thread if
+	 * there is none; the protocol resumes in dhCompleted()
+	 */
 	private void getDHResult(byte[] msg) throws ZrtpException {
 		if (platform.getLogger().isEnabled()) {
 			logString("Received DHPart1 or DHPart2 using" + dhMode);
 		}
-		dhResult = dhSuite.getDhResult(msg, 76 ,isLegacyClient);
+		dhResult = null;
+		pendingDh = new DhComputation(dhSuite, msg, isLegacyClient);
+		execute(pendingDh);
 	}
 
-	/**
-	 * @return SHA256 Hash of the Hello message to be included in the SDP See:
-	 *         draft-zimmermann-avt-zrtp-17 Sections: 4.1, 8.1 & 5.1.2.1
+	private void dhCompleted(DhComputation computation) {
+		protocolLock.lock();
+		try {
+			if (computation != pendingDh || completed) {
+				// session ended in the meantime
+				return;
+			}
+			pendingDh = null;
+			try {
+				dhResult = (byte[]) computation.get();
+			} catch (ExecutionException e) {
+				throw e.getCause();
+			}
+			if (initiator) {
+				dhPart1Completed();
+			} else {
+				dhPart2Completed();
+			}
+		} catch (Throwable e) {
+			logError("Exception in dhCompleted() - " + e.toString());
+			e.printStackTrace();
+			sessionCompleted(false, ZrtpStrings.TEXT_ZRTP_ERROR);
+		} finally {
+			protocolLock.unlock();
+		}
+	}
+
+	/*
+	 * Runs a DH computation or key pair generation on the DH executor, or on
+	 * this thread if there is none. Threadless sessions run it on the
+	 * calling thread, as their output is returned by the current step. A
+	 * task rejected by a full executor is submitted again after a delay, the
+	 * session thread never runs it.
 	 */
-	public String getHelloHash() throws IOException {
+	private void execute(final FutureTask task) {
+		Executor executor = output == null ? dhExecutor : null;
+		if (executor == null) {
+			task.run();
+			return;
+		}
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			logWarning("DH executor full, task submitted again in "
+					+ DH_EXECUTOR_RETRY_DELAY + " ms");
+			retranTimer.schedule(new RetransmissionTask() {
+				public void run() {
+					protocolLock.lock();
+					try {
+						// cancelled when the session ends
+						if (!task.isDone() && !completed) {
+							execute(task);
+						}
+					} finally {
+						protocolLock.unlock();
+					}
+				}
+			}, DH_EXECUTOR_RETRY_DELAY);
+		}
+	}
+
+	/*
+	 * Takes a key pair of the negotiated type from the pool, or starts
+	 * generating one on the DH executor if the pool has none ready: dhSuite
+	 * stays null until keyPairGenerated()
+	 */
+	private void setDhAlgorithm(KeyAgreementType type) {
+		if ((dhSuite != null || pendingKeyPair != null)
+				&& dhSuiteMode.keyType == type.keyType) {
+			return;
+		}
+		DiffieHellmanSuite suite = null;
+		if (keyPairPool != null) {
+			suite = keyPairPool.take(type);
+		}
+		if (dhSuite != null) {
+			dhSuite.clear();
+			dhSuite = null;
+		}
+		if (pendingKeyPair != null) {
+			KeyPairGeneration generation = pendingKeyPair;
+			pendingKeyPair = null;
+			generation.cancel(false);
+		}
+		dhSuiteMode = type;
+		if (suite != null) {
+			suite.setLogger(platform.getLogger());
+			dhSuite = suite;
+		} else {
+			pendingKeyPair = new KeyPairGeneration(type);
+			execute(pendingKeyPair);
+		}
+	}
+
+	/*
+	 * Clears the key pair of a generation no longer wanted, key pairs are
+	 * used for one session only
+	 */
+	private static void discard(KeyPairGeneration generation) {
+		if (generation.isCancelled()) {
+			return;
+		}
+		try {
+			((DiffieHellmanSuite) generation.get()).clear();
+		} catch (Exception e) {
+			// failed, no key pair to clear
+		}
+	}
+
+	private void keyPairGenerated(KeyPairGeneration generation) {
+		protocolLock.lock();
+		try {
+			if (generation != pendingKeyPair || completed) {
+				// replaced or session ended in the meantime
+				discard(generation);
+				return;
+			}
+			pendingKeyPair = null;
+			DiffieHellmanSuite suite;
+			try {
+				suite = (DiffieHellmanSuite) generation.get();
+			} catch (ExecutionException e) {
+				throw e.getCause();
+			}
+			suite.setLogger(platform.getLogger());
+			dhSuite = suite;
+			if (commitDeferred) {
+				commitDeferred = false;
+				sendCommit();
+			} else if (dhPart1Deferred) {
+				dhPart1Deferred = false;
+				if (state == ZRTP_STATE_GOT_COMMIT) {
+					sendDHPart1();
+					state = ZRTP_STATE_DHPART1_SENT;
+				}
+			}
+		} catch (Throwable e) {
+			logError("Exception in keyPairGenerated() - " + e.toString());
+			sessionCompleted(false, ZrtpStrings.TEXT_ZRTP_ERROR);
+		} finally {
+			protocolLock.unlock();
+		}
+	}
+
+	/**
+	 * @return SHA256 Hash of the Hello message to be included in the SDP See:
+	 *         draft-zimmermann-avt-zrtp-17 Sections: 4.1, 8.1 & 5.1.2.1
+	 */
+	public String getHelloHash() throws IOException {
 		if (!hashChain.helloHashCreated) {
 			// Create hello message
 			byte[] msg = createHelloMsg();
@@ -1894,34 +2567,36 @@ public class ZRTP {
 
 	/**
 	 * Handle an incoming ZRTP message. Assumes RTP headers and trailing CRC
-	 * have been stripped by caller
+	 * have been stripped by caller. The message is copied in the incoming
+	 * message queue for the session thread, the caller is never blocked.
 	 * 
 	 * @param aMsg
 	 *            byte array containing the ZRTP message
+	 * @return false if the message was rejected by the queue
 	 */
-	public void handleIncomingMessage(byte[] data, int offset, int len) {
-		synchronized(messageQueue) {
-			messageQueue.add(new IncomingMessage(data, offset, len));
-		}
-		synchronized(lock) {
-			lock.notifyAll();
-		}
+	public boolean handleIncomingMessage(byte[] data, int offset, int len) {
+		boolean queued = messageQueue.offer(data, offset, len);
+		wakeSessionThread();
+		return queued;
 	}
 
 	protected void processQueuedMessages() {
-		IncomingMessage msg = null;
-		while(true) {
-			synchronized(messageQueue) {
-				msg = (IncomingMessage)messageQueue.poll();
-				if(msg == null)
-					return;
-			}
-			byte[] data = msg.getData();
-			respondToMessage(data, 0, data.length);
+		int len;
+		while ((len = messageQueue.poll(messageBuffer)) >= 0) {
+			respondToMessage(messageBuffer, 0, len);
 		}
 	}
-		
+
 	protected void respondToMessage(byte[] data, int offset, int len) {
+		protocolLock.lock();
+		try {
+			processMessage(data, offset, len);
+		} finally {
+			protocolLock.unlock();
+		}
+	}
+
+	private void processMessage(byte[] data, int offset, int len) {
 		lastPacketArrival = System.currentTimeMillis();
 		if (platform.isVerboseLogging()) {
 			logZrtpMessage("ZRTP received", data, offset, len);
@@ -2115,10 +2790,21 @@ public class ZRTP {
 		return remoteTrust;
 	}
 
-	private synchronized void retranTimerExpired(RetranTimerTask task) {
-		if (completed || task != retranTask) {
+	private void retranTimerExpired(RetranTimerTask task) {
+		protocolLock.lock();
+		try {
+			retransmit(task);
+		} finally {
+			protocolLock.unlock();
+		}
+	}
+
+	private void retransmit(RetranTimerTask task) {
+		if (completed || !retranPending || retranTimer.isScheduled(task)) {
+			// cancelled, or rescheduled after it was taken to run
 			return;
 		}
+		retranPending = false;
 		try {
 			if (!started) {
 				// Shouldn't happen, but just in case
@@ -2173,8 +2859,7 @@ public class ZRTP {
 						}
 						break;
 					}
-					retranTask = new RetranTimerTask();
-					retranTimer.schedule(retranTask, timerInterval);
+					scheduleRetransmission(timerInterval);
 				} else {
 					// Sent Max number of messages with no response
 					logString("Session failed, received no response in state "
@@ -2194,8 +2879,7 @@ public class ZRTP {
 					sessionCompletedKO(ZrtpStrings.TEXT_ZRTP_RESPONDER_TIMEOUT,
 							getStateText());
 				} else {
-					retranTask = new RetranTimerTask();
-					retranTimer.schedule(retranTask, RESPONDER_TIMEOUT - dif);
+					scheduleRetransmission(RESPONDER_TIMEOUT - dif);
 				}
 			}
 		} catch (Throwable e) {
@@ -2211,73 +2895,253 @@ public class ZRTP {
 	private void runSession() {
 		if (!started) {
 			logString("Thread Starting");
-			completed = false;
-			seqNum = getStartSeqNum();
-			rtpStack.setNextZrtpSequenceNumber(getStartSeqNum());
-			state = ZRTP_STATE_INACTIVE;
-			initiator = false;
-			hashMode = HashType.UNDEFINED;
-			dhMode = KeyAgreementType.DH3K;
-			sasMode = SasType.UNDEFINED;
-			farEndZID = null;
-			farEndH0 = null;
-			farEndClientID = "";
-			isLegacyClient = false;
-			// farEndH1 = null;
-			// farEndH2 = null;
-			// farEndH3 = null;
-			farEndZID = null;
-			dhPart1Msg = null;
-			dhPart2Msg = null;
-			rxHelloMsg = txHelloMsg = commitMsg = null;
-			msgConfirm1TX = msgConfirm2TX = null;
-			msgConfirm1RX = msgConfirm2RX = null;
-			msgErrorTX = null;
-
+			sessionThread = Thread.currentThread();
+			protocolLock.lock();
 			try {
-				// TODO: create after algorithm negotiation
-				dhSuite.setAlgorithm(KeyAgreementType.DH3K);
-				// Initialize the retransmission timer interval
-				timerInterval = T1_INITIAL_INTERVAL;
-				sendHello();
-				started = true;
-			} catch (Throwable e) {
-				logError("Exception sending initial Hello message: "
-						+ e.toString());
-				e.printStackTrace();
-				completed = true;
+				beginSession();
+			} finally {
+				protocolLock.unlock();
 			}
 			while (!completed) {
-				synchronized (lock) {
-					try {
-						lock.wait();
-					} catch (Throwable e) {
-						logString("Thread Interrupted E:" + e);
+				processQueuedMessages();
+				if (retranDue) {
+					retranDue = false;
+					retranTimerExpired(retranTask);
+				}
+				if (!completed && !retranDue && messageQueue.isEmpty()) {
+					LockSupport.park(this);
+					if (Thread.interrupted()) {
+						logString("Thread Interrupted");
 					}
 				}
-				processQueuedMessages();
 			}
-			endSession();
+			sessionThread = null;
+			protocolLock.lock();
+			try {
+				endSession();
+			} finally {
+				protocolLock.unlock();
+			}
 			logString("Thread Ending");
 		}
 	}
 
+	/*
+	 * Wakes up the session thread to check whether the session is completed
+	 */
+	private void wakeSessionThread() {
+		Thread thread = sessionThread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/*
+	 * Resets the protocol state and sends the first Hello, shared by the
+	 * session thread and the threadless mode
+	 */
+	private void beginSession() {
+		completed = false;
+		seqNum = getStartSeqNum();
+		if (rtpStack != null) {
+			rtpStack.setNextZrtpSequenceNumber(getStartSeqNum());
+		}
+		state = ZRTP_STATE_INACTIVE;
+		initiator = false;
+		hashMode = HashType.UNDEFINED;
+		dhMode = KeyAgreementType.DH3K;
+		sasMode = SasType.UNDEFINED;
+		multistream = false;
+		eraseUnpublishedKey(multistreamKey);
+		multistreamKey = null;
+		preshared = false;
+		presharedRefused = false;
+		presharedKey = null;
+		farEndZID = null;
+		farEndH0 = null;
+		farEndClientID = "";
+		isLegacyClient = false;
+		// farEndH1 = null;
+		// farEndH2 = null;
+		// farEndH3 = null;
+		farEndZID = null;
+		dhPart1Msg = null;
+		dhPart2Msg = null;
+		rxHelloMsg = txHelloMsg = commitMsg = null;
+		msgConfirm1TX = msgConfirm2TX = null;
+		msgConfirm1RX = msgConfirm2RX = null;
+		msgErrorTX = null;
+
+		try {
+			// Initialize the retransmission timer interval
+			timerInterval = T1_INITIAL_INTERVAL;
+			sendHello();
+			started = true;
+		} catch (Throwable e) {
+			logError("Exception sending initial Hello message: "
+					+ e.toString());
+			e.printStackTrace();
+			completed = true;
+		}
+	}
+
+	/*
+	 * Ends a step of a threadless session
+	 */
+	private ZrtpOutput finishStep() {
+		if (completed && started) {
+			protocolLock.lock();
+			try {
+				endSession();
+			} finally {
+				protocolLock.unlock();
+			}
+		}
+		output.setTimeout(completed ? -1 : deadlines.getDeadline());
+		output.setCompleted(completed);
+		return output;
+	}
+
 	private void scheduleTimerResponderTimeout() {
 		lastPacketArrival = System.currentTimeMillis();
 		// reusing retransmision timer as responder never really needs to
 		// retransmit
-		retranTask = new RetranTimerTask();
-		retranTimer.schedule(retranTask, RESPONDER_TIMEOUT);
+		scheduleRetransmission(RESPONDER_TIMEOUT);
 	}
 
 	private void scheduleTimerT2() {
 		retranCount = 0;
 		timerInterval = T2_INITIAL_INTERVAL;
-		retranTask = new RetranTimerTask();
-		retranTimer.schedule(retranTask, (long) timerInterval);
+		scheduleRetransmission(timerInterval);
+	}
+
+	private void scheduleRetransmission(long delay) {
+		retranPending = true;
+		retranTimer.schedule(retranTask, delay);
+	}
+
+	private void cancelRetransmission() {
+		retranPending = false;
+		retranTimer.cancel(retranTask);
+	}
+
+	private byte[] createCommitWithoutDh() throws IOException {
+		// Same as the DH Commit, with a nonce instead of hvi, followed by the
+		// keyID in Preshared mode (zrtp spec 5.4)
+		HashType hash = multistream ? multistreamHash : hashMode;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		baos.write(createMessageBase(MSG_TYPE_COMMIT,
+				(multistream ? MULTISTREAM_COMMIT_LENGTH
+						: PRESHARED_COMMIT_LENGTH) / 4));
+		baos.write(hashChain.H2);
+		baos.write(localZID);
+		baos.write(hash.getType());
+		baos.write(cipherInUse.getSymbol());
+		baos.write(authMode.getSymbol());
+		baos.write(multistream ? KeyAgreementType.MULTISTREAM.getType()
+				: KeyAgreementType.PRESHARED.getType());
+		baos.write(SasType.B256.getType());
+		commitNonce = randomGenerator.getBytes(16);
+		baos.write(commitNonce);
+		if (preshared) {
+			baos.write(createPresharedKeyId(hash), 0, 8);
+		}
+		byte[] commit = baos.toByteArray();
+		baos.close();
+		hashMode = hash;
+		return addImplicitHMAC(commit, hashChain.H1);
 	}
 
-	private synchronized void sendCommit() throws IOException {
+	/*
+	 * Takes the session key of the keying session, if it has succeeded with
+	 * the same far end
+	 */
+	private boolean selectMultistreamKey() {
+		byte[] key = multistreamSession.sessionKey;
+		if (key == null
+				|| !platform.getUtils().equals(multistreamSession.sessionZID,
+						0, farEndZID, 0, 12)) {
+			logString("No session key for Multistream mode, using DH mode");
+			return false;
+		}
+		multistreamKey = platform.getUtils().copy(key);
+		multistreamHash = multistreamSession.sessionHash;
+		sasString = multistreamSession.sessionSas;
+		// for the trust flags of Confirm
+		cache.selectEntry(farEndZID);
+		return true;
+	}
+
+	/*
+	 * Computes preshared_key from the retained secret rs1 of the far end,
+	 * unless the Preshared mode policy requires a DH exchange, zrtp spec
+	 * 4.4.2.1: preshared_key = hash(len(rs1) || rs1 || len(auxsecret) ||
+	 * auxsecret || len(pbxsecret) || pbxsecret), auxsecret and pbxsecret
+	 * being empty
+	 */
+	private boolean selectPresharedKey(HashType hash) {
+		presharedKey = null;
+		if (presharedMaxCalls <= 0) {
+			return false;
+		}
+		cache.selectEntry(farEndZID);
+		byte[] rs1 = cache.getRetainedSecret1();
+		if (rs1 == null) {
+			logString("No retained secret for Preshared mode, using DH mode");
+			return false;
+		}
+		if (cache.getPresharedCount() >= presharedMaxCalls
+				|| (presharedMaxAge > 0 && System.currentTimeMillis()
+						- cache.getDhTime() > presharedMaxAge)) {
+			logString("Preshared mode policy requires a DH exchange after "
+					+ cache.getPresharedCount() + " Preshared calls");
+			return false;
+		}
+		Digest digest = createDigest(hash);
+		byte[] len = new byte[4];
+		len[3] = (byte) rs1.length;
+		digest.update(len);
+		digest.update(rs1);
+		len[3] = 0;
+		digest.update(len);
+		digest.update(len);
+		presharedKey = new byte[digest.getDigestLength()];
+		digest.getDigest(presharedKey, 0, true);
+		return true;
+	}
+
+	/*
+	 * keyID == MAC(preshared_key, "Prsh"), truncated to 64 bits by the
+	 * caller
+	 */
+	private byte[] createPresharedKeyId(HashType hash) {
+		byte[] type = KeyAgreementType.PRESHARED.getType();
+		return HashType.SHA384.equals(hash) ? platform.getCrypto()
+				.calculateSHA384HMAC(type, 0, type.length, presharedKey)
+				: platform.getCrypto().calculateSHA256HMAC(type, 0,
+						type.length, presharedKey);
+	}
+
+	/*
+	 * Checks that the keyID of a Preshared Commit is the one of our
+	 * preshared_key
+	 */
+	private boolean checkPresharedCommit(byte[] data, int offset) {
+		HashType hash = data[offset + 59] == '4' ? HashType.SHA384
+				: HashType.SHA256;
+		if (!selectPresharedKey(hash)) {
+			return false;
+		}
+		if (!platform.getUtils().equals(createPresharedKeyId(hash), 0, data,
+				offset + 92, 8)) {
+			logWarning("Preshared Commit keyID mismatch");
+			presharedKey = null;
+			return false;
+		}
+		return true;
+	}
+
+	private void sendCommit() throws IOException {
 		if (platform.getLogger().isEnabled()) {
 			logString("Sending COMMIT...");
 		}
@@ -2288,10 +3152,21 @@ public class ZRTP {
 		 * ); iRtpSender.sendZrtpPacket(mMsgHelloACK); forceToBeInitiator =
 		 * false; }
 		 */
+		if (commitMsg == null && !isDhMode()) {
+			commitMsg = createCommitWithoutDh();
+		}
+		if (commitMsg == null) {
+			setDhAlgorithm(dhMode);
+			if (dhSuite == null) {
+				// sent by keyPairGenerated()
+				logString("Commit deferred until the key pair is generated");
+				commitDeferred = true;
+				return;
+			}
+		}
 		if (commitMsg == null) {
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			// Commit always has length 29 words in DH mode (which we always
-			// use)
+			// Commit always has length 29 words in DH mode
 			baos.write(createMessageBase(MSG_TYPE_COMMIT, 29));
 			baos.write(hashChain.H2);
 			baos.write(localZID);
@@ -2305,7 +3180,6 @@ public class ZRTP {
 			byte[] commit = baos.toByteArray();
 			baos.close();
 			commitMsg = addImplicitHMAC(commit, hashChain.H1);
-			dhSuite.setAlgorithm(dhMode);
 			if (TestSettings.TEST && TestSettings.TEST_ZRTP_WRONG_HMAC_COMMIT) {
 				randomGenerator.getBytes(commitMsg, commit.length, 2);
 			}
@@ -2316,7 +3190,7 @@ public class ZRTP {
 		scheduleTimerT2();
 	}
 
-	private synchronized void sendConf2ACK() {
+	private void sendConf2ACK() {
 		sendZrtpPacket(mMsgConf2ACK);
 		boolean success = listener.keyExchangeCompleted(txMasterKey,
 				txMasterSalt, rxMasterKey, rxMasterSalt, seqNum);
@@ -2341,7 +3215,7 @@ public class ZRTP {
 	// //TODO send relay ACK not implemented
 	// }
 
-	private synchronized void sendConfirm1() throws IOException,
+	private void sendConfirm1() throws IOException,
 			CryptoException {
 		if (platform.getLogger().isEnabled()) {
 			logString("Sending Confirm1...");
@@ -2357,20 +3231,8 @@ public class ZRTP {
 	// private synchronized void sendPingACK() throws IOException {
 	// //TODO send Ping Ack not implemented
 	// }
-	
-	class IncomingMessage {
-		byte[] data;
-		public IncomingMessage(byte[] _data, int offset, int len) {
-			this.data = new byte[len];
-			System.arraycopy(_data, offset, this.data, 0, len);
-		}
-		public byte[] getData() {
-			return data;
-		}
-	}
-	LinkedList messageQueue = new LinkedList();
 
-	private synchronized void sendConfirm2() throws IOException,
+	private void sendConfirm2() throws IOException,
 			CryptoException {
 		if (platform.getLogger().isEnabled()) {
 			logString("Sending Confirm2...");
@@ -2385,7 +3247,7 @@ public class ZRTP {
 		scheduleTimerT2();
 	}
 
-	private synchronized void sendDHPart1() throws IllegalArgumentException,
+	private void sendDHPart1() throws IllegalArgumentException,
 			ZrtpException {
 		if (platform.getLogger().isEnabled()) {
 			logString("Sending DHPart1...");
@@ -2401,7 +3263,7 @@ public class ZRTP {
 		sendZrtpPacket(dhPart1Msg);
 	}
 
-	private synchronized void sendDHPart2() throws IllegalArgumentException,
+	private void sendDHPart2() throws IllegalArgumentException,
 			ZrtpException {
 		if (platform.getLogger().isEnabled()) {
 			logString("Sending DHPart2...");
@@ -2418,7 +3280,7 @@ public class ZRTP {
 		scheduleTimerT2();
 	}
 
-	private synchronized void sendError(int code) throws IOException {
+	private void sendError(int code) throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		baos.write(createMessageBase(MSG_TYPE_ERROR, 4));
 		// Only the 2 least significant bytes of error code are of interest
@@ -2434,11 +3296,11 @@ public class ZRTP {
 		scheduleTimerT2();
 	}
 
-	private synchronized void sendErrorACK() {
+	private void sendErrorACK() {
 		sendZrtpPacket(mMsgErrorACK);
 	}
 
-	private synchronized void sendHello() throws IOException {
+	private void sendHello() throws IOException {
 		if (platform.getLogger().isEnabled()) {
 			logString("Sending HELLO...");
 		}
@@ -2458,11 +3320,10 @@ public class ZRTP {
 			sendZrtpPacket(txHelloMsg);
 			// logString("Scheduling next HELLO to be sent in "+iTimerInterval+"ms ...");
 		}
-		retranTask = new RetranTimerTask();
-		retranTimer.schedule(retranTask, (long) timerInterval);
+		scheduleRetransmission(timerInterval);
 	}
 
-	private synchronized void sendHelloACK() {
+	private void sendHelloACK() {
 		if (platform.getLogger().isEnabled()) {
 			logString("Sending HELLOACK...");
 		}
@@ -2476,7 +3337,7 @@ public class ZRTP {
 		sendZrtpPacket(mMsgHelloACK);
 	}
 
-	private synchronized void sendPing() throws IOException {
+	private void sendPing() throws IOException {
 		if (txPingMsg == null) {
 			txPingMsg = createPingMsg();
 		}
@@ -2487,19 +3348,39 @@ public class ZRTP {
 		if (platform.isVerboseLogging()) {
 			logZrtpMessage("SEND MSG", msg, 0, msg.length);
 		}
-		rtpStack.sendZrtpPacket(msg);
+		if (output != null) {
+			output.addPacket(msg);
+		} else {
+			rtpStack.sendZrtpPacket(msg);
+		}
 	}
 
 	private void sessionCompleted(boolean success, String msg) {
 		if (!completed) {
-			retranTimer.cancel();
-			retranTask = null;
+			cancelRetransmission();
 			completed = true;
+			if (success && newSessionKey != null) {
+				sessionHash = hashMode;
+				sessionZID = farEndZID;
+				sessionSas = sasString;
+				sessionKey = newSessionKey;
+			} else {
+				eraseUnpublishedKey(newSessionKey);
+			}
+			newSessionKey = null;
 			logString("sessionCompleted(" + success + ")");
 			listener.sessionNegotiationCompleted(success, msg);
-			synchronized (lock) {
-				lock.notify();
-			}
+			wakeSessionThread();
+		}
+	}
+
+	/*
+	 * Zeroes a session key unless it has been published as sessionKey, which
+	 * only releaseSessionKey() erases
+	 */
+	private void eraseUnpublishedKey(byte[] key) {
+		if (key != null && key != sessionKey) {
+			platform.getUtils().zero(key);
 		}
 	}
 
@@ -2522,6 +3403,73 @@ public class ZRTP {
 		rtpStack.setMasqueradingDual();
 	}
 
+	/**
+	 * Keys this session in Multistream mode (RFC 6189 section 4.4.3) with the
+	 * session key of another session with the same far end, typically the
+	 * audio stream of a call for its video stream: a single Commit and
+	 * Confirm exchange, without DH. Mult is offered in Hello, so this is to
+	 * be called before the Hello hash is taken and the session started. The
+	 * session falls back to DH mode if the far end doesn't offer Mult, or if
+	 * the keying session has not succeeded by the time the Hello is received.
+	 * This session copies the key it is given, so the keying session may
+	 * release its key once this one has completed.
+	 * 
+	 * @param session
+	 *            Session whose key keys this one, null for DH mode
+	 */
+	public void setMultistreamSession(ZRTP session) {
+		multistreamSession = session;
+	}
+
+	/**
+	 * @return True if this session is keyed in Multistream mode, final once
+	 *         the Commit has been sent or received
+	 */
+	public boolean isMultistream() {
+		return multistream;
+	}
+
+	/**
+	 * Sets when this session may be keyed in Preshared mode (RFC 6189 section
+	 * 4.4.2), from the retained secret of the last call with the same far
+	 * end: a single Commit and Confirm exchange, without DH. Prsh is offered
+	 * in Hello, so this is to be called before the Hello hash is taken and
+	 * the session started. DH mode is used if there is no retained secret,
+	 * if either end's policy requires a DH exchange, or if the far end
+	 * refuses the Preshared Commit.
+	 * 
+	 * @param maxCalls
+	 *            Number of calls keyed in Preshared mode between two DH
+	 *            exchanges, 0 for DH mode only
+	 * @param maxAge
+	 *            Time in ms after a DH exchange from which a new one is
+	 *            required, 0 for no limit
+	 */
+	public void setPresharedPolicy(int maxCalls, long maxAge) {
+		presharedMaxCalls = maxCalls;
+		presharedMaxAge = maxAge;
+	}
+
+	/**
+	 * Sets the Preshared mode policy of the sessions created afterwards, DH
+	 * mode only unless set otherwise
+	 * 
+	 * @see #setPresharedPolicy(int, long)
+	 */
+	public static synchronized void setDefaultPresharedPolicy(int maxCalls,
+			long maxAge) {
+		defaultPresharedMaxCalls = maxCalls;
+		defaultPresharedMaxAge = maxAge;
+	}
+
+	/**
+	 * @return True if this session is keyed in Preshared mode, final once
+	 *         the Commit has been sent or received
+	 */
+	public boolean isPreshared() {
+		return preshared;
+	}
+
 	/**
 	 * Sets the phone number of other party for use in addressbook lookup during
 	 * verification
@@ -2542,6 +3490,187 @@ public class ZRTP {
 		rtpStack = stack;
 	}
 
+	/**
+	 * Sets the scheduler of the retransmission and timeout tasks of this
+	 * session, to be called before the session is started
+	 */
+	public void setRetransmissionScheduler(RetransmissionScheduler scheduler) {
+		retranTimer = scheduler;
+	}
+
+	/**
+	 * Sets the queue of the messages given to handleIncomingMessage(), to set
+	 * its capacity and overflow policy. To be called before the session is
+	 * started
+	 */
+	public void setIncomingMessageQueue(IncomingMessageQueue queue) {
+		messageQueue = queue;
+	}
+
+	/**
+	 * Returns the queue of the messages given to handleIncomingMessage(), with
+	 * the counters of the messages dropped or rejected
+	 */
+	public IncomingMessageQueue getIncomingMessageQueue() {
+		return messageQueue;
+	}
+
+	/**
+	 * Returns the scheduler shared by the sessions which were not given their
+	 * own, a HashedWheelTimer unless set otherwise
+	 */
+	public static synchronized RetransmissionScheduler getDefaultRetransmissionScheduler() {
+		if (defaultRetranTimer == null) {
+			defaultRetranTimer = new HashedWheelTimer();
+		}
+		return defaultRetranTimer;
+	}
+
+	/**
+	 * Sets the scheduler shared by the sessions created afterwards
+	 */
+	public static synchronized void setDefaultRetransmissionScheduler(
+			RetransmissionScheduler scheduler) {
+		defaultRetranTimer = scheduler;
+	}
+
+	/**
+	 * Sets the executor running the DH computations of this session, and the
+	 * generation of its key pair when the pool has none ready, so that they
+	 * do not block the session thread. Null to run them on the session
+	 * thread. Threadless sessions always run them on the calling thread.
+	 */
+	public void setDhExecutor(Executor executor) {
+		dhExecutor = executor;
+	}
+
+	/**
+	 * Returns the DH executor of the sessions which were not given their own,
+	 * unless set otherwise a pool with a thread per processor shared by all
+	 * sessions
+	 */
+	public static synchronized Executor getDefaultDhExecutor() {
+		if (!defaultDhExecutorSet) {
+			defaultDhExecutor = createDhExecutor(Runtime.getRuntime()
+					.availableProcessors(), DH_EXECUTOR_QUEUE_SIZE);
+			defaultDhExecutorSet = true;
+		}
+		return defaultDhExecutor;
+	}
+
+	/**
+	 * Sets the pool the key pairs of this session are taken from, null to
+	 * generate the key pair once the key agreement is negotiated
+	 */
+	public void setKeyPairPool(KeyPairPool pool) {
+		keyPairPool = pool;
+	}
+
+	/**
+	 * Returns the key pair pool of the sessions which were not given their
+	 * own, null unless one was set with setDefaultKeyPairPool(): the sessions
+	 * then generate their key pair on the DH executor once the key agreement
+	 * is negotiated
+	 */
+	public static synchronized KeyPairPool getDefaultKeyPairPool() {
+		return defaultKeyPairPool;
+	}
+
+	/**
+	 * Creates a key pair pool with the platform, refilled by the default DH
+	 * executor, and starts generating the key pairs of the key agreement
+	 * types offered in Hello. The application sets it as the default pool
+	 * once its platform is initialised:
+	 * 
+	 * <pre>
+	 * ZRTP.setDefaultKeyPairPool(ZRTP.createKeyPairPool(platform));
+	 * </pre>
+	 * 
+	 * A refill rejected by a full DH executor is skipped, the sessions
+	 * taking the key pairs never run it.
+	 */
+	public static KeyPairPool createKeyPairPool(Platform platform) {
+		KeyPairPool pool = new KeyPairPool(platform, getDefaultDhExecutor());
+		if (TestSettings.KEY_TYPE_DH3K) {
+			pool.refill(KeyAgreementType.DH3K);
+		}
+		if (TestSettings.KEY_TYPE_EC25) {
+			pool.refill(KeyAgreementType.ECDH256);
+		}
+		if (TestSettings.KEY_TYPE_EC38) {
+			pool.refill(KeyAgreementType.ECDH384);
+		}
+		if (TestSettings.KEY_TYPE_X255) {
+			pool.refill(KeyAgreementType.X25519);
+		}
+		return pool;
+	}
+
+	/**
+	 * Sets the key pair pool of the sessions created afterwards, null for
+	 * none
+	 */
+	public static synchronized void setDefaultKeyPairPool(KeyPairPool pool) {
+		defaultKeyPairPool = pool;
+	}
+
+	/**
+	 * Sets the DH executor of the sessions created afterwards, null to run
+	 * the DH computations on the session threads
+	 */
+	public static synchronized void setDefaultDhExecutor(Executor executor) {
+		defaultDhExecutor = executor;
+		defaultDhExecutorSet = true;
+	}
+
+	/**
+	 * Creates a bounded pool of daemon threads for the DH computations and
+	 * key pair generations. Once its queue is full, further tasks are
+	 * rejected: the sessions submit theirs again after a delay, the key pair
+	 * pools skip the refill.
+	 */
+	public static Executor createDhExecutor(int threads, int queueSize) {
+		final AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+				60, TimeUnit.SECONDS, new ArrayBlockingQueue(queueSize),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ZRTP-DH-"
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Sets the executor running the session thread of this session, e.g. one
+	 * starting a virtual thread per task (see VirtualThreads). The session
+	 * thread blocks until the session is completed, so the executor must not
+	 * queue it behind other sessions. Null for the default.
+	 */
+	public void setSessionExecutor(Executor executor) {
+		sessionExecutor = executor;
+	}
+
+	/**
+	 * Returns the executor running the session threads of the sessions which
+	 * were not given their own, null for a new platform thread per session
+	 */
+	public static synchronized Executor getDefaultSessionExecutor() {
+		return defaultSessionExecutor;
+	}
+
+	/**
+	 * Sets the executor running the session threads of the sessions started
+	 * afterwards
+	 */
+	public static synchronized void setDefaultSessionExecutor(Executor executor) {
+		defaultSessionExecutor = executor;
+	}
+
 	/**
 	 * Hash of the Hello message to be received. This hash is sent by the other
 	 * end as part of the SDP for further verification.
@@ -2559,28 +3688,130 @@ public class ZRTP {
 		sdpHelloHashReceived = helloHash;
 	}
 
+	/**
+	 * Starts the session on a thread of its own, which processes the messages
+	 * given to handleIncomingMessage(). Retransmissions are run by the
+	 * retransmission scheduler. The session thread is run by the session
+	 * executor, a new platform thread if none is set.
+	 */
 	public void startSession() {
-		Thread t = new Thread(new Runnable() {
+		Runnable session = new Runnable() {
 			public void run() {
 				runSession();
 			}
-		}, "ZRTP-" + "ZRTP-" + (counter++));
-		t.start();
+		};
+		Executor executor = sessionExecutor;
+		if (executor == null) {
+			executor = getDefaultSessionExecutor();
+		}
+		if (executor != null) {
+			executor.execute(session);
+		} else {
+			Thread t = new Thread(session, "ZRTP-" + "ZRTP-" + (counter++));
+			t.start();
+		}
+	}
+
+	/**
+	 * Starts the session without a session thread, the host application
+	 * drives the protocol from its own event loop: it passes the ZRTP
+	 * messages received to onPacket() and calls onTimer() once the timeout of
+	 * the last output is reached. Each step returns the messages to send;
+	 * messages are not sent through the RtpStack in this mode, which is
+	 * optional. Steps of one session must not run concurrently.
+	 * 
+	 * @return messages to send and timeout of the session
+	 */
+	public ZrtpOutput startSessionThreadless() {
+		output = new ZrtpOutput();
+		deadlines = new DeadlineScheduler();
+		retranTimer = deadlines;
+		protocolLock.lock();
+		try {
+			if (!started) {
+				logString("Threadless session starting");
+				beginSession();
+			}
+			return finishStep();
+		} finally {
+			protocolLock.unlock();
+		}
+	}
+
+	/**
+	 * Handles a ZRTP message received by a threadless session. The message is
+	 * read in place at offset in data, e.g. after the RTP header of the
+	 * received datagram, and len excludes the trailing CRC. The session copies
+	 * what it keeps, data may be reused once onPacket() returns.
+	 * 
+	 * @return messages to send and timeout of the session
+	 */
+	public ZrtpOutput onPacket(byte[] data, int offset, int len) {
+		output.clear();
+		respondToMessage(data, offset, len);
+		return finishStep();
+	}
+
+	/**
+	 * Runs the retransmission or timeout of a threadless session, if its
+	 * timeout is reached
+	 * 
+	 * @return messages to send and timeout of the session
+	 */
+	public ZrtpOutput onTimer() {
+		output.clear();
+		RetransmissionTask task = deadlines.expire(System.currentTimeMillis());
+		if (task != null) {
+			task.run();
+		}
+		return finishStep();
 	}
 
 	/**
 	 * Stop ZRTP Session
 	 */
 	public void stopSession() {
-		endSession();
-		synchronized (lock) {
-			lock.notify();
+		protocolLock.lock();
+		try {
+			endSession();
+		} finally {
+			protocolLock.unlock();
+		}
+		wakeSessionThread();
+	}
+
+	/**
+	 * Erases the session key, SAS and far end ZID this session published on
+	 * success for Multistream mode. The session key stays available after
+	 * the handshake has completed so that further streams of the call can be
+	 * keyed from it, so its owner, the application, calls this once the call
+	 * ends or no further streams are to be keyed from this session. Streams
+	 * keyed afterwards fall back to DH mode.
+	 */
+	public void releaseSessionKey() {
+		protocolLock.lock();
+		try {
+			byte[] key = sessionKey;
+			sessionKey = null;
+			sessionSas = null;
+			sessionZID = null;
+			sessionHash = null;
+			if (key != null) {
+				platform.getUtils().zero(key);
+			}
+		} finally {
+			protocolLock.unlock();
 		}
 	}
 
 	public void successfulSrtpUnprotect() {
 		logString("Accepting successful SRTP unprotect instead of Conf2ACK, faking Conf2ACK");
-		doConf2ACK(null, 0, 0);
+		protocolLock.lock();
+		try {
+			doConf2ACK(null, 0, 0);
+		} finally {
+			protocolLock.unlock();
+		}
 	}
 
 	/**
@@ -2605,7 +3836,8 @@ public class ZRTP {
 	}
 
 	private boolean validateCommitMessage(byte[] data, int offset) {
-		// length == 116 verified in doCommit
+		// length == 116 (100 in Multistream mode, 108 in Preshared mode)
+		// verified in doCommit
 		boolean msgValid = true;
 
 		logString("COMMIT MESSAGES RECEIVED");
@@ -2634,7 +3866,9 @@ public class ZRTP {
 		} else if (!platform.getUtils().equals(AuthenticationMode.HS80.getSymbol(), 0, data,
 				offset + 64, 4) &&
 				!platform.getUtils().equals(AuthenticationMode.HS32.getSymbol(), 0, data, 
-						offset + 64, 4)) {
+						offset + 64, 4) &&
+				!(TestSettings.AUTH_MODE_GCM && platform.getUtils().equals(
+						AuthenticationMode.GCM.getSymbol(), 0, data, offset + 64, 4))) {
 			msgValid = false;
 			logString("validateCommitMessage, Found invalid auth type - "
 					+ (new String(data, offset + 64, 4)));
@@ -2644,7 +3878,16 @@ public class ZRTP {
 						KeyAgreementType.ECDH256.getType(), 0, data,
 						offset + 68, 4)
 				&& !platform.getUtils().equals(KeyAgreementType.DH3K.getType(),
-						0, data, offset + 68, 4)) {
+						0, data, offset + 68, 4)
+				&& !(TestSettings.KEY_TYPE_X255 && platform.getUtils().equals(
+						KeyAgreementType.X25519.getType(), 0, data,
+						offset + 68, 4))
+				&& !platform.getUtils().equals(
+						KeyAgreementType.MULTISTREAM.getType(), 0, data,
+						offset + 68, 4)
+				&& !(presharedMaxCalls > 0 && platform.getUtils().equals(
+						KeyAgreementType.PRESHARED.getType(), 0, data,
+						offset + 68, 4))) {
 			msgValid = false;
 			logString("validateCommitMessage, Found invalid key type - "
 					+ (new String(data, offset + 68, 4)));
@@ -21,9 +21,6 @@
  */
 package zorg;
 
-import java.util.Enumeration;
-
-import zorg.platform.PersistentHashtable;
 import zorg.platform.Platform;
 
 /**
@@ -34,24 +31,22 @@ public class ZRTPCache {
 
 	public static final String LOCAL_ZID_KEY = "MyZID"; // should not be 8 bytes ong
 
-	PersistentHashtable cache;
-	String currentZid;
+	ZrtpCacheStore cache;
+	byte[] currentZid;
 	byte[] currentRs1;
 	byte[] currentRs2;
 	boolean currentTrust;
 	String currentNumber; // Phone number of other party
+	long currentDhTime; // Time of the last DH exchange, 0 if unknown
+	int currentPresharedCount; // Preshared mode calls since
 	private boolean UPDATE_FOR_CACHE_MISMATCH_SIMULATION = false;
 	private final Platform platform;
 
 	ZRTPCache(Platform platform) {
 		this.platform = platform;
 		UPDATE_FOR_CACHE_MISMATCH_SIMULATION = TestSettings.TEST_ZRTP_CACHE_MISMATCH;
-		/*
-		 * Implementation info: Each entry contains the expiration timestamp (8
-		 * bytes, little endian, in ms as system time), trust (1 byte, 0 or 1),
-		 * rs1 (32 bytes) and optionally rs2 (32 bytes).
-		 */
-		cache = platform.getHashtable();
+		// entries are encoded by RetainedSecrets
+		cache = platform.getCacheStore();
 	}
 
 	public String getCurrentNumber() {
@@ -65,13 +60,13 @@ public class ZRTPCache {
 	 * @return this client's ZID.
 	 */
 	public byte[] getMyZid() {
-		ZrtpCacheEntry ce = cache.get(LOCAL_ZID_KEY);
-		if (ce != null) {
-			return ce.getData();
+		byte[] zid = cache.getLocalZid();
+		if (zid != null) {
+			return zid;
 		} else {
-			byte[] zid = new byte[12];
+			zid = new byte[12];
 			platform.getCrypto().getRandomGenerator().getBytes(zid);
-			cache.put(LOCAL_ZID_KEY, zid, null);
+			cache.setLocalZid(zid);
 			platform.getLogger().log("[ZRTP] created new ZID=", zid);
 			return zid;
 		}
@@ -89,21 +84,56 @@ public class ZRTPCache {
 		return currentTrust;
 	}
 
+	/**
+	 * @return The time of the last DH exchange with the selected remote ZID,
+	 *         0 if unknown
+	 */
+	public long getDhTime() {
+		return currentDhTime;
+	}
+
+	/**
+	 * @return The number of calls keyed in Preshared mode with the selected
+	 *         remote ZID since the last DH exchange
+	 */
+	public int getPresharedCount() {
+		return currentPresharedCount;
+	}
+
+	/**
+	 * Counts a call with the selected remote ZID, to be written with the next
+	 * update of the entry.
+	 * 
+	 * @param preshared
+	 *            true if the call was keyed in Preshared mode, false for a DH
+	 *            exchange
+	 */
+	public void countCall(boolean preshared) {
+		if (preshared) {
+			currentPresharedCount++;
+		} else {
+			currentDhTime = System.currentTimeMillis();
+			currentPresharedCount = 0;
+		}
+	}
+
+	/**
+	 * Looks up the entry of another ZID with a phone number matching the
+	 * given one, through the number index of the cache store, and removes it.
+	 * 
+	 * @return true if that entry was trusted
+	 */
 	public boolean isNewZidForTrustedUser(String aNumber) {
 		boolean wasTrusted = false;
-		for (Enumeration e = cache.keys(); e.hasMoreElements();) {
-			String key = (String) e.nextElement();
+		String key = cache.findByNumber(aNumber);
+		if (key != null) {
 			ZrtpCacheEntry ce = cache.get(key);
-			if (ce.getNumber() != null) {
-				if (platform.getAddressBook().matchingNumbers(ce.getNumber(),
-						aNumber)) {
-					byte[] data = ce.getData();
-					if (data[8] == 1) {
-						wasTrusted = true;
-					}
-					cache.remove(key);
-					break;
+			if (ce != null) {
+				byte[] data = ce.getData();
+				if (data[8] == 1) {
+					wasTrusted = true;
 				}
+				cache.remove(key);
 			}
 		}
 		return wasTrusted;
@@ -119,8 +149,7 @@ public class ZRTPCache {
 		platform.getLogger().log(
 				"ZRTPCache: selectEntry("
 						+ platform.getUtils().byteToHexString(remoteZID) + ")");
-		String zidString = new String(remoteZID);
-		if (currentZid != null && currentZid.equals(zidString)) {
+		if (currentZid != null && sameZid(currentZid, remoteZID)) {
 			return;
 		}
 		currentZid = null;
@@ -128,42 +157,25 @@ public class ZRTPCache {
 		currentRs2 = null;
 		currentTrust = false;
 		currentNumber = null;
-		ZrtpCacheEntry ce = cache.get(zidString);
-		if (ce == null) {
-			currentZid = zidString;
-			return;
-		}
-		byte[] data = ce.getData();
-		if (data.length == 40 || data.length == 72) {
-			// backward compatibility: insert trust flag = false
-			byte[] newData = new byte[1 + data.length];
-			newData[0] = 0;
-			System.arraycopy(data, 0, newData, 1, data.length);
-			data = newData;
-		}
-		if (data.length != 41 && data.length != 73) {
-			platform.getLogger()
-					.logWarning("Invalid shared secret cache entry");
-			currentZid = zidString;
+		currentDhTime = 0;
+		currentPresharedCount = 0;
+		RetainedSecrets entry = cache.getEntry(remoteZID);
+		if (entry == null) {
+			currentZid = (byte[]) remoteZID.clone();
 			return;
 		}
-		long expiry = 0;
-		for (int i = 8; i != 0;) {
-			expiry = (expiry << 8) + (data[--i] & 0xffL);
-		}
+		long expiry = entry.expiryTime;
 		long now = System.currentTimeMillis();
 		if (expiry > now) {
-			currentTrust = (data[8] != 0);
-			currentRs1 = new byte[32];
-			System.arraycopy(data, 9, currentRs1, 0, 32);
-			if (data.length == 73) {
-				currentRs2 = new byte[32];
-				System.arraycopy(data, 41, currentRs2, 0, 32);
-			}
+			currentTrust = entry.trust;
+			currentRs1 = entry.rs1;
+			currentRs2 = entry.rs2;
 		}
+		currentDhTime = entry.dhTime;
+		currentPresharedCount = entry.presharedCount;
 
-		currentNumber = ce.getNumber();
-		currentZid = zidString;
+		currentNumber = entry.number;
+		currentZid = (byte[]) remoteZID.clone();
 		// //// TEST
 		if (UPDATE_FOR_CACHE_MISMATCH_SIMULATION) {
 			if (currentRs1 != null)
@@ -212,23 +224,17 @@ public class ZRTPCache {
 							+ number + ")");
 		}
 		if (expiryTime == 0) {
-			cache.remove(currentZid);
+			cache.removeEntry(currentZid);
 			currentTrust = false;
 			currentRs1 = null;
 			currentRs2 = null;
 			currentNumber = null;
+			currentDhTime = 0;
+			currentPresharedCount = 0;
 		} else {
-			byte[] data = new byte[(rs2 == null) ? 41 : 73];
-			for (int i = 0; i != 8; ++i) {
-				data[i] = (byte) (expiryTime & 0xff);
-				expiryTime >>>= 8;
-			}
-			data[8] = (byte) (trust ? 1 : 0);
-			System.arraycopy(retainedSecret, 0, data, 9, 32);
-			if (rs2 != null) {
-				System.arraycopy(rs2, 0, data, 41, 32);
-			}
-			cache.put(currentZid, data, number);
+			cache.putEntry(currentZid, new RetainedSecrets(expiryTime, trust,
+					retainedSecret, rs2, currentDhTime, currentPresharedCount,
+					number));
 			currentTrust = trust;
 			currentRs1 = retainedSecret;
 			currentRs2 = rs2;
@@ -238,24 +244,35 @@ public class ZRTPCache {
 
 	public void updateNumber(long expiryTime, String phoneNumber) {
 		currentNumber = phoneNumber;
-		ZrtpCacheEntry ce = cache.get(currentZid);
-		cache.put(currentZid, ce.getData(), currentNumber);
+		RetainedSecrets entry = cache.getEntry(currentZid);
+		if (entry != null) {
+			cache.putEntry(currentZid, entry.withNumber(currentNumber));
+		}
 	}
 
 	/* if receive a remoteTrust == false, reset current cache status */
 	public void resetTrust(byte[] farEndZID) {
 		platform.getLogger().log("ZRTPCache: resetTrust(", farEndZID);
 		
-		String zidString = new String(farEndZID);
-		ZrtpCacheEntry ce = cache.get(zidString);
-		if (ce == null) return;
+		RetainedSecrets entry = cache.getEntry(farEndZID);
+		if (entry == null) return;
 		
-		byte[] data = ce.getData();
-		data[8] = (byte) 0;
-		cache.put(zidString, data, ce.getNumber());
+		cache.putEntry(farEndZID, entry.withTrust(false));
 		
-		if (currentZid.equals(zidString))
+		if (currentZid != null && sameZid(currentZid, farEndZID))
 			currentTrust = false; 
 	}
 
+	private static boolean sameZid(byte[] zid1, byte[] zid2) {
+		if (zid1.length != zid2.length) {
+			return false;
+		}
+		for (int i = 0; i < zid1.length; i++) {
+			if (zid1[i] != zid2[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 }
\ No newline at end of file
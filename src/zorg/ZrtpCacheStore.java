@@ -0,0 +1,949 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+
+import zorg.platform.AddressBook;
+import zorg.platform.BatchPersistentHashtable;
+import zorg.platform.PersistentHashtable;
+import zorg.platform.ZrtpLogger;
+
+/**
+ * Cache layer in front of the PersistentHashtable of a platform, shared by
+ * the ZRTPCache of all its sessions, through which every change to the cache
+ * entries goes.
+ * 
+ * Entries are held decoded, as RetainedSecrets, in a map in least recently
+ * used order bounded to a capacity, keyed by the 12 bytes of the remote ZID.
+ * A session with a ZID found there costs neither a read from the backend nor
+ * the decoding of the entry. Changes are written through to the backend,
+ * keyed by a String of one char for each byte of the ZID, which unlike the
+ * ZID decoded with the default charset, the key of earlier versions, keeps
+ * distinct ZIDs apart. An entry found only under its earlier key is moved to
+ * the new one when read. The local ZID is kept once read.
+ * 
+ * In write-behind mode, changes are instead kept pending, the last one for
+ * each ZID replacing those before, and written by a background thread in
+ * one batch, a transaction for a BatchPersistentHashtable, at most the flush
+ * delay after the first of them. Reads see the pending changes. The backend
+ * is only accessed under its own lock, and read without holding the store,
+ * so that sessions reading entries, in memory or not, don't wait for a
+ * flush. Pending changes are flushed by close, and while write-behind is
+ * on by a shutdown hook of the JVM as well, so that they are not lost when
+ * the application exits without closing the store.
+ * 
+ * It keeps an index of the phone numbers of the entries, from the key the
+ * address book gives to a number, equal for all the numbers it matches, to
+ * the ZIDs whose number has that key. A lookup by number then checks with
+ * matchingNumbers only the entries under its key, instead of reading every
+ * entry. It keeps as well an index of the expiry times of the entries, the
+ * ZIDs in buckets of a second ordered by time, from which sweep removes the
+ * expired entries, a bounded number at a time, once the whole second of
+ * their bucket has passed. Written through, the removes are made without
+ * holding the store, the entries being seen as removed meanwhile, and a
+ * change made meanwhile cancelling the remove of its ZID. Sessions ignore
+ * the retained secrets of expired entries, which would otherwise be kept
+ * forever. The indexes are built from
+ * the backend on first use and maintained on each put and remove. A
+ * background sweeper can be started with setSweeper.
+ */
+public class ZrtpCacheStore {
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** Default number of expired entries removed by a sweep */
+	public static final int DEFAULT_SWEEP_BUDGET = 100;
+
+	private static final long EXPIRY_BUCKET_LENGTH = 1000;
+
+	/*
+	 * Binary ZID, key of the decoded entries
+	 */
+	private static final class ZidKey {
+		final long high;
+		final int low;
+
+		ZidKey(byte[] zid) {
+			if (zid.length != 12) {
+				throw new IllegalArgumentException("Invalid ZID length");
+			}
+			long h = 0;
+			for (int i = 0; i < 8; i++) {
+				h = (h << 8) | (zid[i] & 0xffL);
+			}
+			high = h;
+			low = ((zid[8] & 0xff) << 24) | ((zid[9] & 0xff) << 16)
+					| ((zid[10] & 0xff) << 8) | (zid[11] & 0xff);
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof ZidKey)) {
+				return false;
+			}
+			ZidKey k = (ZidKey) o;
+			return high == k.high && low == k.low;
+		}
+
+		public int hashCode() {
+			return (int) (high ^ (high >>> 32)) * 31 + low;
+		}
+	}
+
+	/*
+	 * Decoded entry with the backend key it was read from
+	 */
+	private static final class Cached {
+		final String key;
+		final RetainedSecrets entry;
+
+		Cached(String key, RetainedSecrets entry) {
+			this.key = key;
+			this.entry = entry;
+		}
+	}
+
+	/*
+	 * Change not written to the backend yet, a put or a remove
+	 */
+	private static final class Write implements ZrtpCacheEntry {
+		final boolean remove;
+		byte[] data;
+		String number;
+
+		Write(boolean remove, byte[] data, String number) {
+			this.remove = remove;
+			this.data = data;
+			this.number = number;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+
+		public String getNumber() {
+			return number;
+		}
+
+		public void setData(byte[] data) {
+			this.data = data;
+		}
+
+		public void setNumber(String number) {
+			this.number = number;
+		}
+	}
+
+	private final PersistentHashtable backend;
+	private final AddressBook addressBook;
+	private final ZrtpLogger logger;
+	private final LinkedHashMap entries; // ZidKey -> Cached, LRU order
+	private int capacity = DEFAULT_CAPACITY;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private byte[] localZid;
+	private boolean indexed;
+	private Hashtable numberIndex; // number key -> Vector of ZIDs
+	private Hashtable numbers; // ZID -> number, for the indexed entries
+	private TreeMap expiryIndex; // bucket end -> Hashtable of ZIDs
+	private Hashtable expiries; // ZID -> expiry time, for the indexed entries
+	private Thread sweeper;
+	private long sweepInterval; // 0 if no sweeper
+	private int sweepBudget = DEFAULT_SWEEP_BUDGET;
+	private long sweeps;
+	private long reclaimed;
+
+	private final Object backendLock = new Object();
+	private final Object flushLock = new Object();
+	private long flushDelay; // 0 to write through
+	private Hashtable pending = new Hashtable(); // ZID -> Write
+	private Hashtable flushing; // ZID -> Write, being flushed
+	private final Hashtable sweeping = new Hashtable(); // ZID -> Write, being
+	                                                    // removed by a sweep
+	private long firstPendingTime;
+	private Thread flusher;
+	private Thread shutdownHook; // flushes on exit while writing behind
+	private long flushes;
+	private long flushedWrites;
+	private long coalescedWrites;
+	// number of changes, to check that none was made during a read of the
+	// backend without the store lock
+	private long changes;
+
+	public ZrtpCacheStore(PersistentHashtable backend, AddressBook addressBook,
+			ZrtpLogger logger) {
+		this.backend = backend;
+		this.addressBook = addressBook;
+		this.logger = logger;
+		entries = new LinkedHashMap(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				if (size() > capacity) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the decoded entry of a remote ZID, null if there is none. On a
+	 * miss the backend is read without holding the store, the entry being
+	 * read again if the store was changed meanwhile.
+	 */
+	public RetainedSecrets getEntry(byte[] zid) {
+		ZidKey k = new ZidKey(zid);
+		synchronized (this) {
+			Cached cached = (Cached) entries.get(k);
+			if (cached != null) {
+				hits++;
+				return cached.entry;
+			}
+		}
+		String key = backendKey(zid);
+		String legacy = new String(zid);
+		if (legacy.equals(key)) {
+			legacy = null;
+		}
+		while (true) {
+			Write legacyWrite = null;
+			long version;
+			synchronized (this) {
+				Cached cached = (Cached) entries.get(k);
+				if (cached != null) {
+					hits++;
+					return cached.entry;
+				}
+				Write w = getPending(key);
+				if (w != null) {
+					misses++;
+					return w.remove ? null : decode(k, key, w);
+				}
+				if (legacy != null) {
+					legacyWrite = getPending(legacy);
+				}
+				version = changes;
+			}
+			ZrtpCacheEntry ce;
+			ZrtpCacheEntry legacyEntry = legacyWrite == null
+					|| legacyWrite.remove ? null : legacyWrite;
+			synchronized (backendLock) {
+				ce = backend.get(key);
+				if (ce == null && legacy != null && legacyWrite == null) {
+					legacyEntry = backend.get(legacy);
+				}
+			}
+			synchronized (this) {
+				if (changes != version) {
+					continue;
+				}
+				misses++;
+				if (ce == null && legacyEntry != null) {
+					// under the key of earlier versions, moved to its key
+					ce = legacyEntry;
+					write(key, new Write(false, ce.getData(), ce.getNumber()));
+					write(legacy, new Write(true, null, null));
+				}
+				return ce == null ? null : decode(k, key, ce);
+			}
+		}
+	}
+
+	/*
+	 * Decodes an entry read from a backend key, kept in memory if valid
+	 */
+	private RetainedSecrets decode(ZidKey k, String key, ZrtpCacheEntry ce) {
+		RetainedSecrets entry = RetainedSecrets.decode(ce.getData(), ce
+				.getNumber());
+		if (entry == null) {
+			logger.logWarning("Invalid shared secret cache entry");
+			return null;
+		}
+		entries.put(k, new Cached(key, entry));
+		return entry;
+	}
+
+	/**
+	 * Adds or replaces the entry of a remote ZID, written through to the
+	 * backend or kept pending
+	 */
+	public synchronized void putEntry(byte[] zid, RetainedSecrets entry) {
+		String key = backendKey(zid);
+		write(key, new Write(false, entry.encode(), entry.number));
+		entries.put(new ZidKey(zid), new Cached(key, entry));
+	}
+
+	/**
+	 * Removes the entry of a remote ZID, from the backend too
+	 */
+	public synchronized void removeEntry(byte[] zid) {
+		entries.remove(new ZidKey(zid));
+		String key = backendKey(zid);
+		write(key, new Write(true, null, null));
+		String legacy = new String(zid);
+		if (!legacy.equals(key) && read(legacy) != null) {
+			write(legacy, new Write(true, null, null));
+		}
+	}
+
+	/**
+	 * Returns the local ZID, null if not created yet
+	 */
+	public byte[] getLocalZid() {
+		synchronized (this) {
+			if (localZid != null) {
+				return localZid;
+			}
+		}
+		ZrtpCacheEntry ce;
+		synchronized (backendLock) {
+			ce = backend.get(ZRTPCache.LOCAL_ZID_KEY);
+		}
+		synchronized (this) {
+			if (localZid == null && ce != null) {
+				localZid = ce.getData();
+			}
+			return localZid;
+		}
+	}
+
+	/**
+	 * Sets the local ZID, written through to the backend in any mode
+	 */
+	public synchronized void setLocalZid(byte[] zid) {
+		synchronized (backendLock) {
+			backend.put(ZRTPCache.LOCAL_ZID_KEY, zid, null);
+		}
+		localZid = zid;
+	}
+
+	public ZrtpCacheEntry get(String zid) {
+		return read(zid);
+	}
+
+	public synchronized void put(String zid, byte[] data, String phoneNumber) {
+		evict(zid);
+		write(zid, new Write(false, data, phoneNumber));
+	}
+
+	public synchronized void remove(String zid) {
+		evict(zid);
+		write(zid, new Write(true, null, null));
+	}
+
+	/*
+	 * Backend key of a ZID, each byte as the char of the same value
+	 */
+	static String backendKey(byte[] zid) {
+		char[] chars = new char[zid.length];
+		for (int i = 0; i < zid.length; i++) {
+			chars[i] = (char) (zid[i] & 0xff);
+		}
+		return new String(chars);
+	}
+
+	/*
+	 * Change of a backend key not written to the backend yet, null if none
+	 */
+	private Write getPending(String key) {
+		Write w = (Write) pending.get(key);
+		if (w == null && flushing != null) {
+			w = (Write) flushing.get(key);
+		}
+		if (w == null) {
+			w = (Write) sweeping.get(key);
+		}
+		return w;
+	}
+
+	/*
+	 * Entry of a backend key, pending or in the backend, read without
+	 * holding the store while the backend is busy
+	 */
+	private ZrtpCacheEntry read(String key) {
+		while (true) {
+			long version;
+			synchronized (this) {
+				Write w = getPending(key);
+				if (w != null) {
+					return w.remove ? null : w;
+				}
+				version = changes;
+			}
+			ZrtpCacheEntry ce;
+			synchronized (backendLock) {
+				ce = backend.get(key);
+			}
+			synchronized (this) {
+				if (changes == version) {
+					return ce;
+				}
+			}
+		}
+	}
+
+	private void write(String key, Write w) {
+		changes++;
+		// later than the remove of a sweep, which is cancelled
+		sweeping.remove(key);
+		if (indexed) {
+			index(key, w);
+		}
+		if (flushDelay <= 0) {
+			synchronized (backendLock) {
+				apply(key, w);
+			}
+			return;
+		}
+		if (pending.put(key, w) != null) {
+			coalescedWrites++;
+		}
+		if (pending.size() == 1) {
+			firstPendingTime = System.currentTimeMillis();
+			notifyAll();
+		}
+	}
+
+	private void apply(String key, Write w) {
+		if (w.remove) {
+			backend.remove(key);
+		} else {
+			backend.put(key, w.data, w.number);
+		}
+	}
+
+	/*
+	 * Drops the decoded entry read from a backend key, changed by key
+	 */
+	private void evict(String zid) {
+		for (Iterator i = entries.values().iterator(); i.hasNext();) {
+			if (((Cached) i.next()).key.equals(zid)) {
+				i.remove();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sets the write-behind mode
+	 * 
+	 * @param flushDelay
+	 *            the longest time a change is kept pending, in ms, 0 to write
+	 *            changes through, flushing those pending
+	 */
+	public void setWriteBehind(long flushDelay) {
+		synchronized (this) {
+			this.flushDelay = flushDelay;
+			if (flushDelay > 0 && flusher == null) {
+				flusher = new Thread(new Runnable() {
+					public void run() {
+						runFlusher();
+					}
+				}, "ZRTP-cache-flush");
+				flusher.setDaemon(true);
+				flusher.start();
+			}
+			setShutdownHook(flushDelay > 0);
+			notifyAll();
+		}
+		if (flushDelay <= 0) {
+			flush();
+		}
+	}
+
+	/*
+	 * Registers or removes the shutdown hook flushing the pending changes,
+	 * left as it is once the JVM is shutting down
+	 */
+	private void setShutdownHook(boolean on) {
+		try {
+			if (on && shutdownHook == null) {
+				Thread hook = new Thread(new Runnable() {
+					public void run() {
+						flush();
+					}
+				}, "ZRTP-cache-shutdown");
+				Runtime.getRuntime().addShutdownHook(hook);
+				shutdownHook = hook;
+			} else if (!on && shutdownHook != null) {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+				shutdownHook = null;
+			}
+		} catch (IllegalStateException e) {
+			// the JVM is shutting down, too late to change the hooks
+		}
+	}
+
+	public synchronized long getWriteBehind() {
+		return flushDelay;
+	}
+
+	/**
+	 * Writes the pending changes to the backend, in one batch, before
+	 * returning. Changes which failed to be written stay pending.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			Hashtable batch;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					return;
+				}
+				batch = pending;
+				flushing = batch;
+				pending = new Hashtable();
+			}
+			boolean written = false;
+			try {
+				synchronized (backendLock) {
+					if (backend instanceof BatchPersistentHashtable) {
+						((BatchPersistentHashtable) backend).beginBatch();
+					}
+					try {
+						for (Enumeration e = batch.keys(); e.hasMoreElements();) {
+							String key = (String) e.nextElement();
+							apply(key, (Write) batch.get(key));
+						}
+					} finally {
+						if (backend instanceof BatchPersistentHashtable) {
+							((BatchPersistentHashtable) backend).endBatch();
+						}
+					}
+				}
+				written = true;
+			} catch (RuntimeException e) {
+				logger.logWarning("Failed to write the ZRTP cache: " + e);
+			}
+			synchronized (this) {
+				flushing = null;
+				if (written) {
+					flushes++;
+					flushedWrites += batch.size();
+				} else {
+					// changes made since take precedence
+					for (Enumeration e = batch.keys(); e.hasMoreElements();) {
+						Object key = e.nextElement();
+						if (!pending.containsKey(key)) {
+							pending.put(key, batch.get(key));
+						}
+					}
+					firstPendingTime = System.currentTimeMillis();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the sweeper and the write-behind mode, flushing the pending
+	 * changes
+	 */
+	public void close() {
+		setSweeper(0, sweepBudget);
+		setWriteBehind(0);
+	}
+
+	private void runFlusher() {
+		while (true) {
+			synchronized (this) {
+				try {
+					while (true) {
+						if (flushDelay <= 0) {
+							flusher = null;
+							return;
+						}
+						if (!pending.isEmpty()) {
+							long wait = firstPendingTime + flushDelay
+									- System.currentTimeMillis();
+							if (wait <= 0) {
+								break;
+							}
+							wait(wait);
+						} else {
+							wait();
+						}
+					}
+				} catch (InterruptedException e) {
+					flusher = null;
+					return;
+				}
+			}
+			flush();
+		}
+	}
+
+	/**
+	 * @return The number of batches of pending changes written
+	 */
+	public synchronized long getFlushes() {
+		return flushes;
+	}
+
+	/**
+	 * @return The number of pending changes written
+	 */
+	public synchronized long getFlushedWrites() {
+		return flushedWrites;
+	}
+
+	/**
+	 * @return The number of changes replaced by a later change of the same ZID
+	 *         while pending
+	 */
+	public synchronized long getCoalescedWrites() {
+		return coalescedWrites;
+	}
+
+	/**
+	 * @return The number of changes pending
+	 */
+	public synchronized int getPendingWrites() {
+		return pending.size() + (flushing == null ? 0 : flushing.size());
+	}
+
+	/**
+	 * Sets the number of decoded entries kept, the least recently used ones
+	 * being dropped beyond
+	 */
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = capacity;
+		for (Iterator i = entries.values().iterator(); entries.size() > capacity;) {
+			i.next();
+			i.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return The number of entries looked up and found decoded
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of entries looked up and read from the backend
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return The hit rate of the lookups, 0 if none
+	 */
+	public synchronized double getHitRate() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	/**
+	 * @return The number of decoded entries dropped for the capacity
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Returns the ZID of an entry whose phone number matches the given
+	 * number, null if none
+	 */
+	public synchronized String findByNumber(String phoneNumber) {
+		if (phoneNumber == null) {
+			return null;
+		}
+		if (!indexed) {
+			buildIndex();
+		}
+		Vector zids = (Vector) numberIndex.get(addressBook
+				.getNumberKey(phoneNumber));
+		if (zids != null) {
+			for (int i = 0; i < zids.size(); i++) {
+				String zid = (String) zids.elementAt(i);
+				if (addressBook.matchingNumbers((String) numbers.get(zid),
+						phoneNumber)) {
+					return zid;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes expired entries, in order of expiry, at most a number of them
+	 * 
+	 * @param budget
+	 *            the largest number of entries removed
+	 * @return The number of entries removed
+	 */
+	public int sweep(int budget) {
+		Hashtable removed = new Hashtable();
+		synchronized (this) {
+			if (!indexed) {
+				buildIndex();
+			}
+			long now = System.currentTimeMillis();
+			Vector expired = new Vector();
+			while (removed.size() < budget && !expiryIndex.isEmpty()) {
+				Long bucket = (Long) expiryIndex.firstKey();
+				if (bucket.longValue() > now) {
+					break;
+				}
+				Enumeration e = ((Hashtable) expiryIndex.get(bucket)).keys();
+				while (removed.size() + expired.size() < budget
+						&& e.hasMoreElements()) {
+					expired.addElement(e.nextElement());
+				}
+				for (int i = 0; i < expired.size(); i++) {
+					String zid = (String) expired.elementAt(i);
+					index(zid, null);
+					removed.put(zid, new Write(true, null, null));
+				}
+				expired.removeAllElements();
+			}
+			if (removed.isEmpty()) {
+				return 0;
+			}
+			for (Iterator i = entries.values().iterator(); i.hasNext();) {
+				if (removed.containsKey(((Cached) i.next()).key)) {
+					i.remove();
+				}
+			}
+			sweeps++;
+			reclaimed += removed.size();
+			if (flushDelay > 0) {
+				for (Enumeration e = removed.keys(); e.hasMoreElements();) {
+					String zid = (String) e.nextElement();
+					write(zid, (Write) removed.get(zid));
+				}
+				return removed.size();
+			}
+			// seen as removed until removed from the backend
+			changes++;
+			sweeping.putAll(removed);
+		}
+		try {
+			synchronized (backendLock) {
+				boolean batch = backend instanceof BatchPersistentHashtable;
+				if (batch) {
+					((BatchPersistentHashtable) backend).beginBatch();
+				}
+				try {
+					for (Enumeration e = removed.keys(); e.hasMoreElements();) {
+						String zid = (String) e.nextElement();
+						// unless changed since, a change being taken out of
+						// sweeping before it is written to the backend
+						if (sweeping.get(zid) == removed.get(zid)) {
+							backend.remove(zid);
+						}
+					}
+				} finally {
+					if (batch) {
+						((BatchPersistentHashtable) backend).endBatch();
+					}
+				}
+			}
+		} finally {
+			synchronized (this) {
+				for (Enumeration e = removed.keys(); e.hasMoreElements();) {
+					String zid = (String) e.nextElement();
+					if (sweeping.get(zid) == removed.get(zid)) {
+						sweeping.remove(zid);
+					}
+				}
+			}
+		}
+		return removed.size();
+	}
+
+	/**
+	 * Sets the background sweeper of the expired entries
+	 * 
+	 * @param interval
+	 *            the time between sweeps, in ms, 0 to stop the sweeper
+	 * @param budget
+	 *            the largest number of entries removed by a sweep, the store
+	 *            being released between sweeps while some are left
+	 */
+	public synchronized void setSweeper(long interval, int budget) {
+		sweepInterval = interval;
+		sweepBudget = budget;
+		if (interval > 0 && sweeper == null) {
+			sweeper = new Thread(new Runnable() {
+				public void run() {
+					runSweeper();
+				}
+			}, "ZRTP-cache-sweep");
+			sweeper.setDaemon(true);
+			sweeper.start();
+		}
+		notifyAll();
+	}
+
+	private void runSweeper() {
+		long next = System.currentTimeMillis();
+		while (true) {
+			int budget;
+			synchronized (this) {
+				try {
+					while (true) {
+						if (sweepInterval <= 0) {
+							sweeper = null;
+							return;
+						}
+						long wait = next - System.currentTimeMillis();
+						if (wait <= 0) {
+							break;
+						}
+						wait(wait);
+					}
+				} catch (InterruptedException e) {
+					sweeper = null;
+					return;
+				}
+				budget = sweepBudget;
+				next = System.currentTimeMillis() + sweepInterval;
+			}
+			int count = 0;
+			int removed;
+			do {
+				removed = sweep(budget);
+				count += removed;
+				Thread.yield();
+			} while (removed == budget && budget > 0);
+			if (count > 0) {
+				logger.log("ZRTP cache: " + count + " expired entries removed");
+			}
+		}
+	}
+
+	/**
+	 * @return The number of sweeps which removed expired entries
+	 */
+	public synchronized long getSweeps() {
+		return sweeps;
+	}
+
+	/**
+	 * @return The number of expired entries removed
+	 */
+	public synchronized long getReclaimed() {
+		return reclaimed;
+	}
+
+	/*
+	 * Builds the indexes from the backend and the pending changes
+	 */
+	private void buildIndex() {
+		numberIndex = new Hashtable();
+		numbers = new Hashtable();
+		expiryIndex = new TreeMap();
+		expiries = new Hashtable();
+		synchronized (backendLock) {
+			for (Enumeration e = backend.keys(); e.hasMoreElements();) {
+				String zid = (String) e.nextElement();
+				ZrtpCacheEntry ce = backend.get(zid);
+				if (ce != null && !ZRTPCache.LOCAL_ZID_KEY.equals(zid)) {
+					index(zid, new Write(false, ce.getData(), ce.getNumber()));
+				}
+			}
+		}
+		// changes not in the backend yet
+		Hashtable[] writes = { sweeping, flushing, pending };
+		for (int i = 0; i < writes.length; i++) {
+			if (writes[i] != null) {
+				for (Enumeration e = writes[i].keys(); e.hasMoreElements();) {
+					String zid = (String) e.nextElement();
+					index(zid, (Write) writes[i].get(zid));
+				}
+			}
+		}
+		indexed = true;
+	}
+
+	/*
+	 * Indexes the number and expiry time of an entry, removed if null
+	 */
+	private void index(String zid, Write w) {
+		boolean remove = w == null || w.remove;
+		indexNumber(zid, remove ? null : w.number);
+		Long old = (Long) expiries.remove(zid);
+		if (old != null) {
+			Long bucket = bucket(old.longValue());
+			Hashtable zids = (Hashtable) expiryIndex.get(bucket);
+			zids.remove(zid);
+			if (zids.isEmpty()) {
+				expiryIndex.remove(bucket);
+			}
+		}
+		RetainedSecrets entry = remove || w.data == null ? null
+				: RetainedSecrets.decode(w.data, null);
+		if (entry != null && entry.expiryTime != Long.MAX_VALUE) {
+			Long expiry = Long.valueOf(entry.expiryTime);
+			expiries.put(zid, expiry);
+			Long bucket = bucket(entry.expiryTime);
+			Hashtable zids = (Hashtable) expiryIndex.get(bucket);
+			if (zids == null) {
+				zids = new Hashtable();
+				expiryIndex.put(bucket, zids);
+			}
+			zids.put(zid, expiry);
+		}
+	}
+
+	private static Long bucket(long expiryTime) {
+		long end = expiryTime - expiryTime % EXPIRY_BUCKET_LENGTH;
+		return Long.valueOf(end < expiryTime ? end + EXPIRY_BUCKET_LENGTH : end);
+	}
+
+	private void indexNumber(String zid, String phoneNumber) {
+		String old = (String) numbers.remove(zid);
+		if (old != null) {
+			Object key = addressBook.getNumberKey(old);
+			Vector zids = (Vector) numberIndex.get(key);
+			zids.removeElement(zid);
+			if (zids.isEmpty()) {
+				numberIndex.remove(key);
+			}
+		}
+		if (phoneNumber != null) {
+			numbers.put(zid, phoneNumber);
+			Object key = addressBook.getNumberKey(phoneNumber);
+			Vector zids = (Vector) numberIndex.get(key);
+			if (zids == null) {
+				zids = new Vector(1);
+				numberIndex.put(key, zids);
+			}
+			zids.addElement(zid);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg;
+
+/**
+ * Result of one step of a ZRTP session driven by the host application, see
+ * ZRTP.startSessionThreadless(). The same object is returned by every step
+ * of a session, its content is only valid until the next step.
+ */
+public class ZrtpOutput {
+
+	private byte[][] packets = new byte[4][];
+	private int packetCount;
+	private long timeout = -1;
+	private boolean completed;
+
+	/**
+	 * Returns the number of ZRTP messages to be sent
+	 */
+	public int getPacketCount() {
+		return packetCount;
+	}
+
+	/**
+	 * Returns a ZRTP message to be sent, without RTP header and CRC. The
+	 * array may be sent again by a later step and must not be modified.
+	 */
+	public byte[] getPacket(int index) {
+		if (index < 0 || index >= packetCount) {
+			throw new IndexOutOfBoundsException("No packet " + index);
+		}
+		return packets[index];
+	}
+
+	/**
+	 * Returns the time, as given by System.currentTimeMillis(), from which
+	 * ZRTP.onTimer() must be called, or -1 if no timer is running
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Returns true once the session has completed, successfully or not
+	 */
+	public boolean isCompleted() {
+		return completed;
+	}
+
+	void clear() {
+		for (int i = 0; i < packetCount; i++) {
+			packets[i] = null;
+		}
+		packetCount = 0;
+	}
+
+	void addPacket(byte[] packet) {
+		if (packetCount == packets.length) {
+			byte[][] grown = new byte[packets.length * 2][];
+			System.arraycopy(packets, 0, grown, 0, packetCount);
+			packets = grown;
+		}
+		packets[packetCount++] = packet;
+	}
+
+	void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	void setCompleted(boolean completed) {
+		this.completed = completed;
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg.platform;
+
+import java.nio.ByteBuffer;
+
+import zorg.CryptoException;
+
+/**
+ * Generic interface for an authenticated encryption (AEAD) cipher, such as
+ * AES-GCM
+ */
+public interface AEADCipher {
+
+	/**
+	 * Encrypt data in place and append the authentication tag
+	 * 
+	 * @param iv
+	 *            initialization vector (nonce)
+	 * @param data
+	 *            buffer holding associated data followed by the plain text,
+	 *            with room for the tag after them
+	 * @param offset
+	 *            start of the associated data
+	 * @param aadLength
+	 *            length of the associated data, authenticated but not
+	 *            encrypted
+	 * @param length
+	 *            length of the plain text following the associated data
+	 * @return number of bytes written, length plus the tag
+	 * @throws CryptoException
+	 */
+	int encrypt(byte[] iv, byte[] data, int offset, int aadLength, int length)
+			throws CryptoException;
+
+	/**
+	 * Check the authentication tag and decrypt data in place
+	 * 
+	 * @param iv
+	 *            initialization vector (nonce)
+	 * @param data
+	 *            buffer holding associated data followed by the cipher text
+	 *            and the tag
+	 * @param offset
+	 *            start of the associated data
+	 * @param aadLength
+	 *            length of the associated data
+	 * @param length
+	 *            length of the cipher text, tag included
+	 * @return false if the tag does not match, data is then left unchanged
+	 * @throws CryptoException
+	 */
+	boolean decrypt(byte[] iv, byte[] data, int offset, int aadLength,
+			int length) throws CryptoException;
+
+	/**
+	 * Encrypt data held in a buffer in place and append the authentication
+	 * tag, as encrypt(byte[], byte[], int, int, int). offset is an absolute
+	 * index in data, whose position and limit are not modified; the limit
+	 * must leave room for the tag.
+	 */
+	int encrypt(byte[] iv, ByteBuffer data, int offset, int aadLength,
+			int length) throws CryptoException;
+
+	/**
+	 * Check the authentication tag and decrypt data held in a buffer in
+	 * place, as decrypt(byte[], byte[], int, int, int). offset is an absolute
+	 * index in data, whose position and limit are not modified.
+	 */
+	boolean decrypt(byte[] iv, ByteBuffer data, int offset, int aadLength,
+			int length) throws CryptoException;
+}
@@ -36,4 +36,10 @@ public interface AddressBook {
 	 */
 	boolean matchingNumbers(String number1, String number2);
 
+	/**
+	 * Returns a key for indexing phone numbers, the same for all the numbers
+	 * a number matches with matchingNumbers
+	 */
+	String getNumberKey(String phoneNumber);
+
 }
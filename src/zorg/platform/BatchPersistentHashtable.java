@@ -0,0 +1,40 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2010 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg.platform;
+
+/**
+ * PersistentHashtable able to group changes, to be made persistent together
+ * at the end of the batch rather than one by one
+ */
+public interface BatchPersistentHashtable extends PersistentHashtable {
+
+	/**
+	 * Begins a batch of changes
+	 */
+	void beginBatch();
+
+	/**
+	 * Ends the batch begun by beginBatch, making its changes persistent. Must
+	 * be called once for each beginBatch, even after a failed change.
+	 */
+	void endBatch();
+}
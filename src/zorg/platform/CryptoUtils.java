@@ -98,6 +98,18 @@ public interface CryptoUtils {
 	/** create an HMAC-SHA1 initialized with the given key */
 	HMAC createHMACSHA1(byte[] hmacKey) throws CryptoException;
 
+	/**
+	 * Create an AES-GCM cipher
+	 * 
+	 * @param key
+	 *            AES key, 128 or 256 bits
+	 * @param tagBytes
+	 *            size of the authentication tag
+	 * @throws CryptoException
+	 *             if AES-GCM is not available on the platform
+	 */
+	AEADCipher createAESGCM(byte[] key, int tagBytes) throws CryptoException;
+
 	/**
 	 * Return the a Random Generator. Great care should be put in choosing the a
 	 * good source of entropy
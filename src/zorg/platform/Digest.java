@@ -21,6 +21,8 @@
  */
 package zorg.platform;
 
+import java.nio.ByteBuffer;
+
 /**
  * Generic interface over different digest algorithms
  */
@@ -41,4 +43,13 @@ public interface Digest {
 	/** update digest with data in buffer at offset for length bytes */
 	public void update(byte[] buffer, int offset, int length);
 
+	/** update digest with the remaining bytes of buffer, up to its limit */
+	public void update(ByteBuffer buffer);
+
+	/**
+	 * returns an independent digest holding the data hashed so far, or null
+	 * if the platform cannot copy the digest state
+	 */
+	public Digest copy();
+
 }
@@ -21,6 +21,8 @@
  */
 package zorg.platform;
 
+import java.nio.ByteBuffer;
+
 import zorg.CryptoException;
 
 public interface EncryptorSuite {
@@ -28,4 +30,20 @@ public interface EncryptorSuite {
 	void encrypt(byte[] aIV, byte[] buffer) throws CryptoException;
 
 	byte[] encryptIV_for_prf(byte[] IV) throws CryptoException;
+
+	/**
+	 * Encrypts (or decrypts) length bytes of buffer, starting at offset, in
+	 * place with AES in counter mode (rfc3711, 4.1.1). aIV is the initial
+	 * counter block and is not modified.
+	 */
+	void encryptCounterMode(byte[] aIV, byte[] buffer, int offset, int length)
+			throws CryptoException;
+
+	/**
+	 * Encrypts (or decrypts) length bytes of buffer, starting at offset, in
+	 * place as encryptCounterMode(byte[], byte[], int, int), for packets held
+	 * in direct buffers. The position and limit of buffer are not modified.
+	 */
+	void encryptCounterMode(byte[] aIV, ByteBuffer buffer, int offset,
+			int length) throws CryptoException;
 }
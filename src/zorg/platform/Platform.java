@@ -21,6 +21,8 @@
  */
 package zorg.platform;
 
+import zorg.ZrtpCacheStore;
+
 /**
  * Factory for platform specific implementation
  */
@@ -41,6 +43,12 @@ public interface Platform {
 	/** returns reference to persistent cache used by ZRTP */
 	PersistentHashtable getHashtable();
 
+	/**
+	 * Returns the cache layer in front of the persistent cache, the same for
+	 * all the ZRTP sessions
+	 */
+	ZrtpCacheStore getCacheStore();
+
 	/**
 	 * Returns a logger object for debugging purposes
 	 */
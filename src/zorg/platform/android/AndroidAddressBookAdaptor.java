@@ -43,4 +43,12 @@ public class AndroidAddressBookAdaptor implements AddressBook {
 		return matching;
 	}
 
+	/* (non-Javadoc)
+	 * @see zorg.platform.AddressBook#getNumberKey(java.lang.String)
+	 */
+	@Override
+	public String getNumberKey(String phoneNumber) {
+		return AndroidContact.getNumberKey(phoneNumber);
+	}
+
 }
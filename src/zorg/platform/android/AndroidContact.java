@@ -76,6 +76,21 @@ public class AndroidContact {
 		return number1.equals(number2);
 	}
 
+	/**
+	 * Key of a phone number, the same for all the numbers it matches with
+	 * {@link #matchingNumbers(String, String)}: the digits compared by the
+	 * fuzzy match, the whole number if too short for it
+	 * 
+	 * @param number
+	 * @return The key of the number
+	 */
+	public static String getNumberKey(String number) {
+		if (number.length() < AndroidContact.LENGHT_MIN) {
+			return number;
+		}
+		return number.substring(number.length() - AndroidContact.LENGHT_MIN);
+	}
+
 	public static AndroidContact normalizeCaller(String caller) {
 		AndroidContact c = null;
 		int atSign = caller.indexOf('@');
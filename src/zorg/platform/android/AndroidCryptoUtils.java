@@ -31,6 +31,7 @@ import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import zorg.CryptoException;
+import zorg.platform.AEADCipher;
 import zorg.platform.CryptoUtils;
 import zorg.platform.DiffieHellmanSuite;
 import zorg.platform.Digest;
@@ -173,6 +174,15 @@ public class AndroidCryptoUtils implements CryptoUtils {
 		}
 	}
 
+	/* (non-Javadoc)
+	 * @see zorg.platform.CryptoUtils#createAESGCM(byte[], int)
+	 */
+	@Override
+	public AEADCipher createAESGCM(byte[] key, int tagBytes)
+			throws CryptoException {
+		return new BCAESGCM(key, tagBytes);
+	}
+
 	/* (non-Javadoc)
 	 * @see zorg.platform.CryptoUtils#getRandomGenerator()
 	 */
@@ -23,6 +23,7 @@ package zorg.platform.android;
 
 import android.app.Application;
 import zorg.TestSettings;
+import zorg.ZrtpCacheStore;
 import zorg.platform.AddressBook;
 import zorg.platform.CryptoUtils;
 import zorg.platform.PersistentHashtable;
@@ -37,6 +38,7 @@ public class AndroidPlatform implements Platform {
 	private Utils utils ;
 	private ZrtpLogger logger;
 	private ZrtpCacheDB storage;
+	private ZrtpCacheStore cacheStore;
 	private CryptoUtils cryptoUtils;
 	private AddressBook addressbook;
 	private final RandomGenerator rg;
@@ -54,6 +56,7 @@ public class AndroidPlatform implements Platform {
 		utils = new AndroidUtils();
 		storage = new ZrtpCacheDB(applicationInstance, androidFactory.getLogger());
 		cryptoUtils = new AndroidCryptoUtils();
+		cacheStore = new ZrtpCacheStore(storage, addressbook, logger);
 		
 		rg 		= AndroidRandomGenerator.getInstance();
 		cryptoUtils.setRandomGenerator(rg);
@@ -90,6 +93,11 @@ public class AndroidPlatform implements Platform {
 		return storage;
 	}
 
+	@Override
+	public ZrtpCacheStore getCacheStore() {
+		return cacheStore;
+	}
+
 	@Override
 	public ZrtpLogger getLogger() {
 		return logger;
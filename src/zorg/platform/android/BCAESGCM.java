@@ -0,0 +1,128 @@
+/**
+ * ZRTP.org is a ZRTP protocol implementation  
+ * Copyright (C) 2012 - PrivateWave Italia S.p.A.
+ * 
+ * This  program  is free software:  you can  redistribute it and/or
+ * modify  it  under  the terms  of  the  GNU Affero  General Public
+ * License  as  published  by the  Free Software Foundation,  either 
+ * version 3 of the License,  or (at your option) any later version.
+ * 
+ * This program is  distributed in  the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY;  without even  the implied  warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU 
+ * Affero General Public License for more details.
+ * 
+ * You should have received a copy of the  GNU Affero General Public
+ * License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * For more information, please contact PrivateWave Italia S.p.A. at
+ * address zorg@privatewave.com or http://www.privatewave.com 
+ */
+package zorg.platform.android;
+
+import java.nio.ByteBuffer;
+
+import zorg.CryptoException;
+import zorg.bouncycastle.crypto.InvalidCipherTextException;
+import zorg.bouncycastle.crypto.engines.AESFastEngine;
+import zorg.bouncycastle.crypto.modes.GCMBlockCipher;
+import zorg.bouncycastle.crypto.params.AEADParameters;
+import zorg.bouncycastle.crypto.params.KeyParameter;
+import zorg.platform.AEADCipher;
+
+public class BCAESGCM implements AEADCipher {
+
+	private GCMBlockCipher cipher;
+	private KeyParameter key;
+	private int tagBits;
+	private byte[] out;
+	private byte[] packet; // Used for buffers, the cipher only takes arrays
+	private byte[] aad; // Associated data, reused while its length is the same
+
+	public BCAESGCM(byte[] key, int tagBytes) {
+		cipher = new GCMBlockCipher(new AESFastEngine());
+		this.key = new KeyParameter(key);
+		tagBits = tagBytes * 8;
+	}
+
+	@Override
+	public int encrypt(byte[] iv, byte[] data, int offset, int aadLength,
+			int length) throws CryptoException {
+		try {
+			init(true, iv, data, offset, aadLength, length + tagBits / 8);
+			int len = cipher.processBytes(data, offset + aadLength, length, out, 0);
+			len += cipher.doFinal(out, len);
+			System.arraycopy(out, 0, data, offset + aadLength, len);
+			return len;
+		} catch (Exception e) {
+			throw new CryptoException(e);
+		}
+	}
+
+	@Override
+	public boolean decrypt(byte[] iv, byte[] data, int offset, int aadLength,
+			int length) throws CryptoException {
+		try {
+			init(false, iv, data, offset, aadLength, length);
+			int len = cipher.processBytes(data, offset + aadLength, length, out, 0);
+			len += cipher.doFinal(out, len);
+			System.arraycopy(out, 0, data, offset + aadLength, len);
+			return true;
+		} catch (InvalidCipherTextException e) {
+			return false;
+		} catch (Exception e) {
+			throw new CryptoException(e);
+		}
+	}
+
+	@Override
+	public int encrypt(byte[] iv, ByteBuffer data, int offset, int aadLength,
+			int length) throws CryptoException {
+		copyIn(data, offset, aadLength + length, tagBits / 8);
+		int len = encrypt(iv, packet, 0, aadLength, length);
+		copyOut(data, offset, aadLength + len);
+		return len;
+	}
+
+	@Override
+	public boolean decrypt(byte[] iv, ByteBuffer data, int offset,
+			int aadLength, int length) throws CryptoException {
+		copyIn(data, offset, aadLength + length, 0);
+		if (!decrypt(iv, packet, 0, aadLength, length)) {
+			return false;
+		}
+		copyOut(data, offset, aadLength + length);
+		return true;
+	}
+
+	private void copyIn(ByteBuffer data, int offset, int length, int room) {
+		if (packet == null || packet.length < length + room) {
+			packet = new byte[length + room];
+		}
+		ByteBuffer input = data.duplicate();
+		input.limit(offset + length);
+		input.position(offset);
+		input.get(packet, 0, length);
+	}
+
+	private void copyOut(ByteBuffer data, int offset, int length) {
+		ByteBuffer output = data.duplicate();
+		output.limit(offset + length);
+		output.position(offset);
+		output.put(packet, 0, length);
+	}
+
+	private void init(boolean forEncryption, byte[] iv, byte[] data,
+			int offset, int aadLength, int outLength) {
+		if (out == null || out.length < outLength) {
+			out = new byte[outLength];
+		}
+		if (aad == null || aad.length != aadLength) {
+			// the cipher takes the whole array as associated data
+			aad = new byte[aadLength];
+		}
+		System.arraycopy(data, offset, aad, 0, aadLength);
+		cipher.init(forEncryption, new AEADParameters(key, tagBits, iv, aad));
+	}
+}
@@ -21,6 +21,7 @@
  */
 package zorg.platform.android;
 
+import java.nio.ByteBuffer;
 import java.security.DigestException;
 import java.security.MessageDigest;
 
@@ -66,4 +67,18 @@ public class BCDigest implements Digest {
 		digest.update(buffer, offset, length);
 	}
 
+	@Override
+	public void update(ByteBuffer buffer) {
+		digest.update(buffer);
+	}
+
+	@Override
+	public Digest copy() {
+		try {
+			return new BCDigest((MessageDigest) digest.clone());
+		} catch (CloneNotSupportedException e) {
+			return null;
+		}
+	}
+
 }
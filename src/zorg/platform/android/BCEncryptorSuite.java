@@ -21,6 +21,8 @@
  */
 package zorg.platform.android;
 
+import java.nio.ByteBuffer;
+
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -31,6 +33,7 @@ import zorg.platform.EncryptorSuite;
 public class BCEncryptorSuite implements EncryptorSuite {
 
 	private Cipher cipher;
+	private Cipher ctrCipher;
 	private IvParameterSpec iv;
 	private SecretKeySpec scs;
 
@@ -41,6 +44,7 @@ public class BCEncryptorSuite implements EncryptorSuite {
 			cipher = Cipher.getInstance("AES/CBC/NoPadding", "ZBC");
 			iv = new IvParameterSpec(initVector);
 			cipher.init(Cipher.ENCRYPT_MODE, scs, iv);
+			ctrCipher = Cipher.getInstance("AES/CTR/NoPadding", "ZBC");
 		} catch (Exception e) {
 			throw new CryptoException(e);
 		}
@@ -60,12 +64,39 @@ public class BCEncryptorSuite implements EncryptorSuite {
 	@Override
 	public byte[] encryptIV_for_prf(byte[] IV) throws CryptoException {
 		try {
-			Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding", "ZBC");
-			cipher.init(Cipher.ENCRYPT_MODE, scs, iv);
+			// doFinal() leaves the cipher as it was initialized
 			return cipher.doFinal(IV, 0, 16);
 		} catch (Exception e) {
 			throw new CryptoException(e);
 		}
 	}
 
+	@Override
+	public void encryptCounterMode(byte[] aIV, byte[] buffer, int offset,
+			int length) throws CryptoException {
+		try {
+			ctrCipher.init(Cipher.ENCRYPT_MODE, scs, new IvParameterSpec(aIV));
+			ctrCipher.doFinal(buffer, offset, length, buffer, offset);
+		} catch (Exception e) {
+			throw new CryptoException(e);
+		}
+	}
+
+	@Override
+	public void encryptCounterMode(byte[] aIV, ByteBuffer buffer, int offset,
+			int length) throws CryptoException {
+		try {
+			ctrCipher.init(Cipher.ENCRYPT_MODE, scs, new IvParameterSpec(aIV));
+			ByteBuffer input = buffer.duplicate();
+			input.limit(offset + length);
+			input.position(offset);
+			ByteBuffer output = buffer.duplicate();
+			output.limit(offset + length);
+			output.position(offset);
+			ctrCipher.doFinal(input, output);
+		} catch (Exception e) {
+			throw new CryptoException(e);
+		}
+	}
+
 }
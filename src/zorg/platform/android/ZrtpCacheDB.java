@@ -25,7 +25,7 @@ import java.util.Enumeration;
 import java.util.Vector;
 
 import zorg.ZrtpCacheEntry;
-import zorg.platform.PersistentHashtable;
+import zorg.platform.BatchPersistentHashtable;
 import zorg.platform.ZrtpLogger;
 import android.app.Application;
 import android.content.ContentValues;
@@ -35,7 +35,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 
-public class ZrtpCacheDB implements PersistentHashtable {
+public class ZrtpCacheDB implements BatchPersistentHashtable {
 	
 	private static final String DATABASE_NAME = "zrtp_cache.db";
 	private static final int 	DATABASE_VERSION = 1;
@@ -160,6 +160,20 @@ public class ZrtpCacheDB implements PersistentHashtable {
 		logger.log("[Zrtp Cache] deleted element for zid " + zidDbFormat);
 	}
 
+	@Override
+	public void beginBatch() {
+		database.beginTransaction();
+	}
+
+	@Override
+	public void endBatch() {
+		try {
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+		}
+	}
+
 	@Override
 	public void reset() {
 		this.database.delete(TABLE_NAME, null, null);
@@ -33,4 +33,8 @@ public class BBAddressBook implements AddressBook {
 	    return BBContact.matchingNumbers(number1, number2);
     }
 
+	public String getNumberKey(String number) {
+	    return BBContact.getNumberKey(number);
+    }
+
 }
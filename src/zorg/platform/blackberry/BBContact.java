@@ -86,6 +86,15 @@ public class BBContact {
     	return number1.equals(number2);
     }
 
+    /**
+     * Key of a phone number, the same for all the numbers it matches: the digits
+     * compared by the fuzzy match, the whole number if too short for it
+     */
+    public static String getNumberKey(String number) {
+    	if(number.length() < LENGHT_MIN) return number;
+    	return number.substring(number.length()-LENGHT_MIN);
+    }
+
 	private static boolean fuzzyMatch(String number1, String number2) {
 	    String suffix1 = number1.substring(number1.length()-LENGHT_MIN, number1.length());
     	String suffix2 = number2.substring(number2.length()-LENGHT_MIN, number2.length());
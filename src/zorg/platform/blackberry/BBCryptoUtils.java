@@ -137,6 +137,11 @@ public class BBCryptoUtils implements CryptoUtils {
 		}
     }
 
+	public zorg.platform.AEADCipher createAESGCM(byte[] key, int tagBytes) throws CryptoException {
+		// No GCM mode in the device crypto API
+		throw new CryptoException(new CryptoUnsupportedOperationException("AES-GCM"));
+	}
+
 	public EncryptorSuite createEncryptorSuite(byte[] key, byte[] initVector) throws CryptoException {
 	    return new BBEncryptorSuite(key, initVector);
     }
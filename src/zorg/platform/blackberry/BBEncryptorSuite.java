@@ -23,6 +23,7 @@ package zorg.platform.blackberry;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import net.rim.device.api.crypto.AESEncryptorEngine;
 import net.rim.device.api.crypto.AESKey;
@@ -38,6 +39,8 @@ public class BBEncryptorSuite implements EncryptorSuite {
     private AESEncryptorEngine engine;  // Encryptor components created at session start for tx encryption
     private InitializationVector initVector;
     private CBCEncryptorEngine cbcEngine;
+    private byte[] ctrBlock = new byte[16]; // Counter block and keystream used in counter mode
+    private byte[] ctrKeyStream = new byte[16];
 
     public BBEncryptorSuite(byte[] key, byte[] initVector) throws zorg.CryptoException {
         try {
@@ -72,4 +75,45 @@ public class BBEncryptorSuite implements EncryptorSuite {
         return baos.toByteArray();
     }
 
+	public void encryptCounterMode(byte[] aIV, byte[] buffer, int offset, int length) throws zorg.CryptoException {
+        // No counter mode engine on the device, encrypt the counter one block at a time
+        System.arraycopy(aIV, 0, ctrBlock, 0, 16);
+        try {
+        	int end = offset + length;
+        	for (int pos = offset; pos < end; ) {
+        		engine.encrypt(ctrBlock, 0, ctrKeyStream, 0);
+        		for (int x = 0; x < 16 && pos < end; ++x, ++pos) {
+        			buffer[pos] ^= ctrKeyStream[x];
+        		}
+        		for (int x = 15; x >= 0; --x) {
+        			if (++ctrBlock[x] != 0) {
+        				break;
+        			}
+        		}
+        	}
+        } catch (CryptoTokenException e) {
+        	throw new zorg.CryptoException(e);
+        }
+    }
+
+	public void encryptCounterMode(byte[] aIV, ByteBuffer buffer, int offset, int length) throws zorg.CryptoException {
+        System.arraycopy(aIV, 0, ctrBlock, 0, 16);
+        try {
+        	int end = offset + length;
+        	for (int pos = offset; pos < end; ) {
+        		engine.encrypt(ctrBlock, 0, ctrKeyStream, 0);
+        		for (int x = 0; x < 16 && pos < end; ++x, ++pos) {
+        			buffer.put(pos, (byte) (buffer.get(pos) ^ ctrKeyStream[x]));
+        		}
+        		for (int x = 15; x >= 0; --x) {
+        			if (++ctrBlock[x] != 0) {
+        				break;
+        			}
+        		}
+        	}
+        } catch (CryptoTokenException e) {
+        	throw new zorg.CryptoException(e);
+        }
+    }
+
 }
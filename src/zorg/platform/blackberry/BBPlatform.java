@@ -22,6 +22,7 @@
 package zorg.platform.blackberry;
 
 import zorg.TestSettings;
+import zorg.ZrtpCacheStore;
 import zorg.platform.AddressBook;
 import zorg.platform.CryptoUtils;
 import zorg.platform.PersistentHashtable;
@@ -40,6 +41,7 @@ public class BBPlatform implements Platform {
 	private final BBByteUtils bu;
 	private final RandomGenerator rg;
 	private PlatformFactory bbfactory;
+	private ZrtpCacheStore cacheStore;
 	
 	private boolean isDebugBuild;
 	
@@ -90,6 +92,13 @@ public class BBPlatform implements Platform {
 	    return ht;
     }
 
+	public synchronized ZrtpCacheStore getCacheStore() {
+		if (cacheStore == null) {
+			cacheStore = new ZrtpCacheStore(getHashtable(), ab, logger);
+		}
+		return cacheStore;
+	}
+
 	public RandomGenerator getRandomGenerator() {
 		return rg;
 	}
@@ -21,11 +21,14 @@
  */
 package zorg.platform.blackberry;
 
+import java.nio.ByteBuffer;
+
 import zorg.platform.Digest;
 
 public class DigestBBAdapter implements Digest {
 
 	private net.rim.device.api.crypto.Digest digest;
+	private byte[] chunk; // Used to hash buffers, the device digest has no buffer input
 	
 	public DigestBBAdapter(net.rim.device.api.crypto.Digest digest) {
 		this.digest = digest;
@@ -47,7 +50,28 @@ public class DigestBBAdapter implements Digest {
 		digest.update(buffer, offset, length);
     }
 
+	public void update(ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			digest.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+			return;
+		}
+		if (chunk == null) {
+			chunk = new byte[256];
+		}
+		while (buffer.hasRemaining()) {
+			int length = Math.min(chunk.length, buffer.remaining());
+			buffer.get(chunk, 0, length);
+			digest.update(chunk, 0, length);
+		}
+    }
+
 	public int getDigestLength() {
 	    return digest.getDigestLength();
     }
+
+	public Digest copy() {
+		// The device digests do not expose their state
+		return null;
+	}
 }
@@ -0,0 +1,115 @@
+package zorg.platform.j2se;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import zorg.CryptoException;
+import zorg.platform.AEADCipher;
+
+public class AESGCMImpl implements AEADCipher {
+
+	private static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+
+	SecretKeySpec skeySpec;
+	Cipher cipher;
+	int tagBits;
+	byte[] out; // Reused output buffer, grown as needed
+
+	public AESGCMImpl(byte[] key, int tagBytes) throws CryptoException {
+		try {
+			skeySpec = new SecretKeySpec(key, "AES");
+			cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+			tagBits = tagBytes * 8;
+		} catch (Exception ex) {
+			throw new CryptoException(ex);
+		}
+	}
+
+	public int encrypt(byte[] iv, byte[] data, int offset, int aadLength,
+			int length) throws CryptoException {
+		try {
+			// The JCE copies the input when encrypting in place, so go through
+			// our own output buffer instead
+			ensureOutput(length + tagBits / 8);
+			cipher.init(Cipher.ENCRYPT_MODE, skeySpec, new GCMParameterSpec(
+					tagBits, iv));
+			cipher.updateAAD(data, offset, aadLength);
+			int len = cipher.doFinal(data, offset + aadLength, length, out, 0);
+			System.arraycopy(out, 0, data, offset + aadLength, len);
+			return len;
+		} catch (Exception e) {
+			throw new CryptoException(e);
+		}
+	}
+
+	public boolean decrypt(byte[] iv, byte[] data, int offset, int aadLength,
+			int length) throws CryptoException {
+		try {
+			ensureOutput(length);
+			cipher.init(Cipher.DECRYPT_MODE, skeySpec, new GCMParameterSpec(
+					tagBits, iv));
+			cipher.updateAAD(data, offset, aadLength);
+			int len = cipher.doFinal(data, offset + aadLength, length, out, 0);
+			System.arraycopy(out, 0, data, offset + aadLength, len);
+			return true;
+		} catch (AEADBadTagException e) {
+			return false;
+		} catch (Exception e) {
+			throw new CryptoException(e);
+		}
+	}
+
+	public int encrypt(byte[] iv, ByteBuffer data, int offset, int aadLength,
+			int length) throws CryptoException {
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, skeySpec, new GCMParameterSpec(
+					tagBits, iv));
+			return transform(data, offset, aadLength, length, length
+					+ tagBits / 8);
+		} catch (Exception e) {
+			throw new CryptoException(e);
+		}
+	}
+
+	public boolean decrypt(byte[] iv, ByteBuffer data, int offset,
+			int aadLength, int length) throws CryptoException {
+		try {
+			cipher.init(Cipher.DECRYPT_MODE, skeySpec, new GCMParameterSpec(
+					tagBits, iv));
+			transform(data, offset, aadLength, length, length);
+			return true;
+		} catch (AEADBadTagException e) {
+			return false;
+		} catch (Exception e) {
+			throw new CryptoException(e);
+		}
+	}
+
+	/*
+	 * Runs the initialised cipher over the packet in place, the JCE reads
+	 * and writes views of the buffer so the packet is not copied out
+	 */
+	private int transform(ByteBuffer data, int offset, int aadLength,
+			int length, int outLength) throws GeneralSecurityException {
+		ByteBuffer input = data.duplicate();
+		input.limit(offset + aadLength);
+		input.position(offset);
+		cipher.updateAAD(input);
+		input.limit(offset + aadLength + length);
+		ByteBuffer output = data.duplicate();
+		output.limit(offset + aadLength + outLength);
+		output.position(offset + aadLength);
+		return cipher.doFinal(input, output);
+	}
+
+	private void ensureOutput(int length) {
+		if (out == null || out.length < length) {
+			out = new byte[length];
+		}
+	}
+}
@@ -9,6 +9,10 @@ public class AddressBookImpl implements AddressBook {
 		return number1.equals(number2);
 	}
 
+	public String getNumberKey(String phoneNumber) {
+		return phoneNumber;
+	}
+
 	public boolean isInAddressBook(String phoneNumber) {
 		// FIXME - not a real address book
 		return false; 
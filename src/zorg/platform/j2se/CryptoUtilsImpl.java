@@ -12,14 +12,13 @@ import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import zorg.CryptoException;
+import zorg.platform.AEADCipher;
 import zorg.platform.DiffieHellmanSuite;
 import zorg.platform.Digest;
 import zorg.platform.EncryptorSuite;
 import zorg.platform.HMAC;
 import zorg.platform.RandomGenerator;
 
-import com.sun.crypto.provider.AESParameters;
-
 
 public class CryptoUtilsImpl implements zorg.platform.CryptoUtils {
 	
@@ -78,6 +77,11 @@ public class CryptoUtilsImpl implements zorg.platform.CryptoUtils {
 		return new HMACSHA1Impl(hmacKey);
 	}
 
+	public AEADCipher createAESGCM(byte[] key, int tagBytes)
+			throws CryptoException {
+		return new AESGCMImpl(key, tagBytes);
+	}
+
 	public RandomGenerator getRandomGenerator() {
 		return new RandomGeneratorImpl();
 	}
@@ -3,6 +3,7 @@ package zorg.platform.j2se;
 import java.math.BigInteger;
 import java.security.AlgorithmParameterGenerator;
 import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
@@ -15,11 +16,12 @@ import java.security.spec.ECGenParameterSpec;
 import java.security.spec.ECPoint;
 import java.security.spec.ECPublicKeySpec;
 import java.security.spec.KeySpec;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.Arrays;
 
 import javax.crypto.KeyAgreement;
 import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHParameterSpec;
+import javax.crypto.spec.DHPrivateKeySpec;
 import javax.crypto.spec.DHPublicKeySpec;
 
 import zorg.KeyAgreementType;
@@ -31,11 +33,18 @@ import zorg.platform.ZrtpLogger;
 public class DiffieHellmanSuiteImpl implements DiffieHellmanSuite {
 	
 	private static final String ALGORITHM_DH = "DH";
+	private static final String ALGORITHM_EC = "EC";
 	private static final String ALGORITHM_ECDH = "ECDH";
-	private static final int DH_EXP_LENGTH = 256;   // = twice the AES key length = 2 * 128 bits
+	private static final String ALGORITHM_X25519 = "X25519";
+	// X.509 SubjectPublicKeyInfo of an X25519 key, the 32 bytes of the key
+	// follow (RFC 8410)
+	private static final byte[] X25519_KEY_PREFIX = { 0x30, 0x2a, 0x30, 0x05,
+	        0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00 };
+	private static final int X25519_KEY_LENGTH = 32;
+	static final int DH_EXP_LENGTH = 256;   // = twice the AES key length = 2 * 128 bits
 	
 	// Copied directly from RFC 3526, 2012-02-13
-	public String DH_PRIME_S = 
+	public static final String DH_PRIME_S = 
       		"FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD1" +
       		"29024E088A67CC74020BBEA63B139B22514A08798E3404DD" +
       		"EF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245" +
@@ -55,7 +64,7 @@ public class DiffieHellmanSuiteImpl implements DiffieHellmanSuite {
 
 
 	
-	private byte[] DH_PRIME = {
+	private static final byte[] DH_PRIME = {
 	        // From RFC3526, as mandated in zrtp spec, 5.1.5
 			(byte) 0x00, // as BigInteger interprets this as two's complement, we need
 			             // to insert leading 0
@@ -127,26 +136,22 @@ public class DiffieHellmanSuiteImpl implements DiffieHellmanSuite {
 	KeyPairGenerator ecKeyGen;
 	KeyPair ecKeyPair;
 	
-	KeyPairGenerator dhKeyGen;
 	KeyPair dhKeyPair;
 	
+	KeyPair xdhKeyPair;
+	
 	private KeyAgreementType dhMode;
 	private ZrtpLogger logger;
 	
 	SecureRandom sr;
 	
-	BigInteger dhP;
-	BigInteger dhG;
+	// parsed once, shared by all the suites
+	static final BigInteger dhP = new BigInteger(DH_PRIME_S, 16);
+	static final BigInteger dhG = BigInteger.valueOf(2);
 	
 	public DiffieHellmanSuiteImpl() {
 		try {
 			sr = SecureRandom.getInstance(CryptoUtilsImpl.DEFAULT_RANDOM_ALGORITHM);
-			byte[] dhGen = new byte[384];
-    		new UtilsImpl().zero(dhGen);
-    		dhGen[383] = 0x02;
-    		//dhP = new BigInteger(DH_PRIME);
-    		dhP = new BigInteger(DH_PRIME_S, 16);
-    		dhG = new BigInteger(dhGen);
 		} catch (NoSuchAlgorithmException e) {
 			e.printStackTrace();
 			throw new RuntimeException("Failed init Diffie-Hellman: " + e.getClass().getName() + ": " + e.getMessage());
@@ -164,10 +169,34 @@ public class DiffieHellmanSuiteImpl implements DiffieHellmanSuite {
 	}
 	
 	private void setupEC(int bits) throws NoSuchAlgorithmException {
-		ecKeyGen = KeyPairGenerator.getInstance(ALGORITHM_ECDH);
+		ecKeyGen = KeyPairGenerator.getInstance(ALGORITHM_EC);
 		ecKeyGen.initialize(bits);
 		ecKeyPair = ecKeyGen.generateKeyPair();
 		clearDh();
+		clearXdh();
+	}
+	
+	/*
+	 * X25519 of the JDK XDH provider (Java 11), the keys are exchanged as
+	 * the raw 32 byte u-coordinates without any BigInteger conversion
+	 */
+	private void setupX25519() throws NoSuchAlgorithmException {
+		xdhKeyPair = KeyPairGenerator.getInstance(ALGORITHM_X25519).generateKeyPair();
+		clearDh();
+		clearEcdh();
+	}
+	
+	/*
+	 * Same key pair as the DH KeyPairGenerator gives for dhP, dhG and
+	 * DH_EXP_LENGTH, a random exponent of exactly DH_EXP_LENGTH bits, but
+	 * with the public value taken from the precomputed comb of the generator
+	 */
+	private KeyPair generateDH3KKeyPair() throws GeneralSecurityException {
+		BigInteger x = new BigInteger(DH_EXP_LENGTH - 1, sr).setBit(DH_EXP_LENGTH - 1);
+		BigInteger y = FixedBaseComb.getDH3K().pow(x);
+		KeyFactory keyFac = KeyFactory.getInstance(ALGORITHM_DH);
+		return new KeyPair(keyFac.generatePublic(new DHPublicKeySpec(y, dhP, dhG)),
+				keyFac.generatePrivate(new DHPrivateKeySpec(x, dhP, dhG)));
 	}
 	
 	/**
@@ -181,12 +210,13 @@ public class DiffieHellmanSuiteImpl implements DiffieHellmanSuite {
 			dhMode = dh;
 			switch (dhMode.keyType) {
 		        case KeyAgreementType.DH_MODE_DH3K:
-		    		DHParameterSpec paramSpec = new DHParameterSpec(dhP, dhG, DH_EXP_LENGTH);
-		    		dhKeyGen = KeyPairGenerator.getInstance(ALGORITHM_DH);
-		    		dhKeyGen.initialize(paramSpec, sr);
-		    		dhKeyPair = dhKeyGen.generateKeyPair();
+		    		dhKeyPair = generateDH3KKeyPair();
 		    		clearEcdh();
+		    		clearXdh();
 		    		break;
+		        case KeyAgreementType.DH_MODE_X255:
+		        	setupX25519();
+		        	break;
 		        case KeyAgreementType.DH_MODE_EC25:
 		        	setupEC(256);
 			        break;
@@ -216,7 +246,11 @@ public class DiffieHellmanSuiteImpl implements DiffieHellmanSuite {
 
 	public void writePublicKey(byte[] data, int offset) throws ZrtpException {
 		try {
-			if (useECDH()) {
+			if (dhMode.keyType == KeyAgreementType.DH_MODE_X255) {
+				// X.509 encoding of the key ends with its 32 bytes
+				byte[] encoded = xdhKeyPair.getPublic().getEncoded();
+				System.arraycopy(encoded, encoded.length - X25519_KEY_LENGTH, data, offset, X25519_KEY_LENGTH);
+			} else if (useECDH()) {
 				// RFC 6189 s4.4.1.1:
 				// http://tools.ietf.org/html/rfc6189#section-4.4.1.1
 				// For Elliptic Curve DH, pvi is calculated and formatted according to
@@ -267,21 +301,16 @@ public class DiffieHellmanSuiteImpl implements DiffieHellmanSuite {
     		throw new RuntimeException("Can't handle a negative BigInteger in public key");
         byte[] _r = v.toByteArray();
         log("Writing key bytes: " + v.toString(16));
-        // Check if the high order byte is 0 (because the high order bit of the next byte might be 1)
-        int permittedLength = expected;
-        if(_r.length > 0 && _r[0] == 0)
-        	permittedLength++;
-        if(_r.length > permittedLength)
-        	throw new RuntimeException("Can't handle a BigInteger bigger than expected bit length for DH public key: " + _r.length + " > " + expected);
-        int _offset = expected - _r.length; // for 0 padding
-        if(_offset < 0)
-        	_offset = 0;
+        // Skip the high order byte if 0 (because the high order bit of the next byte might be 1),
+        // whatever the length of the value, so that the padding is computed on the magnitude only
+        int _start = (_r.length > 1 && _r[0] == 0) ? 1 : 0;
+        int _length = _r.length - _start;
+        if(_length > expected)
+        	throw new RuntimeException("Can't handle a BigInteger bigger than expected bit length for DH public key: " + _length + " > " + expected);
+        int _offset = expected - _length; // for 0 padding
         for(int i = 0; i < _offset; i++)
         	data[offset + i] = 0;  // put leading zeros
-        if(permittedLength == expected)
-        	System.arraycopy(_r, 0, data, offset + _offset, _r.length);
-        else
-        	System.arraycopy(_r, 1, data, offset + _offset, _r.length - 1);
+        System.arraycopy(_r, _start, data, offset + _offset, _length);
 	}
 	
 	protected BigInteger readFromBuf(byte[] data, int offset, int expected) {
@@ -302,16 +331,28 @@ public class DiffieHellmanSuiteImpl implements DiffieHellmanSuite {
 	public byte[] getDhResult(byte[] aMsg, int offset, boolean isLegacyClient) throws ZrtpException  {
 		try {
 			log("Getting DH result for mode " + dhMode);
-			if (useECDH()) {
+			if (dhMode.keyType == KeyAgreementType.DH_MODE_X255) {
+				byte[] encoded = new byte[X25519_KEY_PREFIX.length + X25519_KEY_LENGTH];
+				System.arraycopy(X25519_KEY_PREFIX, 0, encoded, 0, X25519_KEY_PREFIX.length);
+				System.arraycopy(aMsg, offset, encoded, X25519_KEY_PREFIX.length, X25519_KEY_LENGTH);
+				KeyFactory keyFac = KeyFactory.getInstance(ALGORITHM_X25519);
+				KeyAgreement agree = KeyAgreement.getInstance(ALGORITHM_X25519);
+				agree.init(xdhKeyPair.getPrivate());
+				agree.doPhase(keyFac.generatePublic(new X509EncodedKeySpec(encoded)), true);
+				// 32 bytes, the all zero result of a small order point is
+				// rejected by the provider
+				return agree.generateSecret();
+			} else if (useECDH()) {
 				
 				int expected = dhMode.pvLengthInWords * 4 / 2;
 				BigInteger x = readFromBuf(aMsg, offset, expected);
 				BigInteger y = readFromBuf(aMsg, offset+expected, expected);
 				ECPoint w = new ECPoint(x, y);
-				KeyFactory keyFac = KeyFactory.getInstance(ALGORITHM_ECDH);
-				ECPublicKeySpec ecPKSpec = new ECPublicKeySpec(w, null);
+				KeyFactory keyFac = KeyFactory.getInstance(ALGORITHM_EC);
+				ECPublicKeySpec ecPKSpec = new ECPublicKeySpec(w,
+						((ECPublicKey) ecKeyPair.getPublic()).getParams());
 				KeyAgreement agree = KeyAgreement.getInstance(ALGORITHM_ECDH);
-		    	agree.init(dhKeyPair.getPrivate());
+		    	agree.init(ecKeyPair.getPrivate());
 		    	agree.doPhase(keyFac.generatePublic(ecPKSpec), true);
 		        //as stated in Section 4.4.1.4 in ECDH P-256 mode is in fact 32 bytes
 		        //as stated in Section 4.4.1.4 in ECDH P-384 mode is in fact 48 bytes
@@ -339,10 +380,10 @@ public class DiffieHellmanSuiteImpl implements DiffieHellmanSuite {
 	public void clear() {
 	    clearEcdh();
 	    clearDh();
+	    clearXdh();
     }
 
 	private void clearDh() {
-	    dhKeyGen  = null;
 	    dhKeyPair = null;
     }
 
@@ -351,4 +392,8 @@ public class DiffieHellmanSuiteImpl implements DiffieHellmanSuite {
 	    ecKeyPair = null;
     }
 
+	private void clearXdh() {
+	    xdhKeyPair = null;
+    }
+
 }
@@ -1,5 +1,6 @@
 package zorg.platform.j2se;
 
+import java.nio.ByteBuffer;
 import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -15,6 +16,18 @@ public class DigestImpl implements Digest {
 		md = MessageDigest.getInstance(digestType.getJCEName());
 	}
 
+	private DigestImpl(MessageDigest md) {
+		this.md = md;
+	}
+
+	public Digest copy() {
+		try {
+			return new DigestImpl((MessageDigest) md.clone());
+		} catch (CloneNotSupportedException e) {
+			return null;
+		}
+	}
+
 	public int getDigestLength() {
 		return md.getDigestLength();
 	}
@@ -27,6 +40,10 @@ public class DigestImpl implements Digest {
 		md.update(buffer, offset, length);
 	}
 
+	public void update(ByteBuffer buffer) {
+		md.update(buffer);
+	}
+
 	public byte[] getDigest() {
 		return md.digest();
 	}
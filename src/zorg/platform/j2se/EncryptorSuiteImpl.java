@@ -1,5 +1,6 @@
 package zorg.platform.j2se;
 
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
@@ -17,9 +18,13 @@ import zorg.platform.EncryptorSuite;
 public class EncryptorSuiteImpl implements EncryptorSuite {
 	
 	private static final String CIPHER_ALGORITHM = "AES";
+	private static final String KEYSTREAM_ALGORITHM = "AES/ECB/NoPadding";
 
 	SecretKeySpec skeySpec;
 	Cipher cipher;
+	Cipher keystreamCipher; // Encrypts the counter blocks of counter mode
+	ByteBuffer counterBlocks; // Reused counter mode buffers, grown as needed
+	byte[] keystream;
 	SecureRandom secureRandom;
 	
 	public EncryptorSuiteImpl(byte[] key, byte[] initVector) throws zorg.CryptoException {
@@ -29,6 +34,8 @@ public class EncryptorSuiteImpl implements EncryptorSuite {
 			secureRandom = SecureRandom.getInstance(CryptoUtilsImpl.DEFAULT_RANDOM_ALGORITHM);
 			secureRandom.setSeed(initVector);
 			cipher.init(Cipher.ENCRYPT_MODE, skeySpec, secureRandom);
+			keystreamCipher = Cipher.getInstance(KEYSTREAM_ALGORITHM);
+			keystreamCipher.init(Cipher.ENCRYPT_MODE, skeySpec);
 		} catch (Exception ex) {
 			ex.printStackTrace();
 			throw new CryptoException(ex);
@@ -47,9 +54,8 @@ public class EncryptorSuiteImpl implements EncryptorSuite {
 
 	public byte[] encryptIV_for_prf(byte[] IV) throws CryptoException {
 		try {
-			Cipher _cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-			_cipher.init(Cipher.ENCRYPT_MODE, skeySpec, secureRandom);
-			byte[] _result = _cipher.doFinal(IV, 0, 16);
+			// doFinal() leaves the cipher as it was initialized
+			byte[] _result = cipher.doFinal(IV, 0, 16);
 			byte[] result = _result;
 			if(result.length > 16) {
 				result = new byte[16];
@@ -62,4 +68,58 @@ public class EncryptorSuiteImpl implements EncryptorSuite {
 		}	
 	}
 
+	public void encryptCounterMode(byte[] aIV, byte[] buffer, int offset,
+			int length) throws CryptoException {
+		makeKeystream(aIV, length);
+		for (int i = 0; i < length; i++) {
+			buffer[offset + i] ^= keystream[i];
+		}
+	}
+
+	public void encryptCounterMode(byte[] aIV, ByteBuffer buffer, int offset,
+			int length) throws CryptoException {
+		makeKeystream(aIV, length);
+		for (int i = 0; i < length; i++) {
+			int pos = offset + i;
+			buffer.put(pos, (byte) (buffer.get(pos) ^ keystream[i]));
+		}
+	}
+
+	/*
+	 * The keystream of all the blocks is made by one ECB operation over the
+	 * successive counter blocks, and XORed in place by the callers
+	 */
+	private void makeKeystream(byte[] aIV, int length) throws CryptoException {
+		int size = (length + 15) & ~15;
+		if (keystream == null || keystream.length < size) {
+			counterBlocks = ByteBuffer.allocate(size);
+			keystream = new byte[size];
+		}
+		// Successive counters are the initial block plus the block number, as
+		// a 128 bit integer
+		long high = getLong(aIV, 0);
+		long low = getLong(aIV, 8);
+		for (int pos = 0; pos < size; pos += 16) {
+			counterBlocks.putLong(pos, high);
+			counterBlocks.putLong(pos + 8, low);
+			if (++low == 0) {
+				high++;
+			}
+		}
+		try {
+			keystreamCipher.update(counterBlocks.array(), 0, size, keystream,
+					0);
+		} catch (Exception e) {
+			throw new CryptoException(e);
+		}
+	}
+
+	private static long getLong(byte[] b, int pos) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (b[pos + i] & 0xff);
+		}
+		return value;
+	}
+
 }
@@ -0,0 +1,610 @@
+package zorg.platform.j2se;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import zorg.ZrtpCacheEntry;
+import zorg.platform.BatchPersistentHashtable;
+
+/**
+ * PersistentHashtable stored in a file, so that the local ZID and the
+ * retained secrets survive a restart.
+ *
+ * The file is an append-only log: an 8 byte magic then records, each made of
+ * the length of its body (4 bytes), the CRC32 of its body (4 bytes) and the
+ * body, a type byte followed by the key for a remove, or by the key, the data
+ * and the phone number for a put. Strings are written as their length in
+ * chars (2 bytes, 0xffff for null) and chars, the data as its length (4
+ * bytes, -1 for null) and bytes, all big endian. An index in memory maps
+ * each key to the offset and length of its last put record, read through a
+ * memory mapping of the file, remapped as it grows.
+ *
+ * On open the log is replayed up to the first record which is incomplete or
+ * fails its checksum, as left by a crash in the middle of a write, and the
+ * file is truncated there. Once the records superseded by later ones make
+ * more than half of the file, it is compacted on a background thread: the
+ * live records are copied from the file, not from its mapping, to a new file
+ * with the records appended meanwhile copied at the end under the lock. The
+ * new file is then moved over the log and their directory forced to the
+ * disk. A reset or close during the copy only makes the compaction fail.
+ *
+ * Changes in a batch are forced to the disk once, at its end.
+ *
+ * Uses Java 7 APIs only, the minimum of the j2se platform.
+ */
+public class FilePersistentHashtable implements BatchPersistentHashtable {
+
+	private static final byte[] MAGIC = { 'Z', 'R', 'T', 'P', 'L', 'O', 'G', '1' };
+	private static final byte TYPE_PUT = 1;
+	private static final byte TYPE_REMOVE = 2;
+	private static final int RECORD_HEADER_LENGTH = 8;
+	private static final int MAX_RECORD_LENGTH = 1 << 20;
+	private static final int REMAP_THRESHOLD = 1 << 16;
+
+	/** Size below which the log is not compacted */
+	public static final long COMPACTION_MIN_SIZE = 1 << 20;
+
+	private final File file;
+	private final boolean sync;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer mapped;
+	private long size; // end of the last record
+	private long liveBytes; // length of the records in the index
+	private HashMap index = new HashMap(); // key -> Long entry of its put
+	private boolean compacting;
+	private int batchDepth;
+	private boolean unforced; // changes in the batch not forced yet
+	private int generation; // of the log, changed by reset
+	private int compactions;
+
+	/**
+	 * Opens the log, created if it doesn't exist, with every change forced
+	 * to the disk before returning
+	 */
+	public FilePersistentHashtable(File file) throws IOException {
+		this(file, true);
+	}
+
+	/**
+	 * Opens the log, created if it doesn't exist
+	 *
+	 * @param sync
+	 *            true to force every change to the disk before returning,
+	 *            false to leave it to the operating system: changes then
+	 *            survive a crash of the process but not of the system
+	 */
+	public FilePersistentHashtable(File file, boolean sync) throws IOException {
+		this.file = file;
+		this.sync = sync;
+		open();
+	}
+
+	private void open() throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		mapped = null;
+		try {
+			long length = channel.size();
+			if (length == 0) {
+				write(ByteBuffer.wrap(MAGIC), 0);
+				channel.force(true);
+				size = MAGIC.length;
+				return;
+			}
+			ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+			if (length < MAGIC.length || channel.read(magic, 0) != MAGIC.length
+					|| !Arrays.equals(magic.array(), MAGIC)) {
+				throw new IOException("Not a ZRTP cache file: " + file);
+			}
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("ZRTP cache file too large: " + file);
+			}
+			size = length;
+			replay();
+			if (size < length) {
+				// torn or corrupt tail from a crash
+				channel.truncate(size);
+				channel.force(true);
+				mapped = null;
+			}
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * Rebuilds the index from the log, leaving size at the end of the last
+	 * valid record
+	 */
+	private void replay() throws IOException {
+		ByteBuffer buf = map();
+		ByteBuffer body = buf.duplicate();
+		// sized for records of cache entries, against rehashing
+		index = new HashMap((int) (size / 100) + 16);
+		CRC32 crc = new CRC32();
+		byte[] bytes = new byte[256]; // body checked, grown as needed
+		int pos = MAGIC.length;
+		int end = (int) size;
+		while (pos + RECORD_HEADER_LENGTH <= end) {
+			int length = buf.getInt(pos);
+			if (length <= 0 || length > MAX_RECORD_LENGTH
+					|| length > end - pos - RECORD_HEADER_LENGTH) {
+				break;
+			}
+			if (bytes.length < length) {
+				bytes = new byte[Math.max(length, 2 * bytes.length)];
+			}
+			body.position(pos + RECORD_HEADER_LENGTH);
+			body.get(bytes, 0, length);
+			crc.reset();
+			crc.update(bytes, 0, length);
+			if ((int) crc.getValue() != buf.getInt(pos + 4)) {
+				break;
+			}
+			String key = getString(buf, pos + RECORD_HEADER_LENGTH + 1);
+			Long old;
+			if (buf.get(pos + RECORD_HEADER_LENGTH) == TYPE_PUT) {
+				old = (Long) index.put(key, Long.valueOf(entry(pos,
+						RECORD_HEADER_LENGTH + length)));
+				liveBytes += RECORD_HEADER_LENGTH + length;
+			} else {
+				old = (Long) index.remove(key);
+			}
+			if (old != null) {
+				liveBytes -= length(old.longValue());
+			}
+			pos += RECORD_HEADER_LENGTH + length;
+		}
+		size = pos;
+	}
+
+	/*
+	 * Mapping of the whole log, remapped once appends have gone past it
+	 */
+	private MappedByteBuffer map() throws IOException {
+		if (mapped == null || mapped.capacity() < size) {
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		return mapped;
+	}
+
+	/*
+	 * Record, from the mapping if it covers it, else read from the file
+	 * until enough has been appended to be worth a new mapping
+	 */
+	private ByteBuffer read(long entry) throws IOException {
+		long offset = offset(entry);
+		int length = length(entry);
+		if (mapped == null || mapped.capacity() < offset + length) {
+			if (size - (mapped == null ? 0 : mapped.capacity()) < REMAP_THRESHOLD) {
+				ByteBuffer buf = ByteBuffer.allocate(length);
+				while (buf.hasRemaining()) {
+					if (channel.read(buf, offset + buf.position()) < 0) {
+						throw new IOException("Unexpected end of file");
+					}
+				}
+				buf.clear();
+				return buf;
+			}
+			map();
+		}
+		ByteBuffer buf = mapped.duplicate();
+		buf.limit((int) offset + length);
+		buf.position((int) offset);
+		return buf.slice();
+	}
+
+	/*
+	 * Index entries pack the offset of a record and its length
+	 */
+	private static long entry(long offset, int length) {
+		return offset << 32 | length;
+	}
+
+	private static long offset(long entry) {
+		return entry >>> 32;
+	}
+
+	private static int length(long entry) {
+		return (int) entry;
+	}
+
+	private static String getString(ByteBuffer buf, int pos) {
+		int length = buf.getShort(pos) & 0xffff;
+		if (length == 0xffff) {
+			return null;
+		}
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = buf.getChar(pos + 2 + 2 * i);
+		}
+		return new String(chars);
+	}
+
+	private static int stringLength(String s) {
+		return 2 + (s == null ? 0 : 2 * s.length());
+	}
+
+	private static void putString(ByteBuffer buf, String s) {
+		if (s == null) {
+			buf.putShort((short) 0xffff);
+			return;
+		}
+		if (s.length() >= 0xffff) {
+			throw new IllegalArgumentException("String too long for the ZRTP cache");
+		}
+		buf.putShort((short) s.length());
+		for (int i = 0; i < s.length(); i++) {
+			buf.putChar(s.charAt(i));
+		}
+	}
+
+	private void write(ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			position += channel.write(buf, position);
+		}
+	}
+
+	/*
+	 * Appends a record and updates the index, the record body being written
+	 * after the header by the caller
+	 */
+	private void append(String key, ByteBuffer record, boolean put) {
+		if (channel == null) {
+			throw new IllegalStateException("ZRTP cache closed: " + file);
+		}
+		int length = record.capacity();
+		if (length - RECORD_HEADER_LENGTH > MAX_RECORD_LENGTH
+				|| size + length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("ZRTP cache record too large");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), RECORD_HEADER_LENGTH, length
+				- RECORD_HEADER_LENGTH);
+		record.putInt(0, length - RECORD_HEADER_LENGTH);
+		record.putInt(4, (int) crc.getValue());
+		record.rewind();
+		long offset = size;
+		try {
+			write(record, offset);
+			if (sync) {
+				if (batchDepth == 0) {
+					channel.force(false);
+				} else {
+					unforced = true;
+				}
+			}
+			size += length;
+		} catch (IOException e) {
+			// a partial record is overwritten by the next one, or dropped
+			// on open
+			throw new RuntimeException("Can't write ZRTP cache " + file
+					+ ": " + e);
+		}
+		Long old = put ? (Long) index.put(key, Long.valueOf(entry(offset, length)))
+				: (Long) index.remove(key);
+		if (old != null) {
+			liveBytes -= length(old.longValue());
+		}
+		if (put) {
+			liveBytes += length;
+		}
+		if (!compacting && size > COMPACTION_MIN_SIZE
+				&& size - liveBytes > size / 2) {
+			compacting = true;
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					compact();
+				}
+			}, "ZRTP-cache-compaction");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public synchronized ZrtpCacheEntry get(String zid) {
+		Long entry = (Long) index.get(zid);
+		if (entry == null) {
+			return null;
+		}
+		try {
+			ByteBuffer buf = read(entry.longValue());
+			int pos = RECORD_HEADER_LENGTH + 1;
+			pos += stringLength(getString(buf, pos));
+			int length = buf.getInt(pos);
+			pos += 4;
+			byte[] data = null;
+			if (length >= 0) {
+				data = new byte[length];
+				ByteBuffer src = buf.duplicate();
+				src.position(pos);
+				src.get(data);
+				pos += length;
+			}
+			return new ZrtpCacheEntryImpl(data, getString(buf, pos));
+		} catch (IOException e) {
+			throw new RuntimeException("Can't read ZRTP cache " + file + ": "
+					+ e);
+		}
+	}
+
+	public synchronized Enumeration keys() {
+		return Collections.enumeration(new ArrayList(index.keySet()));
+	}
+
+	public synchronized void put(String zid, byte[] data, String phoneNumber) {
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + 1
+				+ stringLength(zid) + 4 + (data == null ? 0 : data.length)
+				+ stringLength(phoneNumber));
+		record.position(RECORD_HEADER_LENGTH);
+		record.put(TYPE_PUT);
+		putString(record, zid);
+		if (data == null) {
+			record.putInt(-1);
+		} else {
+			record.putInt(data.length);
+			record.put(data);
+		}
+		putString(record, phoneNumber);
+		append(zid, record, true);
+	}
+
+	public synchronized void remove(String zid) {
+		if (!index.containsKey(zid)) {
+			return;
+		}
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + 1
+				+ stringLength(zid));
+		record.position(RECORD_HEADER_LENGTH);
+		record.put(TYPE_REMOVE);
+		putString(record, zid);
+		append(zid, record, false);
+	}
+
+	public synchronized void beginBatch() {
+		batchDepth++;
+	}
+
+	public synchronized void endBatch() {
+		if (batchDepth > 0 && --batchDepth == 0 && unforced && channel != null) {
+			unforced = false;
+			try {
+				channel.force(false);
+			} catch (IOException e) {
+				throw new RuntimeException("Can't write ZRTP cache " + file
+						+ ": " + e);
+			}
+		}
+	}
+
+	public synchronized void reset() {
+		try {
+			channel.truncate(MAGIC.length);
+			channel.force(true);
+		} catch (IOException e) {
+			throw new RuntimeException("Can't reset ZRTP cache " + file
+					+ ": " + e);
+		}
+		index.clear();
+		size = MAGIC.length;
+		liveBytes = 0;
+		mapped = null;
+		generation++;
+	}
+
+	/**
+	 * Closes the log, a compaction in progress being abandoned: returns once
+	 * it is over, so that the log can be opened again at once
+	 */
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			generation++;
+			raf.close();
+			raf = null;
+			channel = null;
+			mapped = null;
+		}
+		while (compacting) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of entries
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return The length of the log, including the records superseded by
+	 *         later ones
+	 */
+	public synchronized long getFileSize() {
+		return size;
+	}
+
+	/**
+	 * @return The number of compactions completed since the log was opened
+	 */
+	public synchronized int getCompactions() {
+		return compactions;
+	}
+
+	/*
+	 * Copies the live records to a new file, which replaces the log
+	 */
+	void compact() {
+		File tmp = new File(file.getPath() + ".compact");
+		long[] entries;
+		long end;
+		int gen;
+		FileChannel source;
+		synchronized (this) {
+			if (channel == null) {
+				compacting = false;
+				notifyAll();
+				return;
+			}
+			source = channel;
+			entries = new long[index.size()];
+			int i = 0;
+			for (Iterator it = index.values().iterator(); it.hasNext();) {
+				entries[i++] = ((Long) it.next()).longValue();
+			}
+			end = size;
+			gen = generation;
+		}
+		RandomAccessFile out = null;
+		try {
+			out = new RandomAccessFile(tmp, "rw");
+			FileChannel target = out.getChannel();
+			target.truncate(0);
+			ByteBuffer magic = ByteBuffer.wrap(MAGIC);
+			while (magic.hasRemaining()) {
+				target.write(magic, magic.position());
+			}
+			// records in log order, adjacent ones copied in one transfer
+			Arrays.sort(entries);
+			long[] newEntries = new long[entries.length];
+			long pos = MAGIC.length;
+			long runStart = 0;
+			long runLength = 0;
+			for (int i = 0; i < entries.length; i++) {
+				long offset = offset(entries[i]);
+				int length = length(entries[i]);
+				if (runLength > 0 && offset != runStart + runLength) {
+					pos += transfer(source, runStart, runLength, target, pos);
+					runLength = 0;
+				}
+				if (runLength == 0) {
+					runStart = offset;
+				}
+				newEntries[i] = entry(pos + runLength, length);
+				runLength += length;
+			}
+			pos += transfer(source, runStart, runLength, target, pos);
+			synchronized (this) {
+				if (gen != generation) {
+					// reset or closed meanwhile
+					return;
+				}
+				// the records appended since the copy began
+				long tailStart = pos;
+				target.position(pos);
+				while (pos < tailStart + size - end) {
+					pos += channel.transferTo(end + pos - tailStart, size - end
+							- (pos - tailStart), target);
+				}
+				target.force(true);
+				out.close();
+				out = null;
+				for (Iterator it = index.entrySet().iterator(); it.hasNext();) {
+					Map.Entry entry = (Map.Entry) it.next();
+					long old = ((Long) entry.getValue()).longValue();
+					long offset = offset(old);
+					entry.setValue(Long.valueOf(offset >= end ? entry(tailStart
+							+ offset - end, length(old)) : newEntries[Arrays
+							.binarySearch(entries, old)]));
+				}
+				raf.close();
+				mapped = null;
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				raf = new RandomAccessFile(file, "rw");
+				channel = raf.getChannel();
+				size = pos;
+				compactions++;
+				forceDirectory(file);
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				if (raf != null && !channel.isOpen()) {
+					// the log was closed for the move, reopen it as it was
+					try {
+						index.clear();
+						liveBytes = 0;
+						open();
+					} catch (IOException e1) {
+						channel = null;
+					}
+				}
+			}
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+			tmp.delete();
+			synchronized (this) {
+				compacting = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Copies length bytes of the log from start to position in target,
+	 * failing if the log was truncated meanwhile
+	 */
+	private static long transfer(FileChannel source, long start, long length,
+			FileChannel target, long position) throws IOException {
+		target.position(position);
+		long done = 0;
+		while (done < length) {
+			long n = source.transferTo(start + done, length - done, target);
+			if (n <= 0) {
+				throw new IOException("ZRTP cache log truncated");
+			}
+			done += n;
+		}
+		return length;
+	}
+
+	/*
+	 * Forces the directory entry of the file to the disk, so that a move
+	 * over it survives a crash of the system
+	 */
+	private static void forceDirectory(File file) {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir == null) {
+			return;
+		}
+		try {
+			FileChannel channel = FileChannel.open(dir.toPath(),
+					StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// directories can't be opened on every platform, e.g. Windows
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package zorg.platform.j2se;
+
+import java.math.BigInteger;
+
+/**
+ * Fixed-base modular exponentiation g^x mod p with the comb method of Lim
+ * and Lee. The exponent bits are laid out in H rows, each row split in V
+ * blocks; for each block position a table holds the products of g raised to
+ * the first bit of every subset of rows. An exponentiation then costs one
+ * multiplication per column of the comb and one squaring per bit of a block
+ * (39 for a 256 bit exponent), instead of the ~300 of a generic modPow.
+ *
+ * Products are computed in Montgomery form with R = 2^bitLength(p), so that
+ * the reductions are multiplications rather than divisions.
+ */
+public final class FixedBaseComb {
+
+	private static final int H = 8; // rows, 2^H entries per table
+	private static final int V = 4; // tables
+
+	private static FixedBaseComb dh3k;
+
+	private final BigInteger p;
+	private final int k; // R = 2^k
+	private final BigInteger mask; // R - 1
+	private final BigInteger pInv; // -p^-1 mod R
+	private final BigInteger one; // R mod p
+	private final int exponentBits;
+	private final int a; // bits per row
+	private final int b; // bits per block
+	private final BigInteger[][] tables;
+
+	/**
+	 * Returns the comb of DH3K, generator 2 over the RFC 3526 3072 bit prime
+	 * with 256 bit exponents, built on first use and shared by the suites
+	 */
+	public static synchronized FixedBaseComb getDH3K() {
+		if (dh3k == null) {
+			dh3k = new FixedBaseComb(DiffieHellmanSuiteImpl.dhG,
+					DiffieHellmanSuiteImpl.dhP,
+					DiffieHellmanSuiteImpl.DH_EXP_LENGTH);
+		}
+		return dh3k;
+	}
+
+	/**
+	 * @param g
+	 *            base
+	 * @param p
+	 *            odd modulus
+	 * @param exponentBits
+	 *            maximum bit length of the exponents
+	 */
+	public FixedBaseComb(BigInteger g, BigInteger p, int exponentBits) {
+		if (!p.testBit(0) || exponentBits <= 0) {
+			throw new IllegalArgumentException("Invalid comb parameters");
+		}
+		this.p = p;
+		this.exponentBits = exponentBits;
+		k = p.bitLength();
+		BigInteger r = BigInteger.ONE.shiftLeft(k);
+		mask = r.subtract(BigInteger.ONE);
+		pInv = p.negate().modInverse(r);
+		one = r.mod(p);
+		a = (exponentBits + H - 1) / H;
+		b = (a + V - 1) / V;
+		tables = new BigInteger[V][1 << H];
+		for (int j = 0; j < V; j++) {
+			BigInteger[] table = tables[j];
+			table[0] = one;
+			for (int row = 0; row < H; row++) {
+				// g^(2^(row * a + j * b)), in Montgomery form
+				BigInteger e = BigInteger.ONE.shiftLeft(row * a + j * b);
+				BigInteger base = g.modPow(e, p).shiftLeft(k).mod(p);
+				int bit = 1 << row;
+				table[bit] = base;
+				for (int s = 1; s < bit; s++) {
+					table[bit | s] = multiply(table[s], base);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns g^x mod p
+	 *
+	 * @param x
+	 *            exponent, positive and no longer than the exponent bit
+	 *            length of the comb
+	 */
+	public BigInteger pow(BigInteger x) {
+		if (x.signum() < 0 || x.bitLength() > exponentBits) {
+			throw new IllegalArgumentException("Exponent out of range");
+		}
+		BigInteger result = one;
+		for (int bit = b - 1; bit >= 0; bit--) {
+			if (bit != b - 1) {
+				result = multiply(result, result);
+			}
+			for (int j = V - 1; j >= 0; j--) {
+				int s = 0;
+				for (int row = 0; row < H; row++) {
+					if (x.testBit(row * a + j * b + bit)) {
+						s |= 1 << row;
+					}
+				}
+				if (s != 0) {
+					result = multiply(result, tables[j][s]);
+				}
+			}
+		}
+		return reduce(result);
+	}
+
+	/*
+	 * Montgomery product x * y / R mod p
+	 */
+	private BigInteger multiply(BigInteger x, BigInteger y) {
+		return reduce(x.multiply(y));
+	}
+
+	/*
+	 * Montgomery reduction t / R mod p, for t < R * p
+	 */
+	private BigInteger reduce(BigInteger t) {
+		BigInteger m = t.and(mask).multiply(pInv).and(mask);
+		BigInteger u = t.add(m.multiply(p)).shiftRight(k);
+		return u.compareTo(p) >= 0 ? u.subtract(p) : u;
+	}
+}
@@ -1,5 +1,6 @@
 package zorg.platform.j2se;
 
+import zorg.ZrtpCacheStore;
 import zorg.platform.AddressBook;
 import zorg.platform.CryptoUtils;
 import zorg.platform.PersistentHashtable;
@@ -14,6 +15,7 @@ public class PlatformImpl implements zorg.platform.Platform {
 	CryptoUtils cryptoUtils = new CryptoUtilsImpl();
 	PersistentHashtable ht = new PersistentHashtableImpl();
 	AddressBook addresses = new AddressBookImpl();
+	ZrtpCacheStore cacheStore;
 	String label;
 	
 	public PlatformImpl() {
@@ -25,6 +27,17 @@ public class PlatformImpl implements zorg.platform.Platform {
 		logger = new StandardLoggerImpl(label);
 	}
 
+	/**
+	 * @param hashtable
+	 *            store of the local ZID and of the shared secret cache, for
+	 *            example a {@link FilePersistentHashtable} to keep them
+	 *            across restarts
+	 */
+	public PlatformImpl(String label, PersistentHashtable hashtable) {
+		this(label);
+		ht = hashtable;
+	}
+
 	public ZrtpLogger getLogger() {
 		return logger;
 	}
@@ -45,6 +58,13 @@ public class PlatformImpl implements zorg.platform.Platform {
 		return ht;
 	}
 
+	public synchronized ZrtpCacheStore getCacheStore() {
+		if (cacheStore == null) {
+			cacheStore = new ZrtpCacheStore(ht, addresses, logger);
+		}
+		return cacheStore;
+	}
+
 	public boolean isVerboseLogging() {
 		// TODO Auto-generated method stub
 		return false;
@@ -41,8 +41,11 @@ public class UtilsImpl implements zorg.platform.Utils {
 	}
 
 	public int getInt(byte[] data, int begin, int end) {
-		// TODO Auto-generated method stub
-		throw new RuntimeException("not implemented");
+		// big endian, the last 4 bytes if longer
+		int n = 0;
+		for(int i = begin; i < end; i++)
+			n = (n << 8) | (data[i] & 0xff);
+		return n;
 	}
 
 	public void zero(byte[] data) {
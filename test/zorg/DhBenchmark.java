@@ -0,0 +1,195 @@
+package zorg;
+
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+import javax.crypto.spec.DHPublicKeySpec;
+
+import zorg.platform.DiffieHellmanSuite;
+import zorg.platform.Platform;
+import zorg.platform.j2se.DiffieHellmanSuiteImpl;
+import zorg.platform.j2se.FixedBaseComb;
+
+/*
+ * Micro benchmarks for the generation of DH3K key pairs
+ *
+ * Run with: java -cp classes:test-classes zorg.DhBenchmark [iterations]
+ *
+ * Compares the public value g^x mod p computed with BigInteger.modPow and
+ * with the fixed-base comb, and the key pair generation of the JCE against
+ * that of the suite, and the cost of a whole agreement, key pair, public
+ * value and shared secret, per key agreement type. Checks that the comb gives the same public values as
+ * modPow and that suites with comb generated keys agree on the shared secret
+ * with a peer using a JCE generated key. Each benchmark is run once to warm
+ * up the JIT and once more to be measured.
+ */
+public class DhBenchmark extends TestChecks {
+
+	static final BigInteger P = new BigInteger(
+			DiffieHellmanSuiteImpl.DH_PRIME_S, 16);
+	static final BigInteger G = BigInteger.valueOf(2);
+	static final int EXPONENT_BITS = 256;
+
+	final Platform platform = new zorg.platform.j2se.PlatformImpl();
+	final SecureRandom random = new SecureRandom();
+	final int iterations;
+
+	DhBenchmark(int iterations) {
+		this.iterations = iterations;
+	}
+
+	BigInteger[] exponents() {
+		BigInteger[] x = new BigInteger[iterations];
+		for (int i = 0; i < iterations; i++) {
+			x[i] = new BigInteger(EXPONENT_BITS - 1, random)
+					.setBit(EXPONENT_BITS - 1);
+		}
+		return x;
+	}
+
+	void benchmarkPow() {
+		long start = System.nanoTime();
+		FixedBaseComb comb = FixedBaseComb.getDH3K();
+		long buildTime = System.nanoTime() - start;
+		for (int pass = 0; pass < 2; pass++) {
+			BigInteger[] x = exponents();
+			BigInteger[] y = new BigInteger[iterations];
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				y[i] = G.modPow(x[i], P);
+			}
+			long modPowTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				check(comb.pow(x[i]).equals(y[i]), "comb against modPow");
+			}
+			long combTime = System.nanoTime() - start;
+			if (pass == 1) {
+				logger.info("g^x mod p: modPow " + (modPowTime / iterations / 1000)
+						+ " us, comb " + (combTime / iterations / 1000)
+						+ " us (" + (buildTime / 1000000) + " ms to build)");
+			}
+		}
+		BigInteger[] edges = { BigInteger.ZERO, BigInteger.ONE,
+				BigInteger.ONE.shiftLeft(EXPONENT_BITS).subtract(BigInteger.ONE) };
+		for (int i = 0; i < edges.length; i++) {
+			check(comb.pow(edges[i]).equals(G.modPow(edges[i], P)), "exponent "
+					+ edges[i].toString(16));
+		}
+	}
+
+	void benchmarkKeyPair() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("DH");
+		generator.initialize(new DHParameterSpec(P, G, EXPONENT_BITS), random);
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				generator.generateKeyPair();
+			}
+			long jceTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				DiffieHellmanSuite suite = platform.getCrypto().createDHSuite();
+				suite.setAlgorithm(KeyAgreementType.DH3K);
+				suite.clear();
+			}
+			long suiteTime = System.nanoTime() - start;
+			if (pass == 1) {
+				logger.info("DH3K key pair: JCE " + (jceTime / iterations / 1000)
+						+ " us, suite " + (suiteTime / iterations / 1000) + " us");
+			}
+		}
+	}
+
+	/*
+	 * Key pair, public value and shared secret of one end of a handshake,
+	 * against a peer suite of the same type
+	 */
+	void benchmarkAgreement(KeyAgreementType type) throws Exception {
+		int length = type.pvLengthInWords * 4;
+		byte[] peerMsg = new byte[12 + length];
+		byte[] msg = new byte[12 + length];
+		for (int pass = 0; pass < 2; pass++) {
+			DiffieHellmanSuite peer = platform.getCrypto().createDHSuite();
+			peer.setAlgorithm(type);
+			peer.writePublicKey(peerMsg, 12);
+			long start = System.nanoTime();
+			byte[] secret = null;
+			for (int i = 0; i < iterations; i++) {
+				DiffieHellmanSuite suite = platform.getCrypto().createDHSuite();
+				suite.setAlgorithm(type);
+				suite.writePublicKey(msg, 12);
+				secret = suite.getDhResult(peerMsg, 12, false);
+				suite.clear();
+			}
+			long time = System.nanoTime() - start;
+			byte[] peerSecret = peer.getDhResult(msg, 12, false);
+			check(Arrays.equals(secret, peerSecret), type + " shared secret");
+			peer.clear();
+			if (pass == 1) {
+				logger.info(type + " agreement: " + (time / iterations / 1000)
+						+ " us, " + length + " byte public value");
+			}
+		}
+	}
+
+	/*
+	 * A comb generated suite against a JCE generated peer: the suite must
+	 * write the public value of its exponent and both ends must compute the
+	 * same shared secret
+	 */
+	void checkInterop() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("DH");
+		generator.initialize(new DHParameterSpec(P, G, EXPONENT_BITS), random);
+		int length = KeyAgreementType.DH3K.pvLengthInWords * 4;
+		for (int i = 0; i < 10; i++) {
+			DiffieHellmanSuite suite = platform.getCrypto().createDHSuite();
+			suite.setAlgorithm(KeyAgreementType.DH3K);
+			KeyPair peer = generator.generateKeyPair();
+			BigInteger peerY = ((DHPublicKey) peer.getPublic()).getY();
+
+			byte[] msg = new byte[12 + length];
+			suite.writePublicKey(msg, 12);
+			BigInteger y = new BigInteger(1, Arrays.copyOfRange(msg, 12,
+					12 + length));
+			check(y.compareTo(BigInteger.ONE) > 0 && y.compareTo(P) < 0,
+					"public value in range");
+
+			byte[] peerMsg = new byte[12 + length];
+			byte[] peerKey = peerY.toByteArray();
+			int n = Math.min(peerKey.length, length);
+			System.arraycopy(peerKey, peerKey.length - n, peerMsg, 12 + length
+					- n, n);
+			byte[] secret = suite.getDhResult(peerMsg, 12, false);
+
+			KeyAgreement agreement = KeyAgreement.getInstance("DH");
+			agreement.init(peer.getPrivate());
+			agreement.doPhase(KeyFactory.getInstance("DH").generatePublic(
+					new DHPublicKeySpec(y, P, G)), true);
+			byte[] expected = agreement.generateSecret();
+			check(new BigInteger(1, secret).equals(new BigInteger(1, expected)),
+					"shared secret " + i);
+			suite.clear();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		DhBenchmark benchmark = new DhBenchmark(iterations);
+		benchmark.benchmarkPow();
+		benchmark.benchmarkKeyPair();
+		benchmark.checkInterop();
+		benchmark.benchmarkAgreement(KeyAgreementType.DH3K);
+		benchmark.benchmarkAgreement(KeyAgreementType.ECDH256);
+		benchmark.benchmarkAgreement(KeyAgreementType.ECDH384);
+		benchmark.benchmarkAgreement(KeyAgreementType.X25519);
+		benchmark.finish();
+	}
+}
@@ -0,0 +1,158 @@
+package zorg;
+
+/*
+ * Tests of the bounded incoming ZRTP message queue
+ *
+ * Run with: java -cp classes:test-classes zorg.IncomingMessageQueueTest [messages]
+ *
+ * Checks the overflow policies on a full queue, then floods a queue from
+ * several producer threads while the consumer thread drains it: every
+ * message must be received intact and in order per producer, or counted as
+ * dropped.
+ */
+public class IncomingMessageQueueTest extends TestChecks {
+
+	static final int PRODUCERS = 4;
+
+	static byte[] message(int producer, int seq, int len) {
+		byte[] msg = new byte[len];
+		for (int i = 0; i < len; i++) {
+			msg[i] = (byte) (producer * 31 + seq + i);
+		}
+		msg[0] = (byte) producer;
+		msg[1] = (byte) (seq >> 16);
+		msg[2] = (byte) (seq >> 8);
+		msg[3] = (byte) seq;
+		return msg;
+	}
+
+	static int seqOf(byte[] msg) {
+		return ((msg[1] & 0xff) << 16) | ((msg[2] & 0xff) << 8) | (msg[3] & 0xff);
+	}
+
+	static boolean intact(byte[] msg, int len) {
+		int producer = msg[0];
+		int seq = seqOf(msg);
+		if (len != 12 + (seq % 100)) {
+			return false;
+		}
+		for (int i = 4; i < len; i++) {
+			if (msg[i] != (byte) (producer * 31 + seq + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	void testPolicies() {
+		byte[] buffer = new byte[IncomingMessageQueue.MAX_MESSAGE_LENGTH];
+		int[] policies = { IncomingMessageQueue.OVERFLOW_DROP_OLDEST,
+				IncomingMessageQueue.OVERFLOW_DROP_NEWEST,
+				IncomingMessageQueue.OVERFLOW_REJECT };
+		for (int p = 0; p < policies.length; p++) {
+			IncomingMessageQueue queue = new IncomingMessageQueue(4,
+					policies[p]);
+			int accepted = 0;
+			for (int i = 0; i < 6; i++) {
+				byte[] msg = message(0, i, 12 + i);
+				if (queue.offer(msg, 0, msg.length)) {
+					accepted++;
+				}
+			}
+			int first = policies[p] == IncomingMessageQueue.OVERFLOW_DROP_OLDEST ? 2
+					: 0;
+			for (int i = first; i < first + 4; i++) {
+				int len = queue.poll(buffer);
+				check(len == 12 + i && seqOf(buffer) == i, "policy " + p
+						+ " message " + i);
+			}
+			check(queue.poll(buffer) == -1 && queue.isEmpty(), "policy " + p
+					+ " empty");
+			if (policies[p] == IncomingMessageQueue.OVERFLOW_REJECT) {
+				check(accepted == 4 && queue.getRejectedCount() == 2,
+						"rejected count");
+			} else {
+				check(accepted == 6 && queue.getDroppedCount() == 2,
+						"policy " + p + " dropped count");
+			}
+		}
+		IncomingMessageQueue queue = new IncomingMessageQueue();
+		byte[] big = new byte[IncomingMessageQueue.MAX_MESSAGE_LENGTH + 1];
+		check(!queue.offer(big, 0, big.length)
+				&& queue.getRejectedCount() == 1 && queue.isEmpty(),
+				"oversized message");
+	}
+
+	void testFlood(final int policy, final int messages)
+			throws InterruptedException {
+		final IncomingMessageQueue queue = new IncomingMessageQueue(16, policy);
+		Thread[] producers = new Thread[PRODUCERS];
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int producer = p;
+			producers[p] = new Thread() {
+				public void run() {
+					for (int i = 0; i < messages; i++) {
+						byte[] msg = message(producer, i, 12 + (i % 100));
+						queue.offer(msg, 0, msg.length);
+					}
+				}
+			};
+		}
+		long start = System.currentTimeMillis();
+		for (int p = 0; p < PRODUCERS; p++) {
+			producers[p].start();
+		}
+		int[] last = new int[PRODUCERS];
+		for (int p = 0; p < PRODUCERS; p++) {
+			last[p] = -1;
+		}
+		byte[] buffer = new byte[IncomingMessageQueue.MAX_MESSAGE_LENGTH];
+		long received = 0;
+		boolean ordered = true;
+		boolean corrupt = false;
+		while (true) {
+			int len = queue.poll(buffer);
+			if (len < 0) {
+				boolean alive = false;
+				for (int p = 0; p < PRODUCERS; p++) {
+					alive |= producers[p].isAlive();
+				}
+				if (!alive && queue.isEmpty()) {
+					break;
+				}
+				Thread.yield();
+				continue;
+			}
+			received++;
+			if (!intact(buffer, len)) {
+				corrupt = true;
+				continue;
+			}
+			int producer = buffer[0];
+			int seq = seqOf(buffer);
+			if (seq <= last[producer]) {
+				ordered = false;
+			}
+			last[producer] = seq;
+		}
+		long total = (long) PRODUCERS * messages;
+		check(!corrupt, "policy " + policy + " messages intact");
+		check(ordered, "policy " + policy + " messages in order");
+		check(received + queue.getDroppedCount() == total, "policy " + policy
+				+ " received " + received + " + dropped "
+				+ queue.getDroppedCount() + " != " + total);
+		logger.info("Policy " + policy + ": " + total + " messages from "
+				+ PRODUCERS + " producers in "
+				+ (System.currentTimeMillis() - start) + " ms, " + received
+				+ " received, " + queue.getDroppedCount() + " dropped");
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		IncomingMessageQueueTest test = new IncomingMessageQueueTest();
+		test.testPolicies();
+		test.testFlood(IncomingMessageQueue.OVERFLOW_DROP_OLDEST, messages);
+		test.testFlood(IncomingMessageQueue.OVERFLOW_DROP_NEWEST, messages);
+		test.finish();
+	}
+}
@@ -0,0 +1,94 @@
+package zorg;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import zorg.platform.Utils;
+import zorg.platform.j2se.DiffieHellmanSuiteImpl;
+import zorg.platform.j2se.UtilsImpl;
+
+/*
+ * Tests of the helpers of the j2se platform
+ *
+ * Run with: java -cp classes:test-classes zorg.J2sePlatformTest
+ *
+ * Checks that getInt reads big endian integers without sign extension of
+ * the bytes, as the Error code of a received Error message. Checks that DH
+ * public values are written right aligned and zero padded to the length of
+ * the prime, and read back, whatever their length and top bit, in
+ * particular one byte shorter than the prime with the top bit set, whose
+ * BigInteger encoding has a sign byte and so the length of the prime.
+ */
+public class J2sePlatformTest extends TestChecks {
+
+	/*
+	 * Access to the encoding of the public values
+	 */
+	static class DhSuite extends DiffieHellmanSuiteImpl {
+		byte[] write(BigInteger v, int length) {
+			byte[] data = new byte[length + 2];
+			data[0] = data[length + 1] = 0x55;
+			writeToBuf(data, 1, length, v);
+			return data;
+		}
+
+		BigInteger read(byte[] data, int length) {
+			return readFromBuf(data, 1, length);
+		}
+	}
+
+	void checkGetInt() {
+		Utils utils = new UtilsImpl();
+		byte[] error = { 'E', 'r', 'r', 'o', 'r', 0, 0, 0, 0x56 };
+		check(utils.getInt(error, 5, 9) == 0x56, "Error code");
+		byte[] data = { 1, (byte) 0x80, (byte) 0xff, 0x7f };
+		check(utils.getInt(data, 0, 4) == 0x0180ff7f, "bytes above 0x7f");
+		check(utils.getInt(data, 1, 3) == 0x80ff, "2 bytes");
+		check(utils.getInt(new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff,
+				(byte) 0xf0 }, 0, 4) == -16, "negative int");
+		check(utils.getInt(data, 2, 2) == 0, "no bytes");
+	}
+
+	void checkPublicValue(DhSuite dh, BigInteger v, String what) {
+		int length = 384; // DH3K
+		byte[] data = dh.write(v, length);
+		byte[] magnitude = v.toByteArray();
+		int start = magnitude[0] == 0 && magnitude.length > 1 ? 1 : 0;
+		boolean aligned = data[0] == 0x55 && data[length + 1] == 0x55;
+		for (int i = 0; i < magnitude.length - start; i++) {
+			aligned &= data[length - i] == magnitude[magnitude.length - 1 - i];
+		}
+		for (int i = 1; i <= length - (magnitude.length - start); i++) {
+			aligned &= data[i] == 0;
+		}
+		check(aligned, what + " written right aligned");
+		check(dh.read(data, length).equals(v), what + " read back");
+	}
+
+	void checkPublicValues() {
+		DhSuite dh = new DhSuite();
+		Random random = new Random(1);
+		checkPublicValue(dh, BigInteger.ONE, "1");
+		checkPublicValue(dh, BigInteger.ONE.shiftLeft(3071), "3072 bits");
+		checkPublicValue(dh, new BigInteger(3071, random).setBit(3070),
+				"3071 bits");
+		checkPublicValue(dh, new BigInteger(3064, random).setBit(3063),
+				"383 bytes, top bit set");
+		checkPublicValue(dh, new BigInteger(3063, random).setBit(3062),
+				"383 bytes, top bit clear");
+		for (int i = 0; i < 1000; i++) {
+			checkPublicValue(dh, new BigInteger(3072, random), "random " + i);
+		}
+	}
+
+	public static void main(String[] args) {
+		Logger.getLogger("").setLevel(Level.WARNING);
+		J2sePlatformTest test = new J2sePlatformTest();
+		test.logger.setLevel(Level.INFO);
+		test.checkGetInt();
+		test.checkPublicValues();
+		test.finish();
+	}
+}
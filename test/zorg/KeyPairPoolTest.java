@@ -0,0 +1,314 @@
+package zorg;
+
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import zorg.platform.CryptoUtils;
+import zorg.platform.DiffieHellmanSuite;
+import zorg.platform.Platform;
+import zorg.platform.RtpStack;
+import zorg.platform.ZrtpListener;
+import zorg.platform.j2se.CryptoUtilsImpl;
+import zorg.platform.j2se.PlatformImpl;
+
+/*
+ * Tests of the Diffie-Hellman key pair pool
+ *
+ * Run with: java -cp classes:test-classes zorg.KeyPairPoolTest [takes]
+ *
+ * Fills a DH3K pool, then takes key pairs at a steady rate as call setups
+ * would: every key pair must be handed out once only, the depth must grow
+ * with the take rate and decay once takes stop. Reports the time of a take
+ * from the pool against generating the key pair at call setup.
+ *
+ * Also checks that the pool refills again after key pair generations
+ * failed, once the retry delay elapsed or when its depth is set again.
+ * Checks that sessions have no default pool until one is set, and take
+ * their key pairs from it once set. Checks that sessions without a pool
+ * generate their key pairs on the DH executor, never on the session thread,
+ * including when the executor is full and rejects the generation at first.
+ */
+public class KeyPairPoolTest extends TestChecks {
+
+	final Platform platform = new zorg.platform.j2se.PlatformImpl();
+
+	static String publicKey(DiffieHellmanSuite suite) throws ZrtpException {
+		byte[] key = new byte[KeyAgreementType.DH3K.pvLengthInWords * 4];
+		suite.writePublicKey(key, 0);
+		return new java.math.BigInteger(1, key).toString(16);
+	}
+
+	void awaitSize(KeyPairPool pool, int size) throws InterruptedException {
+		long end = System.currentTimeMillis() + 30000;
+		while (pool.size(KeyAgreementType.DH3K) < size
+				&& System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+	}
+
+	/*
+	 * Platform whose key pair generations fail while broken is set
+	 */
+	static class FailingPlatform extends PlatformImpl {
+		volatile boolean broken = true;
+		final CryptoUtils crypto = new CryptoUtilsImpl() {
+			public DiffieHellmanSuite createDHSuite() {
+				if (broken) {
+					throw new IllegalStateException("no entropy");
+				}
+				return super.createDHSuite();
+			}
+		};
+
+		public CryptoUtils getCrypto() {
+			return crypto;
+		}
+	}
+
+	/*
+	 * Platform recording the threads creating DH suites
+	 */
+	static class RecordingPlatform extends PlatformImpl {
+		final HashSet threads = new HashSet();
+		final CryptoUtils crypto = new CryptoUtilsImpl() {
+			public DiffieHellmanSuite createDHSuite() {
+				synchronized (threads) {
+					threads.add(Thread.currentThread().getName());
+				}
+				return super.createDHSuite();
+			}
+		};
+
+		RecordingPlatform(String label) {
+			super(label);
+		}
+
+		public CryptoUtils getCrypto() {
+			return crypto;
+		}
+	}
+
+	/*
+	 * Threaded session without a key pair pool, messages delivered in memory
+	 */
+	class Endpoint implements ZrtpListener, RtpStack {
+		final RecordingPlatform platform;
+		final ZRTP zrtp;
+		Endpoint peer;
+		boolean completed;
+		boolean success;
+
+		Endpoint(String label, Executor dhExecutor) {
+			platform = new RecordingPlatform(label);
+			zrtp = new ZRTP(platform);
+			zrtp.setProtocolManager(this);
+			zrtp.setRtpStack(this);
+			zrtp.setDhExecutor(dhExecutor);
+		}
+
+		public boolean keyExchangeCompleted(byte[] txMasterKey,
+				byte[] txMasterSalt, byte[] rxMasterKey, byte[] rxMasterSalt,
+				int firstSeqNum) {
+			return true;
+		}
+
+		public void securityWarning(int securityWarningType, String warning) {
+		}
+
+		public synchronized void sessionNegotiationCompleted(boolean success,
+				String msg) {
+			this.success = success;
+			completed = true;
+			notifyAll();
+		}
+
+		synchronized boolean await() throws InterruptedException {
+			long end = System.currentTimeMillis() + 30000;
+			long now;
+			while (!completed && (now = System.currentTimeMillis()) < end) {
+				wait(end - now);
+			}
+			return success;
+		}
+
+		public void sendZrtpPacket(byte[] data) {
+			peer.zrtp.handleIncomingMessage(data, 0, data.length);
+		}
+
+		public void setMasqueradingActive() {
+		}
+
+		public void setMasqueradingDual() {
+		}
+
+		public void setNextZrtpSequenceNumber(int startSeqNum) {
+		}
+	}
+
+	/*
+	 * Occupies the thread and the queue of a DH executor of one thread and
+	 * one queued task, until the latch is counted down
+	 */
+	static void fill(Executor executor, final CountDownLatch latch) {
+		for (int i = 0; i < 2; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						latch.await();
+					} catch (InterruptedException e) {
+					}
+				}
+			});
+		}
+	}
+
+	void checkRejection() throws Exception {
+		Executor executor = ZRTP.createDhExecutor(1, 1);
+		CountDownLatch latch = new CountDownLatch(1);
+		fill(executor, latch);
+		final Thread caller = Thread.currentThread();
+		final boolean[] ranOnCaller = new boolean[1];
+		boolean rejected = false;
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					ranOnCaller[0] = Thread.currentThread() == caller;
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected = true;
+		}
+		latch.countDown();
+		check(rejected && !ranOnCaller[0],
+				"full DH executor rejects, does not run on the caller");
+	}
+
+	void checkSessionsWithoutPool(boolean full) throws Exception {
+		String what = full ? "full DH executor" : "DH executor";
+		Executor executor = ZRTP.createDhExecutor(1, 1);
+		CountDownLatch latch = new CountDownLatch(1);
+		if (full) {
+			fill(executor, latch);
+		}
+		Endpoint a = new Endpoint("keygen-a", executor);
+		Endpoint b = new Endpoint("keygen-b", executor);
+		a.peer = b;
+		b.peer = a;
+		a.zrtp.startSession();
+		b.zrtp.startSession();
+		if (full) {
+			// released once the sessions had their generations rejected
+			Thread.sleep(300);
+			latch.countDown();
+		}
+		boolean success = a.await() & b.await();
+		a.zrtp.stopSession();
+		b.zrtp.stopSession();
+		check(success, "handshake without key pair pool, " + what);
+		HashSet threads = new HashSet(a.platform.threads);
+		threads.addAll(b.platform.threads);
+		boolean onExecutor = !threads.isEmpty();
+		for (java.util.Iterator i = threads.iterator(); i.hasNext();) {
+			onExecutor &= ((String) i.next()).startsWith("ZRTP-DH-");
+		}
+		check(onExecutor, "key pairs generated on the " + what + ", "
+				+ threads);
+	}
+
+	void checkDefaultPool() throws Exception {
+		Endpoint a = new Endpoint("pool-a", ZRTP.getDefaultDhExecutor());
+		check(ZRTP.getDefaultKeyPairPool() == null && a.platform.threads
+				.isEmpty(), "no default pool nor key pair made by a session");
+		KeyPairPool pool = ZRTP.createKeyPairPool(platform);
+		ZRTP.setDefaultKeyPairPool(pool);
+		a = new Endpoint("pool-a", ZRTP.getDefaultDhExecutor());
+		Endpoint b = new Endpoint("pool-b", ZRTP.getDefaultDhExecutor());
+		ZRTP.setDefaultKeyPairPool(null);
+		a.peer = b;
+		b.peer = a;
+		a.zrtp.startSession();
+		b.zrtp.startSession();
+		boolean success = a.await() & b.await();
+		a.zrtp.stopSession();
+		b.zrtp.stopSession();
+		check(success && pool.getHits() + pool.getMisses() == 2,
+				"sessions take their key pair from the default pool set");
+	}
+
+	void checkRetry() throws Exception {
+		KeyAgreementType type = KeyAgreementType.DH3K;
+		FailingPlatform failing = new FailingPlatform();
+		KeyPairPool pool = new KeyPairPool(failing, null, 4);
+		pool.setTargetDepth(type, 2);
+		Thread.sleep(200);
+		check(pool.size(type) == 0, "no key pair while generation fails");
+		failing.broken = false;
+		pool.setTargetDepth(type, 2);
+		awaitSize(pool, 2);
+		check(pool.size(type) == 2, "refilled when the depth is set again");
+
+		failing.broken = true;
+		pool.take(type);
+		Thread.sleep(200);
+		failing.broken = false;
+		pool.take(type);
+		Thread.sleep(200);
+		check(pool.size(type) == 0, "no retry before the retry delay");
+		Thread.sleep(KeyPairPool.RETRY_DELAY);
+		pool.refill(type);
+		awaitSize(pool, 2);
+		check(pool.size(type) >= 2, "refilled after the retry delay");
+	}
+
+	void run(int takes) throws Exception {
+		KeyAgreementType type = KeyAgreementType.DH3K;
+		KeyPairPool pool = new KeyPairPool(platform, null, 16);
+		pool.setTargetDepth(type, 4);
+		awaitSize(pool, 4);
+		check(pool.size(type) == 4, "pool filled to its target depth");
+
+		HashSet keys = new HashSet();
+		long takeTime = 0;
+		int depth = 0;
+		for (int i = 0; i < takes; i++) {
+			long start = System.nanoTime();
+			DiffieHellmanSuite suite = pool.take(type);
+			takeTime += System.nanoTime() - start;
+			if (suite != null) {
+				check(keys.add(publicKey(suite)), "key pair taken twice");
+				suite.clear();
+			}
+			depth = Math.max(depth, pool.getDepth(type));
+			// sessions arriving faster than key pairs are generated
+			Thread.sleep(5);
+		}
+		check(depth > 4, "depth grows with the take rate, " + depth);
+
+		long start = System.nanoTime();
+		DiffieHellmanSuite fresh = platform.getCrypto().createDHSuite();
+		fresh.setAlgorithm(type);
+		long generateTime = System.nanoTime() - start;
+
+		Thread.sleep(2000);
+		check(pool.getDepth(type) == 4, "depth decays once takes stop, "
+				+ pool.getDepth(type));
+		logger.info(takes + " takes: " + pool.getHits() + " hits, "
+				+ pool.getMisses() + " misses, peak depth " + depth
+				+ ", take " + (takeTime / takes / 1000) + " us against "
+				+ (generateTime / 1000) + " us to generate a key pair");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int takes = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		KeyPairPoolTest test = new KeyPairPoolTest();
+		test.run(takes);
+		test.checkDefaultPool();
+		test.checkRetry();
+		test.checkRejection();
+		test.checkSessionsWithoutPool(false);
+		test.checkSessionsWithoutPool(true);
+		test.finish();
+	}
+}
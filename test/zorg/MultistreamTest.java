@@ -0,0 +1,299 @@
+package zorg;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import zorg.platform.Platform;
+import zorg.platform.ZrtpListener;
+
+/*
+ * Tests of the ZRTP Multistream mode
+ *
+ * Run with: java -cp classes:test-classes zorg.MultistreamTest [streams]
+ *
+ * Keys an audio stream with a DH exchange, then video streams in Multistream
+ * mode from the session key of the audio stream: both ends must agree on
+ * the SRTP keys, which must differ from stream to stream, with fewer
+ * messages and no DH computation. A stream whose far end doesn't offer
+ * Multistream must fall back to DH mode. Commit contention is checked by
+ * holding the Commits until both ends have sent one: a DH Commit must win
+ * over a Multistream Commit, whichever end sends it, and of two Multistream
+ * Commits the one with the larger nonce. Handshakes are run threadless,
+ * messages delivered in memory. Once the audio session releases its key,
+ * the key must be zeroed, a stream keyed from it beforehand must keep its
+ * own copy and a new stream must fall back to DH mode.
+ */
+public class MultistreamTest extends TestChecks {
+
+	class Endpoint implements ZrtpListener {
+		final Platform platform;
+		final ZRTP zrtp;
+		Endpoint peer;
+		long timeout = -1;
+		boolean completed;
+		boolean success;
+		byte[] txMasterKey;
+		byte[] rxMasterKey;
+		byte[] txMasterSalt;
+		byte[] rxMasterSalt;
+		byte[] commit;
+		boolean sentConfirm2; // initiator
+
+		Endpoint(String label) {
+			platform = new zorg.platform.j2se.PlatformImpl(label);
+			zrtp = new ZRTP(platform);
+			zrtp.setProtocolManager(this);
+		}
+
+		/*
+		 * Another stream of the same endpoint, same platform and so same ZID,
+		 * keyed from the session of the first stream if multistream
+		 */
+		Endpoint(Endpoint first, boolean multistream) {
+			platform = first.platform;
+			zrtp = new ZRTP(platform);
+			zrtp.setProtocolManager(this);
+			if (multistream) {
+				zrtp.setMultistreamSession(first.zrtp);
+			}
+		}
+
+		public boolean keyExchangeCompleted(byte[] txMasterKey,
+				byte[] txMasterSalt, byte[] rxMasterKey, byte[] rxMasterSalt,
+				int firstSeqNum) {
+			this.txMasterKey = txMasterKey;
+			this.txMasterSalt = txMasterSalt;
+			this.rxMasterKey = rxMasterKey;
+			this.rxMasterSalt = rxMasterSalt;
+			return true;
+		}
+
+		public void securityWarning(int securityWarningType, String warning) {
+		}
+
+		public void sessionNegotiationCompleted(boolean success, String msg) {
+			this.success = success;
+		}
+	}
+
+	final LinkedList deliveries = new LinkedList();
+	final LinkedList heldCommits = new LinkedList();
+	boolean contention;
+	int sent;
+
+	static boolean isMessage(byte[] packet, String type) {
+		// after the preamble and the length
+		return packet.length >= 12 && new String(packet, 4, 8).equals(type);
+	}
+
+	void handle(Endpoint endpoint, ZrtpOutput output) {
+		for (int i = 0; i < output.getPacketCount(); i++) {
+			sent++;
+			byte[] packet = output.getPacket(i);
+			endpoint.sentConfirm2 |= isMessage(packet, "Confirm2");
+			Object[] delivery = new Object[] { endpoint.peer, packet };
+			if (contention && isMessage(packet, "Commit  ")) {
+				endpoint.commit = packet;
+				heldCommits.add(delivery);
+				if (endpoint.peer.commit != null) {
+					// both Commits sent, delivered together
+					deliveries.addAll(heldCommits);
+					heldCommits.clear();
+					contention = false;
+				}
+			} else {
+				deliveries.add(delivery);
+			}
+		}
+		endpoint.timeout = output.getTimeout();
+		endpoint.completed |= output.isCompleted();
+	}
+
+	/*
+	 * Runs the handshake of a pair of endpoints, returns the number of
+	 * messages sent
+	 */
+	int handshake(Endpoint a, Endpoint b) throws InterruptedException {
+		return handshake(a, b, false);
+	}
+
+	/*
+	 * Runs the handshake of a pair of endpoints, with the Commits of both
+	 * delivered once both are sent if contention
+	 */
+	int handshake(Endpoint a, Endpoint b, boolean contention)
+			throws InterruptedException {
+		a.peer = b;
+		b.peer = a;
+		sent = 0;
+		this.contention = contention;
+		heldCommits.clear();
+		handle(a, a.zrtp.startSessionThreadless());
+		handle(b, b.zrtp.startSessionThreadless());
+		long end = System.currentTimeMillis() + 30000;
+		while (!(a.completed && b.completed)
+				&& System.currentTimeMillis() < end) {
+			while (!deliveries.isEmpty()) {
+				Object[] delivery = (Object[]) deliveries.removeFirst();
+				Endpoint endpoint = (Endpoint) delivery[0];
+				byte[] packet = (byte[]) delivery[1];
+				handle(endpoint, endpoint.zrtp.onPacket(packet, 0,
+						packet.length));
+			}
+			long now = System.currentTimeMillis();
+			if (a.timeout >= 0 && a.timeout <= now) {
+				handle(a, a.zrtp.onTimer());
+			}
+			if (b.timeout >= 0 && b.timeout <= now) {
+				handle(b, b.zrtp.onTimer());
+			}
+			if (deliveries.isEmpty()) {
+				Thread.sleep(1);
+			}
+		}
+		return sent;
+	}
+
+	void checkKeys(Endpoint a, Endpoint b, String what) {
+		check(a.success && b.success, what + " succeeded");
+		check(a.txMasterKey != null
+				&& Arrays.equals(a.txMasterKey, b.rxMasterKey)
+				&& Arrays.equals(a.rxMasterKey, b.txMasterKey)
+				&& Arrays.equals(a.txMasterSalt, b.rxMasterSalt)
+				&& Arrays.equals(a.rxMasterSalt, b.txMasterSalt), what
+				+ " keys agree");
+	}
+
+	void run(int streams) throws InterruptedException {
+		Endpoint audioA = new Endpoint("A");
+		Endpoint audioB = new Endpoint("B");
+		long start = System.nanoTime();
+		int dhMessages = handshake(audioA, audioB);
+		long dhTime = System.nanoTime() - start;
+		checkKeys(audioA, audioB, "audio");
+		check(!audioA.zrtp.isMultistream(), "audio in DH mode");
+
+		long multistreamTime = 0;
+		int multistreamMessages = 0;
+		Endpoint[] videos = new Endpoint[streams];
+		for (int i = 0; i < streams; i++) {
+			Endpoint videoA = new Endpoint(audioA, true);
+			Endpoint videoB = new Endpoint(audioB, true);
+			start = System.nanoTime();
+			multistreamMessages = handshake(videoA, videoB);
+			multistreamTime += System.nanoTime() - start;
+			checkKeys(videoA, videoB, "video " + i);
+			check(videoA.zrtp.isMultistream() && videoB.zrtp.isMultistream(),
+					"video " + i + " in Multistream mode");
+			check(videoA.zrtp.getSasString().equals(
+					audioA.zrtp.getSasString()), "video " + i
+					+ " has the SAS of audio");
+			check(!Arrays.equals(videoA.txMasterKey, audioA.txMasterKey),
+					"video " + i + " keys differ from audio");
+			for (int j = 0; j < i; j++) {
+				check(!Arrays.equals(videoA.txMasterKey, videos[j].txMasterKey),
+						"video " + i + " keys differ from video " + j);
+			}
+			videos[i] = videoA;
+		}
+
+		// far end without Multistream support
+		Endpoint fallbackA = new Endpoint(audioA, true);
+		Endpoint fallbackB = new Endpoint(audioB, false);
+		handshake(fallbackA, fallbackB);
+		checkKeys(fallbackA, fallbackB, "fallback");
+		check(!fallbackA.zrtp.isMultistream(), "fallback in DH mode");
+
+		checkContention(audioA, audioB);
+		checkRelease(audioA, audioB, videos);
+
+		logger.info("DH mode: " + (dhTime / 1000000) + " ms, " + dhMessages
+				+ " messages; Multistream mode: "
+				+ (multistreamTime / Math.max(streams, 1) / 1000000) + " ms, "
+				+ multistreamMessages + " messages");
+	}
+
+	void checkContention(Endpoint audioA, Endpoint audioB)
+			throws InterruptedException {
+		// DH mode, yet offering Multistream, from a session without a key
+		Endpoint dhA = new Endpoint(new Endpoint(audioA, false), true);
+		Endpoint multB = new Endpoint(audioB, true);
+		handshake(dhA, multB, true);
+		checkKeys(dhA, multB, "DH Commit against Multistream Commit");
+		check(dhA.commit != null && multB.commit != null,
+				"DH Commit against Multistream Commit in contention");
+		check(!dhA.zrtp.isMultistream() && !multB.zrtp.isMultistream()
+				&& dhA.sentConfirm2 && !multB.sentConfirm2,
+				"DH Commit won against Multistream Commit");
+
+		Endpoint multA = new Endpoint(audioA, true);
+		Endpoint dhB = new Endpoint(new Endpoint(audioB, false), true);
+		handshake(multA, dhB, true);
+		checkKeys(multA, dhB, "Multistream Commit against DH Commit");
+		check(!multA.zrtp.isMultistream() && !dhB.zrtp.isMultistream()
+				&& dhB.sentConfirm2 && !multA.sentConfirm2,
+				"DH Commit won against Multistream Commit, far end");
+
+		for (int i = 0; i < 4; i++) {
+			multA = new Endpoint(audioA, true);
+			multB = new Endpoint(audioB, true);
+			handshake(multA, multB, true);
+			checkKeys(multA, multB, "Multistream Commits");
+			check(multA.commit != null && multB.commit != null,
+					"Multistream Commits in contention");
+			boolean aLarger = new BigInteger(1, Arrays.copyOfRange(
+					multA.commit, 76, 92)).compareTo(new BigInteger(1, Arrays
+					.copyOfRange(multB.commit, 76, 92))) > 0;
+			check(multA.zrtp.isMultistream() && multB.zrtp.isMultistream()
+					&& multA.sentConfirm2 == aLarger
+					&& multB.sentConfirm2 == !aLarger,
+					"larger nonce won between Multistream Commits");
+		}
+	}
+
+	static byte[] sessionKey(Endpoint endpoint) {
+		try {
+			java.lang.reflect.Field field = ZRTP.class
+					.getDeclaredField("sessionKey");
+			field.setAccessible(true);
+			return (byte[]) field.get(endpoint.zrtp);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	void checkRelease(Endpoint audioA, Endpoint audioB, Endpoint[] videos)
+			throws InterruptedException {
+		byte[] key = sessionKey(audioA);
+		check(key != null, "audio session key published");
+		audioA.zrtp.releaseSessionKey();
+		audioB.zrtp.releaseSessionKey();
+		check(sessionKey(audioA) == null && Arrays.equals(key,
+				new byte[key.length]), "released session key zeroed");
+		if (videos.length > 0) {
+			byte[] videoKey = sessionKey(videos[0]);
+			check(videoKey != null && videoKey != key
+					&& !Arrays.equals(videoKey, key),
+					"video keeps its copy of the session key");
+		}
+
+		Endpoint lateA = new Endpoint(audioA, true);
+		Endpoint lateB = new Endpoint(audioB, true);
+		handshake(lateA, lateB);
+		checkKeys(lateA, lateB, "after release");
+		check(!lateA.zrtp.isMultistream() && !lateB.zrtp.isMultistream(),
+				"after release in DH mode");
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int streams = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		Logger.getLogger("").setLevel(Level.WARNING);
+		MultistreamTest test = new MultistreamTest();
+		test.logger.setLevel(Level.INFO);
+		test.run(streams);
+		test.finish();
+	}
+}
@@ -0,0 +1,106 @@
+package zorg;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import zorg.platform.j2se.FilePersistentHashtable;
+
+/*
+ * Benchmark of the file-backed PersistentHashtable of the j2se platform
+ *
+ * Run with: java -cp classes:test-classes zorg.PersistentHashtableBenchmark [entries]
+ *
+ * Measures puts of cache entries sized as those of ZRTPCache, with and
+ * without forcing each to the disk, random gets, the time to reopen the log
+ * holding all entries and that of a compaction after every entry has been
+ * overwritten.
+ */
+public class PersistentHashtableBenchmark extends TestChecks {
+
+	static final int ENTRY_LENGTH = 85;
+	static final int SYNC_PUTS = 1000;
+
+	final int entries;
+	final File file;
+	final byte[] data = new byte[ENTRY_LENGTH];
+
+	PersistentHashtableBenchmark(int entries) throws IOException {
+		this.entries = entries;
+		file = File.createTempFile("zrtpcache", ".log");
+		new Random().nextBytes(data);
+	}
+
+	/*
+	 * 12 char key, as a ZID decoded to a String by ZRTPCache
+	 */
+	static String zid(int i) {
+		return new String(new char[] { 'Z', 'I', 'D', 0, 0, 0, 0, 0,
+				(char) ((i >> 24) & 0xff), (char) ((i >> 16) & 0xff),
+				(char) ((i >> 8) & 0xff), (char) (i & 0xff) });
+	}
+
+	void run() throws IOException, InterruptedException {
+		FilePersistentHashtable ht = new FilePersistentHashtable(file, true);
+		long start = System.nanoTime();
+		for (int i = 0; i < SYNC_PUTS; i++) {
+			ht.put(zid(i), data, null);
+		}
+		long syncTime = System.nanoTime() - start;
+		ht.close();
+		file.delete();
+
+		ht = new FilePersistentHashtable(file, false);
+		start = System.nanoTime();
+		for (int i = 0; i < entries; i++) {
+			ht.put(zid(i), data, "+1555" + i);
+		}
+		long putTime = System.nanoTime() - start;
+
+		Random random = new Random(1);
+		start = System.nanoTime();
+		for (int i = 0; i < entries; i++) {
+			ZrtpCacheEntry entry = ht.get(zid(random.nextInt(entries)));
+			check(entry != null && entry.getData().length == ENTRY_LENGTH, "get");
+		}
+		long getTime = System.nanoTime() - start;
+		ht.close();
+
+		start = System.nanoTime();
+		ht = new FilePersistentHashtable(file, false);
+		long openTime = System.nanoTime() - start;
+		check(ht.size() == entries, "entries after reopen");
+		long size = ht.getFileSize();
+
+		// overwrite every entry, until the log is compacted
+		start = System.nanoTime();
+		for (int i = 0; ht.getCompactions() == 0; i++) {
+			if (i < entries) {
+				ht.put(zid(i), data, "+1555" + i);
+			} else {
+				Thread.sleep(1);
+			}
+		}
+		long compactionTime = System.nanoTime() - start;
+		check(ht.size() == entries && ht.getFileSize() < size * 3 / 2,
+				"entries after compaction");
+		ht.close();
+		file.delete();
+
+		logger.info("put forced to disk " + (syncTime / SYNC_PUTS / 1000)
+				+ " us, put " + (putTime / entries) + " ns, get "
+				+ (getTime / entries) + " ns");
+		logger.info("reopen of " + entries + " entries, "
+				+ (size / 1024 / 1024) + " MB: " + (openTime / 1000000)
+				+ " ms; overwrite and compaction: "
+				+ (compactionTime / 1000000) + " ms");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		PersistentHashtableBenchmark benchmark = new PersistentHashtableBenchmark(
+				entries);
+		benchmark.run();
+		benchmark.finish();
+	}
+}
@@ -0,0 +1,467 @@
+package zorg;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import zorg.platform.Platform;
+import zorg.platform.ZrtpListener;
+import zorg.platform.j2se.FilePersistentHashtable;
+
+/*
+ * Tests of the file-backed PersistentHashtable of the j2se platform
+ *
+ * Run with: java -cp classes:test-classes zorg.PersistentHashtableTest
+ *
+ * Checks puts, removes and resets against a reopened log, the recovery from
+ * a torn or corrupt tail, compaction while entries are written or the log is
+ * reset or closed, and a writer
+ * process killed in the middle of a run of puts: the reopened log must hold
+ * exactly the puts made before some point, none after. Then checks that two
+ * endpoints keep their ZID and retained secrets across a restart, the call
+ * after it being keyed in Preshared mode without a cache mismatch.
+ */
+public class PersistentHashtableTest extends TestChecks {
+
+	static final int CRASH_KEYS = 1000;
+
+	final File dir;
+
+	PersistentHashtableTest() throws IOException {
+		dir = File.createTempFile("zrtpcache", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	static byte[] value(int i) {
+		byte[] data = new byte[53 + i % 32];
+		for (int j = 0; j < data.length; j++) {
+			data[j] = (byte) (i + j);
+		}
+		return data;
+	}
+
+	/*
+	 * A key with chars from the whole range, as ZIDs decoded to a String
+	 */
+	static String key(int i) {
+		return "" + (char) (0xfff0 + i % 16) + (char) (i >> 16) + (char) i
+				+ "zid";
+	}
+
+	boolean holds(FilePersistentHashtable ht, String key, byte[] data,
+			String number) {
+		ZrtpCacheEntry entry = ht.get(key);
+		return entry != null && Arrays.equals(entry.getData(), data)
+				&& (number == null ? entry.getNumber() == null : number
+						.equals(entry.getNumber()));
+	}
+
+	void checkBasic() throws IOException {
+		File file = new File(dir, "basic");
+		FilePersistentHashtable ht = new FilePersistentHashtable(file);
+		check(ht.get("none") == null, "missing key");
+		for (int i = 0; i < 100; i++) {
+			ht.put(key(i), value(i), i % 2 == 0 ? null : "+1555" + i);
+		}
+		ht.put(key(7), value(1007), "+1555new");
+		ht.remove(key(8));
+		ht.remove("none");
+		ht.put("", null, "");
+		ht.close();
+
+		ht = new FilePersistentHashtable(file);
+		check(ht.size() == 100, "entries after reopen");
+		check(holds(ht, key(7), value(1007), "+1555new"), "overwritten entry");
+		check(ht.get(key(8)) == null, "removed entry");
+		check(holds(ht, "", null, ""), "empty entry");
+		for (int i = 0; i < 100; i++) {
+			if (i != 7 && i != 8) {
+				check(holds(ht, key(i), value(i), i % 2 == 0 ? null : "+1555"
+						+ i), "entry " + i + " after reopen");
+			}
+		}
+		HashSet keys = new HashSet();
+		for (Enumeration e = ht.keys(); e.hasMoreElements();) {
+			keys.add(e.nextElement());
+		}
+		check(keys.size() == 100 && keys.contains(key(99))
+				&& !keys.contains(key(8)), "keys");
+		ht.reset();
+		ht.put(key(1), value(1), null);
+		ht.close();
+
+		ht = new FilePersistentHashtable(file);
+		check(ht.size() == 1 && holds(ht, key(1), value(1), null),
+				"entries after reset");
+		ht.close();
+	}
+
+	void checkTornTail() throws IOException {
+		File file = new File(dir, "torn");
+		FilePersistentHashtable ht = new FilePersistentHashtable(file, false);
+		for (int i = 0; i < 10; i++) {
+			ht.put(key(i), value(i), null);
+		}
+		long tenRecords = ht.getFileSize();
+		ht.put(key(10), value(10), null);
+		long length = ht.getFileSize();
+		ht.close();
+		byte[] log = new byte[(int) length];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		raf.readFully(log);
+		raf.close();
+
+		// cut anywhere in the last record
+		for (long cut = tenRecords; cut < length; cut++) {
+			write(file, log, (int) cut);
+			ht = new FilePersistentHashtable(file);
+			check(ht.size() == 10 && ht.get(key(10)) == null
+					&& holds(ht, key(9), value(9), null), "cut at " + cut);
+			check(file.length() == tenRecords, "truncated at " + cut);
+			ht.close();
+		}
+
+		// a bit flipped in the last record
+		log[(int) length - 3] ^= 0x10;
+		write(file, log, log.length);
+		ht = new FilePersistentHashtable(file);
+		check(ht.size() == 10 && ht.get(key(10)) == null,
+				"corrupt last record dropped");
+		ht.put(key(11), value(11), "+1555");
+		ht.close();
+		ht = new FilePersistentHashtable(file);
+		check(ht.size() == 11 && holds(ht, key(11), value(11), "+1555"),
+				"put after recovery");
+		ht.close();
+
+		write(file, new byte[] { 'n', 'o', 't' }, 3);
+		try {
+			new FilePersistentHashtable(file);
+			check(false, "not a cache file rejected");
+		} catch (IOException e) {
+		}
+	}
+
+	static void write(File file, byte[] data, int length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		raf.write(data, 0, length);
+		raf.close();
+	}
+
+	void checkCompaction() throws IOException, InterruptedException {
+		File file = new File(dir, "compaction");
+		FilePersistentHashtable ht = new FilePersistentHashtable(file, false);
+		int keys = 500;
+		int i = 0;
+		// overwrite until compacted, and go on while it runs
+		long end = System.currentTimeMillis() + 30000;
+		while (ht.getCompactions() < 3 && System.currentTimeMillis() < end) {
+			ht.put(key(i % keys), value(i), "+1555" + i);
+			if (i % 7 == 0) {
+				ht.remove(key((i / 7) % keys));
+			}
+			i++;
+		}
+		check(ht.getCompactions() >= 3, "compacted");
+		for (int j = 0; j < 1000; j++, i++) {
+			ht.put(key(i % keys), value(i), "+1555" + i);
+		}
+		String[] numbers = new String[keys];
+		for (int k = 0; k < keys; k++) {
+			ZrtpCacheEntry entry = ht.get(key(k));
+			check(entry != null, "entry " + k + " after compaction");
+			if (entry != null) {
+				numbers[k] = entry.getNumber();
+				int last = Integer.parseInt(numbers[k].substring(5));
+				check(last % keys == k && last > i - keys - 1
+						&& Arrays.equals(entry.getData(), value(last)),
+						"last put of " + k + " after compaction");
+			}
+		}
+		check(ht.getFileSize() < 4 * FilePersistentHashtable.COMPACTION_MIN_SIZE,
+				"log size bounded by compaction");
+		ht.close();
+		check(!new File(file.getPath() + ".compact").exists(),
+				"no compaction file left");
+
+		ht = new FilePersistentHashtable(file);
+		for (int k = 0; k < keys; k++) {
+			ZrtpCacheEntry entry = ht.get(key(k));
+			check(entry != null && entry.getNumber().equals(numbers[k]),
+					"entry " + k + " after compaction and reopen");
+		}
+		ht.close();
+		logger.info("compaction: " + i + " puts, log of "
+				+ (file.length() / 1024) + " KB");
+	}
+
+	/*
+	 * Resets or closes the log while it is compacted, the compaction must be
+	 * abandoned without touching the log any more
+	 */
+	void checkCompactionReset() throws IOException, InterruptedException {
+		File file = new File(dir, "compactionreset");
+		final Throwable[] uncaught = new Throwable[1];
+		Thread.UncaughtExceptionHandler handler = Thread
+				.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler(
+				new Thread.UncaughtExceptionHandler() {
+					public void uncaughtException(Thread t, Throwable e) {
+						uncaught[0] = e;
+					}
+				});
+		FilePersistentHashtable ht = new FilePersistentHashtable(file, false);
+		int keys = 100;
+		int i = 0;
+		for (int round = 0; round < 20; round++) {
+			// overwrite until a compaction starts, then some more
+			int after = -1;
+			while (after != 0) {
+				ht.put(key(i % keys), value(i), "+1555" + i);
+				i++;
+				if (after > 0) {
+					after--;
+				} else if (after < 0 && ht.getFileSize()
+						> FilePersistentHashtable.COMPACTION_MIN_SIZE) {
+					after = round * 50;
+				}
+			}
+			if (round % 5 == 4) {
+				ht.close();
+				ht = new FilePersistentHashtable(file, false);
+			} else {
+				ht.reset();
+				check(ht.size() == 0 && ht.get(key(0)) == null,
+						"log empty after reset during compaction");
+			}
+		}
+		// compactions go on once the abandoned ones are over
+		int compactions = ht.getCompactions();
+		long end = System.currentTimeMillis() + 30000;
+		while (ht.getCompactions() == compactions
+				&& System.currentTimeMillis() < end) {
+			ht.put(key(i % keys), value(i), "+1555" + i);
+			i++;
+		}
+		check(ht.getCompactions() > compactions,
+				"compacted after compactions abandoned");
+		ht.put(key(0), value(0), "+15550");
+		check(holds(ht, key(0), value(0), "+15550"),
+				"put after compactions abandoned");
+		ht.close();
+		Thread.setDefaultUncaughtExceptionHandler(handler);
+		check(uncaught[0] == null, "compaction abandoned cleanly: "
+				+ uncaught[0]);
+		check(!new File(file.getPath() + ".compact").exists(),
+				"no compaction file left");
+		ht = new FilePersistentHashtable(file);
+		check(holds(ht, key(0), value(0), "+15550"),
+				"put after compactions abandoned and reopen");
+		ht.close();
+	}
+
+	/*
+	 * Writer process, puts key(i % CRASH_KEYS) -> value(i) with i increasing
+	 * until killed, printing i every 1000 puts
+	 */
+	static void writer(File file) throws IOException {
+		FilePersistentHashtable ht = new FilePersistentHashtable(file, false);
+		for (int i = 0;; i++) {
+			ht.put(key(i % CRASH_KEYS), value(i), Integer.toString(i));
+			if (i % 1000 == 0) {
+				System.out.println(i);
+				System.out.flush();
+			}
+		}
+	}
+
+	void checkCrash(int runs) throws Exception {
+		File file = new File(dir, "crash");
+		int total = 0;
+		for (int run = 0; run < runs; run++) {
+			Process process = new ProcessBuilder(new String[] {
+					new File(new File(System.getProperty("java.home"), "bin"),
+							"java").getPath(), "-cp",
+					System.getProperty("java.class.path"),
+					getClass().getName(), "writer", file.getPath() })
+					.redirectErrorStream(true).start();
+			BufferedReader out = new BufferedReader(new InputStreamReader(
+					process.getInputStream()));
+			// kill after a varying number of puts
+			int target = 5000 + run * 7919 % 20000;
+			String line;
+			while ((line = out.readLine()) != null
+					&& Integer.parseInt(line.trim()) < target) {
+			}
+			process.destroy();
+			process.waitFor();
+
+			FilePersistentHashtable ht = new FilePersistentHashtable(file);
+			// the last put which survived, all before it must have too
+			int last = -1;
+			for (int k = 0; k < CRASH_KEYS; k++) {
+				ZrtpCacheEntry entry = ht.get(key(k));
+				if (entry != null) {
+					last = Math.max(last, Integer.parseInt(entry.getNumber()));
+				}
+			}
+			check(last >= target, "run " + run + " puts survived");
+			for (int k = 0; k < CRASH_KEYS; k++) {
+				int expected = last - ((last - k) % CRASH_KEYS + CRASH_KEYS)
+						% CRASH_KEYS;
+				ZrtpCacheEntry entry = ht.get(key(k));
+				check(entry != null
+						&& Integer.parseInt(entry.getNumber()) == expected
+						&& Arrays.equals(entry.getData(), value(expected)),
+						"run " + run + " key " + k + " holds put " + expected);
+			}
+			total += last + 1;
+			// the next writer starts over on the recovered log
+			ht.reset();
+			ht.close();
+		}
+		logger.info("crash: " + runs + " writers killed after " + total
+				+ " puts in all");
+	}
+
+	class Endpoint implements ZrtpListener {
+		final ZRTP zrtp;
+		Endpoint peer;
+		long timeout = -1;
+		boolean completed;
+		boolean success;
+		boolean cacheMismatch;
+
+		Endpoint(Platform platform) {
+			zrtp = new ZRTP(platform);
+			zrtp.setProtocolManager(this);
+			zrtp.setKeyPairPool(null);
+			zrtp.setPresharedPolicy(10, 0);
+		}
+
+		public boolean keyExchangeCompleted(byte[] txMasterKey,
+				byte[] txMasterSalt, byte[] rxMasterKey, byte[] rxMasterSalt,
+				int firstSeqNum) {
+			return true;
+		}
+
+		public void securityWarning(int securityWarningType, String warning) {
+			cacheMismatch |= securityWarningType == ZRTP.SECURITY_WARNING_CACHE_MISMATCH;
+		}
+
+		public void sessionNegotiationCompleted(boolean success, String msg) {
+			this.success = success;
+		}
+	}
+
+	final LinkedList deliveries = new LinkedList();
+
+	void handle(Endpoint endpoint, ZrtpOutput output) {
+		for (int i = 0; i < output.getPacketCount(); i++) {
+			deliveries.add(new Object[] { endpoint.peer, output.getPacket(i) });
+		}
+		endpoint.timeout = output.getTimeout();
+		endpoint.completed |= output.isCompleted();
+	}
+
+	Endpoint call(Platform platformA, Platform platformB)
+			throws InterruptedException {
+		Endpoint a = new Endpoint(platformA);
+		Endpoint b = new Endpoint(platformB);
+		a.peer = b;
+		b.peer = a;
+		handle(a, a.zrtp.startSessionThreadless());
+		handle(b, b.zrtp.startSessionThreadless());
+		long end = System.currentTimeMillis() + 30000;
+		while (!(a.completed && b.completed)
+				&& System.currentTimeMillis() < end) {
+			while (!deliveries.isEmpty()) {
+				Object[] delivery = (Object[]) deliveries.removeFirst();
+				Endpoint endpoint = (Endpoint) delivery[0];
+				byte[] packet = (byte[]) delivery[1];
+				handle(endpoint, endpoint.zrtp.onPacket(packet, 0,
+						packet.length));
+			}
+			long now = System.currentTimeMillis();
+			if (a.timeout >= 0 && a.timeout <= now) {
+				handle(a, a.zrtp.onTimer());
+			}
+			if (b.timeout >= 0 && b.timeout <= now) {
+				handle(b, b.zrtp.onTimer());
+			}
+			if (deliveries.isEmpty() && !(a.completed && b.completed)) {
+				Thread.sleep(1);
+			}
+		}
+		deliveries.clear();
+		check(a.success && b.success && a.zrtp.getSasString() != null
+				&& a.zrtp.getSasString().equals(b.zrtp.getSasString()),
+				"call succeeded");
+		return a;
+	}
+
+	void checkRestart() throws Exception {
+		File fileA = new File(dir, "A");
+		File fileB = new File(dir, "B");
+		FilePersistentHashtable htA = new FilePersistentHashtable(fileA);
+		FilePersistentHashtable htB = new FilePersistentHashtable(fileB);
+		Platform platformA = new zorg.platform.j2se.PlatformImpl("A", htA);
+		Platform platformB = new zorg.platform.j2se.PlatformImpl("B", htB);
+		Endpoint a = call(platformA, platformB);
+		check(!a.zrtp.isPreshared(), "first call in DH mode");
+		byte[] zid = new ZRTPCache(platformA).getMyZid();
+		htA.close();
+		htB.close();
+
+		platformA = new zorg.platform.j2se.PlatformImpl("A",
+				new FilePersistentHashtable(fileA));
+		platformB = new zorg.platform.j2se.PlatformImpl("B",
+				new FilePersistentHashtable(fileB));
+		check(Arrays.equals(new ZRTPCache(platformA).getMyZid(), zid),
+				"ZID kept across restart");
+		a = call(platformA, platformB);
+		check(a.zrtp.isPreshared(), "call after restart in Preshared mode");
+		check(!a.cacheMismatch && !a.peer.cacheMismatch,
+				"no cache mismatch after restart");
+	}
+
+	void delete() {
+		File[] files = dir.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			files[i].delete();
+		}
+		dir.delete();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 2 && args[0].equals("writer")) {
+			writer(new File(args[1]));
+			return;
+		}
+		int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		Logger.getLogger("").setLevel(Level.WARNING);
+		PersistentHashtableTest test = new PersistentHashtableTest();
+		test.logger.setLevel(Level.INFO);
+		try {
+			test.checkBasic();
+			test.checkTornTail();
+			test.checkCompaction();
+			test.checkCompactionReset();
+			test.checkCrash(runs);
+			test.checkRestart();
+		} finally {
+			test.delete();
+		}
+		test.finish();
+	}
+}
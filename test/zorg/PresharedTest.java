@@ -0,0 +1,215 @@
+package zorg;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import zorg.platform.Platform;
+import zorg.platform.ZrtpListener;
+
+/*
+ * Tests of the ZRTP Preshared mode
+ *
+ * Run with: java -cp classes:test-classes zorg.PresharedTest [calls]
+ *
+ * Repeats calls between the same two endpoints, each keeping its platform
+ * and so its ZID and shared secret cache: the first call is keyed in DH
+ * mode, the following ones in Preshared mode until the policy requires a DH
+ * exchange again, by number of calls or by age. Both ends must agree on the
+ * SRTP keys and the SAS. A far end refusing the Preshared Commit, here for a
+ * retained secret mismatch, must be answered with a DH Commit. Reports the
+ * handshake time and the CPU time of Preshared calls against DH3K and EC25
+ * calls. Handshakes are run threadless, messages delivered in memory, key
+ * pairs generated at call setup.
+ */
+public class PresharedTest extends TestChecks {
+
+	class Endpoint implements ZrtpListener {
+		final ZRTP zrtp;
+		Endpoint peer;
+		long timeout = -1;
+		boolean completed;
+		boolean success;
+		boolean cacheMismatch;
+		byte[] txMasterKey;
+		byte[] rxMasterKey;
+
+		Endpoint(Platform platform, int maxCalls, long maxAge) {
+			zrtp = new ZRTP(platform);
+			zrtp.setProtocolManager(this);
+			zrtp.setKeyPairPool(null);
+			zrtp.setPresharedPolicy(maxCalls, maxAge);
+		}
+
+		public boolean keyExchangeCompleted(byte[] txMasterKey,
+				byte[] txMasterSalt, byte[] rxMasterKey, byte[] rxMasterSalt,
+				int firstSeqNum) {
+			this.txMasterKey = txMasterKey;
+			this.rxMasterKey = rxMasterKey;
+			return true;
+		}
+
+		public void securityWarning(int securityWarningType, String warning) {
+			cacheMismatch |= securityWarningType == ZRTP.SECURITY_WARNING_CACHE_MISMATCH;
+		}
+
+		public void sessionNegotiationCompleted(boolean success, String msg) {
+			this.success = success;
+		}
+	}
+
+	final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	final LinkedList deliveries = new LinkedList();
+	Platform platformA;
+	Platform platformB;
+	long time;
+	long cpuTime;
+
+	void handle(Endpoint endpoint, ZrtpOutput output) {
+		for (int i = 0; i < output.getPacketCount(); i++) {
+			deliveries.add(new Object[] { endpoint.peer, output.getPacket(i) });
+		}
+		endpoint.timeout = output.getTimeout();
+		endpoint.completed |= output.isCompleted();
+	}
+
+	/*
+	 * A call between endpoints with the given policies, checked to succeed
+	 * with the same keys and SAS at both ends, in Preshared mode or not
+	 */
+	Endpoint call(int maxCallsA, int maxCallsB, long maxAge,
+			boolean preshared, String what) throws InterruptedException {
+		Endpoint a = new Endpoint(platformA, maxCallsA, maxAge);
+		Endpoint b = new Endpoint(platformB, maxCallsB, maxAge);
+		a.peer = b;
+		b.peer = a;
+		long start = System.nanoTime();
+		long cpuStart = threads.getCurrentThreadCpuTime();
+		handle(a, a.zrtp.startSessionThreadless());
+		handle(b, b.zrtp.startSessionThreadless());
+		long end = System.currentTimeMillis() + 30000;
+		while (!(a.completed && b.completed)
+				&& System.currentTimeMillis() < end) {
+			while (!deliveries.isEmpty()) {
+				Object[] delivery = (Object[]) deliveries.removeFirst();
+				Endpoint endpoint = (Endpoint) delivery[0];
+				byte[] packet = (byte[]) delivery[1];
+				handle(endpoint, endpoint.zrtp.onPacket(packet, 0,
+						packet.length));
+			}
+			long now = System.currentTimeMillis();
+			if (a.timeout >= 0 && a.timeout <= now) {
+				handle(a, a.zrtp.onTimer());
+			}
+			if (b.timeout >= 0 && b.timeout <= now) {
+				handle(b, b.zrtp.onTimer());
+			}
+			if (deliveries.isEmpty() && !(a.completed && b.completed)) {
+				Thread.sleep(1);
+			}
+		}
+		cpuTime = threads.getCurrentThreadCpuTime() - cpuStart;
+		time = System.nanoTime() - start;
+		deliveries.clear();
+		check(a.success && b.success, what + " succeeded");
+		check(a.txMasterKey != null
+				&& Arrays.equals(a.txMasterKey, b.rxMasterKey)
+				&& Arrays.equals(a.rxMasterKey, b.txMasterKey), what
+				+ " keys agree");
+		check(a.zrtp.getSasString() != null
+				&& a.zrtp.getSasString().equals(b.zrtp.getSasString()), what
+				+ " SAS agree");
+		check(a.zrtp.isPreshared() == preshared
+				&& b.zrtp.isPreshared() == preshared, what
+				+ (preshared ? " in Preshared mode" : " in DH mode"));
+		return a;
+	}
+
+	void newEndpoints() {
+		platformA = new zorg.platform.j2se.PlatformImpl("A");
+		platformB = new zorg.platform.j2se.PlatformImpl("B");
+	}
+
+	void checkPolicy() throws InterruptedException {
+		newEndpoints();
+		call(3, 3, 0, false, "first call");
+		for (int i = 1; i <= 3; i++) {
+			call(3, 3, 0, true, "call " + i + " after DH");
+		}
+		call(3, 3, 0, false, "call 4 after DH");
+		call(3, 3, 0, true, "call 1 after the new DH");
+
+		// the far end's policy alone requires DH
+		call(3, 1, 0, false, "call 2 after the new DH, far end policy");
+		call(0, 3, 0, false, "call without Preshared mode");
+
+		newEndpoints();
+		call(3, 3, 200, false, "first call with age limit");
+		call(3, 3, 200, true, "call before the age limit");
+		Thread.sleep(300);
+		call(3, 3, 200, false, "call after the age limit");
+	}
+
+	void checkRefusal() throws InterruptedException {
+		newEndpoints();
+		call(3, 3, 0, false, "first call before mismatch");
+		// B's retained secrets are replaced when its cache entry is selected
+		TestSettings.TEST_ZRTP_CACHE_MISMATCH = true;
+		Endpoint a;
+		try {
+			a = call(3, 3, 0, false, "call with retained secret mismatch");
+		} finally {
+			TestSettings.TEST_ZRTP_CACHE_MISMATCH = false;
+		}
+		check(a.cacheMismatch, "cache mismatch reported after the fallback");
+	}
+
+	/*
+	 * Average handshake and CPU time of DH calls against Preshared calls
+	 */
+	void measure(KeyAgreementType type, int calls)
+			throws InterruptedException {
+		TestSettings.KEY_TYPE_EC25 = type == KeyAgreementType.ECDH256;
+		try {
+			newEndpoints();
+			long dhTime = 0;
+			long dhCpuTime = 0;
+			long presharedTime = 0;
+			long presharedCpuTime = 0;
+			// warm up
+			call(calls, calls, 0, false, type + " warm up");
+			for (int i = 0; i < calls; i++) {
+				call(calls, calls, 0, true, type + " Preshared call " + i);
+				presharedTime += time;
+				presharedCpuTime += cpuTime;
+			}
+			for (int i = 0; i < calls; i++) {
+				call(0, 0, 0, false, type + " DH call " + i);
+				dhTime += time;
+				dhCpuTime += cpuTime;
+			}
+			logger.info(type + " handshake " + (dhTime / calls / 1000)
+					+ " us, CPU " + (dhCpuTime / calls / 1000)
+					+ " us; Preshared handshake "
+					+ (presharedTime / calls / 1000) + " us, CPU "
+					+ (presharedCpuTime / calls / 1000) + " us");
+		} finally {
+			TestSettings.KEY_TYPE_EC25 = false;
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		Logger.getLogger("").setLevel(Level.WARNING);
+		PresharedTest test = new PresharedTest();
+		test.logger.setLevel(Level.INFO);
+		test.checkPolicy();
+		test.checkRefusal();
+		test.measure(KeyAgreementType.DH3K, calls);
+		test.measure(KeyAgreementType.ECDH256, calls);
+		test.finish();
+	}
+}
@@ -0,0 +1,323 @@
+package zorg;
+
+import java.lang.management.ManagementFactory;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+
+import zorg.platform.Platform;
+import zorg.platform.RtpStack;
+import zorg.platform.ZrtpListener;
+
+/*
+ * Scaling test of the ZRTP retransmission timer
+ *
+ * Run with: java -cp classes:test-classes zorg.RetransmissionScalingTest [sessions] [legacy]
+ *
+ * Creates the ZRTP sessions, then runs one retransmission task per session
+ * through the T1 schedule (rfc6189, 6: 50 ms doubling up to 200 ms) on the
+ * shared HashedWheelTimer, and reports the live threads, the heap used and
+ * how late the tasks ran. With "legacy" the same schedule is run with a
+ * java.util.Timer per session and a new TimerTask per retransmission, as
+ * ZRTP used to do.
+ *
+ * Also checks that the Hello retransmissions of the sessions are sent from
+ * their session thread, so that a session blocked in its RtpStack does not
+ * delay the retransmissions of the others on the shared timer, and that a
+ * task scheduled while the timer is idle runs in its tick, not a turn of
+ * the wheel later.
+ */
+public class RetransmissionScalingTest extends TestChecks {
+
+	static final int RETRANSMISSIONS = 10;
+
+	final Platform platform = new zorg.platform.j2se.PlatformImpl();
+	final int sessions;
+
+	final Object lock = new Object();
+	int completed;
+	long totalLateness;
+	long maxLateness;
+
+	RetransmissionScalingTest(int sessions) {
+		this.sessions = sessions;
+	}
+
+	static int threadCount() {
+		return ManagementFactory.getThreadMXBean().getThreadCount();
+	}
+
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	void report(String label, long heapBefore) {
+		logger.info(label + ": " + threadCount() + " threads, "
+				+ ((usedHeap() - heapBefore) >> 10) + " KB heap");
+	}
+
+	void retransmitted(long lateness, boolean last) {
+		synchronized (lock) {
+			totalLateness += lateness;
+			maxLateness = Math.max(maxLateness, lateness);
+			if (last) {
+				completed++;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	void awaitCompletion(String label, long start) throws InterruptedException {
+		synchronized (lock) {
+			while (completed < sessions) {
+				lock.wait();
+			}
+			logger.info(label + ": " + sessions + " sessions completed "
+					+ RETRANSMISSIONS + " retransmissions in "
+					+ (System.currentTimeMillis() - start) + " ms, lateness avg "
+					+ (totalLateness / ((long) sessions * RETRANSMISSIONS))
+					+ " ms, max " + maxLateness + " ms");
+			completed = 0;
+			totalLateness = maxLateness = 0;
+		}
+	}
+
+	static int nextInterval(int interval) {
+		return Math.min(interval * 2, 200);
+	}
+
+	/*
+	 * Retransmission task of one session, rescheduled without allocating
+	 */
+	class WheelSession extends RetransmissionTask {
+		final RetransmissionScheduler scheduler;
+		int count;
+		int interval = 50;
+		long due;
+
+		WheelSession(RetransmissionScheduler scheduler) {
+			this.scheduler = scheduler;
+		}
+
+		void start() {
+			due = System.currentTimeMillis() + interval;
+			scheduler.schedule(this, interval);
+		}
+
+		public void run() {
+			long now = System.currentTimeMillis();
+			count++;
+			retransmitted(now - due, count == RETRANSMISSIONS);
+			if (count < RETRANSMISSIONS) {
+				interval = nextInterval(interval);
+				due = now + interval;
+				scheduler.schedule(this, interval);
+			}
+		}
+	}
+
+	class LegacySession {
+		final Timer timer = new Timer();
+		int count;
+		int interval = 50;
+		long due;
+
+		void schedule() {
+			due = System.currentTimeMillis() + interval;
+			timer.schedule(new TimerTask() {
+				public void run() {
+					long now = System.currentTimeMillis();
+					count++;
+					retransmitted(now - due, count == RETRANSMISSIONS);
+					if (count < RETRANSMISSIONS) {
+						interval = nextInterval(interval);
+						schedule();
+					} else {
+						timer.cancel();
+					}
+				}
+			}, interval);
+		}
+	}
+
+	/*
+	 * RtpStack recording the threads and the times of the sends, blocking in
+	 * all of them but the first one if slow
+	 */
+	class SendingStack implements RtpStack {
+		final boolean slow;
+		int sends;
+		boolean onTimerThread;
+
+		SendingStack(boolean slow) {
+			this.slow = slow;
+		}
+
+		public void sendZrtpPacket(byte[] data) {
+			synchronized (this) {
+				sends++;
+				if (Thread.currentThread().getName().startsWith("ZRTP-timer")) {
+					onTimerThread = true;
+				}
+				if (!slow || sends == 1) {
+					return;
+				}
+			}
+			try {
+				Thread.sleep(300);
+			} catch (InterruptedException e) {
+				// send aborted
+			}
+		}
+
+		public void setMasqueradingActive() {
+		}
+
+		public void setMasqueradingDual() {
+		}
+
+		public void setNextZrtpSequenceNumber(int startSeqNum) {
+		}
+	}
+
+	static class SilentListener implements ZrtpListener {
+		public void sessionNegotiationCompleted(boolean success, String msg) {
+		}
+
+		public void securityWarning(int securityWarningType, String warning) {
+		}
+
+		public boolean keyExchangeCompleted(byte[] txMasterKey,
+				byte[] txMasterSalt, byte[] rxMasterKey, byte[] rxMasterSalt,
+				int firstSeqNum) {
+			return true;
+		}
+	}
+
+	ZRTP startSending(RtpStack stack, String phoneNumber) {
+		ZRTP zrtp = new ZRTP(platform);
+		zrtp.setPhoneNumber(phoneNumber);
+		zrtp.setProtocolManager(new SilentListener());
+		zrtp.setRtpStack(stack);
+		zrtp.startSession();
+		return zrtp;
+	}
+
+	void testBlockingSend() throws InterruptedException {
+		SendingStack slowStack = new SendingStack(true);
+		SendingStack fastStack = new SendingStack(false);
+		ZRTP slow = startSending(slowStack, "slow");
+		ZRTP fast = startSending(fastStack, "fast");
+		// Hellos at 0, 50, 150, 350, 550, 750 and 950 ms
+		Thread.sleep(1100);
+		slow.stopSession();
+		fast.stopSession();
+		synchronized (slowStack) {
+			check(!slowStack.onTimerThread,
+					"retransmission not sent from the timer thread");
+		}
+		synchronized (fastStack) {
+			logger.info("Blocking send: " + fastStack.sends
+					+ " Hellos sent by the other session");
+			check(!fastStack.onTimerThread && fastStack.sends >= 6,
+					"retransmissions not delayed by a blocked session");
+		}
+	}
+
+	/*
+	 * Task which records when it ran
+	 */
+	static class TimedTask extends RetransmissionTask {
+		long ran;
+
+		public synchronized void run() {
+			ran = System.currentTimeMillis();
+			notifyAll();
+		}
+
+		synchronized long await() throws InterruptedException {
+			while (ran == 0) {
+				wait();
+			}
+			return ran;
+		}
+	}
+
+	void testIdleSchedule() throws InterruptedException {
+		// 1 ms ticks, a task missing its bucket waits for a turn of 64 ms
+		HashedWheelTimer timer = new HashedWheelTimer(1, 64, "idle-timer");
+		int late = 0;
+		long maxDelay = 0;
+		for (int i = 0; i < 300; i++) {
+			// let the timer go idle for a few ticks
+			Thread.sleep(3 + i % 3);
+			TimedTask task = new TimedTask();
+			long start = System.currentTimeMillis();
+			timer.schedule(task, 0);
+			long delay = task.await() - start;
+			maxDelay = Math.max(maxDelay, delay);
+			if (delay > 32) {
+				late++;
+			}
+		}
+		timer.stop();
+		logger.info("Scheduled while idle: " + maxDelay + " ms max delay");
+		check(late == 0, late + " tasks scheduled while idle ran a turn late");
+	}
+
+	void testSessions() {
+		long heap = usedHeap();
+		ZRTP[] zrtp = new ZRTP[sessions];
+		for (int i = 0; i < sessions; i++) {
+			zrtp[i] = new ZRTP(platform);
+		}
+		report(sessions + " ZRTP sessions created", heap);
+	}
+
+	void testWheel() throws InterruptedException {
+		long heap = usedHeap();
+		RetransmissionScheduler scheduler = ZRTP
+				.getDefaultRetransmissionScheduler();
+		WheelSession[] tasks = new WheelSession[sessions];
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < sessions; i++) {
+			tasks[i] = new WheelSession(scheduler);
+			tasks[i].start();
+		}
+		report("Shared timer, " + sessions + " sessions retransmitting", heap);
+		awaitCompletion("Shared timer", start);
+	}
+
+	void testLegacy() throws InterruptedException {
+		long heap = usedHeap();
+		LegacySession[] legacy = new LegacySession[sessions];
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < sessions; i++) {
+			legacy[i] = new LegacySession();
+			legacy[i].schedule();
+		}
+		report("Timer per session, " + sessions + " sessions retransmitting",
+				heap);
+		awaitCompletion("Timer per session", start);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		RetransmissionScalingTest test = new RetransmissionScalingTest(sessions);
+		java.util.logging.Logger.getLogger("").setLevel(
+				java.util.logging.Level.INFO);
+		test.logger.info("Initial: " + threadCount() + " threads");
+		test.testBlockingSend();
+		test.testIdleSchedule();
+		test.testSessions();
+		test.testWheel();
+		if (args.length > 1 && args[1].equals("legacy")) {
+			test.testLegacy();
+		}
+		test.finish();
+	}
+}
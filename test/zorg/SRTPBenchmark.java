@@ -0,0 +1,579 @@
+package zorg;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+
+import zorg.platform.EncryptorSuite;
+import zorg.platform.HMAC;
+import zorg.platform.LongSortedVector;
+import zorg.platform.Platform;
+import zorg.platform.RtpPacket;
+
+/*
+ * Micro benchmarks for the SRTP per-packet path
+ *
+ * Run with: java -cp classes:test-classes zorg.SRTPBenchmark [iterations]
+ *
+ * Each benchmark is run once to warm up the JIT and once more to be measured.
+ */
+public class SRTPBenchmark extends TestChecks {
+
+	final Platform platform = new zorg.platform.j2se.PlatformImpl();
+	final int iterations;
+
+	SRTPBenchmark(int iterations) {
+		this.iterations = iterations;
+	}
+
+	/*
+	 * Sequence of received packet indexes: mostly in order, with a packet
+	 * arriving late every 10 packets and a duplicate every 50
+	 */
+	long[] receivedIndexes(int count) {
+		long[] indexes = new long[count];
+		long next = 1;
+		for (int i = 0; i < count; i++) {
+			if (i % 50 == 49) {
+				indexes[i] = indexes[i - 1];
+			} else if (i % 10 == 9) {
+				indexes[i] = next - 5;
+			} else {
+				indexes[i] = next++;
+			}
+		}
+		return indexes;
+	}
+
+	/*
+	 * The replay check as it was done with a sorted vector of Longs
+	 */
+	int vectorReplayCheck(long[] indexes, int windowSize) {
+		LongSortedVector window = platform.getUtils().createSortedVector();
+		int replayed = 0;
+		long curSeq = 0;
+		for (int n = 0; n < indexes.length; n++) {
+			long seq = indexes[n];
+			if (seq < curSeq - windowSize) {
+				replayed++;
+				continue;
+			}
+			Long element = new Long(seq);
+			int numElements = window.size();
+			if (window.find(element) >= 0) {
+				replayed++;
+				continue;
+			}
+			window.addElement(element);
+			if (seq > curSeq) {
+				long oldestSeq = seq - windowSize;
+				int numToRemove = 0;
+				for (int i = 0; i < numElements; i++) {
+					if (window.getAt(i).longValue() < oldestSeq) {
+						numToRemove++;
+					} else {
+						break;
+					}
+				}
+				while (numToRemove-- > 0) {
+					window.removeElementAt(0);
+				}
+				curSeq = seq;
+			}
+		}
+		return replayed;
+	}
+
+	int bitmapReplayCheck(long[] indexes, int windowSize) {
+		ReplayWindow window = new ReplayWindow(windowSize);
+		int replayed = 0;
+		long curSeq = 0;
+		for (int n = 0; n < indexes.length; n++) {
+			long seq = indexes[n];
+			if (seq < curSeq - windowSize || window.isReplayed(seq)) {
+				replayed++;
+				continue;
+			}
+			window.update(seq);
+			if (seq > curSeq) {
+				curSeq = seq;
+			}
+		}
+		return replayed;
+	}
+
+	void benchmarkReplayWindow(int windowSize) {
+		long[] indexes = receivedIndexes(iterations);
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			int vectorReplayed = vectorReplayCheck(indexes, windowSize);
+			long vectorTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			int bitmapReplayed = bitmapReplayCheck(indexes, windowSize);
+			long bitmapTime = System.nanoTime() - start;
+			if (vectorReplayed != bitmapReplayed) {
+				throw new RuntimeException("Replay checks disagree: "
+						+ vectorReplayed + " != " + bitmapReplayed);
+			}
+			if (pass == 1) {
+				logger.info("Replay window " + windowSize + ": vector "
+						+ (vectorTime / iterations) + " ns/packet, bitmap "
+						+ (bitmapTime / iterations) + " ns/packet ("
+						+ bitmapReplayed + " replayed)");
+			}
+		}
+	}
+
+	/*
+	 * The payload transform as it was done, one cipher call per 16 byte block
+	 */
+	void blockTransform(EncryptorSuite suite, byte[] iv, byte[] payload)
+			throws CryptoException {
+		byte[] counter = new byte[16];
+		byte[] keyStream = new byte[16];
+		System.arraycopy(iv, 0, counter, 0, 16);
+		for (int pos = 0; pos < payload.length;) {
+			suite.encrypt(counter, keyStream);
+			for (int x = 0; x < 16 && pos < payload.length; ++x, ++pos) {
+				payload[pos] ^= keyStream[x];
+			}
+			counter[15]++;
+		}
+	}
+
+	void benchmarkPayloadTransform(int payloadLength) throws CryptoException {
+		byte[] key = new byte[16];
+		byte[] iv = new byte[16];
+		for (int i = 0; i < 14; i++) {
+			key[i] = (byte) (i * 17);
+			iv[i] = (byte) (i * 31);
+		}
+		EncryptorSuite suite = platform.getCrypto().createEncryptorSuite(key,
+				new byte[16]);
+		byte[] blockPayload = new byte[payloadLength];
+		byte[] counterPayload = new byte[payloadLength];
+		int count = iterations / 10;
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				blockTransform(suite, iv, blockPayload);
+			}
+			long blockTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				suite.encryptCounterMode(iv, counterPayload, 0, payloadLength);
+			}
+			long counterTime = System.nanoTime() - start;
+			if (!platform.getUtils().equals(blockPayload, 0, counterPayload, 0,
+					payloadLength)) {
+				throw new RuntimeException("Payload transforms disagree");
+			}
+			if (pass == 1) {
+				logger.info("Payload " + payloadLength + " bytes: per block "
+						+ (blockTime / count) + " ns/packet, counter mode "
+						+ (counterTime / count) + " ns/packet");
+			}
+		}
+	}
+
+	/*
+	 * The authentication tag as it was computed, with the platform HMAC
+	 */
+	void hmacTag(HMAC hmac, byte[] packet, int length, int roc, byte[] tag)
+			throws CryptoException {
+		byte[] rocArray = new byte[4];
+		byte[] hmacArray = new byte[20];
+		for (int i = 3; i >= 0; --i) {
+			rocArray[3 - i] = (byte) ((roc >>> (i << 3)) & 0xff);
+		}
+		hmac.reset();
+		hmac.update(packet, 0, length);
+		hmac.update(rocArray);
+		hmac.getMAC(hmacArray, 0);
+		System.arraycopy(hmacArray, 0, tag, 0, tag.length);
+	}
+
+	void benchmarkAuthentication(int packetLength) throws CryptoException {
+		byte[] key = new byte[20];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = (byte) (i * 13);
+		}
+		HMAC hmac = platform.getCrypto().createHMACSHA1(key);
+		SRTPAuthenticator authenticator = new SRTPAuthenticator(platform, key);
+		byte[] packet = new byte[packetLength];
+		byte[] hmacTag = new byte[10];
+		byte[] tag = new byte[10];
+		int count = iterations / 10;
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				hmacTag(hmac, packet, packetLength, i, hmacTag);
+			}
+			long hmacTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				authenticator.computeTag(packet, 0, packetLength, i, tag, 0,
+						tag.length);
+			}
+			long authenticatorTime = System.nanoTime() - start;
+			if (!platform.getUtils().equals(hmacTag, 0, tag, 0, tag.length)) {
+				throw new RuntimeException("Authentication tags disagree");
+			}
+			if (pass == 1) {
+				logger.info("Authentication " + packetLength
+						+ " bytes: platform HMAC " + (hmacTime / count)
+						+ " ns/packet, SRTPAuthenticator "
+						+ (authenticatorTime / count) + " ns/packet");
+			}
+		}
+	}
+
+	/*
+	 * RTP packet with a fixed 12 byte header and room for the auth tag
+	 */
+	static class BenchmarkPacket implements RtpPacket {
+		final byte[] packet;
+		int payloadLength;
+
+		BenchmarkPacket(int payloadLength) {
+			this(payloadLength, 0x12345678);
+		}
+
+		BenchmarkPacket(int payloadLength, int ssrc) {
+			packet = new byte[12 + payloadLength + 16];
+			packet[0] = (byte) 0x80;
+			packet[8] = (byte) (ssrc >>> 24);
+			packet[9] = (byte) (ssrc >>> 16);
+			packet[10] = (byte) (ssrc >>> 8);
+			packet[11] = (byte) ssrc;
+			this.payloadLength = payloadLength;
+		}
+
+		void reset(int seq, int length) {
+			packet[2] = (byte) (seq >>> 8);
+			packet[3] = (byte) seq;
+			payloadLength = length;
+		}
+
+		public int getHeaderLength() {
+			return 12;
+		}
+
+		public int getLength() {
+			return 12 + payloadLength;
+		}
+
+		public byte[] getPacket() {
+			return packet;
+		}
+
+		public int getPayloadLength() {
+			return payloadLength;
+		}
+
+		public int getSequenceNumber() {
+			return ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+		}
+
+		public int getSscr() {
+			return ((packet[8] & 0xff) << 24) | ((packet[9] & 0xff) << 16)
+					| ((packet[10] & 0xff) << 8) | (packet[11] & 0xff);
+		}
+
+		public void setPayloadLength(int length) {
+			payloadLength = length;
+		}
+	}
+
+	/*
+	 * Returns a sender and a receiver sharing the same keys
+	 */
+	SRTP[] createSessions(AuthenticationMode authMode) {
+		return createSessions(authMode, null);
+	}
+
+	SRTP[] createSessions(AuthenticationMode authMode,
+			ExecutorService prefetchExecutor) {
+		return createSessions(authMode, prefetchExecutor, 48, null);
+	}
+
+	SRTP[] createSessions(AuthenticationMode authMode,
+			ExecutorService prefetchExecutor, int kdr,
+			ExecutorService keyDerivationExecutor) {
+		byte[] key = new byte[16];
+		byte[] salt = new byte[authMode.getSaltBits(CipherType.AES1) / 8];
+		for (int i = 0; i < salt.length; i++) {
+			key[i] = (byte) i;
+			salt[i] = (byte) (i * 3);
+		}
+		SRTP[] sessions = new SRTP[2];
+		for (int i = 0; i < 2; i++) {
+			sessions[i] = new SRTP(platform, authMode);
+			sessions[i].setKeystreamPrefetch(prefetchExecutor, 16, 1500);
+			sessions[i].setKDR(kdr);
+			sessions[i].setKeyDerivationExecutor(keyDerivationExecutor);
+			sessions[i].setTxMasterKey(key);
+			sessions[i].setTxMasterSalt(salt);
+			sessions[i].setRxMasterKey(key);
+			sessions[i].setRxMasterSalt(salt);
+			sessions[i].startNewSession();
+		}
+		return sessions;
+	}
+
+	void benchmarkBatch(int payloadLength, int batchSize) {
+		BenchmarkPacket[] packets = new BenchmarkPacket[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			packets[i] = new BenchmarkPacket(payloadLength);
+		}
+		int[] results = new int[batchSize];
+		int batches = iterations / 10 / batchSize;
+		for (int pass = 0; pass < 2; pass++) {
+			SRTP[] single = createSessions(AuthenticationMode.HS80);
+			SRTP[] batch = createSessions(AuthenticationMode.HS80);
+			int seq = 0;
+			long start = System.nanoTime();
+			for (int n = 0; n < batches; n++) {
+				for (int i = 0; i < batchSize; i++) {
+					packets[i].reset(++seq, payloadLength);
+					single[0].protect(packets[i]);
+					if (single[1].unprotect(packets[i]) != SRTP.UNPROTECT_OK) {
+						throw new RuntimeException("Unprotect failed");
+					}
+				}
+			}
+			long singleTime = System.nanoTime() - start;
+			seq = 0;
+			start = System.nanoTime();
+			for (int n = 0; n < batches; n++) {
+				for (int i = 0; i < batchSize; i++) {
+					packets[i].reset(++seq, payloadLength);
+				}
+				batch[0].protectBatch(packets, batchSize, results);
+				if (batch[1].unprotectBatch(packets, batchSize, results) != batchSize) {
+					throw new RuntimeException("Unprotect failed");
+				}
+			}
+			long batchTime = System.nanoTime() - start;
+			if (pass == 1) {
+				int count = batches * batchSize;
+				logger.info("Protect and unprotect " + payloadLength
+						+ " bytes, batches of " + batchSize + ": single "
+						+ (count * 1000000000L / singleTime)
+						+ " packets/s, batch "
+						+ (count * 1000000000L / batchTime) + " packets/s");
+			}
+		}
+	}
+
+	/*
+	 * Protect and unprotect throughput of AES-CM with HMAC-SHA1 against
+	 * AES-GCM
+	 */
+	void benchmarkAuthenticationMode(AuthenticationMode authMode,
+			int payloadLength) {
+		BenchmarkPacket packet = new BenchmarkPacket(payloadLength);
+		int count = iterations / 10;
+		for (int pass = 0; pass < 2; pass++) {
+			SRTP[] sessions = createSessions(authMode);
+			long start = System.nanoTime();
+			for (int i = 1; i <= count; i++) {
+				packet.reset(i & 0xFFFF, payloadLength);
+				sessions[0].protect(packet);
+				if (sessions[1].unprotect(packet) != SRTP.UNPROTECT_OK) {
+					throw new RuntimeException("Unprotect failed");
+				}
+			}
+			long time = System.nanoTime() - start;
+			if (pass == 1) {
+				logger.info("Protect and unprotect " + payloadLength
+						+ " bytes, " + authMode + ": " + (time / count)
+						+ " ns/packet");
+			}
+		}
+	}
+
+	/*
+	 * Protect latency of paced packets, as sent by an audio leg, with and
+	 * without keystream prefetch
+	 */
+	void benchmarkPrefetch(int payloadLength) {
+		BenchmarkPacket packet = new BenchmarkPacket(payloadLength);
+		int count = iterations / 20;
+		long[] times = new long[count];
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		for (int pass = 0; pass < 4; pass++) {
+			boolean prefetch = (pass & 1) != 0;
+			SRTP[] sessions = createSessions(AuthenticationMode.HS80,
+					prefetch ? executor : null);
+			for (int i = 0; i < count; i++) {
+				packet.reset((i + 1) & 0xFFFF, payloadLength);
+				long start = System.nanoTime();
+				sessions[0].protect(packet);
+				times[i] = System.nanoTime() - start;
+				// leave the prefetch task some idle time between packets
+				LockSupport.parkNanos(20000);
+			}
+			sessions[0].endSession();
+			Arrays.sort(times);
+			if (pass >= 2) {
+				logger.info("Protect " + payloadLength + " bytes"
+						+ (prefetch ? " with" : " without")
+						+ " keystream prefetch: p50 " + times[count / 2]
+						+ " ns, p99 " + times[count * 99 / 100] + " ns");
+			}
+		}
+		executor.shutdown();
+	}
+
+	/*
+	 * Protect and unprotect throughput of interleaved streams sharing one
+	 * SRTP session
+	 */
+	void benchmarkStreams(int streamCount, int payloadLength) {
+		BenchmarkPacket[] packets = new BenchmarkPacket[streamCount];
+		for (int i = 0; i < streamCount; i++) {
+			packets[i] = new BenchmarkPacket(payloadLength, 0x1000 + i * 7919);
+		}
+		int count = iterations / 10;
+		for (int pass = 0; pass < 2; pass++) {
+			SRTP[] sessions = createSessions(AuthenticationMode.HS80);
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				BenchmarkPacket packet = packets[i % streamCount];
+				packet.reset((i / streamCount + 1) & 0xFFFF, payloadLength);
+				sessions[0].protect(packet);
+				if (sessions[1].unprotect(packet) != SRTP.UNPROTECT_OK) {
+					throw new RuntimeException("Unprotect failed");
+				}
+			}
+			long time = System.nanoTime() - start;
+			if (pass == 1) {
+				logger.info("Protect and unprotect " + payloadLength
+						+ " bytes, " + streamCount + " SSRCs: "
+						+ (time / count) + " ns/packet");
+			}
+		}
+	}
+
+	/*
+	 * Protect latency of the packets crossing a key derivation rate boundary,
+	 * with keys derived on the packet path or ahead of time
+	 */
+	void benchmarkRekey(int kdr) {
+		BenchmarkPacket packet = new BenchmarkPacket(160);
+		int count = iterations / 20;
+		int generation = 1 << kdr;
+		long[] times = new long[count / generation];
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		for (int pass = 0; pass < 4; pass++) {
+			boolean ahead = (pass & 1) != 0;
+			SRTP[] sessions = createSessions(AuthenticationMode.HS80, null,
+					kdr, ahead ? executor : null);
+			long other = 0;
+			for (int i = 1; i <= count; i++) {
+				packet.reset(i & 0xFFFF, 160);
+				long start = System.nanoTime();
+				sessions[0].protect(packet);
+				long time = System.nanoTime() - start;
+				if ((i & (generation - 1)) == 0 && i / generation <= times.length) {
+					times[i / generation - 1] = time;
+				} else {
+					other += time;
+				}
+				LockSupport.parkNanos(20000);
+			}
+			sessions[0].endSession();
+			Arrays.sort(times);
+			if (pass >= 2) {
+				logger.info("Protect at KDR 2^" + kdr + " boundaries, keys "
+						+ (ahead ? "derived ahead of time" : "derived on packet")
+						+ ": median " + times[times.length / 2] + " ns, max "
+						+ times[times.length - 1] + " ns (other packets "
+						+ (other / (count - times.length)) + " ns)");
+			}
+		}
+		executor.shutdown();
+	}
+
+	/*
+	 * Both directions of a call, each sent by its own thread through the send
+	 * and receive contexts of the two endpoints, against one thread doing
+	 * both directions
+	 */
+	void benchmarkDuplex(int payloadLength) throws InterruptedException {
+		final int count = iterations / 10;
+		for (int pass = 0; pass < 2; pass++) {
+			for (int threads = 1; threads <= 2; threads++) {
+				final SRTP[] sessions = createSessions(AuthenticationMode.HS80);
+				Runnable[] directions = new Runnable[2];
+				for (int d = 0; d < 2; d++) {
+					final SrtpSendContext sender = sessions[d].getSendContext();
+					final SrtpReceiveContext receiver = sessions[1 - d]
+							.getReceiveContext();
+					final BenchmarkPacket packet = new BenchmarkPacket(
+							payloadLength, 0x1000 + d);
+					final int length = payloadLength;
+					directions[d] = new Runnable() {
+						public void run() {
+							for (int i = 1; i <= count; i++) {
+								packet.reset(i & 0xFFFF, length);
+								sender.protect(packet);
+								if (receiver.unprotect(packet) != SRTP.UNPROTECT_OK) {
+									throw new RuntimeException("Unprotect failed");
+								}
+							}
+						}
+					};
+				}
+				long start = System.nanoTime();
+				if (threads == 1) {
+					directions[0].run();
+					directions[1].run();
+				} else {
+					Thread other = new Thread(directions[1]);
+					other.start();
+					directions[0].run();
+					other.join();
+				}
+				long time = System.nanoTime() - start;
+				if (pass == 1) {
+					logger.info("Duplex " + payloadLength + " bytes, "
+							+ threads + " thread(s): "
+							+ (time / (2 * count)) + " ns/packet");
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws CryptoException,
+			InterruptedException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		SRTPBenchmark benchmark = new SRTPBenchmark(iterations);
+		benchmark.benchmarkReplayWindow(64);
+		benchmark.benchmarkReplayWindow(1024);
+		benchmark.benchmarkPayloadTransform(160);
+		benchmark.benchmarkPayloadTransform(1200);
+		benchmark.benchmarkAuthentication(172);
+		benchmark.benchmarkAuthentication(1212);
+		benchmark.benchmarkBatch(160, 32);
+		benchmark.benchmarkBatch(1200, 32);
+		benchmark.benchmarkPrefetch(160);
+		benchmark.benchmarkPrefetch(1200);
+		benchmark.benchmarkStreams(1, 160);
+		benchmark.benchmarkStreams(16, 160);
+		benchmark.benchmarkRekey(8);
+		benchmark.benchmarkDuplex(160);
+		int[] payloadLengths = { 160, 1200 };
+		AuthenticationMode[] authModes = { AuthenticationMode.HS32,
+				AuthenticationMode.HS80, AuthenticationMode.GCM };
+		for (int i = 0; i < payloadLengths.length; i++) {
+			for (int j = 0; j < authModes.length; j++) {
+				benchmark.benchmarkAuthenticationMode(authModes[j],
+						payloadLengths[i]);
+			}
+		}
+		benchmark.finish();
+	}
+}
@@ -0,0 +1,574 @@
+package zorg;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import zorg.platform.Digest;
+import zorg.platform.EncryptorSuite;
+import zorg.platform.Platform;
+
+/*
+ * Tests of the SRTP receive checks
+ *
+ * Run with: java -cp classes:test-classes zorg.SRTPTest
+ *
+ * Checks the boundary of the replay window: a packet lagging the highest
+ * index by W - 1 or W packets is accepted once, by W + 1 rejected as too
+ * old, as the replay check did with a sorted vector, against which the
+ * window is compared on a stream of packets arriving around the boundary.
+ * Checks the key derivation rates: packets protected and unprotected across
+ * the generations, the next keys derived ahead of time once per generation,
+ * and never with a key derivation rate of 0, which derives no new keys.
+ * Checks the AES counter mode against the keystream of rfc3711, B.2, and
+ * against the JCE counter mode for lengths that are not whole blocks and
+ * counters that carry past their low bytes. Checks that packets held in
+ * direct buffers, which are transformed in place, are protected as in heap
+ * buffers, unprotected back, and left unchanged when forged, a forged
+ * packet not keeping the genuine one with its index out. Checks the
+ * status of each packet of a batch, with a null and a forged packet in it.
+ * Checks that the send and receive contexts of a session protect and
+ * unprotect on two threads at once without a lock.
+ * Checks AES-GCM against the packet of rfc7714, 16.1.1, in arrays and
+ * direct buffers, and that the Hello offers each authentication tag once.
+ * Checks the SRTP authenticator against the JCE HMAC-SHA1 of the packet and
+ * ROC, starting from copies of the keyed digests or, where digests cannot
+ * be copied, hashing the padded keys for each packet.
+ */
+public class SRTPTest extends TestChecks {
+
+	/*
+	 * Receives an authenticated packet: returns true if it is rejected as a
+	 * replay, records its index otherwise
+	 */
+	boolean replayed(SsrcTable.Stream stream, long index) {
+		if (SrtpReceiveContext.isReplayedPacket(stream, index)) {
+			return true;
+		}
+		stream.replayWindow.update(index);
+		return false;
+	}
+
+	void checkReplayBoundary(int size) {
+		SsrcTable.Stream stream = new SsrcTable.Stream();
+		stream.replayWindow = new ReplayWindow(size);
+		long highest = 100000;
+		stream.seq = (int) highest;
+		SrtpReceiveContext.isReplayedPacket(stream, highest);
+		check(!stream.replayWindow.isReplayed(highest), size
+				+ ": nothing recorded before authentication");
+		check(!replayed(stream, highest), size + ": highest accepted");
+		for (int delta = Math.max(size - 1, 1); delta <= size + 1; delta++) {
+			boolean old = delta > size;
+			check(replayed(stream, highest - delta) == old, size + ": delta "
+					+ delta + (old ? " rejected" : " accepted"));
+			check(replayed(stream, highest - delta), size + ": delta " + delta
+					+ " rejected again");
+		}
+		// one packet later, delta size becomes size + 1
+		stream.seq = (int) ++highest;
+		check(!replayed(stream, highest), size + ": next accepted");
+		check(replayed(stream, highest - size - 1), size
+				+ ": recorded packet out of the window");
+		check(stream.replayWindow.isReplayed(highest - size), size
+				+ ": recorded packet at the boundary");
+
+		// same decisions as the sorted vector
+		long[] indexes = new long[size * 8];
+		long next = 1;
+		for (int i = 0; i < indexes.length; i++) {
+			switch (i % 4) {
+			case 1:
+				indexes[i] = next - size;
+				break;
+			case 2:
+				indexes[i] = next - size - 1;
+				break;
+			case 3:
+				indexes[i] = next - size + 1;
+				break;
+			default:
+				indexes[i] = next += 3;
+			}
+		}
+		SRTPBenchmark benchmark = new SRTPBenchmark(0);
+		check(benchmark.vectorReplayCheck(indexes, size) == benchmark
+				.bitmapReplayCheck(indexes, size), size
+				+ ": same packets rejected as the sorted vector");
+	}
+
+	/*
+	 * Runs the key derivations asked ahead of time at once, counting them
+	 */
+	static class CountingExecutor implements Executor {
+		int count;
+
+		public void execute(Runnable command) {
+			count++;
+			command.run();
+		}
+	}
+
+	void checkKdr(int kdr, int packets) {
+		SRTPBenchmark benchmark = new SRTPBenchmark(0);
+		byte[] key = new byte[16];
+		byte[] salt = new byte[14];
+		CountingExecutor executor = new CountingExecutor();
+		SRTP[] sessions = new SRTP[2];
+		for (int i = 0; i < 2; i++) {
+			sessions[i] = new SRTP(benchmark.platform, AuthenticationMode.HS80);
+			check(sessions[i].setKDR(kdr), "KDR " + kdr + " set");
+			sessions[i].setKeyDerivationExecutor(executor);
+			sessions[i].setTxMasterKey(key);
+			sessions[i].setTxMasterSalt(salt);
+			sessions[i].setRxMasterKey(key);
+			sessions[i].setRxMasterSalt(salt);
+			sessions[i].startNewSession();
+		}
+		SRTPBenchmark.BenchmarkPacket packet = new SRTPBenchmark.BenchmarkPacket(
+				160);
+		int failures = 0;
+		for (int i = 1; i <= packets; i++) {
+			packet.reset(i, 160);
+			sessions[0].protect(packet);
+			if (sessions[1].unprotect(packet) != SRTP.UNPROTECT_OK) {
+				failures++;
+			}
+		}
+		check(failures == 0, "KDR " + kdr + ": " + failures
+				+ " packets failed to unprotect");
+		boolean rederives = kdr > 0 && kdr < SrtpContext.MAX_KDR;
+		// in both directions, for each generation whose end is within the
+		// packets, plus the rekey-ahead distance
+		int expected = 0;
+		if (rederives) {
+			long ahead = Math.min(SrtpContext.REKEY_AHEAD_PACKETS,
+					1L << (kdr - 1));
+			expected = 2 * (int) ((packets + ahead) >> kdr);
+		}
+		check(executor.count == expected, "KDR " + kdr + ": "
+				+ executor.count + " key derivations ahead of time, expected "
+				+ expected);
+		long generation = sessions[1].getReceiveContext().getKeyGeneration(
+				packets);
+		check(generation == (rederives ? packets >> kdr : 0), "KDR " + kdr
+				+ ": key generation " + generation);
+		sessions[0].endSession();
+		sessions[1].endSession();
+	}
+
+	static byte[] hex(String s) {
+		byte[] bytes = new byte[s.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2),
+					16);
+		}
+		return bytes;
+	}
+
+	void checkCounterMode() throws Exception {
+		SRTPBenchmark benchmark = new SRTPBenchmark(0);
+		byte[] key = hex("2B7E151628AED2A6ABF7158809CF4F3C");
+		byte[] iv = hex("F0F1F2F3F4F5F6F7F8F9FAFBFCFD0000");
+		EncryptorSuite suite = benchmark.platform.getCrypto()
+				.createEncryptorSuite(key, new byte[16]);
+		// rfc3711, B.2: keystream of the counters 0000 to 0002
+		byte[] keystream = new byte[48];
+		suite.encryptCounterMode(iv, keystream, 0, keystream.length);
+		check(Arrays.equals(keystream, hex(
+				"E03EAD0935C95E80E166B16DD92B4EB4"
+				+ "D23513162B02D0F72A43A2FE4A5F97AB"
+				+ "41E95B3BB0A2E8DD477901E4FCA894C0")),
+				"counter mode keystream of rfc3711, B.2");
+
+		Cipher reference = Cipher.getInstance("AES/CTR/NoPadding");
+		Random random = new Random(1);
+		int[] lengths = { 1, 15, 16, 17, 160, 1000, 33, 5 };
+		for (int i = 0; i < lengths.length; i++) {
+			int length = lengths[i];
+			random.nextBytes(iv);
+			// counters carrying into the higher bytes
+			for (int j = 16 - (i % 4) * 2; j < 16; j++) {
+				iv[j] = (byte) 0xff;
+			}
+			byte[] data = new byte[length + 8];
+			random.nextBytes(data);
+			reference.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
+					new IvParameterSpec(iv));
+			byte[] expected = (byte[]) data.clone();
+			reference.doFinal(data, 3, length, expected, 3);
+			byte[] ivCopy = (byte[]) iv.clone();
+			suite.encryptCounterMode(iv, data, 3, length);
+			check(Arrays.equals(data, expected), "counter mode of "
+					+ length + " bytes as the JCE");
+			check(Arrays.equals(iv, ivCopy), "counter mode of "
+					+ length + " bytes leaves the IV");
+		}
+	}
+
+	/*
+	 * Returns a sender and a receiver sharing the same keys
+	 */
+	SRTP[] createSessions(AuthenticationMode authMode, Executor prefetch) {
+		SRTPBenchmark benchmark = new SRTPBenchmark(0);
+		byte[] key = new byte[16];
+		byte[] salt = new byte[authMode.getSaltBits(CipherType.AES1) / 8];
+		for (int i = 0; i < salt.length; i++) {
+			key[i] = (byte) i;
+			salt[i] = (byte) (i * 3);
+		}
+		SRTP[] sessions = new SRTP[2];
+		for (int i = 0; i < 2; i++) {
+			sessions[i] = new SRTP(benchmark.platform, authMode);
+			sessions[i].setKeystreamPrefetch(prefetch, 16, 1500);
+			sessions[i].setTxMasterKey(key);
+			sessions[i].setTxMasterSalt(salt);
+			sessions[i].setRxMasterKey(key);
+			sessions[i].setRxMasterSalt(salt);
+			sessions[i].startNewSession();
+		}
+		return sessions;
+	}
+
+	static ByteBuffer packet(boolean direct, int seq, byte[] payload, int room) {
+		ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(12
+				+ payload.length + room) : ByteBuffer.allocate(12
+				+ payload.length + room);
+		buffer.put((byte) 0x80).put((byte) 0).putShort((short) seq);
+		buffer.putInt(seq * 160).putInt(0x12345678).put(payload);
+		buffer.flip();
+		return buffer;
+	}
+
+	static byte[] contents(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	void checkDirectBuffers(AuthenticationMode authMode, Executor prefetch) {
+		String name = authMode + (prefetch != null ? " prefetch" : "");
+		SRTP[] heap = createSessions(authMode, prefetch);
+		SRTP[] direct = createSessions(authMode, prefetch);
+		int tagLength = authMode.getTagBytes();
+		Random random = new Random(2);
+		int failures = 0;
+		for (int seq = 1; seq <= 50; seq++) {
+			byte[] payload = new byte[1 + (seq * 37) % 300];
+			random.nextBytes(payload);
+			ByteBuffer expected = heap[0].protect(packet(false, seq, payload,
+					tagLength));
+			ByteBuffer protectedPacket = direct[0].protect(packet(true, seq,
+					payload, tagLength));
+			if (expected == null || protectedPacket == null
+					|| !Arrays.equals(contents(expected),
+							contents(protectedPacket))) {
+				failures++;
+				continue;
+			}
+			// forged payload, rejected and left as received, without taking
+			// the index of the genuine packet which follows
+			ByteBuffer forged = ByteBuffer.allocateDirect(protectedPacket
+					.remaining());
+			forged.put(protectedPacket.duplicate()).flip();
+			forged.put(12, (byte) (forged.get(12) ^ 1));
+			byte[] received = contents(forged);
+			if (direct[1].unprotect(forged) != SRTP.UNPROTECT_INVALID_PACKET
+					|| !Arrays.equals(contents(forged), received)) {
+				failures++;
+			}
+			if (direct[1].unprotect(protectedPacket) != SRTP.UNPROTECT_OK
+					|| !Arrays.equals(contents(protectedPacket), contents(packet(
+							false, seq, payload, 0)))) {
+				failures++;
+			}
+		}
+		check(failures == 0, name + ": " + failures
+				+ " direct buffer packets differ from heap buffers");
+		for (int i = 0; i < 2; i++) {
+			heap[i].endSession();
+			direct[i].endSession();
+		}
+	}
+
+	/*
+	 * Protects on one thread while the receive context of the same session
+	 * unprotects on another, as the RTP stack does, without a lock
+	 */
+	void checkContextThreads(AuthenticationMode authMode) throws Exception {
+		final SRTP[] sessions = createSessions(authMode, null);
+		final int count = 20000;
+		final int tagLength = authMode.getTagBytes();
+		final byte[][] sent = new byte[count][];
+		final byte[][] received = new byte[count][];
+		final ByteBuffer[] outgoing = new ByteBuffer[count];
+		final ByteBuffer[] incoming = new ByteBuffer[count];
+		Random random = new Random(4);
+		for (int i = 0; i < count; i++) {
+			sent[i] = new byte[1 + random.nextInt(300)];
+			random.nextBytes(sent[i]);
+			received[i] = new byte[1 + random.nextInt(300)];
+			random.nextBytes(received[i]);
+			incoming[i] = sessions[1].protect(packet(false, i + 1,
+					received[i], tagLength));
+		}
+		final int[] failures = new int[2];
+		Thread sender = new Thread() {
+			public void run() {
+				SrtpSendContext context = sessions[0].getSendContext();
+				for (int i = 0; i < count; i++) {
+					outgoing[i] = context.protect(packet(false, i + 1,
+							sent[i], tagLength));
+				}
+			}
+		};
+		Thread receiver = new Thread() {
+			public void run() {
+				SrtpReceiveContext context = sessions[0].getReceiveContext();
+				for (int i = 0; i < count; i++) {
+					if (context.unprotect(incoming[i]) != SRTP.UNPROTECT_OK
+							|| !Arrays.equals(contents(incoming[i]),
+									contents(packet(false, i + 1,
+											received[i], 0)))) {
+						failures[1]++;
+					}
+				}
+			}
+		};
+		sender.start();
+		receiver.start();
+		sender.join();
+		receiver.join();
+		for (int i = 0; i < count; i++) {
+			if (outgoing[i] == null
+					|| sessions[1].unprotect(outgoing[i]) != SRTP.UNPROTECT_OK
+					|| !Arrays.equals(contents(outgoing[i]), contents(packet(
+							false, i + 1, sent[i], 0)))) {
+				failures[0]++;
+			}
+		}
+		check(failures[0] == 0 && failures[1] == 0, authMode + ": "
+				+ failures[0] + " sent and " + failures[1]
+				+ " received packets wrong on concurrent threads");
+		sessions[0].endSession();
+		sessions[1].endSession();
+	}
+
+	void checkBatch(AuthenticationMode authMode) {
+		SRTP[] sessions = createSessions(authMode, null);
+		int count = 20;
+		SRTPBenchmark.BenchmarkPacket[] packets =
+				new SRTPBenchmark.BenchmarkPacket[count];
+		byte[][] payloads = new byte[count][];
+		Random random = new Random(3);
+		for (int i = 0; i < count; i++) {
+			payloads[i] = new byte[10 + 13 * i];
+			random.nextBytes(payloads[i]);
+			if (i != 5) {
+				packets[i] = new SRTPBenchmark.BenchmarkPacket(
+						payloads[i].length);
+				packets[i].reset(i + 1, payloads[i].length);
+				System.arraycopy(payloads[i], 0, packets[i].getPacket(), 12,
+						payloads[i].length);
+			}
+		}
+		int[] results = new int[count];
+		check(sessions[0].protectBatch(packets, count, results) == count - 1,
+				authMode + ": batch protected");
+		check(results[5] == SRTP.UNPROTECT_NULL_PACKET && results[4] == 0,
+				authMode + ": batch protect results");
+		// forged payload
+		packets[9].getPacket()[12] ^= 1;
+		int unprotected = sessions[1].unprotectBatch(packets, count, results);
+		check(unprotected == count - 2, authMode + ": " + unprotected
+				+ " packets of the batch unprotected");
+		check(results[5] == SRTP.UNPROTECT_NULL_PACKET
+				&& results[9] == SRTP.UNPROTECT_INVALID_PACKET, authMode
+				+ ": batch unprotect results");
+		int differ = 0;
+		for (int i = 0; i < count; i++) {
+			if (i == 5 || i == 9) {
+				continue;
+			}
+			byte[] payload = new byte[packets[i].getPayloadLength()];
+			System.arraycopy(packets[i].getPacket(), 12, payload, 0,
+					payload.length);
+			if (results[i] != SRTP.UNPROTECT_OK
+					|| !Arrays.equals(payload, payloads[i])) {
+				differ++;
+			}
+		}
+		check(differ == 0, authMode + ": " + differ
+				+ " batch packets differ from their payload");
+		sessions[0].endSession();
+		sessions[1].endSession();
+	}
+
+	void checkGcm() throws Exception {
+		SRTP[] sessions = createSessions(AuthenticationMode.GCM, null);
+		SrtpSendContext context = sessions[0].getSendContext();
+		// rfc7714, 16.1.1: session key and salt, SSRC, ROC 0 and SEQ of the
+		// packet
+		byte[] key = hex("000102030405060708090a0b0c0d0e0f");
+		byte[] salt = hex("517569642070726f2071756f");
+		SessionKeys keys = new SessionKeys(0, Long.MAX_VALUE, key, null, salt,
+				null, null, context.platform.getCrypto().createAESGCM(key,
+						16));
+		// "Gallia est omnis divisa in partes tres", room for the tag
+		byte[] plain = hex("8040f17b8041f8d35501a0b2"
+				+ "47616c6c696120657374206f6d6e69732064697669736120"
+				+ "696e207061727465732074726573"
+				+ "00000000000000000000000000000000");
+		byte[] expected = hex("8040f17b8041f8d35501a0b2"
+				+ "f24de3a3fb34de6cacba861c9d7e4bcabe633bd50d294e6f"
+				+ "42a5f47a51c7d19b36de3adf8833899d7f27beb16a9152cf"
+				+ "765ee4390cce");
+		byte[] packet = (byte[]) plain.clone();
+		int ret = context.transformAEAD(packet, null, 0, 12, 38, 0x5501a0b2,
+				0, 0xf17b, keys, true);
+		check(ret == SRTP.UNPROTECT_OK
+				&& Arrays.equals(Arrays.copyOf(packet, 66), expected),
+				"AES-GCM packet of rfc7714, 16.1.1");
+		ret = context.transformAEAD(packet, null, 0, 12, 54, 0x5501a0b2, 0,
+				0xf17b, keys, false);
+		check(ret == SRTP.UNPROTECT_OK
+				&& Arrays.equals(Arrays.copyOf(packet, 50), Arrays.copyOf(
+						plain, 50)), "AES-GCM packet of rfc7714 decrypted");
+		// a fresh cipher, the JCE refuses to encrypt twice under one IV
+		keys = new SessionKeys(0, Long.MAX_VALUE, key, null, salt, null,
+				null, context.platform.getCrypto().createAESGCM(key, 16));
+		ByteBuffer buffer = ByteBuffer.allocateDirect(66);
+		buffer.put(plain, 0, 66).flip();
+		ret = context.transformAEAD(null, buffer, 0, 12, 38, 0x5501a0b2, 0,
+				0xf17b, keys, true);
+		check(ret == SRTP.UNPROTECT_OK
+				&& Arrays.equals(contents(buffer), expected),
+				"AES-GCM packet of rfc7714 in a direct buffer");
+		sessions[0].endSession();
+		sessions[1].endSession();
+
+		String tags = ZRTP.getOfferedAuthTags("AES1");
+		boolean distinct = tags.length() % 4 == 0;
+		for (int i = 0; i < tags.length(); i += 4) {
+			distinct &= tags.indexOf(tags.substring(i, i + 4)) == i;
+		}
+		check(distinct && tags.startsWith("HS32HS80"), "Hello auth tags "
+				+ tags + " listed once each");
+	}
+
+	/*
+	 * SHA-1 digest of a platform which cannot copy digests
+	 */
+	Digest uncopyableSha1(Platform platform) {
+		final Digest digest = platform.getCrypto().createDigestSHA1();
+		return new Digest() {
+			public byte[] getDigest() {
+				return digest.getDigest();
+			}
+
+			public int getDigest(byte[] buffer, int offset, boolean reset) {
+				return digest.getDigest(buffer, offset, reset);
+			}
+
+			public int getDigestLength() {
+				return digest.getDigestLength();
+			}
+
+			public void update(byte[] buffer) {
+				digest.update(buffer);
+			}
+
+			public void update(byte[] buffer, int offset, int length) {
+				digest.update(buffer, offset, length);
+			}
+
+			public void update(ByteBuffer buffer) {
+				digest.update(buffer);
+			}
+
+			public Digest copy() {
+				return null;
+			}
+		};
+	}
+
+	void checkAuthenticator(int keyLength, boolean copyable) throws Exception {
+		SRTPBenchmark benchmark = new SRTPBenchmark(0);
+		String name = "HMAC-SHA1 key " + keyLength
+				+ (copyable ? "" : " uncopyable");
+		Random random = new Random(keyLength);
+		byte[] key = new byte[keyLength];
+		random.nextBytes(key);
+		Mac mac = Mac.getInstance("HmacSHA1");
+		mac.init(new SecretKeySpec(key, "HmacSHA1"));
+		SRTPAuthenticator authenticator = copyable ? new SRTPAuthenticator(
+				benchmark.platform, key) : new SRTPAuthenticator(
+				uncopyableSha1(benchmark.platform),
+				uncopyableSha1(benchmark.platform), key);
+		int[] lengths = { 0, 1, 55, 56, 60, 64, 172, 1212 };
+		for (int i = 0; i < lengths.length; i++) {
+			int length = lengths[i];
+			byte[] packet = new byte[length + 20];
+			random.nextBytes(packet);
+			int roc = random.nextInt();
+			mac.update(packet, 0, length);
+			mac.update(new byte[] { (byte) (roc >>> 24), (byte) (roc >>> 16),
+					(byte) (roc >>> 8), (byte) roc });
+			byte[] expected = mac.doFinal();
+			authenticator.computeTag(packet, 0, length, roc, packet, length,
+					20);
+			check(Arrays.equals(Arrays.copyOfRange(packet, length,
+					length + 20), expected), name + " tag of " + length
+					+ " bytes");
+			check(authenticator.verifyTag(packet, 0, length, roc, packet,
+					length, 10), name + " verifies " + length + " bytes");
+			ByteBuffer buffer = ByteBuffer.allocateDirect(packet.length);
+			buffer.put(packet).flip();
+			buffer.put(length, (byte) (packet[length] ^ 1));
+			check(!authenticator.verifyTag(buffer, 0, length, roc, length,
+					10), name + " rejects a forged tag of " + length
+					+ " bytes");
+			authenticator.computeTag(buffer, 0, length, roc, length, 20);
+			check(Arrays.equals(contents(buffer), packet), name
+					+ " tag of " + length + " bytes in a direct buffer");
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Logger.getLogger("").setLevel(Level.WARNING);
+		SRTPTest test = new SRTPTest();
+		test.logger.setLevel(Level.INFO);
+		int[] sizes = { 1, 63, 64, 100, 1024 };
+		for (int i = 0; i < sizes.length; i++) {
+			test.checkReplayBoundary(sizes[i]);
+		}
+		int[] kdrs = { 0, 1, 4, 10, 48 };
+		for (int i = 0; i < kdrs.length; i++) {
+			test.checkKdr(kdrs[i], 5000);
+		}
+		test.checkCounterMode();
+		test.checkDirectBuffers(AuthenticationMode.HS80, null);
+		test.checkDirectBuffers(AuthenticationMode.HS32, null);
+		test.checkDirectBuffers(AuthenticationMode.HS80,
+				new CountingExecutor());
+		test.checkDirectBuffers(AuthenticationMode.GCM, null);
+		test.checkContextThreads(AuthenticationMode.HS80);
+		test.checkContextThreads(AuthenticationMode.GCM);
+		test.checkBatch(AuthenticationMode.HS80);
+		test.checkBatch(AuthenticationMode.GCM);
+		test.checkGcm();
+		test.checkAuthenticator(20, true);
+		test.checkAuthenticator(20, false);
+		test.checkAuthenticator(100, true);
+		test.checkAuthenticator(100, false);
+		test.finish();
+	}
+}
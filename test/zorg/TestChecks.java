@@ -0,0 +1,29 @@
+package zorg;
+
+import java.util.logging.Logger;
+
+/*
+ * Base of the test and benchmark harnesses: a failed check is logged, and
+ * makes finish() end the run with a non-zero exit status
+ */
+public abstract class TestChecks {
+
+	Logger logger = Logger.getLogger(getClass().getName());
+
+	volatile boolean failed;
+
+	void check(boolean condition, String what) {
+		if (!condition) {
+			logger.severe("FAILED: " + what);
+			failed = true;
+		}
+	}
+
+	/*
+	 * Logs the result of the run and exits, with status 1 if a check failed
+	 */
+	void finish() {
+		logger.info(failed ? "FAILED" : "PASSED");
+		System.exit(failed ? 1 : 0);
+	}
+}
@@ -0,0 +1,170 @@
+package zorg;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import zorg.platform.ZrtpListener;
+
+/*
+ * Threadless ZRTP handshakes multiplexed on one thread
+ *
+ * Run with: java -cp classes:test-classes zorg.ThreadlessHandshakeTest [pairs] [loss]
+ *
+ * Runs the handshakes of pairs of ZRTP endpoints from a single event loop,
+ * with startSessionThreadless(), onPacket() and onTimer(). Messages are
+ * delivered to the peer in order; with a loss value n every n-th message is
+ * dropped, so that retransmissions are driven by the timeouts. An endpoint
+ * that completes starts sending SRTP, which stands in for a lost Conf2ACK
+ * at its peer. Messages are passed at an offset in one receive buffer that
+ * each delivery overwrites, so the sessions must not keep it.
+ */
+public class ThreadlessHandshakeTest extends TestChecks {
+
+	class Endpoint implements ZrtpListener {
+		final ZRTP zrtp;
+		Endpoint peer;
+		long timeout = -1;
+		boolean completed;
+		boolean success;
+		long completionTime;
+
+		Endpoint(String label) {
+			zrtp = new ZRTP(new zorg.platform.j2se.PlatformImpl(label));
+			zrtp.setProtocolManager(this);
+		}
+
+		public boolean keyExchangeCompleted(byte[] txMasterKey,
+				byte[] txMasterSalt, byte[] rxMasterKey, byte[] rxMasterSalt,
+				int firstSeqNum) {
+			return true;
+		}
+
+		public void securityWarning(int securityWarningType, String warning) {
+		}
+
+		public void sessionNegotiationCompleted(boolean success, String msg) {
+			this.success = success;
+		}
+	}
+
+	final int pairs;
+	final int loss;
+	final LinkedList deliveries = new LinkedList();
+	int sent;
+
+	ThreadlessHandshakeTest(int pairs, int loss) {
+		this.pairs = pairs;
+		this.loss = loss;
+	}
+
+	void handle(Endpoint endpoint, ZrtpOutput output, long start) {
+		for (int i = 0; i < output.getPacketCount(); i++) {
+			sent++;
+			if (loss > 0 && sent % loss == 0) {
+				continue;
+			}
+			deliveries.add(new Object[] { endpoint.peer, output.getPacket(i) });
+		}
+		endpoint.timeout = output.getTimeout();
+		if (output.isCompleted() && !endpoint.completed) {
+			endpoint.completed = true;
+			endpoint.completionTime = System.currentTimeMillis() - start;
+			if (endpoint.success) {
+				deliveries.add(new Object[] { endpoint.peer, null });
+			}
+		}
+	}
+
+	// One receive buffer for all the endpoints, as a socket read into
+	final byte[] datagram = new byte[12 + IncomingMessageQueue.MAX_MESSAGE_LENGTH
+			+ 4];
+
+	void deliver(Endpoint endpoint, byte[] packet, long start) {
+		if (packet != null) {
+			// the message between the RTP header and CRC of the datagram,
+			// which the next delivery overwrites
+			System.arraycopy(packet, 0, datagram, 12, packet.length);
+			handle(endpoint, endpoint.zrtp.onPacket(datagram, 12,
+					packet.length), start);
+		} else if (!endpoint.completed) {
+			endpoint.zrtp.successfulSrtpUnprotect();
+			handle(endpoint, endpoint.zrtp.onTimer(), start);
+		}
+	}
+
+	void run() {
+		Endpoint[] endpoints = new Endpoint[pairs * 2];
+		for (int i = 0; i < pairs; i++) {
+			endpoints[2 * i] = new Endpoint("A" + i);
+			endpoints[2 * i + 1] = new Endpoint("B" + i);
+			endpoints[2 * i].peer = endpoints[2 * i + 1];
+			endpoints[2 * i + 1].peer = endpoints[2 * i];
+		}
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < endpoints.length; i++) {
+			handle(endpoints[i], endpoints[i].zrtp.startSessionThreadless(),
+					start);
+		}
+		int completed = 0;
+		while (completed < endpoints.length) {
+			while (!deliveries.isEmpty()) {
+				Object[] delivery = (Object[]) deliveries.removeFirst();
+				deliver((Endpoint) delivery[0], (byte[]) delivery[1], start);
+			}
+			long now = System.currentTimeMillis();
+			long next = Long.MAX_VALUE;
+			completed = 0;
+			for (int i = 0; i < endpoints.length; i++) {
+				Endpoint endpoint = endpoints[i];
+				if (endpoint.timeout >= 0 && endpoint.timeout <= now) {
+					handle(endpoint, endpoint.zrtp.onTimer(), start);
+				}
+				if (endpoint.timeout >= 0) {
+					next = Math.min(next, endpoint.timeout);
+				}
+				if (endpoint.completed) {
+					completed++;
+				}
+			}
+			if (deliveries.isEmpty() && completed < endpoints.length) {
+				if (next == Long.MAX_VALUE) {
+					break;
+				}
+				try {
+					Thread.sleep(Math.max(1, next - System.currentTimeMillis()));
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		long time = System.currentTimeMillis() - start;
+		int succeeded = 0;
+		long totalCompletion = 0;
+		for (int i = 0; i < endpoints.length; i++) {
+			if (endpoints[i].success) {
+				succeeded++;
+			}
+			totalCompletion += endpoints[i].completionTime;
+		}
+		logger.info(pairs + " handshakes on one thread: " + succeeded + "/"
+				+ endpoints.length + " endpoints succeeded in " + time
+				+ " ms, average completion " + (totalCompletion / endpoints.length)
+				+ " ms, " + sent + " messages, threads "
+				+ ManagementFactory.getThreadMXBean().getThreadCount()
+				+ " (" + threads + " before)");
+		check(succeeded == endpoints.length, "all the handshakes succeeded");
+	}
+
+	public static void main(String[] args) {
+		int pairs = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int loss = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		Logger.getLogger("").setLevel(Level.WARNING);
+		ThreadlessHandshakeTest test = new ThreadlessHandshakeTest(pairs, loss);
+		test.logger.setLevel(Level.INFO);
+		test.run();
+		test.finish();
+	}
+}
@@ -0,0 +1,968 @@
+package zorg;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import zorg.platform.AddressBook;
+import zorg.platform.BatchPersistentHashtable;
+import zorg.platform.PersistentHashtable;
+import zorg.platform.Platform;
+import zorg.platform.j2se.FilePersistentHashtable;
+import zorg.platform.j2se.PersistentHashtableImpl;
+
+/*
+ * Tests of the cache layer in front of the persistent ZRTP cache
+ *
+ * Run with: java -cp classes:test-classes zorg.ZrtpCacheStoreTest [entries]
+ *
+ * Checks the decoded entries: read from the backend once, then served from
+ * memory until evicted in least recently used order, written through on
+ * change, counted as hits, misses and evictions, and decoded from every
+ * entry format, and read under the backend keys of earlier versions, then
+ * moved to keys distinct for every ZID. Checks lookups by phone number
+ * through the number index against an address book matching numbers as on
+ * Android, by the last 8 digits when one of them is in international
+ * format: the index must find what a scan of every entry finds, follow puts
+ * and removes, and leave out numbers sharing the key without matching.
+ * Checks the write-behind mode: changes of a ZID coalesced, seen by reads
+ * and the number index while pending, written in one batch after the flush
+ * delay or on close, kept pending when the backend fails, and flushed when
+ * a process writing behind exits without closing the store. Checks the
+ * sweeps of expired entries: in order of expiry, within their budget,
+ * leaving the entries yet to expire, following changes of the expiry times,
+ * in the background, and written through without holding the store while
+ * the backend removes them, a change meanwhile cancelling the remove. Checks the ZRTPCache operations on the store, then
+ * compares the time of a lookup of a cached entry with that of one read
+ * from the backend, the time of a lookup through the number index with that
+ * of the scan it replaces, for a number of an unknown caller, and the time
+ * of a burst of updates to a log forcing each change to the disk, written
+ * through against written behind, and the longest pause of the sweeps of
+ * half of the entries expired with that of a scan for them.
+ */
+public class ZrtpCacheStoreTest extends TestChecks {
+
+	/*
+	 * Matching of AndroidContact
+	 */
+	static class FuzzyAddressBook implements AddressBook {
+		static final int LENGTH_MIN = 8;
+
+		public boolean isInAddressBook(String phoneNumber) {
+			return false;
+		}
+
+		public boolean matchingNumbers(String number1, String number2) {
+			if (number1 == null || number2 == null) {
+				return false;
+			}
+			if (number1.length() < LENGTH_MIN || number2.length() < LENGTH_MIN) {
+				return number1.equals(number2);
+			}
+			if (number1.startsWith("+") || number1.startsWith("00")
+					|| number2.startsWith("+") || number2.startsWith("00")) {
+				return getNumberKey(number1).equals(getNumberKey(number2));
+			}
+			return number1.equals(number2);
+		}
+
+		public String getNumberKey(String phoneNumber) {
+			if (phoneNumber.length() < LENGTH_MIN) {
+				return phoneNumber;
+			}
+			return phoneNumber.substring(phoneNumber.length() - LENGTH_MIN);
+		}
+	}
+
+	/*
+	 * Backend counting its reads, writes and batches, failing on demand
+	 */
+	static class CountingHashtable extends PersistentHashtableImpl implements
+			BatchPersistentHashtable {
+		private static final long serialVersionUID = 1L;
+		int reads;
+		int writes;
+		int batches;
+		int batchDepth;
+		boolean fail;
+
+		public ZrtpCacheEntry get(String zid) {
+			reads++;
+			return super.get(zid);
+		}
+
+		public void put(String zid, byte[] data, String phoneNumber) {
+			if (fail) {
+				throw new IllegalStateException("backend failure");
+			}
+			writes++;
+			super.put(zid, data, phoneNumber);
+		}
+
+		public void remove(String zid) {
+			writes++;
+			super.remove(zid);
+		}
+
+		public void beginBatch() {
+			batches++;
+			batchDepth++;
+		}
+
+		public void endBatch() {
+			batchDepth--;
+		}
+	}
+
+	/*
+	 * Backend whose writes wait while it is held
+	 */
+	static class HeldHashtable extends CountingHashtable {
+		private static final long serialVersionUID = 1L;
+		private boolean held;
+		private boolean waiting;
+
+		public void put(String zid, byte[] data, String phoneNumber) {
+			if (await()) {
+				super.put(zid, data, phoneNumber);
+			}
+		}
+
+		public void remove(String zid) {
+			if (await()) {
+				super.remove(zid);
+			}
+		}
+
+		private synchronized boolean await() {
+			waiting = true;
+			notifyAll();
+			try {
+				while (held) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				return false;
+			}
+			return true;
+		}
+
+		synchronized void hold() {
+			held = true;
+			waiting = false;
+		}
+
+		synchronized void release() {
+			held = false;
+			notifyAll();
+		}
+
+		synchronized void awaitWriter() throws InterruptedException {
+			while (!waiting) {
+				wait();
+			}
+		}
+	}
+
+	final AddressBook addressBook = new FuzzyAddressBook();
+	final Platform platform = new zorg.platform.j2se.PlatformImpl("A");
+
+	/*
+	 * The lookup of isNewZidForTrustedUser before the number index
+	 */
+	String scan(PersistentHashtable backend, String number) {
+		for (Enumeration e = backend.keys(); e.hasMoreElements();) {
+			String key = (String) e.nextElement();
+			ZrtpCacheEntry ce = backend.get(key);
+			if (ce.getNumber() != null
+					&& addressBook.matchingNumbers(ce.getNumber(), number)) {
+				return key;
+			}
+		}
+		return null;
+	}
+
+	void checkLookup(ZrtpCacheStore store, PersistentHashtable backend,
+			String number, String zid) {
+		String found = store.findByNumber(number);
+		check(zid == null ? found == null : zid.equals(found), "lookup of "
+				+ number + " found " + found + ", expected " + zid);
+		check(zid == null ? scan(backend, number) == null : zid.equals(scan(
+				backend, number)), "scan of " + number);
+	}
+
+	static byte[] zid(int i) {
+		byte[] zid = new byte[12];
+		zid[0] = (byte) 0xc3; // not a character of its own in UTF-8
+		zid[8] = (byte) (i >> 24);
+		zid[9] = (byte) (i >> 16);
+		zid[10] = (byte) (i >> 8);
+		zid[11] = (byte) i;
+		return zid;
+	}
+
+	static String key(byte[] zid) {
+		return ZrtpCacheStore.backendKey(zid);
+	}
+
+	/*
+	 * ZID of ASCII bytes, a distinct backend key in any charset
+	 */
+	static byte[] asciiZid(int i) {
+		byte[] zid = new byte[12];
+		for (int j = 11; j >= 8; j--) {
+			zid[j] = (byte) (i & 0x7f);
+			i >>= 7;
+		}
+		return zid;
+	}
+
+	static byte[] secret(int i) {
+		byte[] rs = new byte[32];
+		rs[0] = (byte) i;
+		rs[31] = (byte) (i >> 8);
+		return rs;
+	}
+
+	static boolean same(RetainedSecrets a, RetainedSecrets b) {
+		return a != null && b != null && a.expiryTime == b.expiryTime
+				&& a.trust == b.trust && Arrays.equals(a.rs1, b.rs1)
+				&& Arrays.equals(a.rs2, b.rs2) && a.dhTime == b.dhTime
+				&& a.presharedCount == b.presharedCount
+				&& (a.number == null ? b.number == null : a.number
+						.equals(b.number));
+	}
+
+	void checkEncoding() {
+		RetainedSecrets entry = new RetainedSecrets(0x0102030405060708L, true,
+				secret(1), secret(2), 0x1112131415161718L, 0x21222324,
+				"+3912345678");
+		byte[] data = entry.encode();
+		check(data.length == 85 && data[0] == 8 && data[8] == 1
+				&& data[73] == 0x18 && data[81] == 0x24, "encoded entry");
+		check(same(RetainedSecrets.decode(data, entry.number), entry),
+				"decoded entry");
+		entry = new RetainedSecrets(1000, false, secret(1), null, 0, 0, null);
+		check(same(RetainedSecrets.decode(entry.encode(), null), entry),
+				"decoded entry without rs2");
+
+		// entries without the DH time and Preshared count, and without trust
+		byte[] old = new byte[73];
+		old[0] = 100;
+		old[8] = 1;
+		System.arraycopy(secret(1), 0, old, 9, 32);
+		System.arraycopy(secret(2), 0, old, 41, 32);
+		check(same(RetainedSecrets.decode(old, null), new RetainedSecrets(100,
+				true, secret(1), secret(2), 0, 0, null)), "73 byte entry");
+		check(same(RetainedSecrets.decode(Arrays.copyOf(old, 41), null),
+				new RetainedSecrets(100, true, secret(1), null, 0, 0, null)),
+				"41 byte entry");
+		byte[] oldest = new byte[72];
+		oldest[0] = 100;
+		System.arraycopy(secret(1), 0, oldest, 8, 32);
+		System.arraycopy(secret(2), 0, oldest, 40, 32);
+		check(same(RetainedSecrets.decode(oldest, null), new RetainedSecrets(
+				100, false, secret(1), secret(2), 0, 0, null)), "72 byte entry");
+		check(same(RetainedSecrets.decode(Arrays.copyOf(oldest, 40), null),
+				new RetainedSecrets(100, false, secret(1), null, 0, 0, null)),
+				"40 byte entry");
+		check(RetainedSecrets.decode(new byte[50], null) == null,
+				"invalid entry");
+	}
+
+	void checkEntries() {
+		CountingHashtable backend = new CountingHashtable();
+		ZrtpCacheStore store = new ZrtpCacheStore(backend, addressBook,
+				platform.getLogger());
+		store.setCapacity(2);
+		// and looked up under its earlier key, if another
+		check(store.getEntry(zid(1)) == null
+				&& backend.reads == (legacyKey(zid(1)).equals(key(zid(1))) ? 1
+						: 2), "missing entry read");
+		RetainedSecrets[] entries = new RetainedSecrets[4];
+		for (int i = 1; i <= 3; i++) {
+			entries[i] = new RetainedSecrets(1000 + i, i == 1, secret(i),
+					null, 0, i, "+39" + i);
+			store.putEntry(zid(i), entries[i]);
+		}
+		check(backend.writes == 3, "entries written through");
+		check(same(RetainedSecrets.decode(backend.get(key(zid(2)))
+				.getData(), "+392"), entries[2]), "entry in the backend");
+		// 1 evicted for 3
+		backend.reads = 0;
+		check(same(store.getEntry(zid(3)), entries[3])
+				&& same(store.getEntry(zid(2)), entries[2])
+				&& backend.reads == 0, "entries served from memory");
+		check(store.getEvictions() == 1, "eviction counted");
+		check(same(store.getEntry(zid(1)), entries[1]) && backend.reads == 1,
+				"evicted entry read again");
+		// 3, least recently used, evicted for 1
+		check(store.getEvictions() == 2, "second eviction counted");
+		check(same(store.getEntry(zid(2)), entries[2]) && backend.reads == 1,
+				"recently used entry kept");
+		check(store.getHits() == 3 && store.getMisses() == 2
+				&& store.getHitRate() == 0.6, "hits and misses counted");
+
+		// changes by backend key drop the decoded entry
+		store.put(key(zid(2)), entries[3].encode(), null);
+		check(same(store.getEntry(zid(2)), entries[3].withNumber(null)),
+				"entry changed by key");
+		store.remove(key(zid(2)));
+		check(store.getEntry(zid(2)) == null, "entry removed by key");
+		store.removeEntry(zid(1));
+		check(store.getEntry(zid(1)) == null
+				&& backend.get(key(zid(1))) == null, "entry removed");
+
+		store.setLocalZid(zid(9));
+		backend.reads = 0;
+		check(Arrays.equals(store.getLocalZid(), zid(9)) && backend.reads == 0,
+				"local ZID kept");
+		store = new ZrtpCacheStore(backend, addressBook, platform.getLogger());
+		check(Arrays.equals(store.getLocalZid(), zid(9)), "local ZID read");
+	}
+
+	/*
+	 * Backend key of a ZID in earlier versions
+	 */
+	static String legacyKey(byte[] zid) {
+		return new String(zid);
+	}
+
+	void checkLegacyKeys() {
+		CountingHashtable backend = new CountingHashtable();
+		ZrtpCacheStore store = new ZrtpCacheStore(backend, addressBook,
+				platform.getLogger());
+		RetainedSecrets entry = new RetainedSecrets(1000, true, secret(1),
+				null, 0, 0, "+391");
+		backend.put(legacyKey(zid(1)), entry.encode(), entry.number);
+		check(same(store.getEntry(zid(1)), entry), "entry under earlier key");
+		check(same(RetainedSecrets.decode(backend.get(key(zid(1))).getData(),
+				"+391"), entry)
+				&& (legacyKey(zid(1)).equals(key(zid(1)))
+						|| backend.get(legacyKey(zid(1))) == null),
+				"entry moved to its key");
+		backend.put(legacyKey(zid(2)), entry.encode(), entry.number);
+		store.removeEntry(zid(2));
+		check(backend.get(legacyKey(zid(2))) == null
+				&& store.getEntry(zid(2)) == null,
+				"entry removed under earlier key");
+
+		// ZIDs whose earlier keys are equal, as in UTF-8
+		byte[] a = zid(3);
+		byte[] b = zid(3);
+		a[1] = (byte) 0xff;
+		b[1] = (byte) 0xfe;
+		check(!key(a).equals(key(b)), "distinct keys");
+		store.putEntry(a, entry);
+		store.putEntry(b, entry.withNumber("+392"));
+		store = new ZrtpCacheStore(backend, addressBook, platform.getLogger());
+		check(same(store.getEntry(a), entry)
+				&& same(store.getEntry(b), entry.withNumber("+392")),
+				"entries of ZIDs sharing their earlier key");
+	}
+
+	void checkNumberIndex() {
+		PersistentHashtable backend = new PersistentHashtableImpl();
+		byte[] data = new byte[53];
+		// entries already in the backend when the index is built
+		backend.put("zid1", data, "+3912345678");
+		backend.put("zid2", data, "1234");
+		backend.put("zid3", data, null);
+		ZrtpCacheStore store = new ZrtpCacheStore(backend, addressBook,
+				platform.getLogger());
+
+		checkLookup(store, backend, "003912345678", "zid1");
+		checkLookup(store, backend, "12345678", "zid1");
+		checkLookup(store, backend, "1234", "zid2");
+		checkLookup(store, backend, "01234", null);
+		checkLookup(store, backend, "99999999", null);
+		check(store.findByNumber(null) == null, "lookup of no number");
+
+		// same key, neither number international: no match
+		store.put("zid4", data, "512340000");
+		checkLookup(store, backend, "412340000", null);
+		checkLookup(store, backend, "512340000", "zid4");
+
+		// number changed, removed, cleared
+		store.put("zid2", data, "+4455556666");
+		checkLookup(store, backend, "1234", null);
+		checkLookup(store, backend, "0044 55556666", "zid2");
+		store.remove("zid4");
+		checkLookup(store, backend, "512340000", null);
+		store.put("zid1", data, null);
+		checkLookup(store, backend, "+3912345678", null);
+		store.put("zid5", data, "+3912345678");
+		checkLookup(store, backend, "12345678", "zid5");
+	}
+
+	void checkZrtpCache() {
+		Platform platform = new zorg.platform.j2se.PlatformImpl("A");
+		ZRTPCache cache = new ZRTPCache(platform);
+		byte[] zid = new byte[12];
+		zid[0] = 1;
+		cache.selectEntry(zid);
+		cache.updateEntry(System.currentTimeMillis() + 60000, true,
+				new byte[32], null, "+3912345678");
+		zid[0] = 2;
+		cache.selectEntry(zid);
+		cache.updateEntry(System.currentTimeMillis() + 60000, false,
+				new byte[32], null, "+3987654321");
+
+		cache = new ZRTPCache(platform);
+		check(!cache.isNewZidForTrustedUser("+3911111111"), "unknown number");
+		check(!cache.isNewZidForTrustedUser("+3987654321"),
+				"untrusted entry of the number");
+		check(cache.isNewZidForTrustedUser("+3912345678"),
+				"trusted entry of the number");
+		check(!cache.isNewZidForTrustedUser("+3912345678"),
+				"trusted entry removed");
+		check(platform.getHashtable().get(key(zid)) == null,
+				"untrusted entry removed");
+
+		zid[0] = 3;
+		cache.selectEntry(zid);
+		check(cache.getRetainedSecret1() == null, "new ZID");
+		cache.updateEntry(System.currentTimeMillis() + 60000, true, secret(3),
+				secret(4), "+3933333333");
+		cache.countCall(true);
+		cache.updateNumber(0, "+3944444444");
+		cache.resetTrust(zid);
+		cache = new ZRTPCache(platform);
+		cache.selectEntry(zid);
+		check(Arrays.equals(cache.getRetainedSecret1(), secret(3))
+				&& Arrays.equals(cache.getRetainedSecret2(), secret(4))
+				&& "+3944444444".equals(cache.getCurrentNumber()),
+				"updated entry");
+		RetainedSecrets entry = RetainedSecrets.decode(platform.getHashtable()
+				.get(key(zid)).getData(), null);
+		check(!entry.trust, "trust reset");
+		cache.updateEntry(0, false, null, null, null);
+		check(platform.getHashtable().get(key(zid)) == null
+				&& new ZrtpCacheStore(platform.getHashtable(), addressBook,
+						platform.getLogger()).getEntry(zid) == null,
+				"expired entry removed");
+	}
+
+	void checkWriteBehind() throws InterruptedException {
+		CountingHashtable backend = new CountingHashtable();
+		ZrtpCacheStore store = new ZrtpCacheStore(backend, addressBook,
+				platform.getLogger());
+		store.setWriteBehind(200);
+		RetainedSecrets entry = null;
+		for (int i = 0; i < 10; i++) {
+			entry = new RetainedSecrets(1000 + i, true, secret(i), null, 0, i,
+					"+3912345678");
+			store.putEntry(zid(1), entry);
+		}
+		store.putEntry(zid(2), entry.withNumber("+3987654321"));
+		check(backend.writes == 0 && store.getPendingWrites() == 2
+				&& store.getCoalescedWrites() == 9, "changes coalesced");
+		// read from the pending changes, not from the decoded entries
+		store.setCapacity(0);
+		check(same(store.getEntry(zid(1)), entry) && backend.reads == 0,
+				"pending change read");
+		check(store.get(key(zid(2))) != null, "pending change read by key");
+		check(key(zid(1)).equals(store.findByNumber("0039 12345678")),
+				"pending change in the number index");
+		store.removeEntry(zid(2));
+		check(store.getEntry(zid(2)) == null
+				&& store.findByNumber("+3987654321") == null,
+				"pending remove read");
+		Thread.sleep(600);
+		check(backend.writes == 2 && backend.batches == 1
+				&& backend.batchDepth == 0 && store.getFlushes() == 1
+				&& store.getFlushedWrites() == 2
+				&& store.getPendingWrites() == 0, "changes flushed in a batch");
+		check(same(RetainedSecrets.decode(backend.get(key(zid(1)))
+				.getData(), entry.number), entry)
+				&& backend.get(key(zid(2))) == null,
+				"flushed changes in the backend");
+
+		// flush on demand, before the delay
+		store.setWriteBehind(60000);
+		store.put(key(zid(3)), entry.encode(), null);
+		store.flush();
+		check(backend.writes == 3 && backend.batches == 2, "changes flushed");
+
+		// failed flush
+		backend.fail = true;
+		store.putEntry(zid(4), entry);
+		store.flush();
+		check(backend.batchDepth == 0 && store.getPendingWrites() == 1
+				&& same(store.getEntry(zid(4)), entry), "failed change pending");
+		backend.fail = false;
+		store.close();
+		check(store.getPendingWrites() == 0
+				&& backend.get(key(zid(4))) != null
+				&& store.getWriteBehind() == 0, "changes flushed on close");
+		backend.writes = 0;
+		store.putEntry(zid(5), entry);
+		check(backend.writes == 1, "change written through after close");
+	}
+
+	/*
+	 * Exiting process, puts entries into a store writing behind to a log
+	 * and exits without closing the store, printing the pending changes
+	 */
+	static void exiter(File file) throws IOException {
+		ZrtpCacheStore store = new ZrtpCacheStore(new FilePersistentHashtable(
+				file, false), new FuzzyAddressBook(),
+				new zorg.platform.j2se.PlatformImpl("A").getLogger());
+		store.setWriteBehind(60000);
+		for (int i = 0; i < 10; i++) {
+			store.putEntry(zid(i), new RetainedSecrets(Long.MAX_VALUE, true,
+					secret(i), null, 0, i, number(i)));
+		}
+		System.out.println(store.getPendingWrites());
+		System.exit(0);
+	}
+
+	void checkShutdownFlush() throws Exception {
+		File file = File.createTempFile("zrtpcache", ".log");
+		try {
+			Process process = new ProcessBuilder(new String[] {
+					new File(new File(System.getProperty("java.home"), "bin"),
+							"java").getPath(), "-cp",
+					System.getProperty("java.class.path"),
+					getClass().getName(), "exiter", file.getPath() })
+					.redirectErrorStream(true).start();
+			BufferedReader out = new BufferedReader(new InputStreamReader(
+					process.getInputStream()));
+			String pending = out.readLine();
+			process.waitFor();
+			FilePersistentHashtable backend = new FilePersistentHashtable(
+					file, false);
+			int found = 0;
+			for (int i = 0; i < 10; i++) {
+				ZrtpCacheEntry ce = backend.get(key(zid(i)));
+				if (ce != null && RetainedSecrets.decode(ce.getData(), null)
+						.presharedCount == i) {
+					found++;
+				}
+			}
+			backend.close();
+			check("10".equals(pending) && found == 10,
+					"pending changes flushed on exit");
+		} finally {
+			file.delete();
+		}
+	}
+
+	/*
+	 * Reads while a flush waits for the backend: entries in memory are read
+	 * at once, as are changes, and a miss waits for the backend alone
+	 */
+	void checkReadDuringFlush() throws InterruptedException {
+		final HeldHashtable backend = new HeldHashtable();
+		final ZrtpCacheStore store = new ZrtpCacheStore(backend, addressBook,
+				platform.getLogger());
+		final RetainedSecrets entry = new RetainedSecrets(1000, true,
+				secret(1), null, 0, 0, "+391");
+		store.putEntry(zid(1), entry);
+		backend.put(key(zid(2)), entry.encode(), entry.number);
+		store.setWriteBehind(60000);
+		store.putEntry(zid(3), entry);
+		backend.hold();
+		Thread flusher = new Thread() {
+			public void run() {
+				store.flush();
+			}
+		};
+		flusher.start();
+		backend.awaitWriter();
+		final RetainedSecrets[] missed = new RetainedSecrets[1];
+		Thread reader = new Thread() {
+			public void run() {
+				missed[0] = store.getEntry(zid(2));
+			}
+		};
+		reader.start();
+		Thread.sleep(100);
+		// released in any case, so that a store held by the miss is reported
+		Thread releaser = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(2000);
+				} catch (InterruptedException e) {
+				}
+				backend.release();
+			}
+		};
+		releaser.start();
+		long start = System.currentTimeMillis();
+		RetainedSecrets hit = store.getEntry(zid(1));
+		store.putEntry(zid(4), entry);
+		RetainedSecrets pending = store.getEntry(zid(4));
+		long time = System.currentTimeMillis() - start;
+		check(same(hit, entry) && same(pending, entry) && time < 1000,
+				"store used during a flush and a miss, in " + time + " ms");
+		backend.release();
+		reader.join();
+		flusher.join();
+		check(same(missed[0], entry), "entry read by the miss");
+		store.close();
+		check(backend.get(key(zid(3))) != null
+				&& backend.get(key(zid(4))) != null, "changes flushed");
+	}
+
+	RetainedSecrets expiring(long expiryTime, int i) {
+		return new RetainedSecrets(expiryTime, true, secret(i), null, 0, 0,
+				number(i));
+	}
+
+	void checkSweep() throws InterruptedException {
+		CountingHashtable backend = new CountingHashtable();
+		ZrtpCacheStore store = new ZrtpCacheStore(backend, addressBook,
+				platform.getLogger());
+		long now = System.currentTimeMillis();
+		store.setLocalZid(zid(0));
+		// expired, from the oldest
+		for (int i = 1; i <= 5; i++) {
+			store.putEntry(zid(i), expiring(now - (6 - i) * 100000L, i));
+		}
+		store.putEntry(zid(6), expiring(now + 1000, 6));
+		store.putEntry(zid(7), expiring(now + 1000000, 7));
+		store.putEntry(zid(8), expiring(Long.MAX_VALUE, 8));
+		// expiry changed, both ways
+		store.putEntry(zid(9), expiring(now - 1000, 9));
+		store.putEntry(zid(9), expiring(now + 1000, 9));
+		store.putEntry(zid(7), expiring(now - 50000, 7));
+		check(key(zid(1)).equals(store.findByNumber(number(1))),
+				"expired entry before the sweep");
+		backend.writes = 0;
+		check(store.sweep(2) == 2 && backend.batches == 1
+				&& backend.writes == 2, "sweep within its budget");
+		check(backend.get(key(zid(1))) == null
+				&& backend.get(key(zid(2))) == null
+				&& backend.get(key(zid(3))) != null,
+				"oldest entries removed first");
+		check(store.sweep(10) == 4 && store.sweep(10) == 0,
+				"remaining expired entries removed");
+		check(store.getReclaimed() == 6 && store.getSweeps() == 2,
+				"removed entries counted");
+		int[] kept = { 6, 8, 9 };
+		for (int i = 0; i < kept.length; i++) {
+			check(store.getEntry(zid(kept[i])) != null, "entry " + kept[i]
+					+ " kept");
+		}
+		check(store.getEntry(zid(7)) == null && store.findByNumber(number(1)) == null,
+				"removed entries not found");
+		check(Arrays.equals(store.getLocalZid(), zid(0))
+				&& backend.get(ZRTPCache.LOCAL_ZID_KEY) != null,
+				"local ZID kept");
+
+		// index built from the backend, entries written behind
+		store = new ZrtpCacheStore(backend, addressBook, platform.getLogger());
+		store.setWriteBehind(60000);
+		store.putEntry(zid(10), expiring(now - 1000, 10));
+		store.put(key(zid(11)), expiring(now - 1000, 11).encode(), null);
+		// at the end of the second of their expiry
+		Thread.sleep(2100 - (System.currentTimeMillis() - now));
+		check(store.sweep(10) == 4 && backend.get(key(zid(6))) != null,
+				"expired entries removed, pending or not");
+		check(store.getEntry(zid(10)) == null && store.getEntry(zid(6)) == null,
+				"removes pending");
+		store.flush();
+		check(backend.get(key(zid(6))) == null
+				&& backend.get(key(zid(9))) == null,
+				"removes flushed");
+		store.close();
+
+		// in the background
+		store = new ZrtpCacheStore(backend, addressBook, platform.getLogger());
+		now = System.currentTimeMillis();
+		for (int i = 0; i < 35; i++) {
+			store.putEntry(asciiZid(1000 + i), expiring(now - 1000 + i, i));
+		}
+		store.setSweeper(50, 10);
+		Thread.sleep(500);
+		check(store.getReclaimed() == 35 && store.getSweeps() == 4,
+				"expired entries removed in the background, " + store.getSweeps()
+						+ " sweeps");
+		store.close();
+		check(backend.size() == 2 && backend.get(key(zid(8))) != null,
+				"only the local ZID and entry 8 left");
+	}
+
+	/*
+	 * Sweep written through while the backend waits: the store is used
+	 * meanwhile, the swept entries read as removed, and a change of one of
+	 * them made meanwhile is kept
+	 */
+	void checkSweepDuringRemove() throws InterruptedException {
+		final HeldHashtable backend = new HeldHashtable();
+		final ZrtpCacheStore store = new ZrtpCacheStore(backend, addressBook,
+				platform.getLogger());
+		long now = System.currentTimeMillis();
+		for (int i = 1; i <= 3; i++) {
+			store.putEntry(zid(i), expiring(now - 100000, i));
+		}
+		final RetainedSecrets fresh = expiring(now + 1000000, 4);
+		store.putEntry(zid(4), fresh);
+		backend.hold();
+		Thread sweeper = new Thread() {
+			public void run() {
+				store.sweep(10);
+			}
+		};
+		sweeper.start();
+		backend.awaitWriter();
+		// released in any case, so that a store held by the sweep is reported
+		Thread releaser = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(2000);
+				} catch (InterruptedException e) {
+				}
+				backend.release();
+			}
+		};
+		releaser.start();
+		long start = System.currentTimeMillis();
+		RetainedSecrets hit = store.getEntry(zid(4));
+		RetainedSecrets swept = store.getEntry(zid(1));
+		String number = store.findByNumber(number(3));
+		long time = System.currentTimeMillis() - start;
+		check(same(hit, fresh) && swept == null && number == null
+				&& time < 1000, "store used during a sweep, in " + time
+				+ " ms");
+		Thread writer = new Thread() {
+			public void run() {
+				store.putEntry(zid(2), fresh);
+			}
+		};
+		writer.start();
+		Thread.sleep(100);
+		backend.release();
+		sweeper.join();
+		writer.join();
+		check(backend.get(key(zid(1))) == null
+				&& backend.get(key(zid(3))) == null
+				&& store.getEntry(zid(3)) == null, "swept entries removed");
+		check(backend.get(key(zid(2))) != null
+				&& same(store.getEntry(zid(2)), fresh),
+				"change during the sweep kept");
+	}
+
+	/*
+	 * Longest pause of the sweeps of expired entries, half of them, against
+	 * a scan for them
+	 */
+	void measureSweep(int entries, int budget) {
+		PersistentHashtable backend = new PersistentHashtableImpl();
+		ZrtpCacheStore store = new ZrtpCacheStore(backend, addressBook,
+				platform.getLogger());
+		long now = System.currentTimeMillis();
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < entries; i++) {
+				// expired in a second already over
+				store.putEntry(asciiZid(i), expiring(i % 2 == 0 ? now - 1000
+						- i : now + 3600000, i));
+			}
+			long start = System.nanoTime();
+			int expired = 0;
+			for (Enumeration e = backend.keys(); e.hasMoreElements();) {
+				ZrtpCacheEntry ce = backend.get((String) e.nextElement());
+				if (RetainedSecrets.decode(ce.getData(), null).expiryTime <= now) {
+					expired++;
+				}
+			}
+			long scanTime = System.nanoTime() - start;
+			check(expired == (entries + 1) / 2, "expired entries scanned");
+			store.sweep(0); // index built
+			long maxTime = 0;
+			long totalTime = 0;
+			long reclaimed = store.getReclaimed();
+			int sweeps = 0;
+			int removed;
+			do {
+				sweeps++;
+				start = System.nanoTime();
+				removed = store.sweep(budget);
+				long time = System.nanoTime() - start;
+				maxTime = Math.max(maxTime, time);
+				totalTime += time;
+			} while (removed == budget);
+			check(store.getReclaimed() - reclaimed == expired,
+					"expired entries swept");
+			if (pass == 1) {
+				logger.info(expired + " expired entries among " + entries
+						+ ": scan " + (scanTime / 1000000) + " ms; " + sweeps
+						+ " sweeps of " + budget + ", "
+						+ (totalTime / sweeps / 1000) + " us on average, "
+						+ (maxTime / 1000) + " us at most, "
+						+ (totalTime / 1000000) + " ms in all");
+			}
+		}
+	}
+
+	/*
+	 * A burst of updates of retained secrets to a log forcing each change to
+	 * the disk, written through against written behind
+	 */
+	void measureWriteBehind(int updates) throws IOException {
+		File file = File.createTempFile("zrtpcache", ".log");
+		try {
+			for (int pass = 0; pass < 2; pass++) {
+				FilePersistentHashtable backend = new FilePersistentHashtable(
+						file, true);
+				ZrtpCacheStore store = new ZrtpCacheStore(backend, addressBook,
+						platform.getLogger());
+				long start = System.nanoTime();
+				for (int i = 0; i < updates; i++) {
+					store.putEntry(zid(i % 100), new RetainedSecrets(
+							Long.MAX_VALUE, true, secret(i), secret(i + 1), 0,
+							i, number(i % 100)));
+				}
+				long throughTime = System.nanoTime() - start;
+
+				store.setWriteBehind(1000);
+				start = System.nanoTime();
+				for (int i = 0; i < updates; i++) {
+					store.putEntry(zid(i % 100), new RetainedSecrets(
+							Long.MAX_VALUE, true, secret(i), secret(i + 1), 0,
+							i, number(i % 100)));
+				}
+				long behindTime = System.nanoTime() - start;
+				start = System.nanoTime();
+				store.close();
+				long closeTime = System.nanoTime() - start;
+				check(store.getFlushes() == 1
+						&& store.getFlushedWrites() == Math.min(updates, 100),
+						"burst flushed in a batch");
+				backend.close();
+				backend = new FilePersistentHashtable(file, true);
+				ZrtpCacheEntry last = backend.get(key(zid((updates - 1)
+						% 100)));
+				check(RetainedSecrets.decode(last.getData(), null).presharedCount == updates - 1,
+						"last update of the burst persisted");
+				backend.close();
+				if (pass == 1) {
+					logger.info(updates + " updates of 100 ZIDs forced to disk: "
+							+ (throughTime / updates / 1000)
+							+ " us each written through, "
+							+ (behindTime / updates / 1000)
+							+ " us written behind, flushed in "
+							+ (closeTime / 1000) + " us, one batch of "
+							+ store.getFlushedWrites() + " writes");
+				}
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	static String number(int i) {
+		return "+39" + (300000000 + i);
+	}
+
+	/*
+	 * Lookups of entries of repeat callers, cached against read from the
+	 * backend and decoded
+	 */
+	void measureEntries(int entries) {
+		ZrtpCacheStore store = new ZrtpCacheStore(
+				new PersistentHashtableImpl(), addressBook, platform
+						.getLogger());
+		store.setCapacity(entries);
+		byte[][] zids = new byte[entries][];
+		for (int i = 0; i < entries; i++) {
+			zids[i] = zid(i);
+			store.putEntry(zids[i], new RetainedSecrets(Long.MAX_VALUE, true,
+					secret(i), secret(i + 1), 0, 0, number(i)));
+		}
+		int lookups = Math.max(entries, 100000);
+		for (int pass = 0; pass < 2; pass++) {
+			store.setCapacity(0);
+			long start = System.nanoTime();
+			for (int i = 0; i < lookups; i++) {
+				store.getEntry(zids[i % entries]);
+			}
+			long missTime = System.nanoTime() - start;
+			store.setCapacity(entries);
+			for (int i = 0; i < entries; i++) {
+				store.getEntry(zids[i]);
+			}
+			long hits = store.getHits();
+			start = System.nanoTime();
+			for (int i = 0; i < lookups; i++) {
+				store.getEntry(zids[i % entries]);
+			}
+			long hitTime = System.nanoTime() - start;
+			check(store.getHits() - hits == lookups, "lookups hit");
+			if (pass == 1) {
+				logger.info("entry lookup among " + entries + " entries: "
+						+ (missTime / lookups) + " ns from the backend, "
+						+ (hitTime / lookups) + " ns cached");
+			}
+		}
+	}
+
+	void measure(int entries) {
+		PersistentHashtable backend = new PersistentHashtableImpl();
+		ZrtpCacheStore store = new ZrtpCacheStore(backend, addressBook,
+				platform.getLogger());
+		byte[] data = new byte[53];
+		for (int i = 0; i < entries; i++) {
+			store.put("zid" + i, data, number(i));
+		}
+		int lookups = 20;
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < lookups; i++) {
+				check(scan(backend, number(entries + i)) == null, "scan");
+			}
+			long scanTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			check(store.findByNumber(number(entries)) == null, "first lookup");
+			long buildTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < lookups * 1000; i++) {
+				check(store.findByNumber(number(entries + i)) == null,
+						"lookup");
+			}
+			long indexTime = System.nanoTime() - start;
+			check(store.findByNumber(number(entries / 2)).equals(
+					"zid" + entries / 2), "lookup of a cached number");
+			if (pass == 1) {
+				logger.info("unknown number among " + entries + " entries: scan "
+						+ (scanTime / lookups / 1000) + " us, index "
+						+ (indexTime / lookups / 1000) + " ns");
+			} else {
+				logger.info("index of " + entries + " entries built in "
+						+ (buildTime / 1000000) + " ms");
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 2 && args[0].equals("exiter")) {
+			exiter(new File(args[1]));
+			return;
+		}
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		Logger.getLogger("").setLevel(Level.WARNING);
+		ZrtpCacheStoreTest test = new ZrtpCacheStoreTest();
+		test.logger.setLevel(Level.INFO);
+		test.checkEncoding();
+		test.checkEntries();
+		test.checkLegacyKeys();
+		test.checkNumberIndex();
+		test.checkWriteBehind();
+		test.checkShutdownFlush();
+		test.checkReadDuringFlush();
+		test.checkSweep();
+		test.checkSweepDuringRemove();
+		test.checkZrtpCache();
+		test.measureEntries(entries);
+		test.measure(entries);
+		test.measureWriteBehind(1000);
+		test.measureSweep(entries, ZrtpCacheStore.DEFAULT_SWEEP_BUDGET);
+		test.finish();
+	}
+}